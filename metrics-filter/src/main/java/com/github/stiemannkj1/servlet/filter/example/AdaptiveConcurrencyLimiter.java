@@ -0,0 +1,257 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2019 Kyle Stiemann.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.github.stiemannkj1.servlet.filter.example;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * <p>
+ * Limits the number of requests that may be processed concurrently and adjusts the limit based on the observed latency
+ * (a simplified version of the gradient algorithm used by Netflix's concurrency-limits library). The latencies of
+ * completed requests are collected in short windows. At the end of each window, the window's average latency (the
+ * short-term latency) is compared with an exponentially weighted moving average of previous windows (the long-term
+ * latency). While the short-term latency stays within a tolerance of the long-term latency, the limit grows by roughly
+ * the square root of the limit per window. Once requests start queuing in a degraded backend and the short-term
+ * latency rises, the limit shrinks by the ratio of the two latencies (by at most half per window).</p>
+ *
+ * <p>
+ * Acquiring and releasing a permit only touch a lock-free in-flight counter and striped window accumulators. The limit
+ * is recalculated by whichever thread first notices that the window has ended, and threads that lose that race never
+ * wait. This class is thread-safe.</p>
+ *
+ * @author Kyle Stiemann
+ */
+final class AdaptiveConcurrencyLimiter {
+
+    static final int DEFAULT_INITIAL_LIMIT = 20;
+    static final int DEFAULT_MINIMUM_LIMIT = 1;
+    static final int DEFAULT_MAXIMUM_LIMIT = 1000;
+
+    private static final long DEFAULT_WINDOW_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+    private static final long MINIMUM_WINDOW_SAMPLES = 10;
+    private static final double LATENCY_TOLERANCE = 1.5;
+    private static final double LONG_TERM_LATENCY_DECAY = 0.05;
+    private static final double SMOOTHING = 0.2;
+
+    private final int minimumLimit;
+    private final int maximumLimit;
+    private final long windowNanos;
+    private final LongSupplier nanoClock;
+    private final AtomicInteger inFlightCount = new AtomicInteger();
+    private final LongAdder rejectedCount = new LongAdder();
+    private final LongAdder windowLatencySum = new LongAdder();
+    private final LongAdder windowSampleCount = new LongAdder();
+    private final LongAccumulator windowMaximumInFlightCount = new LongAccumulator(Math::max, 0);
+    private final AtomicBoolean updatingLimit = new AtomicBoolean();
+    private volatile long windowEndNanos;
+    private volatile int limit;
+
+    // Guarded by updatingLimit.
+    private double estimatedLimit;
+    private double longTermLatency;
+
+    AdaptiveConcurrencyLimiter(int initialLimit, int minimumLimit, int maximumLimit) {
+        this(initialLimit, minimumLimit, maximumLimit, DEFAULT_WINDOW_NANOS, System::nanoTime);
+    }
+
+    /**
+     * @param windowNanos the minimum length of a window in nanoseconds.
+     * @param nanoClock the source of the current time in nanoseconds.
+     */
+    AdaptiveConcurrencyLimiter(int initialLimit, int minimumLimit, int maximumLimit, long windowNanos,
+            LongSupplier nanoClock) {
+
+        if (minimumLimit < 1 || maximumLimit < minimumLimit || initialLimit < minimumLimit ||
+                initialLimit > maximumLimit) {
+            throw new IllegalArgumentException("The concurrency limits must satisfy 1 <= minimum (" + minimumLimit +
+                    ") <= initial (" + initialLimit + ") <= maximum (" + maximumLimit + ").");
+        }
+
+        this.minimumLimit = minimumLimit;
+        this.maximumLimit = maximumLimit;
+        this.windowNanos = windowNanos;
+        this.nanoClock = nanoClock;
+        this.estimatedLimit = initialLimit;
+        this.limit = initialLimit;
+        this.windowEndNanos = nanoClock.getAsLong() + windowNanos;
+    }
+
+    /**
+     * @return true if the request may be processed, in which case {@link #release(long)} must be called once it is
+     * done, or false if the request must be rejected.
+     */
+    boolean tryAcquire() {
+
+        int currentInFlightCount;
+
+        do {
+
+            currentInFlightCount = inFlightCount.get();
+
+            if (currentInFlightCount >= limit) {
+                rejectedCount.increment();
+                return false;
+            }
+        } while (!inFlightCount.compareAndSet(currentInFlightCount, currentInFlightCount + 1));
+
+        windowMaximumInFlightCount.accumulate(currentInFlightCount + 1);
+
+        return true;
+    }
+
+    /**
+     * @param latencyNanos the latency of the request or a negative value if the request failed and its latency should
+     * not influence the limit.
+     */
+    void release(long latencyNanos) {
+
+        inFlightCount.decrementAndGet();
+
+        if (latencyNanos >= 0) {
+            windowLatencySum.add(latencyNanos);
+            windowSampleCount.increment();
+        }
+
+        final long nowNanos = nanoClock.getAsLong();
+
+        if ((nowNanos - windowEndNanos) >= 0 && updatingLimit.compareAndSet(false, true)) {
+
+            try {
+
+                if ((nowNanos - windowEndNanos) >= 0) {
+                    updateLimit(nowNanos);
+                }
+            } finally {
+                updatingLimit.set(false);
+            }
+        }
+    }
+
+    int getLimit() {
+        return limit;
+    }
+
+    int getInFlightCount() {
+        return inFlightCount.get();
+    }
+
+    long getRejectedCount() {
+        return rejectedCount.sum();
+    }
+
+    /**
+     * @return the current limit, in-flight count, and rejected count.
+     */
+    Summary summarize() {
+        return new Summary(limit, inFlightCount.get(), rejectedCount.sum());
+    }
+
+    private void updateLimit(long nowNanos) {
+
+        // Keep the window open until it contains enough samples for a meaningful average.
+        if (windowSampleCount.sum() < MINIMUM_WINDOW_SAMPLES) {
+            return;
+        }
+
+        final long sampleCount = windowSampleCount.sumThenReset();
+        final double shortTermLatency = ((double) windowLatencySum.sumThenReset()) / sampleCount;
+        final long maximumInFlightCount = windowMaximumInFlightCount.getThenReset();
+        windowEndNanos = nowNanos + windowNanos;
+
+        if (longTermLatency == 0) {
+            longTermLatency = shortTermLatency;
+        } else {
+            longTermLatency = (longTermLatency * (1 - LONG_TERM_LATENCY_DECAY)) +
+                    (shortTermLatency * LONG_TERM_LATENCY_DECAY);
+        }
+
+        // After a period of high latency, let the long-term latency recover quickly so that the limit can grow again.
+        if (longTermLatency > (shortTermLatency * 2)) {
+            longTermLatency *= 0.95;
+        }
+
+        // Don't grow the limit if the application is not using it.
+        if (maximumInFlightCount < (estimatedLimit / 2) && shortTermLatency <= longTermLatency * LATENCY_TOLERANCE) {
+            return;
+        }
+
+        final double gradient = Math.max(0.5,
+                Math.min(1.0, (LATENCY_TOLERANCE * longTermLatency) / Math.max(shortTermLatency, 1)));
+        final double newLimit = (estimatedLimit * gradient) + Math.sqrt(estimatedLimit);
+        estimatedLimit = Math.min(maximumLimit,
+                Math.max(minimumLimit, (estimatedLimit * (1 - SMOOTHING)) + (newLimit * SMOOTHING)));
+        limit = (int) estimatedLimit;
+    }
+
+    /**
+     * An immutable summary of the limiter's state. Summaries are equal if their values are equal.
+     */
+    static final class Summary {
+
+        private final int limit;
+        private final int inFlightCount;
+        private final long rejectedCount;
+
+        private Summary(int limit, int inFlightCount, long rejectedCount) {
+            this.limit = limit;
+            this.inFlightCount = inFlightCount;
+            this.rejectedCount = rejectedCount;
+        }
+
+        int getLimit() {
+            return limit;
+        }
+
+        int getInFlightCount() {
+            return inFlightCount;
+        }
+
+        long getRejectedCount() {
+            return rejectedCount;
+        }
+
+        @Override
+        public boolean equals(Object object) {
+
+            if (!(object instanceof Summary)) {
+                return false;
+            }
+
+            final Summary summary = (Summary) object;
+
+            return limit == summary.limit && inFlightCount == summary.inFlightCount &&
+                    rejectedCount == summary.rejectedCount;
+        }
+
+        @Override
+        public int hashCode() {
+            return (((limit * 31) + inFlightCount) * 31) + Long.hashCode(rejectedCount);
+        }
+    }
+}
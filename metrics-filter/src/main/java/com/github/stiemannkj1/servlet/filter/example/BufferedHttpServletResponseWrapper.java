@@ -0,0 +1,200 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2019 Kyle Stiemann.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.github.stiemannkj1.servlet.filter.example;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
+
+/**
+ * Captures the response body in memory instead of writing it to the wrapped response so that it can be written (and
+ * re-written) later via {@link #toByteArray()}. Headers and the status are passed through to the wrapped response.
+ * Calls to {@link #sendError(int)}, {@link #sendError(int, java.lang.String)}, and {@link #sendRedirect(
+ * java.lang.String)} are also passed through and mark the captured body as not reusable.
+ *
+ * @author Kyle Stiemann
+ */
+final class BufferedHttpServletResponseWrapper extends HttpServletResponseWrapper {
+
+    private final ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+
+    private ServletOutputStream bufferedServletOutputStream;
+    private PrintWriter bufferedPrintWriter;
+    private int status = HttpServletResponse.SC_OK;
+    private boolean bodyReusable = true;
+
+    public BufferedHttpServletResponseWrapper(HttpServletResponse response) {
+        super(response);
+    }
+
+    @Override
+    public void flushBuffer() throws IOException {
+
+        if (bufferedPrintWriter != null) {
+            bufferedPrintWriter.flush();
+        }
+    }
+
+    @Override
+    public ServletOutputStream getOutputStream() throws IOException {
+
+        if (bufferedPrintWriter != null) {
+            throw new IllegalStateException("getWriter() already called for this repsonse.");
+        }
+
+        if (bufferedServletOutputStream == null) {
+            bufferedServletOutputStream = new ByteArrayServletOutputStream(buffer);
+        }
+
+        return bufferedServletOutputStream;
+    }
+
+    @Override
+    public PrintWriter getWriter() throws IOException {
+
+        if (bufferedServletOutputStream != null) {
+            throw new IllegalStateException("getOutputStream() already called for this repsonse.");
+        }
+
+        if (bufferedPrintWriter == null) {
+            String characterEncoding = getResponse().getCharacterEncoding();
+
+            if (characterEncoding == null) {
+                characterEncoding = StandardCharsets.UTF_8.toString();
+            }
+
+            bufferedPrintWriter = new PrintWriter(new OutputStreamWriter(buffer, characterEncoding));
+        }
+
+        return bufferedPrintWriter;
+    }
+
+    @Override
+    public boolean isCommitted() {
+        return !bodyReusable && super.isCommitted();
+    }
+
+    @Override
+    public void reset() {
+        super.reset();
+        resetBuffer();
+        status = HttpServletResponse.SC_OK;
+    }
+
+    @Override
+    public void resetBuffer() {
+
+        if (bufferedPrintWriter != null) {
+            bufferedPrintWriter.flush();
+        }
+
+        buffer.reset();
+    }
+
+    @Override
+    public void sendError(int sc) throws IOException {
+        bodyReusable = false;
+        super.sendError(sc);
+    }
+
+    @Override
+    public void sendError(int sc, String msg) throws IOException {
+        bodyReusable = false;
+        super.sendError(sc, msg);
+    }
+
+    @Override
+    public void sendRedirect(String location) throws IOException {
+        bodyReusable = false;
+        super.sendRedirect(location);
+    }
+
+    @Override
+    public void setStatus(int sc) {
+        status = sc;
+        super.setStatus(sc);
+    }
+
+    @Override
+    @SuppressWarnings("deprecation")
+    public void setStatus(int sc, String sm) {
+        status = sc;
+        super.setStatus(sc, sm);
+    }
+
+    /**
+     * @return true if the body was rendered with a {@code 200 OK} status and the response was not sent as an error or
+     * redirect.
+     */
+    boolean isBodyReusable() {
+        return bodyReusable && status == HttpServletResponse.SC_OK;
+    }
+
+    /**
+     * @return the captured response body.
+     */
+    byte[] toByteArray() {
+
+        if (bufferedPrintWriter != null) {
+            bufferedPrintWriter.flush();
+        }
+
+        return buffer.toByteArray();
+    }
+
+    private static final class ByteArrayServletOutputStream extends ServletOutputStream {
+
+        private final ByteArrayOutputStream buffer;
+
+        public ByteArrayServletOutputStream(ByteArrayOutputStream buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public boolean isReady() {
+            return true;
+        }
+
+        @Override
+        public void setWriteListener(WriteListener writeListener) {
+            throw new IllegalStateException("Non-blocking writes are not supported while buffering the response.");
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            buffer.write(b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            buffer.write(b, off, len);
+        }
+    }
+}
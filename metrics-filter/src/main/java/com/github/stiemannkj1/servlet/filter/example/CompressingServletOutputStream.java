@@ -0,0 +1,363 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2019 Kyle Stiemann.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.github.stiemannkj1.servlet.filter.example;
+
+import java.io.IOException;
+import java.util.zip.Deflater;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+
+/**
+ * <p>
+ * Compresses the response on the fly when the response turns out to be compressible. The first {@link
+ * ResponseCompression#getMinimumSize()} bytes are buffered so that small responses can be sent uncompressed. Once the
+ * minimum size is reached, {@link ResponseSizeHttpServletResponseWrapper#startCompression(java.lang.String)} decides
+ * whether to compress based on the response headers. From then on, bytes are streamed through a pooled {@link
+ * Deflater} one buffer at a time rather than buffering the whole response. The {@link Deflater} is only borrowed once
+ * the response starts compressing, so responses that are sent uncompressed never take one from the pool. The number of
+ * bytes written to the wrapped stream (after compression) can be obtained via {@link #getTransferredSize()}.</p>
+ *
+ * <p>
+ * {@link #flush()} performs a {@link Deflater#SYNC_FLUSH} so that everything written so far can be decompressed by the
+ * client. {@link #finish()} must be called once the response is complete to write the remaining compressed data.</p>
+ *
+ * @author Kyle Stiemann
+ */
+final class CompressingServletOutputStream extends ServletOutputStream {
+
+    private static final byte[] GZIP_HEADER = new byte[] {
+        (byte) 0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, (byte) 0xff
+    };
+
+    private final ServletOutputStream wrappedServletOutputStream;
+    private final ResponseSizeHttpServletResponseWrapper response;
+    private final ResponseCompression responseCompression;
+    private final String encoding;
+
+    private byte[] undecidedBuffer;
+    private ResponseCompression.PooledDeflater pooledDeflater;
+    private State state = State.UNDECIDED;
+    private int bufferedSize = 0;
+    private long transferredSize = 0;
+
+    public CompressingServletOutputStream(ServletOutputStream wrappedServletOutputStream,
+            ResponseSizeHttpServletResponseWrapper response, ResponseCompression responseCompression,
+            String encoding) {
+        this.wrappedServletOutputStream = wrappedServletOutputStream;
+        this.response = response;
+        this.responseCompression = responseCompression;
+        this.encoding = encoding;
+    }
+
+    @Override
+    public void close() throws IOException {
+        finish();
+        wrappedServletOutputStream.close();
+    }
+
+    @Override
+    public void flush() throws IOException {
+
+        if (state == State.UNDECIDED && bufferedSize > 0) {
+            decide(false);
+        } else if (state == State.COMPRESSING) {
+            deflateBufferedInput(Deflater.SYNC_FLUSH);
+        }
+
+        wrappedServletOutputStream.flush();
+    }
+
+    /**
+     * Writes any buffered or remaining compressed data and returns the {@link Deflater} to the pool. Calling this
+     * method more than once has no effect.
+     */
+    void finish() throws IOException {
+
+        try {
+
+            if (state == State.UNDECIDED) {
+                decide(false);
+            } else if (state == State.COMPRESSING) {
+                final byte[] inputBuffer = pooledDeflater.inputBuffer;
+                setInput(inputBuffer, 0, bufferedSize);
+                bufferedSize = 0;
+
+                final Deflater deflater = pooledDeflater.deflater;
+                deflater.finish();
+
+                while (!deflater.finished()) {
+                    writeCompressed(deflater.deflate(pooledDeflater.outputBuffer));
+                }
+
+                if (pooledDeflater.gzip) {
+                    writeGzipTrailer();
+                }
+            }
+        } finally {
+            state = State.FINISHED;
+            release();
+        }
+    }
+
+    /**
+     * Returns the {@link Deflater} to the pool without writing any buffered data. Calling this method more than once
+     * has no effect.
+     */
+    void release() {
+
+        if (pooledDeflater != null) {
+            responseCompression.release(pooledDeflater);
+            pooledDeflater = null;
+        }
+
+        if (state != State.PASS_THROUGH) {
+            state = State.FINISHED;
+        }
+    }
+
+    /**
+     * @return the number of bytes written to the wrapped stream.
+     */
+    long getTransferredSize() {
+        return transferredSize;
+    }
+
+    /**
+     * @return true if it has not been decided yet whether the response will be compressed.
+     */
+    boolean isUndecided() {
+        return state == State.UNDECIDED;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        return wrappedServletOutputStream.equals(obj);
+    }
+
+    @Override
+    public int hashCode() {
+        return wrappedServletOutputStream.hashCode();
+    }
+
+    @Override
+    public boolean isReady() {
+        return wrappedServletOutputStream.isReady();
+    }
+
+    @Override
+    public void setWriteListener(WriteListener writeListener) {
+        wrappedServletOutputStream.setWriteListener(writeListener);
+    }
+
+    @Override
+    public String toString() {
+        return wrappedServletOutputStream.toString();
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+
+        if (state == State.PASS_THROUGH) {
+            transferredSize++;
+            wrappedServletOutputStream.write(b);
+        } else {
+            ensureWritable();
+
+            final byte[] inputBuffer = getInputBuffer();
+
+            if (bufferedSize == inputBuffer.length) {
+                deflateBufferedInput(Deflater.NO_FLUSH);
+            }
+
+            inputBuffer[bufferedSize++] = (byte) b;
+
+            if (state == State.UNDECIDED && bufferedSize >= responseCompression.getMinimumSize()) {
+                decide(true);
+            }
+        }
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+
+        if (state == State.PASS_THROUGH) {
+            transferredSize += len;
+            wrappedServletOutputStream.write(b, off, len);
+            return;
+        }
+
+        ensureWritable();
+
+        while (len > 0) {
+
+            if (state == State.PASS_THROUGH) {
+                write(b, off, len);
+                return;
+            }
+
+            final byte[] inputBuffer = getInputBuffer();
+
+            if (bufferedSize == inputBuffer.length) {
+                deflateBufferedInput(Deflater.NO_FLUSH);
+            }
+
+            int chunkSize = Math.min(len, inputBuffer.length - bufferedSize);
+
+            if (state == State.UNDECIDED) {
+                chunkSize = Math.min(chunkSize, Math.max(1, responseCompression.getMinimumSize() - bufferedSize));
+            }
+
+            System.arraycopy(b, off, inputBuffer, bufferedSize, chunkSize);
+            bufferedSize += chunkSize;
+            off += chunkSize;
+            len -= chunkSize;
+
+            if (state == State.UNDECIDED && bufferedSize >= responseCompression.getMinimumSize()) {
+                decide(true);
+            }
+        }
+    }
+
+    private void decide(boolean minimumSizeReached) throws IOException {
+
+        if (minimumSizeReached && response.startCompression(encoding)) {
+
+            state = State.COMPRESSING;
+            pooledDeflater = responseCompression.borrow(encoding);
+            System.arraycopy(undecidedBuffer, 0, pooledDeflater.inputBuffer, 0, bufferedSize);
+            undecidedBuffer = null;
+
+            if (pooledDeflater.gzip) {
+                writeCompressed(GZIP_HEADER, GZIP_HEADER.length);
+            }
+        } else {
+
+            state = State.PASS_THROUGH;
+            response.applyDeferredContentLength();
+
+            final byte[] inputBuffer = undecidedBuffer;
+            final int size = bufferedSize;
+            bufferedSize = 0;
+            undecidedBuffer = null;
+
+            if (size > 0) {
+                transferredSize += size;
+                wrappedServletOutputStream.write(inputBuffer, 0, size);
+            }
+
+            release();
+        }
+    }
+
+    private void deflateBufferedInput(int flushMode) throws IOException {
+
+        setInput(pooledDeflater.inputBuffer, 0, bufferedSize);
+        bufferedSize = 0;
+
+        final Deflater deflater = pooledDeflater.deflater;
+        final byte[] outputBuffer = pooledDeflater.outputBuffer;
+
+        if (flushMode == Deflater.NO_FLUSH) {
+
+            while (!deflater.needsInput()) {
+                writeCompressed(deflater.deflate(outputBuffer, 0, outputBuffer.length, Deflater.NO_FLUSH));
+            }
+        } else {
+
+            int compressedSize;
+
+            do {
+                compressedSize = deflater.deflate(outputBuffer, 0, outputBuffer.length, flushMode);
+                writeCompressed(compressedSize);
+            } while (compressedSize == outputBuffer.length);
+        }
+    }
+
+    /**
+     * @return the buffer that holds the bytes written before the decision (which never holds more than the minimum
+     * size) or the pooled {@link Deflater}'s input buffer once the response is being compressed.
+     */
+    private byte[] getInputBuffer() {
+
+        if (state == State.COMPRESSING) {
+            return pooledDeflater.inputBuffer;
+        }
+
+        if (undecidedBuffer == null) {
+            undecidedBuffer = new byte[Math.max(1, responseCompression.getMinimumSize())];
+        }
+
+        return undecidedBuffer;
+    }
+
+    private void ensureWritable() {
+
+        if (state == State.FINISHED) {
+            throw new IllegalStateException("The compressed response has already been finished.");
+        }
+    }
+
+    private void setInput(byte[] input, int off, int len) {
+
+        if (pooledDeflater.gzip) {
+            pooledDeflater.crc32.update(input, off, len);
+        }
+
+        pooledDeflater.deflater.setInput(input, off, len);
+    }
+
+    private void writeCompressed(int size) throws IOException {
+        writeCompressed(pooledDeflater.outputBuffer, size);
+    }
+
+    private void writeCompressed(byte[] compressed, int size) throws IOException {
+
+        if (size > 0) {
+            transferredSize += size;
+            wrappedServletOutputStream.write(compressed, 0, size);
+        }
+    }
+
+    private void writeGzipTrailer() throws IOException {
+
+        final byte[] trailer = pooledDeflater.outputBuffer;
+        writeLittleEndianInt(trailer, 0, (int) pooledDeflater.crc32.getValue());
+        writeLittleEndianInt(trailer, 4, (int) pooledDeflater.deflater.getBytesRead());
+        writeCompressed(trailer, 8);
+    }
+
+    private static void writeLittleEndianInt(byte[] bytes, int offset, int value) {
+        bytes[offset] = (byte) value;
+        bytes[offset + 1] = (byte) (value >> 8);
+        bytes[offset + 2] = (byte) (value >> 16);
+        bytes[offset + 3] = (byte) (value >> 24);
+    }
+
+    private enum State {
+        UNDECIDED,
+        COMPRESSING,
+        PASS_THROUGH,
+        FINISHED
+    }
+}
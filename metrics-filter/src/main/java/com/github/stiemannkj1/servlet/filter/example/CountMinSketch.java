@@ -0,0 +1,167 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2019 Kyle Stiemann.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.github.stiemannkj1.servlet.filter.example;
+
+import java.util.Arrays;
+
+/**
+ * <p>
+ * A Count-Min sketch which estimates the total weight added for any key in a fixed amount of memory ({@code depth *
+ * width} counters). Each key is hashed to one counter per row and the estimate is the minimum of those counters, so an
+ * estimate is never less than the actual weight and exceeds it by at most {@link #getRelativeError()} times the total
+ * weight with a probability of at least {@code 1 - }{@link #getFailureProbability()}.</p>
+ *
+ * <p>
+ * Sketches with the same dimensions can be {@link #merge(CountMinSketch) merged} by adding their counters, which gives
+ * exactly the sketch that would have been built from both streams. This class is not thread-safe.</p>
+ *
+ * @author Kyle Stiemann
+ */
+final class CountMinSketch {
+
+    private final long[][] counters;
+    private final int widthMask;
+    private long total;
+
+    /**
+     * @param depth the number of rows (the failure probability is {@code e^-depth}).
+     * @param width the number of counters per row which must be a power of two (the relative error is {@code
+     * e / width}).
+     */
+    CountMinSketch(int depth, int width) {
+
+        if (depth <= 0 || width <= 0 || Integer.bitCount(width) != 1) {
+            throw new IllegalArgumentException("Invalid Count-Min sketch dimensions " + depth + "x" + width +
+                    ". The depth must be positive and the width must be a positive power of two.");
+        }
+
+        this.counters = new long[depth][width];
+        this.widthMask = width - 1;
+    }
+
+    /**
+     * @return a 64-bit hash of the key to pass to {@link #add(long, long)} and {@link #estimate(long)}.
+     */
+    static long hash(String key) {
+
+        // FNV-1a over the UTF-16 code units followed by a finalizer that spreads the bits into both halves.
+        long hash = 0xcbf29ce484222325L;
+
+        for (int i = 0; i < key.length(); i++) {
+            hash = (hash ^ key.charAt(i)) * 0x100000001b3L;
+        }
+
+        hash = (hash ^ (hash >>> 33)) * 0xff51afd7ed558ccdL;
+        hash = (hash ^ (hash >>> 33)) * 0xc4ceb9fe1a85ec53L;
+
+        return hash ^ (hash >>> 33);
+    }
+
+    /**
+     * Adds the weight to the counters of the key.
+     */
+    void add(long hash, long weight) {
+
+        final int hash1 = (int) hash;
+        final int hash2 = ((int) (hash >>> 32)) | 1;
+
+        for (int row = 0; row < counters.length; row++) {
+            counters[row][(hash1 + (row * hash2)) & widthMask] += weight;
+        }
+
+        total += weight;
+    }
+
+    /**
+     * @return the estimated total weight of the key which is never less than the actual total weight.
+     */
+    long estimate(long hash) {
+
+        final int hash1 = (int) hash;
+        final int hash2 = ((int) (hash >>> 32)) | 1;
+        long estimate = Long.MAX_VALUE;
+
+        for (int row = 0; row < counters.length; row++) {
+            estimate = Math.min(estimate, counters[row][(hash1 + (row * hash2)) & widthMask]);
+        }
+
+        return estimate;
+    }
+
+    /**
+     * @return the total weight of all keys.
+     */
+    long getTotal() {
+        return total;
+    }
+
+    /**
+     * @return the maximum overestimate as a fraction of {@link #getTotal()} ({@code e / width}).
+     */
+    double getRelativeError() {
+        return Math.E / (widthMask + 1);
+    }
+
+    /**
+     * @return the probability that an estimate exceeds the {@link #getRelativeError() relative error} ({@code
+     * e^-depth}).
+     */
+    double getFailureProbability() {
+        return Math.exp(-counters.length);
+    }
+
+    /**
+     * Adds the counters of the other sketch (which must have the same dimensions) to this sketch.
+     */
+    void merge(CountMinSketch other) {
+
+        if (other.counters.length != counters.length || other.widthMask != widthMask) {
+            throw new IllegalArgumentException("Count-Min sketches with different dimensions cannot be merged.");
+        }
+
+        for (int row = 0; row < counters.length; row++) {
+
+            final long[] rowCounters = counters[row];
+            final long[] otherRowCounters = other.counters[row];
+
+            for (int column = 0; column < rowCounters.length; column++) {
+                rowCounters[column] += otherRowCounters[column];
+            }
+        }
+
+        total += other.total;
+    }
+
+    /**
+     * Removes all added weights.
+     */
+    void reset() {
+
+        for (long[] rowCounters : counters) {
+            Arrays.fill(rowCounters, 0);
+        }
+
+        total = 0;
+    }
+}
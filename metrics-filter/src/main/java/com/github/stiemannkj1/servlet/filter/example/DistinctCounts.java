@@ -0,0 +1,204 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2019 Kyle Stiemann.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.github.stiemannkj1.servlet.filter.example;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * <p>
+ * Estimates the number of distinct clients, request paths, and sessions seen in the last hour with {@link
+ * HyperLogLog} sketches. The hour is divided into {@value #SLICE_COUNT} slices of {@value #SLICE_MINUTES} minutes, each
+ * with one sketch per {@link Dimension}. Requests add to the sketches of the current slice, and {@link
+ * #summarize(long)} merges the slices that are within the window, so the window slides in {@value #SLICE_MINUTES}
+ * minute steps. Memory use is fixed at {@code SLICE_COUNT * 3} sketches regardless of how many requests are
+ * recorded.</p>
+ *
+ * <p>
+ * A slice is reused (and cleared) when its time comes around again. The first request of a new slice clears it while
+ * holding a lock, and every other request adds to the sketches without locking. This class is thread-safe.</p>
+ *
+ * @author Kyle Stiemann
+ */
+final class DistinctCounts {
+
+    static final int SLICE_MINUTES = 5;
+    static final int SLICE_COUNT = 12;
+    private static final long SLICE_MILLIS = TimeUnit.MINUTES.toMillis(SLICE_MINUTES);
+
+    /**
+     * The request properties that distinct values are counted for.
+     */
+    enum Dimension {
+        CLIENTS,
+        PATHS,
+        SESSIONS
+    }
+
+    private final Slice[] slices = new Slice[SLICE_COUNT];
+    private final LongAdder recordCount = new LongAdder();
+
+    DistinctCounts() {
+
+        for (int i = 0; i < slices.length; i++) {
+            slices[i] = new Slice();
+        }
+    }
+
+    /**
+     * @param client the client's IP address.
+     * @param path the request URI (without the query string).
+     * @param sessionId the requested session id (or null if the request has no valid session).
+     * @param nowMillis the current time in milliseconds since the epoch.
+     */
+    void record(String client, String path, String sessionId, long nowMillis) {
+
+        final long sliceNumber = nowMillis / SLICE_MILLIS;
+        final Slice slice = slices[(int) (sliceNumber % SLICE_COUNT)];
+
+        if (slice.sliceNumber != sliceNumber) {
+            slice.advance(sliceNumber);
+        }
+
+        if (client != null) {
+            slice.sketches[Dimension.CLIENTS.ordinal()].add(CountMinSketch.hash(client));
+        }
+
+        if (path != null) {
+            slice.sketches[Dimension.PATHS.ordinal()].add(CountMinSketch.hash(path));
+        }
+
+        if (sessionId != null) {
+            slice.sketches[Dimension.SESSIONS.ordinal()].add(CountMinSketch.hash(sessionId));
+        }
+
+        recordCount.increment();
+    }
+
+    /**
+     * @return a number that increases whenever a request is recorded or the window slides, so a {@link Summary} only
+     * needs to be rebuilt when the version has changed since it was built (the version must be read before
+     * summarizing).
+     */
+    long getVersion(long nowMillis) {
+        return recordCount.sum() + (nowMillis / SLICE_MILLIS);
+    }
+
+    /**
+     * @return the distinct counts of the last {@value #SLICE_COUNT} slices (including the current slice).
+     */
+    Summary summarize(long nowMillis) {
+
+        final long currentSliceNumber = nowMillis / SLICE_MILLIS;
+        final HyperLogLog[] mergedSketches = newSketches();
+
+        for (Slice slice : slices) {
+
+            final long sliceNumber = slice.sliceNumber;
+
+            if (sliceNumber <= currentSliceNumber && sliceNumber > (currentSliceNumber - SLICE_COUNT)) {
+
+                for (int i = 0; i < mergedSketches.length; i++) {
+                    mergedSketches[i].merge(slice.sketches[i]);
+                }
+            }
+        }
+
+        final List<MetricsFilterMXBean.DistinctCount> distinctCounts = new ArrayList<>(mergedSketches.length);
+
+        for (HyperLogLog sketch : mergedSketches) {
+            distinctCounts.add(new MetricsFilterMXBean.DistinctCount(sketch.estimate(), sketch.getStandardError(),
+                    sketch.toByteArray()));
+        }
+
+        return new Summary(Collections.unmodifiableList(distinctCounts));
+    }
+
+    /**
+     * Removes all recorded values.
+     */
+    synchronized void reset() {
+
+        for (Slice slice : slices) {
+            slice.sliceNumber = Long.MIN_VALUE;
+
+            for (HyperLogLog sketch : slice.sketches) {
+                sketch.reset();
+            }
+        }
+    }
+
+    private static HyperLogLog[] newSketches() {
+
+        final HyperLogLog[] sketches = new HyperLogLog[Dimension.values().length];
+
+        for (int i = 0; i < sketches.length; i++) {
+            sketches[i] = new HyperLogLog(HyperLogLog.DEFAULT_PRECISION);
+        }
+
+        return sketches;
+    }
+
+    /**
+     * An immutable summary of the distinct counts of each {@link Dimension}.
+     */
+    static final class Summary {
+
+        private final List<MetricsFilterMXBean.DistinctCount> distinctCounts;
+
+        private Summary(List<MetricsFilterMXBean.DistinctCount> distinctCounts) {
+            this.distinctCounts = distinctCounts;
+        }
+
+        MetricsFilterMXBean.DistinctCount getDistinctCount(Dimension dimension) {
+            return distinctCounts.get(dimension.ordinal());
+        }
+    }
+
+    private final class Slice {
+
+        private final HyperLogLog[] sketches = newSketches();
+        private volatile long sliceNumber = Long.MIN_VALUE;
+
+        private void advance(long newSliceNumber) {
+
+            synchronized (DistinctCounts.this) {
+
+                // The sketches are cleared before the new slice number is published, so requests that see the new
+                // slice number never add to sketches that are about to be cleared.
+                if (sliceNumber < newSliceNumber) {
+
+                    for (HyperLogLog sketch : sketches) {
+                        sketch.reset();
+                    }
+
+                    sliceNumber = newSliceNumber;
+                }
+            }
+        }
+    }
+}
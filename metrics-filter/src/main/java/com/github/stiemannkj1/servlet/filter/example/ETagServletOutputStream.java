@@ -0,0 +1,223 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2019 Kyle Stiemann.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.github.stiemannkj1.servlet.filter.example;
+
+import java.io.IOException;
+import java.util.Arrays;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+
+/**
+ * <p>
+ * Holds back the response body (up to the response buffer size) while computing a 64-bit FNV-1a hash of it as the
+ * bytes are written. If the whole body fits in the buffer, {@link #finish()} derives a strong {@code ETag} from the
+ * hash and the length via {@link ResponseSizeHttpServletResponseWrapper#applyETag(java.lang.String, int)}. If the
+ * request's {@code If-None-Match} header matches, the held back body is discarded and a {@code 304 Not Modified} is
+ * sent instead. Otherwise the body is written to the wrapped stream.</p>
+ *
+ * <p>
+ * Since the {@code ETag} header must be set before the response is committed, the hash is abandoned (and the body
+ * streamed through) as soon as the body outgrows the buffer or the application flushes the response.</p>
+ *
+ * @author Kyle Stiemann
+ */
+final class ETagServletOutputStream extends ServletOutputStream {
+
+    private static final long FNV_64_OFFSET_BASIS = 0xcbf29ce484222325L;
+    private static final long FNV_64_PRIME = 0x100000001b3L;
+    private static final int INITIAL_BUFFER_SIZE = 1024;
+
+    private final ServletOutputStream wrappedServletOutputStream;
+    private final ResponseSizeHttpServletResponseWrapper response;
+    private final int maximumBufferSize;
+
+    private byte[] buffer;
+    private int bufferedSize = 0;
+    private long hash = FNV_64_OFFSET_BASIS;
+    private boolean passThrough = false;
+    private boolean eTagApplied = false;
+
+    /**
+     * @param maximumBufferSize the maximum number of bytes to hold back (usually the response buffer size).
+     */
+    public ETagServletOutputStream(ServletOutputStream wrappedServletOutputStream,
+            ResponseSizeHttpServletResponseWrapper response, int maximumBufferSize) {
+        this.wrappedServletOutputStream = wrappedServletOutputStream;
+        this.response = response;
+        this.maximumBufferSize = maximumBufferSize;
+        this.buffer = new byte[Math.min(INITIAL_BUFFER_SIZE, maximumBufferSize)];
+    }
+
+    @Override
+    public void close() throws IOException {
+        finish();
+        wrappedServletOutputStream.close();
+    }
+
+    @Override
+    public void flush() throws IOException {
+        stopBuffering();
+        wrappedServletOutputStream.flush();
+    }
+
+    /**
+     * Applies the {@code ETag} without writing the held back body (which is discarded if the response is not
+     * modified). The body must be complete. Calling this method more than once has no effect.
+     */
+    void applyETag() {
+
+        if (passThrough || eTagApplied) {
+            return;
+        }
+
+        eTagApplied = true;
+
+        final String eTag = "\"" + Long.toHexString(hash) + "-" + Integer.toHexString(bufferedSize) + "\"";
+
+        if (response.applyETag(eTag, bufferedSize)) {
+            bufferedSize = 0;
+        }
+    }
+
+    /**
+     * Applies the {@code ETag} (if it has not been applied yet) and writes the held back body (unless the response is
+     * not modified). Calling this method more than once has no effect.
+     */
+    void finish() throws IOException {
+
+        if (passThrough) {
+            return;
+        }
+
+        applyETag();
+        passThrough = true;
+        writeBuffer();
+        buffer = null;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        return wrappedServletOutputStream.equals(obj);
+    }
+
+    @Override
+    public int hashCode() {
+        return wrappedServletOutputStream.hashCode();
+    }
+
+    @Override
+    public boolean isReady() {
+        return passThrough ? wrappedServletOutputStream.isReady() : true;
+    }
+
+    @Override
+    public void setWriteListener(WriteListener writeListener) {
+        wrappedServletOutputStream.setWriteListener(writeListener);
+    }
+
+    @Override
+    public String toString() {
+        return wrappedServletOutputStream.toString();
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+
+        if (passThrough) {
+            wrappedServletOutputStream.write(b);
+            return;
+        }
+
+        if (bufferedSize == buffer.length && !growBuffer(1)) {
+            stopBuffering();
+            wrappedServletOutputStream.write(b);
+            return;
+        }
+
+        buffer[bufferedSize++] = (byte) b;
+        hash = (hash ^ (b & 0xff)) * FNV_64_PRIME;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+
+        if (passThrough) {
+            wrappedServletOutputStream.write(b, off, len);
+            return;
+        }
+
+        if ((buffer.length - bufferedSize) < len && !growBuffer(len)) {
+            stopBuffering();
+            wrappedServletOutputStream.write(b, off, len);
+            return;
+        }
+
+        System.arraycopy(b, off, buffer, bufferedSize, len);
+        bufferedSize += len;
+
+        long currentHash = hash;
+
+        for (int i = off; i < off + len; i++) {
+            currentHash = (currentHash ^ (b[i] & 0xff)) * FNV_64_PRIME;
+        }
+
+        hash = currentHash;
+    }
+
+    /**
+     * @return true if the buffer can hold the additional bytes without exceeding the maximum buffer size.
+     */
+    private boolean growBuffer(int additionalSize) {
+
+        final long requiredSize = ((long) bufferedSize) + additionalSize;
+
+        if (requiredSize > maximumBufferSize) {
+            return false;
+        }
+
+        buffer = Arrays.copyOf(buffer, (int) Math.min(maximumBufferSize, Math.max(requiredSize,
+                ((long) buffer.length) * 2)));
+
+        return true;
+    }
+
+    private void stopBuffering() throws IOException {
+
+        if (!passThrough) {
+            passThrough = true;
+            writeBuffer();
+            buffer = null;
+        }
+    }
+
+    private void writeBuffer() throws IOException {
+
+        if (bufferedSize > 0) {
+
+            final int size = bufferedSize;
+            bufferedSize = 0;
+            wrappedServletOutputStream.write(buffer, 0, size);
+        }
+    }
+}
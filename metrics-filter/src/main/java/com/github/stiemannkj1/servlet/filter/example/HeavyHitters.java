@@ -0,0 +1,278 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2019 Kyle Stiemann.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.github.stiemannkj1.servlet.filter.example;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * <p>
+ * Tracks the clients that account for the most requests, bytes, and server time in fixed memory. For each {@link
+ * Weight}, a {@link SpaceSavingSummary} finds the top clients and a {@link CountMinSketch} tightens the upper bound of
+ * each top client's estimate. Neither structure grows with the number of distinct clients.</p>
+ *
+ * <p>
+ * Space-Saving updates can't be made lock-free, so each window is guarded by its own monitor. To keep request threads
+ * from contending on a single monitor, requests record into the window of their thread's stripe (selected by {@link
+ * PerThreadResponseMetricsRecorder#getCurrentThreadStripe()}), and {@link #summarize(int)} merges the stripe windows
+ * into the cumulative window. A stripe's monitor is only contended when threads share the stripe or while the stripe
+ * is being merged (sorting always happens on the cumulative window without holding a stripe's monitor). Stripe windows
+ * are allocated lazily by the first thread that uses them, so memory is bounded by {@link
+ * PerThreadResponseMetricsRecorder#STRIPE_COUNT}. This class is thread-safe.</p>
+ *
+ * @author Kyle Stiemann
+ */
+final class HeavyHitters {
+
+    static final int DEFAULT_CAPACITY = 64;
+    static final int MAXIMUM_CLIENT_LENGTH = 128;
+
+    /**
+     * The weights that clients are ranked by.
+     */
+    enum Weight {
+        REQUESTS,
+        BYTES,
+        SERVER_TIME
+    }
+
+    private static final int SKETCH_DEPTH = 4;
+    private static final int SKETCH_WIDTH = 1024;
+
+    private final int capacity;
+    private final AtomicReferenceArray<Window> threadWindows =
+            new AtomicReferenceArray<>(PerThreadResponseMetricsRecorder.STRIPE_COUNT);
+
+    // Guarded by this.
+    private final Window cumulativeWindow;
+
+    /**
+     * @param capacity the number of clients tracked per weight.
+     */
+    HeavyHitters(int capacity) {
+        this.capacity = capacity;
+        this.cumulativeWindow = new Window(capacity);
+    }
+
+    /**
+     * Records a single response of the client.
+     *
+     * @param client the client's IP address or key. Keys longer than {@value #MAXIMUM_CLIENT_LENGTH} characters are
+     * truncated.
+     * @param bytes the number of bytes transferred to the client.
+     * @param serverTime the time in nanoseconds spent serving the client's request.
+     */
+    void record(String client, long bytes, long serverTime) {
+
+        if (client.length() > MAXIMUM_CLIENT_LENGTH) {
+            client = client.substring(0, MAXIMUM_CLIENT_LENGTH);
+        }
+
+        final long hash = CountMinSketch.hash(client);
+        final int stripe = PerThreadResponseMetricsRecorder.getCurrentThreadStripe();
+        Window threadWindow = threadWindows.get(stripe);
+
+        if (threadWindow == null) {
+
+            threadWindow = new Window(capacity);
+
+            if (!threadWindows.compareAndSet(stripe, null, threadWindow)) {
+                threadWindow = threadWindows.get(stripe);
+            }
+        }
+
+        threadWindow.record(client, hash, bytes, serverTime);
+    }
+
+    /**
+     * Merges the values recorded since the previous call into the cumulative window.
+     *
+     * @param limit the maximum number of top clients to return per weight.
+     * @return the top clients of everything recorded since the last {@link #reset()}.
+     */
+    synchronized Summary summarize(int limit) {
+
+        mergeThreadWindows();
+
+        return cumulativeWindow.summarize(limit);
+    }
+
+    /**
+     * Removes all recorded values.
+     */
+    synchronized void reset() {
+        mergeThreadWindows();
+        cumulativeWindow.reset();
+    }
+
+    private void mergeThreadWindows() {
+
+        for (int i = 0; i < PerThreadResponseMetricsRecorder.STRIPE_COUNT; i++) {
+
+            final Window threadWindow = threadWindows.get(i);
+
+            if (threadWindow != null) {
+                threadWindow.mergeInto(cumulativeWindow);
+            }
+        }
+    }
+
+    /**
+     * An immutable summary of the top clients for each {@link Weight}.
+     */
+    static final class Summary {
+
+        private final List<List<MetricsFilterMXBean.HeavyHitter>> topClients;
+        private final long[] totals;
+        private final double relativeError;
+        private final double failureProbability;
+
+        private Summary(List<List<MetricsFilterMXBean.HeavyHitter>> topClients, long[] totals, double relativeError,
+                double failureProbability) {
+            this.topClients = topClients;
+            this.totals = totals;
+            this.relativeError = relativeError;
+            this.failureProbability = failureProbability;
+        }
+
+        /**
+         * @return an unmodifiable list of the top clients in descending order of their estimated weight.
+         */
+        List<MetricsFilterMXBean.HeavyHitter> getTopClients(Weight weight) {
+            return topClients.get(weight.ordinal());
+        }
+
+        /**
+         * @return the total weight of all clients.
+         */
+        long getTotal(Weight weight) {
+            return totals[weight.ordinal()];
+        }
+
+        /**
+         * @return the maximum amount by which an estimate may exceed the actual weight as a fraction of the total
+         * weight (with a probability of at least {@code 1 - }{@link #getFailureProbability()}).
+         */
+        double getRelativeError() {
+            return relativeError;
+        }
+
+        /**
+         * @return the probability that an estimate exceeds the {@link #getRelativeError() relative error}.
+         */
+        double getFailureProbability() {
+            return failureProbability;
+        }
+    }
+
+    private static final class Window {
+
+        private final CountMinSketch[] sketches = new CountMinSketch[Weight.values().length];
+        private final SpaceSavingSummary[] summaries = new SpaceSavingSummary[Weight.values().length];
+
+        // Guarded by this for thread windows.
+        private boolean empty = true;
+
+        private Window(int capacity) {
+
+            for (int i = 0; i < sketches.length; i++) {
+                sketches[i] = new CountMinSketch(SKETCH_DEPTH, SKETCH_WIDTH);
+                summaries[i] = new SpaceSavingSummary(capacity);
+            }
+        }
+
+        private synchronized void record(String client, long hash, long bytes, long serverTime) {
+            add(Weight.REQUESTS, client, hash, 1);
+            add(Weight.BYTES, client, hash, Math.max(0, bytes));
+            add(Weight.SERVER_TIME, client, hash, Math.max(0, serverTime));
+            empty = false;
+        }
+
+        /**
+         * Merges this window into the other window and resets this window.
+         */
+        private synchronized void mergeInto(Window other) {
+
+            if (!empty) {
+                other.merge(this);
+                reset();
+            }
+        }
+
+        private void add(Weight weight, String client, long hash, long value) {
+            sketches[weight.ordinal()].add(hash, value);
+            summaries[weight.ordinal()].add(client, value);
+        }
+
+        private void merge(Window other) {
+
+            for (int i = 0; i < sketches.length; i++) {
+                sketches[i].merge(other.sketches[i]);
+                summaries[i].merge(other.summaries[i]);
+            }
+        }
+
+        private void reset() {
+
+            for (int i = 0; i < sketches.length; i++) {
+                sketches[i].reset();
+                summaries[i].reset();
+            }
+
+            empty = true;
+        }
+
+        private Summary summarize(int limit) {
+
+            final List<List<MetricsFilterMXBean.HeavyHitter>> topClients = new ArrayList<>(sketches.length);
+            final long[] totals = new long[sketches.length];
+
+            for (int i = 0; i < sketches.length; i++) {
+
+                final List<MetricsFilterMXBean.HeavyHitter> heavyHitters = new ArrayList<>();
+
+                for (SpaceSavingSummary.Counter counter : summaries[i].getTop(limit)) {
+
+                    // Both structures only overestimate, so the smaller estimate is the tighter upper bound.
+                    final long estimate = Math.min(counter.getCount(),
+                            sketches[i].estimate(CountMinSketch.hash(counter.getKey())));
+                    heavyHitters.add(new MetricsFilterMXBean.HeavyHitter(counter.getKey(), estimate,
+                            Math.max(0, counter.getCount() - counter.getError())));
+                }
+
+                // The tighter estimates may change the order of clients with similar counts.
+                heavyHitters.sort((heavyHitter1, heavyHitter2) -> {
+                    return Long.compare(heavyHitter2.getEstimate(), heavyHitter1.getEstimate());
+                });
+                topClients.add(Collections.unmodifiableList(heavyHitters));
+                totals[i] = sketches[i].getTotal();
+            }
+
+            return new Summary(Collections.unmodifiableList(topClients), totals, sketches[0].getRelativeError(),
+                    sketches[0].getFailureProbability());
+        }
+    }
+}
@@ -0,0 +1,200 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2019 Kyle Stiemann.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.github.stiemannkj1.servlet.filter.example;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * <p>
+ * A HyperLogLog sketch which estimates the number of distinct keys added to it in a fixed amount of memory ({@code
+ * 2^precision} one-byte registers). Each key's hash selects a register by its top {@code precision} bits, and the
+ * register keeps the maximum position of the first one bit in the remaining bits. The relative standard error of the
+ * estimate is {@link #getStandardError()} ({@code 1.04 / sqrt(2^precision)}).</p>
+ *
+ * <p>
+ * Sketches with the same precision can be {@link #merge(HyperLogLog) merged} by taking the maximum of each register,
+ * which gives exactly the sketch that would have been built from both streams, so sketches from different windows or
+ * different servers can be combined (see {@link #toByteArray()} and {@link #fromByteArray(byte[])}). Adding keys is
+ * thread-safe and lock-free. The registers are packed four to an int and updated with compare-and-set.</p>
+ *
+ * @author Kyle Stiemann
+ */
+final class HyperLogLog {
+
+    static final int DEFAULT_PRECISION = 12;
+    private static final int MINIMUM_PRECISION = 4;
+    private static final int MAXIMUM_PRECISION = 16;
+
+    private final int precision;
+    private final AtomicIntegerArray registers;
+
+    /**
+     * @param precision the number of hash bits that select a register (between 4 and 16).
+     */
+    HyperLogLog(int precision) {
+
+        if (precision < MINIMUM_PRECISION || precision > MAXIMUM_PRECISION) {
+            throw new IllegalArgumentException("Invalid HyperLogLog precision " + precision +
+                    ". The precision must be between " + MINIMUM_PRECISION + " and " + MAXIMUM_PRECISION + ".");
+        }
+
+        this.precision = precision;
+        this.registers = new AtomicIntegerArray((1 << precision) / 4);
+    }
+
+    /**
+     * @return a sketch with the registers serialized by {@link #toByteArray()}.
+     * @throws IllegalArgumentException if the bytes are not a serialized sketch.
+     */
+    static HyperLogLog fromByteArray(byte[] bytes) {
+
+        if (bytes.length == 0 || bytes[0] < MINIMUM_PRECISION || bytes[0] > MAXIMUM_PRECISION ||
+                bytes.length != (1 << bytes[0]) + 1) {
+            throw new IllegalArgumentException("The bytes are not a serialized HyperLogLog sketch.");
+        }
+
+        final HyperLogLog hyperLogLog = new HyperLogLog(bytes[0]);
+
+        for (int i = 1; i < bytes.length; i++) {
+            hyperLogLog.updateRegister(i - 1, bytes[i]);
+        }
+
+        return hyperLogLog;
+    }
+
+    /**
+     * Adds the key with the hash (for example from {@link CountMinSketch#hash(String)}) to the sketch.
+     */
+    void add(long hash) {
+
+        final int index = (int) (hash >>> (Long.SIZE - precision));
+
+        // The marker bit bounds the rank to 64 - precision + 1 when the remaining bits are all zero.
+        final int rank = Long.numberOfLeadingZeros((hash << precision) | (1L << (precision - 1))) + 1;
+        updateRegister(index, rank);
+    }
+
+    /**
+     * @return the estimated number of distinct keys.
+     */
+    long estimate() {
+
+        final int registerCount = 1 << precision;
+        double sum = 0;
+        int zeroRegisterCount = 0;
+
+        for (int i = 0; i < registerCount; i++) {
+
+            final int register = getRegister(i);
+            sum += 1.0 / (1L << register);
+
+            if (register == 0) {
+                zeroRegisterCount++;
+            }
+        }
+
+        final double alpha = 0.7213 / (1 + (1.079 / registerCount));
+        final double estimate = (alpha * registerCount * registerCount) / sum;
+
+        // Linear counting is more accurate for small cardinalities. A 64-bit hash needs no large range correction.
+        if (estimate <= (2.5 * registerCount) && zeroRegisterCount > 0) {
+            return Math.round(registerCount * Math.log((double) registerCount / zeroRegisterCount));
+        }
+
+        return Math.round(estimate);
+    }
+
+    /**
+     * @return the relative standard error of {@link #estimate()}.
+     */
+    double getStandardError() {
+        return 1.04 / Math.sqrt(1 << precision);
+    }
+
+    int getPrecision() {
+        return precision;
+    }
+
+    /**
+     * Sets each register of this sketch to the maximum of its value and the other sketch's value (the other sketch
+     * must have the same precision).
+     */
+    void merge(HyperLogLog other) {
+
+        if (other.precision != precision) {
+            throw new IllegalArgumentException("HyperLogLog sketches with different precisions cannot be merged.");
+        }
+
+        for (int i = 0; i < (1 << precision); i++) {
+            updateRegister(i, other.getRegister(i));
+        }
+    }
+
+    /**
+     * @return the precision followed by one byte per register.
+     */
+    byte[] toByteArray() {
+
+        final byte[] bytes = new byte[(1 << precision) + 1];
+        bytes[0] = (byte) precision;
+
+        for (int i = 1; i < bytes.length; i++) {
+            bytes[i] = (byte) getRegister(i - 1);
+        }
+
+        return bytes;
+    }
+
+    /**
+     * Removes all added keys.
+     */
+    void reset() {
+
+        for (int i = 0; i < registers.length(); i++) {
+            registers.set(i, 0);
+        }
+    }
+
+    private int getRegister(int index) {
+        return (registers.get(index >>> 2) >>> ((index & 3) * Byte.SIZE)) & 0xff;
+    }
+
+    private void updateRegister(int index, int value) {
+
+        final int shift = (index & 3) * Byte.SIZE;
+        final int packedIndex = index >>> 2;
+        int packedRegisters = registers.get(packedIndex);
+
+        while (((packedRegisters >>> shift) & 0xff) < value) {
+
+            final int updatedPackedRegisters = (packedRegisters & ~(0xff << shift)) | (value << shift);
+
+            if (registers.compareAndSet(packedIndex, packedRegisters, updatedPackedRegisters)) {
+                return;
+            }
+
+            packedRegisters = registers.get(packedIndex);
+        }
+    }
+}
@@ -0,0 +1,422 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2019 Kyle Stiemann.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.github.stiemannkj1.servlet.filter.example;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.ServletContext;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * <p>
+ * Streams the metrics to subscribers as Server-Sent Events. A single background thread builds one event per interval
+ * from the published {@link MetricsSnapshot}, encodes it once, and queues the same bytes for every subscriber. Each
+ * event is a compact JSON delta of the interval since the previous event: the number of measured and excluded
+ * responses, the bytes written, the 50th/90th/99th percentile and maximum response times of the interval, and the
+ * heavy hitters (by requests) that are new or whose estimates changed along with the heavy hitters that dropped out of
+ * the top clients. A comment is sent instead when no new snapshot has been published, so that closed connections are
+ * noticed.</p>
+ *
+ * <p>
+ * Subscribers are put into asynchronous mode and written to with non-blocking writes from a {@link WriteListener}, so
+ * the broadcaster never waits for a client. A subscriber that falls more than {@value #MAXIMUM_QUEUED_EVENTS} events
+ * behind is dropped (its browser reconnects automatically). Containers that don't support non-blocking IO (Servlet
+ * 3.0 containers such as Tomcat 7) and requests that don't support asynchronous processing receive the most recent
+ * event and a {@code retry} interval instead, so that the browser polls once per interval. This class is
+ * thread-safe.</p>
+ *
+ * @author Kyle Stiemann
+ */
+final class MetricsEventStream implements Closeable {
+
+    static final long DEFAULT_INTERVAL_MILLIS = 1000;
+    static final int MAXIMUM_QUEUED_EVENTS = 16;
+    static final int MAXIMUM_SUBSCRIBERS = 64;
+    private static final byte[] HEARTBEAT = ":\n\n".getBytes(StandardCharsets.UTF_8);
+    private static final Logger logger = Logger.getLogger(MetricsEventStream.class.getName());
+
+    private final long intervalMillis;
+    private final Supplier<MetricsSnapshot> metricsSnapshotSupplier;
+    private final Set<Subscriber> subscribers = ConcurrentHashMap.newKeySet();
+    private final byte[] retry;
+    private volatile byte[] latestEvent = HEARTBEAT;
+    private ScheduledExecutorService broadcaster;
+
+    // Guarded by this.
+    private MetricsSnapshot previousMetricsSnapshot;
+    private Map<String, Long> previousTopClients = Collections.emptyMap();
+
+    /**
+     * @param intervalMillis the number of milliseconds between events.
+     * @param metricsSnapshotSupplier supplies the most recently published snapshot.
+     */
+    MetricsEventStream(long intervalMillis, Supplier<MetricsSnapshot> metricsSnapshotSupplier) {
+        this.intervalMillis = intervalMillis;
+        this.metricsSnapshotSupplier = metricsSnapshotSupplier;
+        this.retry = ("retry: " + intervalMillis + "\n\n").getBytes(StandardCharsets.UTF_8);
+        this.previousMetricsSnapshot = metricsSnapshotSupplier.get();
+    }
+
+    /**
+     * Starts broadcasting an event every interval on a background thread.
+     */
+    synchronized void start() {
+
+        broadcaster = Executors.newSingleThreadScheduledExecutor((runnable) -> {
+            final Thread thread = new Thread(runnable, MetricsFilter.class.getSimpleName() + " event broadcaster");
+            thread.setDaemon(true);
+            return thread;
+        });
+        broadcaster.scheduleWithFixedDelay(() -> {
+
+            try {
+                broadcast(metricsSnapshotSupplier.get());
+            } catch (RuntimeException e) {
+                logger.log(Level.WARNING, "Failed to broadcast metrics.", e);
+            }
+        }, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Starts streaming events to the client (or sends the most recent event if the request can't be streamed).
+     */
+    void subscribe(HttpServletRequest httpServletRequest, HttpServletResponse httpServletResponse)
+            throws IOException {
+
+        if (subscribers.size() >= MAXIMUM_SUBSCRIBERS) {
+            httpServletResponse.setHeader("Retry-After", Long.toString(TimeUnit.MILLISECONDS.toSeconds(
+                    intervalMillis) + 1));
+            httpServletResponse.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+            return;
+        }
+
+        httpServletResponse.setContentType("text/event-stream");
+        httpServletResponse.setCharacterEncoding("UTF-8");
+        httpServletResponse.setHeader("Cache-Control", "no-cache");
+
+        if (!httpServletRequest.isAsyncSupported() || !isNonBlockingIOSupported(
+                httpServletRequest.getServletContext())) {
+
+            final ServletOutputStream servletOutputStream = httpServletResponse.getOutputStream();
+            servletOutputStream.write(retry);
+            servletOutputStream.write(latestEvent);
+            return;
+        }
+
+        final AsyncContext asyncContext = httpServletRequest.startAsync();
+        asyncContext.setTimeout(0);
+
+        final Subscriber subscriber = new Subscriber(asyncContext, httpServletResponse.getOutputStream());
+        asyncContext.addListener(subscriber);
+        subscribers.add(subscriber);
+        subscriber.offer(retry);
+        subscriber.offer(latestEvent);
+
+        // The write listener drains the queued events as soon as the response can be written to.
+        subscriber.servletOutputStream.setWriteListener(subscriber);
+    }
+
+    /**
+     * Builds the event for the interval since the previous snapshot and queues it for every subscriber. Snapshots
+     * which are not newer than the previous snapshot are sent as a comment.
+     */
+    synchronized void broadcast(MetricsSnapshot metricsSnapshot) {
+
+        if (metricsSnapshot.getTimestampMillis() <= previousMetricsSnapshot.getTimestampMillis()) {
+            send(HEARTBEAT);
+            return;
+        }
+
+        final byte[] event = newEvent(metricsSnapshot);
+        previousMetricsSnapshot = metricsSnapshot;
+        latestEvent = event;
+        send(event);
+    }
+
+    /**
+     * @return the number of clients that events are currently streamed to.
+     */
+    int getSubscriberCount() {
+        return subscribers.size();
+    }
+
+    /**
+     * Stops the background thread and ends the stream of every subscriber.
+     */
+    @Override
+    public synchronized void close() {
+
+        if (broadcaster != null) {
+            broadcaster.shutdownNow();
+            broadcaster = null;
+        }
+
+        for (Subscriber subscriber : new ArrayList<>(subscribers)) {
+            subscriber.close();
+        }
+    }
+
+    private void send(byte[] event) {
+
+        for (Subscriber subscriber : subscribers) {
+            subscriber.offer(event);
+            subscriber.write();
+        }
+    }
+
+    private byte[] newEvent(MetricsSnapshot metricsSnapshot) {
+
+        final SpecificResponseMetrics.Metric responseTime = SpecificResponseMetrics.Metric.RESPONSE_TIME;
+        final SpecificResponseMetrics.Metric responseSize = SpecificResponseMetrics.Metric.RESPONSE_SIZE;
+        final MetricsHistogram responseTimes = metricsSnapshot.getHistogram(responseTime)
+                .getIntervalSince(previousMetricsSnapshot.getHistogram(responseTime));
+        final MetricsHistogram responseSizes = metricsSnapshot.getHistogram(responseSize)
+                .getIntervalSince(previousMetricsSnapshot.getHistogram(responseSize));
+        final long excludedResponseCount = metricsSnapshot.getExcludedResponseCount();
+        final long previousExcludedResponseCount = previousMetricsSnapshot.getExcludedResponseCount();
+        final StringWriter stringWriter = new StringWriter();
+        final PrintWriter writer = new PrintWriter(stringWriter);
+
+        // Response times may be back-filled, so the response size count is the number of responses.
+        writer.write("id: ");
+        writer.print(metricsSnapshot.getSequence());
+        writer.write("\ndata: {\"timestampMillis\":");
+        writer.print(metricsSnapshot.getTimestampMillis());
+        writer.write(",\"intervalMillis\":");
+        writer.print(metricsSnapshot.getTimestampMillis() - previousMetricsSnapshot.getTimestampMillis());
+        writer.write(",\"responseCount\":");
+        writer.print(responseSizes.getCount());
+        writer.write(",\"excludedResponseCount\":");
+        writer.print((excludedResponseCount < previousExcludedResponseCount) ? excludedResponseCount
+                : excludedResponseCount - previousExcludedResponseCount);
+        writer.write(",\"responseSize\":");
+        writer.print(responseSizes.getSum());
+
+        for (int percentile : MetricsFilter.PERCENTILES) {
+            writer.write(",\"");
+            writer.write(responseTime.getPercentileId(percentile));
+            writer.write("\":");
+            writer.print(responseTimes.getValueAtPercentile(percentile));
+        }
+
+        writer.write(",\"");
+        writer.write(responseTime.getMaxId());
+        writer.write("\":");
+        writer.print(responseTimes.getMaximum());
+
+        final HeavyHitters.Summary heavyHitters = metricsSnapshot.getHeavyHitters();
+
+        if (heavyHitters != null) {
+            writeTopClientChanges(writer, heavyHitters.getTopClients(HeavyHitters.Weight.REQUESTS));
+        }
+
+        writer.write("}\n\n");
+        writer.flush();
+
+        return stringWriter.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    private void writeTopClientChanges(PrintWriter writer, List<MetricsFilterMXBean.HeavyHitter> topClients) {
+
+        final Map<String, Long> currentTopClients = new HashMap<>();
+        boolean first = true;
+
+        for (MetricsFilterMXBean.HeavyHitter heavyHitter : topClients) {
+
+            final Long estimate = heavyHitter.getEstimate();
+            currentTopClients.put(heavyHitter.getClient(), estimate);
+
+            if (!estimate.equals(previousTopClients.get(heavyHitter.getClient()))) {
+
+                writer.write(first ? ",\"topClients\":{" : ",");
+                first = false;
+                ResponseHistoryJson.writeString(writer, heavyHitter.getClient());
+                writer.write(':');
+                writer.print(heavyHitter.getEstimate());
+            }
+        }
+
+        if (!first) {
+            writer.write('}');
+        }
+
+        first = true;
+
+        for (String client : previousTopClients.keySet()) {
+
+            if (!currentTopClients.containsKey(client)) {
+
+                writer.write(first ? ",\"removedTopClients\":[" : ",");
+                first = false;
+                ResponseHistoryJson.writeString(writer, client);
+            }
+        }
+
+        if (!first) {
+            writer.write(']');
+        }
+
+        previousTopClients = currentTopClients;
+    }
+
+    /**
+     * @return true if the container supports Servlet 3.1 non-blocking IO.
+     */
+    private static boolean isNonBlockingIOSupported(ServletContext servletContext) {
+        return servletContext.getMajorVersion() > 3 ||
+                (servletContext.getMajorVersion() == 3 && servletContext.getMinorVersion() >= 1);
+    }
+
+    private final class Subscriber implements WriteListener, AsyncListener {
+
+        private final AsyncContext asyncContext;
+        private final ServletOutputStream servletOutputStream;
+        private final ConcurrentLinkedQueue<byte[]> queuedEvents = new ConcurrentLinkedQueue<>();
+        private final AtomicInteger queuedEventCount = new AtomicInteger();
+        private final AtomicBoolean closed = new AtomicBoolean();
+
+        // Guarded by this.
+        private boolean writeListenerRegistered;
+
+        private Subscriber(AsyncContext asyncContext, ServletOutputStream servletOutputStream) {
+            this.asyncContext = asyncContext;
+            this.servletOutputStream = servletOutputStream;
+        }
+
+        /**
+         * Queues the event or drops the subscriber if it is too far behind.
+         */
+        private void offer(byte[] event) {
+
+            if (queuedEventCount.incrementAndGet() > MAXIMUM_QUEUED_EVENTS) {
+                close();
+            } else {
+                queuedEvents.add(event);
+            }
+        }
+
+        /**
+         * Writes queued events until the response can't be written to without blocking (in which case the container
+         * calls {@link #onWritePossible()} once it can).
+         */
+        private synchronized void write() {
+
+            if (!writeListenerRegistered || closed.get()) {
+                return;
+            }
+
+            try {
+
+                byte[] event;
+
+                while (servletOutputStream.isReady() && (event = queuedEvents.poll()) != null) {
+
+                    queuedEventCount.decrementAndGet();
+                    servletOutputStream.write(event);
+
+                    if (servletOutputStream.isReady()) {
+                        servletOutputStream.flush();
+                    }
+                }
+            } catch (IOException | RuntimeException e) {
+                close();
+            }
+        }
+
+        private void close() {
+
+            if (closed.compareAndSet(false, true)) {
+
+                subscribers.remove(this);
+                queuedEvents.clear();
+
+                try {
+                    asyncContext.complete();
+                } catch (IllegalStateException e) {
+                    // The request has already been completed.
+                }
+            }
+        }
+
+        @Override
+        public void onWritePossible() throws IOException {
+
+            synchronized (this) {
+                writeListenerRegistered = true;
+            }
+
+            write();
+        }
+
+        @Override
+        public void onError(Throwable throwable) {
+            close();
+        }
+
+        @Override
+        public void onComplete(AsyncEvent event) throws IOException {
+            close();
+        }
+
+        @Override
+        public void onTimeout(AsyncEvent event) throws IOException {
+            close();
+        }
+
+        @Override
+        public void onError(AsyncEvent event) throws IOException {
+            close();
+        }
+
+        @Override
+        public void onStartAsync(AsyncEvent event) throws IOException {
+            // Nothing to do.
+        }
+    }
+}
@@ -0,0 +1,531 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2019 Kyle Stiemann.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.github.stiemannkj1.servlet.filter.example;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.PortUnreachableException;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Locale;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * <p>
+ * Periodically pushes the metrics recorded since the previous export to a StatsD or InfluxDB line protocol endpoint
+ * over UDP ({@code "udp://host:port"}) or appends them to a rolling local file ({@code "file:/path/to/file"}). Exports
+ * run on a dedicated background thread and only read published {@link MetricsSnapshot}s, so request threads never
+ * wait for (or even notice) an export.</p>
+ *
+ * <p>
+ * Each export encodes the interval aggregates of every metric directly into a reused byte buffer (metric names are
+ * encoded once up front) and packs as many lines as fit into each UDP datagram ({@value #MAX_DATAGRAM_PAYLOAD} bytes
+ * so that datagrams are not fragmented) or file write. The {@link DatagramChannel} is non-blocking, so datagrams that
+ * cannot be sent immediately are dropped and counted rather than delaying the export. Files are rolled over to a
+ * single {@code ".1"} backup once they would exceed the configured maximum size.</p>
+ *
+ * @author Kyle Stiemann
+ */
+final class MetricsExporter implements Closeable {
+
+    /**
+     * The wire format of exported metrics.
+     */
+    enum Format {
+
+        /**
+         * One {@code "prefix.metric.stat:value|type"} line per statistic. Interval counts are counters and all other
+         * statistics are gauges.
+         */
+        STATSD,
+
+        /**
+         * One {@code "prefix,metric=name count=1i,min=1i,... timestamp"} line per metric.
+         */
+        INFLUX
+    }
+
+    static final long DEFAULT_INTERVAL_MILLIS = 10000;
+    static final long DEFAULT_MAXIMUM_FILE_SIZE = 10 * 1024 * 1024;
+    static final String DEFAULT_PREFIX = "metrics_filter";
+    static final int MAX_DATAGRAM_PAYLOAD = 1432;
+
+    private static final Logger logger = Logger.getLogger(MetricsExporter.class.getName());
+    private static final int FILE_BATCH_SIZE = 64 * 1024;
+    private static final int MAX_LINE_SIZE = 1024;
+    private static final int[] PERCENTILES = { 50, 90, 99 };
+    private static final byte[] STATSD_COUNTER = ascii("|c\n");
+    private static final byte[] STATSD_GAUGE = ascii("|g\n");
+    private static final byte[][] STATSD_STATISTICS = { ascii(".count:"), ascii(".min:"), ascii(".max:"),
+        ascii(".mean:"), ascii(".p50:"), ascii(".p90:"), ascii(".p99:") };
+    private static final byte[][] INFLUX_FIELDS = { ascii(" count="), ascii("i,min="), ascii("i,max="),
+        ascii("i,mean="), ascii(",p50="), ascii("i,p90="), ascii("i,p99=") };
+
+    private final Format format;
+    private final ExportSink exportSink;
+    private final Supplier<MetricsSnapshot> metricsSnapshotSupplier;
+    private final byte[][] encodedMetricNames;
+    private final byte[] encodedExcludedResponsesName;
+    private final ByteBuffer batchBuffer;
+    private final ByteBuffer lineBuffer = ByteBuffer.allocate(MAX_LINE_SIZE);
+    private final byte[] digits = new byte[20];
+    private final AtomicLong droppedBatchCount = new AtomicLong();
+    private ScheduledExecutorService exportScheduler;
+
+    // Guarded by this.
+    private MetricsHistogram[] previousHistograms;
+    private long previousExcludedResponseCount;
+
+    /**
+     * @param destination either {@code "udp://host:port"} or {@code "file:/path/to/file"}.
+     * @param metricsSnapshotSupplier supplies the most recently published snapshot.
+     * @throws IllegalArgumentException if the destination is invalid.
+     * @throws IOException if the destination cannot be opened.
+     */
+    MetricsExporter(String destination, Format format, String prefix, long maximumFileSize,
+            Supplier<MetricsSnapshot> metricsSnapshotSupplier) throws IOException {
+
+        this.format = format;
+        this.metricsSnapshotSupplier = metricsSnapshotSupplier;
+
+        final SpecificResponseMetrics.Metric[] metrics = SpecificResponseMetrics.Metric.values();
+        encodedMetricNames = new byte[metrics.length][];
+
+        for (SpecificResponseMetrics.Metric metric : metrics) {
+
+            final String metricName = metric.name().toLowerCase(Locale.ENGLISH);
+            encodedMetricNames[metric.getIndex()] =
+                    ascii((format == Format.STATSD) ? (prefix + "." + metricName) : (prefix + ",metric=" + metricName));
+        }
+
+        encodedExcludedResponsesName = ascii((format == Format.STATSD) ? (prefix + ".excluded_responses:")
+                : (prefix + " excluded_responses="));
+
+        final URI uri = URI.create(destination.trim());
+
+        if ("udp".equalsIgnoreCase(uri.getScheme())) {
+
+            if (uri.getHost() == null || uri.getPort() < 0) {
+                throw new IllegalArgumentException("UDP export destination \"" + destination +
+                        "\" must include a host and port.");
+            }
+
+            exportSink = new DatagramExportSink(new InetSocketAddress(uri.getHost(), uri.getPort()));
+        } else if ("file".equalsIgnoreCase(uri.getScheme())) {
+            exportSink = new RollingFileExportSink(Paths.get(uri), maximumFileSize);
+        } else {
+            throw new IllegalArgumentException("Unsupported export destination \"" + destination +
+                    "\". The destination must start with \"udp://\" or \"file:\".");
+        }
+
+        batchBuffer = ByteBuffer.allocateDirect(exportSink.getBatchSize());
+        final MetricsSnapshot metricsSnapshot = metricsSnapshotSupplier.get();
+        previousHistograms = getHistograms(metricsSnapshot);
+        previousExcludedResponseCount = metricsSnapshot.getExcludedResponseCount();
+    }
+
+    /**
+     * Starts exporting every {@code intervalMillis} milliseconds on a background thread.
+     */
+    synchronized void start(long intervalMillis) {
+
+        exportScheduler = Executors.newSingleThreadScheduledExecutor((runnable) -> {
+            final Thread thread = new Thread(runnable, MetricsFilter.class.getSimpleName() + " metrics exporter");
+            thread.setDaemon(true);
+            return thread;
+        });
+        exportScheduler.scheduleWithFixedDelay(() -> {
+
+            try {
+                export();
+            } catch (IOException | RuntimeException e) {
+                logger.log(Level.WARNING, "Failed to export metrics.", e);
+            }
+        }, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @return the number of batches which were dropped because they could not be sent without blocking.
+     */
+    long getDroppedBatchCount() {
+        return droppedBatchCount.get();
+    }
+
+    /**
+     * Exports the metrics recorded since the previous export.
+     */
+    synchronized void export() throws IOException {
+
+        final MetricsSnapshot metricsSnapshot = metricsSnapshotSupplier.get();
+        final long timestampNanos = TimeUnit.MILLISECONDS.toNanos(metricsSnapshot.getTimestampMillis());
+        batchBuffer.clear();
+
+        final SpecificResponseMetrics.Metric[] metrics = SpecificResponseMetrics.Metric.values();
+        final MetricsHistogram[] intervals = new MetricsHistogram[metrics.length];
+
+        for (SpecificResponseMetrics.Metric metric : metrics) {
+
+            final int index = metric.getIndex();
+            final MetricsHistogram histogram = metricsSnapshot.getHistogram(metric);
+            intervals[index] = histogram.getIntervalSince(previousHistograms[index]);
+            previousHistograms[index] = histogram;
+        }
+
+        for (SpecificResponseMetrics.Metric metric : metrics) {
+
+            final int index = metric.getIndex();
+            final MetricsHistogram interval = intervals[index];
+
+            if (interval.getCount() > 0) {
+
+                // Response times may include back-filled values (see MetricsHistogram#recordWithExpectedInterval()),
+                // so their count is the number of responses rather than the number of values.
+                final long count = (metric == SpecificResponseMetrics.Metric.RESPONSE_TIME)
+                        ? intervals[SpecificResponseMetrics.Metric.RESPONSE_SIZE.getIndex()].getCount()
+                        : interval.getCount();
+
+                if (format == Format.STATSD) {
+                    encodeStatsD(encodedMetricNames[index], interval, count);
+                } else {
+                    encodeInflux(encodedMetricNames[index], interval, count, timestampNanos);
+                }
+            }
+        }
+
+        final long excludedResponseCount = metricsSnapshot.getExcludedResponseCount();
+        final long excludedResponseCountInterval = (excludedResponseCount < previousExcludedResponseCount)
+                ? excludedResponseCount : (excludedResponseCount - previousExcludedResponseCount);
+        previousExcludedResponseCount = excludedResponseCount;
+
+        if (excludedResponseCountInterval > 0) {
+
+            lineBuffer.clear();
+            lineBuffer.put(encodedExcludedResponsesName);
+            putLong(lineBuffer, excludedResponseCountInterval);
+
+            if (format == Format.STATSD) {
+                lineBuffer.put(STATSD_COUNTER);
+            } else {
+                lineBuffer.put((byte) 'i').put((byte) ' ');
+                putLong(lineBuffer, timestampNanos);
+                lineBuffer.put((byte) '\n');
+            }
+
+            appendLine();
+        }
+
+        flushBatch();
+    }
+
+    /**
+     * Stops the background thread, exports any remaining metrics, and closes the destination.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+
+        if (exportScheduler != null) {
+            exportScheduler.shutdownNow();
+            exportScheduler = null;
+        }
+
+        try {
+            export();
+        } finally {
+            exportSink.close();
+        }
+    }
+
+    private void encodeStatsD(byte[] encodedMetricName, MetricsHistogram interval, long count) throws IOException {
+
+        for (int i = 0; i < STATSD_STATISTICS.length; i++) {
+
+            lineBuffer.clear();
+            lineBuffer.put(encodedMetricName).put(STATSD_STATISTICS[i]);
+
+            if (i == 3) {
+                putDecimal(lineBuffer, interval.getAverage());
+            } else {
+                putLong(lineBuffer, getStatistic(interval, count, i));
+            }
+
+            lineBuffer.put((i == 0) ? STATSD_COUNTER : STATSD_GAUGE);
+            appendLine();
+        }
+    }
+
+    private void encodeInflux(byte[] encodedMetricName, MetricsHistogram interval, long count, long timestampNanos)
+            throws IOException {
+
+        lineBuffer.clear();
+        lineBuffer.put(encodedMetricName);
+
+        for (int i = 0; i < INFLUX_FIELDS.length; i++) {
+
+            lineBuffer.put(INFLUX_FIELDS[i]);
+
+            if (i == 3) {
+                putDecimal(lineBuffer, interval.getAverage());
+            } else {
+                putLong(lineBuffer, getStatistic(interval, count, i));
+            }
+        }
+
+        lineBuffer.put((byte) 'i').put((byte) ' ');
+        putLong(lineBuffer, timestampNanos);
+        lineBuffer.put((byte) '\n');
+        appendLine();
+    }
+
+    /**
+     * @param count the number of responses that the interval covers.
+     * @param statistic the index of the statistic in {@link #STATSD_STATISTICS} (other than the mean).
+     */
+    private static long getStatistic(MetricsHistogram interval, long count, int statistic) {
+
+        switch (statistic) {
+            case 0:
+                return count;
+            case 1:
+                return interval.getMinimum();
+            case 2:
+                return interval.getMaximum();
+            default:
+                return interval.getValueAtPercentile(PERCENTILES[statistic - 4]);
+        }
+    }
+
+    /**
+     * Appends the line in the line buffer to the batch, sending the batch first if the line does not fit.
+     */
+    private void appendLine() throws IOException {
+
+        lineBuffer.flip();
+
+        if (lineBuffer.remaining() > batchBuffer.remaining()) {
+            flushBatch();
+        }
+
+        batchBuffer.put(lineBuffer);
+    }
+
+    private void flushBatch() throws IOException {
+
+        if (batchBuffer.position() == 0) {
+            return;
+        }
+
+        batchBuffer.flip();
+
+        try {
+
+            if (!exportSink.write(batchBuffer)) {
+                droppedBatchCount.incrementAndGet();
+            }
+        } finally {
+            batchBuffer.clear();
+        }
+    }
+
+    private void putLong(ByteBuffer byteBuffer, long value) {
+
+        if (value == Long.MIN_VALUE) {
+            byteBuffer.put(ascii(Long.toString(value)));
+            return;
+        }
+
+        if (value < 0) {
+            byteBuffer.put((byte) '-');
+            value = -value;
+        }
+
+        int i = digits.length;
+
+        do {
+            digits[--i] = (byte) ('0' + (value % 10));
+            value /= 10;
+        } while (value != 0);
+
+        byteBuffer.put(digits, i, digits.length - i);
+    }
+
+    /**
+     * Writes the value with three decimal places.
+     */
+    private void putDecimal(ByteBuffer byteBuffer, double value) {
+
+        if (Math.abs(value) >= (Long.MAX_VALUE / 1000) || Double.isNaN(value)) {
+            putLong(byteBuffer, (long) value);
+            return;
+        }
+
+        final long thousandths = Math.round(value * 1000);
+
+        if (thousandths < 0) {
+            byteBuffer.put((byte) '-');
+        }
+
+        final long absoluteThousandths = Math.abs(thousandths);
+        putLong(byteBuffer, absoluteThousandths / 1000);
+        byteBuffer.put((byte) '.');
+
+        final long fraction = absoluteThousandths % 1000;
+        byteBuffer.put((byte) ('0' + (fraction / 100))).put((byte) ('0' + ((fraction / 10) % 10)))
+                .put((byte) ('0' + (fraction % 10)));
+    }
+
+    private static MetricsHistogram[] getHistograms(MetricsSnapshot metricsSnapshot) {
+
+        final SpecificResponseMetrics.Metric[] metrics = SpecificResponseMetrics.Metric.values();
+        final MetricsHistogram[] histograms = new MetricsHistogram[metrics.length];
+
+        for (SpecificResponseMetrics.Metric metric : metrics) {
+            histograms[metric.getIndex()] = metricsSnapshot.getHistogram(metric);
+        }
+
+        return histograms;
+    }
+
+    private static byte[] ascii(String string) {
+        return string.getBytes(StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * A destination for batches of encoded metrics.
+     */
+    private interface ExportSink extends Closeable {
+
+        /**
+         * @return the maximum number of bytes that may be written in a single batch.
+         */
+        int getBatchSize();
+
+        /**
+         * @return false if the batch was dropped.
+         */
+        boolean write(ByteBuffer batch) throws IOException;
+    }
+
+    private static final class DatagramExportSink implements ExportSink {
+
+        private final DatagramChannel datagramChannel;
+
+        private DatagramExportSink(InetSocketAddress address) throws IOException {
+
+            datagramChannel = DatagramChannel.open();
+
+            try {
+                datagramChannel.configureBlocking(false);
+                datagramChannel.connect(address);
+            } catch (IOException | RuntimeException e) {
+                datagramChannel.close();
+                throw e;
+            }
+        }
+
+        @Override
+        public int getBatchSize() {
+            return MAX_DATAGRAM_PAYLOAD;
+        }
+
+        @Override
+        public boolean write(ByteBuffer batch) throws IOException {
+
+            try {
+                return datagramChannel.write(batch) > 0;
+            } catch (PortUnreachableException e) {
+
+                // Nothing is listening yet. UDP metrics are best effort, so the batch is simply dropped.
+                return false;
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            datagramChannel.close();
+        }
+    }
+
+    private static final class RollingFileExportSink implements ExportSink {
+
+        private final Path path;
+        private final Path backupPath;
+        private final long maximumFileSize;
+        private FileChannel fileChannel;
+
+        private RollingFileExportSink(Path path, long maximumFileSize) throws IOException {
+            this.path = path;
+            this.backupPath = path.resolveSibling(path.getFileName() + ".1");
+            this.maximumFileSize = maximumFileSize;
+            this.fileChannel = open(path);
+        }
+
+        @Override
+        public int getBatchSize() {
+            return FILE_BATCH_SIZE;
+        }
+
+        @Override
+        public boolean write(ByteBuffer batch) throws IOException {
+
+            final long fileSize = fileChannel.size();
+
+            if (fileSize > 0 && (fileSize + batch.remaining()) > maximumFileSize) {
+                fileChannel.close();
+                Files.move(path, backupPath, StandardCopyOption.REPLACE_EXISTING);
+                fileChannel = open(path);
+            }
+
+            while (batch.hasRemaining()) {
+                fileChannel.write(batch);
+            }
+
+            return true;
+        }
+
+        @Override
+        public void close() throws IOException {
+            fileChannel.close();
+        }
+
+        private static FileChannel open(Path path) throws IOException {
+            return FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.APPEND);
+        }
+    }
+}
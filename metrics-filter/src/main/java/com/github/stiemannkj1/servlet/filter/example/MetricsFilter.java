@@ -24,26 +24,36 @@
 package com.github.stiemannkj1.servlet.filter.example;
 
 import java.io.IOException;
-import java.util.ArrayList;
+import java.lang.management.ManagementFactory;
 import java.util.Arrays;
-import java.util.Collection;
-import java.util.Collections;
 import java.util.HashMap;
-import java.util.Iterator;
 import java.util.List;
-import java.util.ListIterator;
-import java.util.LongSummaryStatistics;
+import java.util.Locale;
 import java.util.Map;
 import java.util.UUID;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.function.Supplier;
-import java.util.stream.Collectors;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.DispatcherType;
 import javax.servlet.Filter;
 import javax.servlet.FilterChain;
 import javax.servlet.FilterConfig;
+import javax.servlet.RequestDispatcher;
 import javax.servlet.Servlet;
+import javax.servlet.ServletContext;
 import javax.servlet.ServletException;
 import javax.servlet.ServletRequest;
 import javax.servlet.ServletResponse;
@@ -60,8 +70,159 @@ import javax.servlet.http.HttpServletResponse;
  * true.</p>
  *
  * <p>
- * This Servlet Filter implementation exposes only the Filter API as public and is marked as {@code final} to avoid
- * misuse (although some package-private API is exposed for the purposes of testing).</p>
+ * By default, all request threads record into shared histograms. On machines with many cores, setting the {@code
+ * "com.github.stiemannkj1.servlet.filter.example.MetricsFilter.USE_PER_THREAD_RECORDERS"} init-param to true gives each
+ * request thread its own recorder and block of unique response ids instead (see {@link
+ * PerThreadResponseMetricsRecorder}). The per-thread recorders are merged whenever a snapshot is built.</p>
+ *
+ * <p>
+ * Metrics are never read directly from the structures that requests record into. Instead, a background thread
+ * periodically publishes an immutable {@link MetricsSnapshot} (every {@value #DEFAULT_SNAPSHOT_REFRESH_INTERVAL_MILLIS}
+ * milliseconds by default) and the metrics page is rendered from the most recently published snapshot. The refresh
+ * interval can be configured via the {@code
+ * "com.github.stiemannkj1.servlet.filter.example.MetricsFilter.SNAPSHOT_REFRESH_INTERVAL_MILLIS"} init-param. Setting
+ * the interval to 0 disables the background thread and builds a fresh snapshot each time metrics are read (unless
+ * nothing was recorded since the previous snapshot was built, in which case its metrics are reused). Snapshots only
+ * include the history of the most recently completed responses (the last {@value
+ * ResponseHistory#DEFAULT_CAPACITY} by default, see {@link ResponseHistory}), which can be configured via the {@code
+ * "com.github.stiemannkj1.servlet.filter.example.MetricsFilter.RESPONSE_HISTORY_SIZE"} init-param. Responses that
+ * leave the history are forgotten entirely, so memory use doesn't grow with the number of responses. The histograms
+ * and the rollups (see below) are the long-term record of the metrics.</p>
+ *
+ * <p>
+ * The metrics page is written directly by the filter (see {@link MetricsPageRenderer}), so applications don't need
+ * JSTL. Setting the {@code "com.github.stiemannkj1.servlet.filter.example.MetricsFilter.USE_METRICS_JSP"} init-param
+ * to true passes the metrics page request down the filter chain to {@value #METRICS_JSP_PAGE} instead, so that the
+ * bundled JSP (or an application's own JSP at the same path) renders the page from the same request attributes.</p>
+ *
+ * <p>
+ * The rendered metrics page may also be cached for a number of milliseconds by setting the {@code
+ * "com.github.stiemannkj1.servlet.filter.example.MetricsFilter.METRICS_PAGE_CACHE_TTL_MILLIS"} init-param (see {@link
+ * MetricsPageCache}).</p>
+ *
+ * <p>
+ * Requests can be excluded from measurement (for example static assets) with the {@code
+ * "com.github.stiemannkj1.servlet.filter.example.MetricsFilter.INCLUDE_PATHS"} and {@code
+ * "com.github.stiemannkj1.servlet.filter.example.MetricsFilter.EXCLUDE_PATHS"} init-params (see {@link PathMatcher}
+ * for the supported patterns). Excluded requests are passed directly down the filter chain without being wrapped and
+ * are only counted.</p>
+ *
+ * <p>
+ * Responses can also be compressed on the fly by setting the {@code
+ * "com.github.stiemannkj1.servlet.filter.example.MetricsFilter.COMPRESS_RESPONSES"} init-param to true (see {@link
+ * CompressingServletOutputStream}). Both the uncompressed response size and the transferred (compressed) response size
+ * are recorded, and both are also totaled per path so that the compression ratio of each path can be compared (see
+ * {@link ResponseCompression}).</p>
+ *
+ * <p>
+ * Setting the {@code "com.github.stiemannkj1.servlet.filter.example.MetricsFilter.MEASURE_RESOURCE_USAGE"} init-param
+ * to true also records the CPU time and heap bytes allocated by the request thread in the filter chain (when the JVM
+ * supports measuring them, see {@link ThreadResourceUsageSampler}), which separates endpoints that burn CPU or churn
+ * the heap from endpoints that are merely slow.</p>
+ *
+ * <p>
+ * Setting the {@code "com.github.stiemannkj1.servlet.filter.example.MetricsFilter.MEASURE_NETWORK_BLOCKING"}
+ * init-param to true also records the time that writes of the response body were blocked while the container sent
+ * them to the client and the client throughput during those writes, which separates slow clients from slow endpoints.
+ * Only writes of at least
+ * {@code "com.github.stiemannkj1.servlet.filter.example.MetricsFilter.NETWORK_BLOCKING_MINIMUM_WRITE_SIZE"} bytes
+ * (defaults to {@value #DEFAULT_NETWORK_BLOCKING_MINIMUM_WRITE_SIZE}) and flushes are timed (see {@link
+ * NetworkTimingServletOutputStream}).</p>
+ *
+ * <p>
+ * Only the outermost REQUEST dispatch of a request is measured. Measured requests are marked with a request attribute,
+ * so nested FORWARD and INCLUDE dispatches as well as later ERROR and ASYNC dispatches of the same request are never
+ * wrapped or counted twice (even if the filter is mapped to those dispatcher types). Setting the {@code
+ * "com.github.stiemannkj1.servlet.filter.example.MetricsFilter.RECORD_DISPATCH_SEGMENTS"} init-param to true records
+ * the time spent in each of those dispatches as a segment of the measured response. The metrics of requests that are
+ * put into asynchronous mode are recorded once the asynchronous processing completes.</p>
+ *
+ * <p>
+ * Setting the {@code "com.github.stiemannkj1.servlet.filter.example.MetricsFilter.ADAPTIVE_CONCURRENCY_LIMIT"}
+ * init-param to true turns the filter into an admission controller. The number of measured requests that may be
+ * processed concurrently is limited, and the limit adapts to the measured latency (see {@link
+ * AdaptiveConcurrencyLimiter}). Requests beyond the limit are rejected immediately with {@code 503 Service
+ * Unavailable} and a {@code Retry-After} header.</p>
+ *
+ * <p>
+ * Setting the {@code "com.github.stiemannkj1.servlet.filter.example.MetricsFilter.AUTOMATIC_ETAGS"} init-param to true
+ * adds a strong {@code ETag} (a hash of the body) to the responses of {@code GET} requests whose body fits in the
+ * response buffer, and sends {@code 304 Not Modified} instead of the body when it matches the request's {@code
+ * If-None-Match} header (see {@link ETagServletOutputStream}).</p>
+ *
+ * <p>
+ * The responses of {@code GET} requests for the paths matched by the {@code
+ * "com.github.stiemannkj1.servlet.filter.example.MetricsFilter.CACHE_PATHS"} init-param can be cached in memory (see
+ * {@link ResponseCache}). Cached responses are written without running the filter chain and their latency is recorded
+ * separately from the response metrics.</p>
+ *
+ * <p>
+ * Metrics can also be pushed periodically to a StatsD or InfluxDB line protocol endpoint over UDP or to a rolling local
+ * file by setting the {@code "com.github.stiemannkj1.servlet.filter.example.MetricsFilter.EXPORT_DESTINATION"}
+ * init-param (see {@link MetricsExporter}).</p>
+ *
+ * <p>
+ * Response times only include the time spent in the filter chain, so requests that queued in front of a stalled server
+ * are under-represented in the tail percentiles (coordinated omission). Setting the {@code
+ * "com.github.stiemannkj1.servlet.filter.example.MetricsFilter.REQUEST_START_HEADER"} init-param to the name of a
+ * header such as {@code X-Request-Start} that a front proxy sets to the request's arrival time adds the time each
+ * request spent queued before reaching the filter (queue times longer than the {@code
+ * "com.github.stiemannkj1.servlet.filter.example.MetricsFilter.MAXIMUM_QUEUE_TIME_MILLIS"} init-param are ignored).
+ * Setting the {@code
+ * "com.github.stiemannkj1.servlet.filter.example.MetricsFilter.EXPECTED_REQUEST_INTERVAL_MICROS"} init-param
+ * back-fills the response times of the requests that a slow response would have delayed (see {@link
+ * MetricsHistogram#recordWithExpectedInterval(long, long)}).</p>
+ *
+ * <p>
+ * Setting the {@code "com.github.stiemannkj1.servlet.filter.example.MetricsFilter.TRACK_HEAVY_HITTERS"} init-param to
+ * true tracks the clients (by IP address or by the header named by the {@code
+ * "com.github.stiemannkj1.servlet.filter.example.MetricsFilter.HEAVY_HITTERS_CLIENT_HEADER"} init-param) that account
+ * for the most requests, bytes, and server time in fixed memory (see {@link HeavyHitters}).</p>
+ *
+ * <p>
+ * Setting the {@code "com.github.stiemannkj1.servlet.filter.example.MetricsFilter.TRACK_DISTINCT_COUNTS"} init-param
+ * to true estimates the number of distinct client IP addresses, request URIs, and sessions in the last hour with
+ * HyperLogLog sketches (see {@link DistinctCounts}).</p>
+ *
+ * <p>
+ * Setting the {@code "com.github.stiemannkj1.servlet.filter.example.MetricsFilter.RECORD_ROLLUPS"} init-param to true
+ * downsamples the metrics into fixed-size rings of per-second, per-minute, and per-hour rollups (see {@link
+ * MetricsRollups}) which the metrics page charts. Unlike the response history, the rollups keep long-term trends in
+ * fixed memory.</p>
+ *
+ * <p>
+ * Setting the {@code "com.github.stiemannkj1.servlet.filter.example.MetricsFilter.INDEX_RESPONSE_HISTORY"} init-param
+ * to true indexes the most recent responses (the last {@value ResponseHistoryIndex#DEFAULT_CAPACITY} by default, which
+ * can be configured via the {@code
+ * "com.github.stiemannkj1.servlet.filter.example.MetricsFilter.RESPONSE_HISTORY_INDEX_SIZE"} init-param) by unique
+ * response id, completion time, and path (see {@link ResponseHistoryIndex}) so that they can be queried as JSON at
+ * {@value #RESPONSE_HISTORY_JSON_PATH} (see {@link ResponseHistoryJson}).</p>
+ *
+ * <p>
+ * Setting the {@code "com.github.stiemannkj1.servlet.filter.example.MetricsFilter.STREAM_METRICS"} init-param to true
+ * streams per-interval deltas of the metrics as Server-Sent Events from {@value #METRICS_EVENTS_PATH} (see {@link
+ * MetricsEventStream}) and adds a live-updating view of them to the metrics page. The
+ * {@code "com.github.stiemannkj1.servlet.filter.example.MetricsFilter.METRICS_EVENT_INTERVAL_MILLIS"} init-param
+ * controls how often events are sent (defaults to {@value MetricsEventStream#DEFAULT_INTERVAL_MILLIS}). Streaming
+ * requires a Servlet 3.1 container and a filter-mapping with {@code <async-supported>true</async-supported>};
+ * otherwise clients poll for the most recent event.</p>
+ *
+ * <p>
+ * Setting the {@code "com.github.stiemannkj1.servlet.filter.example.MetricsFilter.RECORD_INTERVALS"} init-param to
+ * true also records the metrics into intervals which delta-based collectors take through {@link
+ * MetricsFilterMXBean#takeInterval(java.lang.String)} (see {@link MetricsIntervals}). Each collector receives
+ * everything recorded since its own previous call, so several collectors can scrape independently without resetting
+ * the metrics.</p>
+ *
+ * <p>
+ * Each MetricsFilter instance also registers a {@link MetricsFilterMXBean} with the platform MBeanServer when it is
+ * initialized (and unregisters it when it is destroyed), so that JMX monitoring agents can read the metrics without
+ * going through HTTP.</p>
+ *
+ * <p>
+ * This Servlet Filter implementation exposes only the Filter API (and the {@link MetricsFilterMXBean} interface which
+ * JMX requires to be public) as public and is marked as {@code final} to avoid misuse (although some package-private
+ * API is exposed for the purposes of testing).</p>
  *
  * @author Kyle Stiemann
  */
@@ -69,31 +230,416 @@ public final class MetricsFilter implements Filter {
 
     static final String USE_UUID_UNIQUE_RESPONSE_ID_KEY =
             MetricsFilter.class.getName() + ".USE_UUID_UNIQUE_RESPONSE_ID";
+    static final String USE_PER_THREAD_RECORDERS_KEY = MetricsFilter.class.getName() + ".USE_PER_THREAD_RECORDERS";
+    static final String SNAPSHOT_REFRESH_INTERVAL_MILLIS_KEY =
+            MetricsFilter.class.getName() + ".SNAPSHOT_REFRESH_INTERVAL_MILLIS";
+    static final long DEFAULT_SNAPSHOT_REFRESH_INTERVAL_MILLIS = 1000;
+    static final String RESPONSE_HISTORY_SIZE_KEY = MetricsFilter.class.getName() + ".RESPONSE_HISTORY_SIZE";
+    static final int MAXIMUM_RESPONSE_HISTORY_SIZE = 10_000_000;
+    static final String USE_METRICS_JSP_KEY = MetricsFilter.class.getName() + ".USE_METRICS_JSP";
+    static final String METRICS_PAGE_CACHE_TTL_MILLIS_KEY =
+            MetricsFilter.class.getName() + ".METRICS_PAGE_CACHE_TTL_MILLIS";
+    static final String INCLUDE_PATHS_KEY = MetricsFilter.class.getName() + ".INCLUDE_PATHS";
+    static final String EXCLUDE_PATHS_KEY = MetricsFilter.class.getName() + ".EXCLUDE_PATHS";
+    static final String COMPRESS_RESPONSES_KEY = MetricsFilter.class.getName() + ".COMPRESS_RESPONSES";
+    static final String COMPRESSION_MINIMUM_SIZE_KEY = MetricsFilter.class.getName() + ".COMPRESSION_MINIMUM_SIZE";
+    static final String COMPRESSIBLE_CONTENT_TYPES_KEY =
+            MetricsFilter.class.getName() + ".COMPRESSIBLE_CONTENT_TYPES";
+    static final String RECORD_DISPATCH_SEGMENTS_KEY = MetricsFilter.class.getName() + ".RECORD_DISPATCH_SEGMENTS";
+    static final String MEASURE_RESOURCE_USAGE_KEY = MetricsFilter.class.getName() + ".MEASURE_RESOURCE_USAGE";
+    static final String MEASURE_NETWORK_BLOCKING_KEY = MetricsFilter.class.getName() + ".MEASURE_NETWORK_BLOCKING";
+    static final String NETWORK_BLOCKING_MINIMUM_WRITE_SIZE_KEY =
+            MetricsFilter.class.getName() + ".NETWORK_BLOCKING_MINIMUM_WRITE_SIZE";
+    static final int DEFAULT_NETWORK_BLOCKING_MINIMUM_WRITE_SIZE = 1024;
+    static final String MEASURED_RESPONSE_METRICS = MetricsFilter.class.getName() + ".MEASURED_RESPONSE_METRICS";
+    static final String EXPORT_DESTINATION_KEY = MetricsFilter.class.getName() + ".EXPORT_DESTINATION";
+    static final String EXPORT_FORMAT_KEY = MetricsFilter.class.getName() + ".EXPORT_FORMAT";
+    static final String EXPORT_INTERVAL_MILLIS_KEY = MetricsFilter.class.getName() + ".EXPORT_INTERVAL_MILLIS";
+    static final String EXPORT_PREFIX_KEY = MetricsFilter.class.getName() + ".EXPORT_PREFIX";
+    static final String EXPORT_MAXIMUM_FILE_SIZE_KEY = MetricsFilter.class.getName() + ".EXPORT_MAXIMUM_FILE_SIZE";
+    static final String ADAPTIVE_CONCURRENCY_LIMIT_KEY = MetricsFilter.class.getName() + ".ADAPTIVE_CONCURRENCY_LIMIT";
+    static final String INITIAL_CONCURRENCY_LIMIT_KEY = MetricsFilter.class.getName() + ".INITIAL_CONCURRENCY_LIMIT";
+    static final String MINIMUM_CONCURRENCY_LIMIT_KEY = MetricsFilter.class.getName() + ".MINIMUM_CONCURRENCY_LIMIT";
+    static final String MAXIMUM_CONCURRENCY_LIMIT_KEY = MetricsFilter.class.getName() + ".MAXIMUM_CONCURRENCY_LIMIT";
+    static final String RETRY_AFTER_SECONDS_KEY = MetricsFilter.class.getName() + ".RETRY_AFTER_SECONDS";
+    static final long DEFAULT_RETRY_AFTER_SECONDS = 1;
+    static final String AUTOMATIC_ETAGS_KEY = MetricsFilter.class.getName() + ".AUTOMATIC_ETAGS";
+    static final String CACHE_PATHS_KEY = MetricsFilter.class.getName() + ".CACHE_PATHS";
+    static final String CACHE_MAXIMUM_SIZE_KEY = MetricsFilter.class.getName() + ".CACHE_MAXIMUM_SIZE";
+    static final String CACHE_TIME_TO_LIVE_MILLIS_KEY = MetricsFilter.class.getName() + ".CACHE_TIME_TO_LIVE_MILLIS";
+    static final String CACHE_MAXIMUM_WAIT_MILLIS_KEY = MetricsFilter.class.getName() + ".CACHE_MAXIMUM_WAIT_MILLIS";
+    static final String EXPECTED_REQUEST_INTERVAL_MICROS_KEY =
+            MetricsFilter.class.getName() + ".EXPECTED_REQUEST_INTERVAL_MICROS";
+    static final String REQUEST_START_HEADER_KEY = MetricsFilter.class.getName() + ".REQUEST_START_HEADER";
+    static final String MAXIMUM_QUEUE_TIME_MILLIS_KEY = MetricsFilter.class.getName() + ".MAXIMUM_QUEUE_TIME_MILLIS";
+    static final long DEFAULT_MAXIMUM_QUEUE_TIME_MILLIS = 60_000;
+    static final String TRACK_HEAVY_HITTERS_KEY = MetricsFilter.class.getName() + ".TRACK_HEAVY_HITTERS";
+    static final String HEAVY_HITTERS_CLIENT_HEADER_KEY =
+            MetricsFilter.class.getName() + ".HEAVY_HITTERS_CLIENT_HEADER";
+    static final String HEAVY_HITTERS_CAPACITY_KEY = MetricsFilter.class.getName() + ".HEAVY_HITTERS_CAPACITY";
+    static final int HEAVY_HITTERS_TOP_COUNT = 10;
+    static final String TRACK_DISTINCT_COUNTS_KEY = MetricsFilter.class.getName() + ".TRACK_DISTINCT_COUNTS";
+    static final String INDEX_RESPONSE_HISTORY_KEY = MetricsFilter.class.getName() + ".INDEX_RESPONSE_HISTORY";
+    static final String RESPONSE_HISTORY_INDEX_SIZE_KEY =
+            MetricsFilter.class.getName() + ".RESPONSE_HISTORY_INDEX_SIZE";
+    static final String RECORD_ROLLUPS_KEY = MetricsFilter.class.getName() + ".RECORD_ROLLUPS";
+    static final String ROLLUP_SECOND_COUNT_KEY = MetricsFilter.class.getName() + ".ROLLUP_SECOND_COUNT";
+    static final String ROLLUP_MINUTE_COUNT_KEY = MetricsFilter.class.getName() + ".ROLLUP_MINUTE_COUNT";
+    static final String ROLLUP_HOUR_COUNT_KEY = MetricsFilter.class.getName() + ".ROLLUP_HOUR_COUNT";
+    static final int MAXIMUM_ROLLUP_COUNT = 100_000;
+    static final String RECORD_INTERVALS_KEY = MetricsFilter.class.getName() + ".RECORD_INTERVALS";
+    static final String STREAM_METRICS_KEY = MetricsFilter.class.getName() + ".STREAM_METRICS";
+    static final String METRICS_EVENT_INTERVAL_MILLIS_KEY =
+            MetricsFilter.class.getName() + ".METRICS_EVENT_INTERVAL_MILLIS";
     static final String UNIQUE_RESPONSE_ID = MetricsFilter.class.getName() + ".UNIQUE_RESPONSE_ID";
     static final String RESPONSE_METRICS = "responseMetrics";
+    static final String EXCLUDED_RESPONSE_COUNT = "excludedResponseCount";
+    static final String COMPRESSION_RATIO = "compressionRatio";
+    static final String COMPRESSION_BY_PATH = "compressionByPath";
+    static final String DISPATCH_SEGMENTS = "dispatchSegments";
+    static final String RESOURCE_USAGE_MEASURED = "resourceUsageMeasured";
+    static final String NETWORK_BLOCKING_MEASURED = "networkBlockingMeasured";
+    static final String CONCURRENCY_LIMIT = "concurrencyLimit";
+    static final String IN_FLIGHT_REQUEST_COUNT = "inFlightRequestCount";
+    static final String REJECTED_RESPONSE_COUNT = "rejectedResponseCount";
+    static final String CACHE_HIT_COUNT = "cacheHitCount";
+    static final String CACHE_MISS_COUNT = "cacheMissCount";
+    static final String CACHE_EVICTION_COUNT = "cacheEvictionCount";
+    static final String CACHED_RESPONSE_COUNT = "cachedResponseCount";
+    static final String CACHE_SIZE = "cacheSize";
+    static final String CACHE_HIT_TIME_SUFFIX = "CacheHitTime";
+    static final String TOP_CLIENTS_BY_REQUESTS = "topClientsByRequests";
+    static final String TOP_CLIENTS_BY_BYTES = "topClientsByBytes";
+    static final String TOP_CLIENTS_BY_SERVER_TIME = "topClientsByServerTime";
+    static final String HEAVY_HITTERS_ERROR_PERCENT = "heavyHittersErrorPercent";
+    static final String HEAVY_HITTERS_CONFIDENCE_PERCENT = "heavyHittersConfidencePercent";
+    static final String DISTINCT_CLIENTS = "distinctClients";
+    static final String DISTINCT_PATHS = "distinctPaths";
+    static final String DISTINCT_SESSIONS = "distinctSessions";
+    static final String ROLLUP_CHARTS = "rollupCharts";
+    static final String LIVE_METRICS = "liveMetrics";
     static final String METRICS_JSP_PAGE = "/com_github_stiemannkj1_servlet_filter_example_Metrics.jsp";
+    static final String RESPONSE_HISTORY_JSON_PATH =
+            "/com_github_stiemannkj1_servlet_filter_example_ResponseHistory.json";
+    static final String METRICS_EVENTS_PATH = "/com_github_stiemannkj1_servlet_filter_example_Metrics.events";
+    static final int[] PERCENTILES = { 50, 90, 99 };
 
+    private static final Logger logger = Logger.getLogger(MetricsFilter.class.getName());
+
+    // Reserves the random unique ids of the responses that are in progress or in the response history (counter based
+    // ids are not reserved).
     private final ConcurrentMap<String, SpecificResponseMetrics> responseMetrics = new ConcurrentHashMap<>();
+    private final AtomicLong metricsSnapshotSequence = new AtomicLong();
+    private final LongAdder excludedResponseCount = new LongAdder();
+    private final LongAdder recordedResponseCount = new LongAdder();
 
+    private ResponseMetricsRecorder responseMetricsRecorder = new SharedResponseMetricsRecorder();
+    private ResponseHistory responseHistory = new ResponseHistory(ResponseHistory.DEFAULT_CAPACITY);
     private Supplier<String> uniqueResponseIdFactory;
+    private boolean reserveUniqueResponseIds = false;
+    private PathMatcher includedPaths;
+    private PathMatcher excludedPaths;
+    private ResponseCompression responseCompression;
+    private boolean recordDispatchSegments;
+    private boolean automaticETags;
+    private String requestStartHeader;
+    private long maximumQueueTimeMillis = DEFAULT_MAXIMUM_QUEUE_TIME_MILLIS;
+    private HeavyHitters heavyHitters;
+    private String heavyHittersClientHeader;
+    private DistinctCounts distinctCounts;
+    private ResponseHistoryIndex responseHistoryIndex;
+    private ThreadResourceUsageSampler threadResourceUsageSampler;
+    private int networkBlockingMinimumWriteSize = -1;
+    private ScheduledExecutorService metricsSnapshotPublisher;
+    private MetricsPageRenderer metricsPageRenderer;
+    private MetricsPageCache metricsPageCache;
+    private MetricsExporter metricsExporter;
+    private MetricsRollups metricsRollups;
+    private MetricsEventStream metricsEventStream;
+    private MetricsIntervals metricsIntervals;
+    private AdaptiveConcurrencyLimiter concurrencyLimiter;
+    private String retryAfterSeconds;
+    private ResponseCache responseCache;
+    private volatile MetricsSnapshot metricsSnapshot;
+    private long recordedMetricsVersion;
+    private long distinctCountsVersion;
+    private ObjectName mxBeanObjectName;
 
     @Override
     public void init(FilterConfig filterConfig) throws ServletException {
 
-        if ("true".equalsIgnoreCase(filterConfig.getInitParameter(USE_UUID_UNIQUE_RESPONSE_ID_KEY))) {
-            uniqueResponseIdFactory = () -> {
-                return UUID.randomUUID().toString();
-            };
+        final boolean usePerThreadRecorders =
+                "true".equalsIgnoreCase(filterConfig.getInitParameter(USE_PER_THREAD_RECORDERS_KEY));
+        final long expectedRequestIntervalMicros =
+                getNonNegativeLongInitParameter(filterConfig, EXPECTED_REQUEST_INTERVAL_MICROS_KEY, 0);
+        final long expectedResponseTimeInterval = TimeUnit.MICROSECONDS.toNanos(expectedRequestIntervalMicros);
+
+        if (usePerThreadRecorders) {
+            responseMetricsRecorder = new PerThreadResponseMetricsRecorder(expectedResponseTimeInterval);
         } else {
-            uniqueResponseIdFactory = new Supplier<String>() {
-                private final AtomicLong uniqueResponseId = new AtomicLong();
+            responseMetricsRecorder = new SharedResponseMetricsRecorder(expectedResponseTimeInterval);
+        }
 
-                @Override
-                public String get() {
-                    return Long.toString(uniqueResponseId.incrementAndGet());
+        final long responseHistorySize = getNonNegativeLongInitParameter(filterConfig, RESPONSE_HISTORY_SIZE_KEY,
+                ResponseHistory.DEFAULT_CAPACITY);
+
+        if (responseHistorySize > MAXIMUM_RESPONSE_HISTORY_SIZE) {
+            throw new ServletException("Invalid value \"" + responseHistorySize + "\" for init-param " +
+                    RESPONSE_HISTORY_SIZE_KEY + ". The value must not be greater than " +
+                    MAXIMUM_RESPONSE_HISTORY_SIZE + ".");
+        }
+
+        responseHistory = new ResponseHistory((int) responseHistorySize,
+                usePerThreadRecorders ? PerThreadResponseMetricsRecorder.STRIPE_COUNT : 1);
+
+        if ("true".equalsIgnoreCase(filterConfig.getInitParameter(RECORD_INTERVALS_KEY))) {
+            metricsIntervals = new MetricsIntervals(expectedResponseTimeInterval);
+        }
+
+        final String requestStartHeaderName = filterConfig.getInitParameter(REQUEST_START_HEADER_KEY);
+        requestStartHeader = (requestStartHeaderName == null || requestStartHeaderName.trim().isEmpty()) ? null
+                : requestStartHeaderName.trim();
+        maximumQueueTimeMillis = getNonNegativeLongInitParameter(filterConfig, MAXIMUM_QUEUE_TIME_MILLIS_KEY,
+                DEFAULT_MAXIMUM_QUEUE_TIME_MILLIS);
+
+        if ("true".equalsIgnoreCase(filterConfig.getInitParameter(TRACK_HEAVY_HITTERS_KEY))) {
+
+            final long heavyHittersCapacity = getNonNegativeLongInitParameter(filterConfig, HEAVY_HITTERS_CAPACITY_KEY,
+                    HeavyHitters.DEFAULT_CAPACITY);
+
+            if (heavyHittersCapacity == 0 || heavyHittersCapacity > Integer.MAX_VALUE) {
+                throw new ServletException("Invalid value \"" + heavyHittersCapacity + "\" for init-param " +
+                        HEAVY_HITTERS_CAPACITY_KEY + ". The value must be greater than zero and not greater than " +
+                        Integer.MAX_VALUE + ".");
+            }
+
+            heavyHitters = new HeavyHitters((int) heavyHittersCapacity);
+
+            final String clientHeaderName = filterConfig.getInitParameter(HEAVY_HITTERS_CLIENT_HEADER_KEY);
+            heavyHittersClientHeader = (clientHeaderName == null || clientHeaderName.trim().isEmpty()) ? null
+                    : clientHeaderName.trim();
+        }
+
+        if ("true".equalsIgnoreCase(filterConfig.getInitParameter(TRACK_DISTINCT_COUNTS_KEY))) {
+            distinctCounts = new DistinctCounts();
+        }
+
+        if ("true".equalsIgnoreCase(filterConfig.getInitParameter(INDEX_RESPONSE_HISTORY_KEY))) {
+
+            final long responseHistoryIndexSize = getNonNegativeLongInitParameter(filterConfig,
+                    RESPONSE_HISTORY_INDEX_SIZE_KEY, ResponseHistoryIndex.DEFAULT_CAPACITY);
+
+            if (responseHistoryIndexSize > MAXIMUM_RESPONSE_HISTORY_SIZE) {
+                throw new ServletException("Invalid value \"" + responseHistoryIndexSize + "\" for init-param " +
+                        RESPONSE_HISTORY_INDEX_SIZE_KEY + ". The value must not be greater than " +
+                        MAXIMUM_RESPONSE_HISTORY_SIZE + ".");
+            }
+
+            responseHistoryIndex = new ResponseHistoryIndex((int) responseHistoryIndexSize);
+        }
+
+        final boolean useUUID =
+                "true".equalsIgnoreCase(filterConfig.getInitParameter(USE_UUID_UNIQUE_RESPONSE_ID_KEY));
+        uniqueResponseIdFactory = newUniqueResponseIdFactory(useUUID, usePerThreadRecorders);
+
+        // Counter based ids are unique by construction, so only random ids need to be reserved to detect collisions.
+        reserveUniqueResponseIds = useUUID;
+
+        recordDispatchSegments = "true".equalsIgnoreCase(filterConfig.getInitParameter(RECORD_DISPATCH_SEGMENTS_KEY));
+        automaticETags = "true".equalsIgnoreCase(filterConfig.getInitParameter(AUTOMATIC_ETAGS_KEY));
+
+        if ("true".equalsIgnoreCase(filterConfig.getInitParameter(MEASURE_RESOURCE_USAGE_KEY))) {
+            threadResourceUsageSampler = new ThreadResourceUsageSampler();
+        }
+
+        if ("true".equalsIgnoreCase(filterConfig.getInitParameter(MEASURE_NETWORK_BLOCKING_KEY))) {
+
+            final long minimumWriteSize = getNonNegativeLongInitParameter(filterConfig,
+                    NETWORK_BLOCKING_MINIMUM_WRITE_SIZE_KEY, DEFAULT_NETWORK_BLOCKING_MINIMUM_WRITE_SIZE);
+
+            if (minimumWriteSize > Integer.MAX_VALUE) {
+                throw new ServletException("Invalid value \"" + minimumWriteSize + "\" for init-param " +
+                        NETWORK_BLOCKING_MINIMUM_WRITE_SIZE_KEY + ". The value must not be greater than " +
+                        Integer.MAX_VALUE + ".");
+            }
+
+            networkBlockingMinimumWriteSize = (int) minimumWriteSize;
+        }
+
+        includedPaths = PathMatcher.compile(filterConfig.getInitParameter(INCLUDE_PATHS_KEY));
+        excludedPaths = PathMatcher.compile(filterConfig.getInitParameter(EXCLUDE_PATHS_KEY));
+
+        if ("true".equalsIgnoreCase(filterConfig.getInitParameter(COMPRESS_RESPONSES_KEY))) {
+
+            final long compressionMinimumSize = getNonNegativeLongInitParameter(filterConfig,
+                    COMPRESSION_MINIMUM_SIZE_KEY, ResponseCompression.DEFAULT_MINIMUM_SIZE);
+
+            if (compressionMinimumSize > Integer.MAX_VALUE) {
+                throw new ServletException("Invalid value \"" + compressionMinimumSize + "\" for init-param " +
+                        COMPRESSION_MINIMUM_SIZE_KEY + ". The value must not be greater than " + Integer.MAX_VALUE +
+                        ".");
+            }
+
+            String compressibleContentTypes = filterConfig.getInitParameter(COMPRESSIBLE_CONTENT_TYPES_KEY);
+
+            if (compressibleContentTypes == null) {
+                compressibleContentTypes = ResponseCompression.DEFAULT_COMPRESSIBLE_CONTENT_TYPES;
+            }
+
+            responseCompression = new ResponseCompression((int) compressionMinimumSize, compressibleContentTypes);
+        }
+
+        if ("true".equalsIgnoreCase(filterConfig.getInitParameter(ADAPTIVE_CONCURRENCY_LIMIT_KEY))) {
+
+            final long initialConcurrencyLimit = getNonNegativeLongInitParameter(filterConfig,
+                    INITIAL_CONCURRENCY_LIMIT_KEY, AdaptiveConcurrencyLimiter.DEFAULT_INITIAL_LIMIT);
+            final long minimumConcurrencyLimit = getNonNegativeLongInitParameter(filterConfig,
+                    MINIMUM_CONCURRENCY_LIMIT_KEY, AdaptiveConcurrencyLimiter.DEFAULT_MINIMUM_LIMIT);
+            final long maximumConcurrencyLimit = getNonNegativeLongInitParameter(filterConfig,
+                    MAXIMUM_CONCURRENCY_LIMIT_KEY, AdaptiveConcurrencyLimiter.DEFAULT_MAXIMUM_LIMIT);
+
+            if (maximumConcurrencyLimit > Integer.MAX_VALUE) {
+                throw new ServletException("Invalid value \"" + maximumConcurrencyLimit + "\" for init-param " +
+                        MAXIMUM_CONCURRENCY_LIMIT_KEY + ". The value must not be greater than " + Integer.MAX_VALUE +
+                        ".");
+            }
+
+            try {
+                concurrencyLimiter = new AdaptiveConcurrencyLimiter((int) Math.min(initialConcurrencyLimit,
+                        Integer.MAX_VALUE), (int) Math.min(minimumConcurrencyLimit, Integer.MAX_VALUE),
+                        (int) maximumConcurrencyLimit);
+            } catch (IllegalArgumentException e) {
+                throw new ServletException("Invalid concurrency limit init-params.", e);
+            }
+
+            retryAfterSeconds = Long.toString(getNonNegativeLongInitParameter(filterConfig, RETRY_AFTER_SECONDS_KEY,
+                    DEFAULT_RETRY_AFTER_SECONDS));
+        }
+
+        final PathMatcher cachedPaths = PathMatcher.compile(filterConfig.getInitParameter(CACHE_PATHS_KEY));
+
+        if (cachedPaths != null) {
+            responseCache = new ResponseCache(cachedPaths,
+                    getNonNegativeLongInitParameter(filterConfig, CACHE_MAXIMUM_SIZE_KEY,
+                            ResponseCache.DEFAULT_MAXIMUM_SIZE),
+                    getNonNegativeLongInitParameter(filterConfig, CACHE_TIME_TO_LIVE_MILLIS_KEY,
+                            ResponseCache.DEFAULT_TIME_TO_LIVE_MILLIS),
+                    getNonNegativeLongInitParameter(filterConfig, CACHE_MAXIMUM_WAIT_MILLIS_KEY,
+                            ResponseCache.DEFAULT_MAXIMUM_WAIT_MILLIS));
+        }
+
+        final String exportDestination = filterConfig.getInitParameter(EXPORT_DESTINATION_KEY);
+        long exportIntervalMillis = 0;
+
+        if (exportDestination != null && !exportDestination.trim().isEmpty()) {
+
+            exportIntervalMillis = getNonNegativeLongInitParameter(filterConfig, EXPORT_INTERVAL_MILLIS_KEY,
+                    MetricsExporter.DEFAULT_INTERVAL_MILLIS);
+
+            if (exportIntervalMillis == 0) {
+                throw new ServletException("Invalid value \"0\" for init-param " + EXPORT_INTERVAL_MILLIS_KEY +
+                        ". The value must be greater than zero.");
+            }
+
+            final String exportFormat = filterConfig.getInitParameter(EXPORT_FORMAT_KEY);
+            final MetricsExporter.Format format;
+
+            try {
+                format = (exportFormat == null) ? MetricsExporter.Format.STATSD
+                        : MetricsExporter.Format.valueOf(exportFormat.trim().toUpperCase(Locale.ENGLISH));
+            } catch (IllegalArgumentException e) {
+                throw new ServletException("Invalid value \"" + exportFormat + "\" for init-param " +
+                        EXPORT_FORMAT_KEY + ". The value must be \"statsd\" or \"influx\".", e);
+            }
+
+            final String exportPrefix = filterConfig.getInitParameter(EXPORT_PREFIX_KEY);
+            final long exportMaximumFileSize = getNonNegativeLongInitParameter(filterConfig,
+                    EXPORT_MAXIMUM_FILE_SIZE_KEY, MetricsExporter.DEFAULT_MAXIMUM_FILE_SIZE);
+
+            try {
+                metricsExporter = new MetricsExporter(exportDestination, format,
+                        (exportPrefix == null) ? MetricsExporter.DEFAULT_PREFIX : exportPrefix.trim(),
+                        exportMaximumFileSize, this::getMetricsSnapshot);
+            } catch (IOException | IllegalArgumentException e) {
+                throw new ServletException("Invalid value \"" + exportDestination + "\" for init-param " +
+                        EXPORT_DESTINATION_KEY + ".", e);
+            }
+        }
+
+        final long snapshotRefreshIntervalMillis = getNonNegativeLongInitParameter(filterConfig,
+                SNAPSHOT_REFRESH_INTERVAL_MILLIS_KEY, DEFAULT_SNAPSHOT_REFRESH_INTERVAL_MILLIS);
+        refreshMetricsSnapshot();
+
+        if ("true".equalsIgnoreCase(filterConfig.getInitParameter(RECORD_ROLLUPS_KEY))) {
+
+            final String[] rollupCountKeys =
+                    { ROLLUP_SECOND_COUNT_KEY, ROLLUP_MINUTE_COUNT_KEY, ROLLUP_HOUR_COUNT_KEY };
+            final int[] rollupCounts = new int[rollupCountKeys.length];
+
+            for (MetricsRollups.Tier tier : MetricsRollups.Tier.values()) {
+
+                final String rollupCountKey = rollupCountKeys[tier.ordinal()];
+                final long rollupCount =
+                        getNonNegativeLongInitParameter(filterConfig, rollupCountKey, tier.getDefaultCapacity());
+
+                if (rollupCount > MAXIMUM_ROLLUP_COUNT) {
+                    throw new ServletException("Invalid value \"" + rollupCount + "\" for init-param " +
+                            rollupCountKey + ". The value must not be greater than " + MAXIMUM_ROLLUP_COUNT + ".");
                 }
-            };
+
+                rollupCounts[tier.ordinal()] = (int) rollupCount;
+            }
+
+            metricsRollups = new MetricsRollups(rollupCounts, this::getMetricsSnapshot);
+        }
+
+        if ("true".equalsIgnoreCase(filterConfig.getInitParameter(STREAM_METRICS_KEY))) {
+
+            final long metricsEventIntervalMillis = getNonNegativeLongInitParameter(filterConfig,
+                    METRICS_EVENT_INTERVAL_MILLIS_KEY, MetricsEventStream.DEFAULT_INTERVAL_MILLIS);
+
+            if (metricsEventIntervalMillis == 0) {
+                throw new ServletException("Invalid value \"" + metricsEventIntervalMillis + "\" for init-param " +
+                        METRICS_EVENT_INTERVAL_MILLIS_KEY + ". The value must be greater than 0.");
+            }
+
+            metricsEventStream = new MetricsEventStream(metricsEventIntervalMillis, this::getMetricsSnapshot);
+        }
+
+        if (snapshotRefreshIntervalMillis > 0) {
+            metricsSnapshotPublisher = Executors.newSingleThreadScheduledExecutor((runnable) -> {
+                final Thread thread = new Thread(runnable, MetricsFilter.class.getSimpleName() + " snapshot publisher");
+                thread.setDaemon(true);
+                return thread;
+            });
+            metricsSnapshotPublisher.scheduleWithFixedDelay(this::publishMetricsSnapshot,
+                    snapshotRefreshIntervalMillis, snapshotRefreshIntervalMillis, TimeUnit.MILLISECONDS);
+        }
+
+        if (!"true".equalsIgnoreCase(filterConfig.getInitParameter(USE_METRICS_JSP_KEY))) {
+            metricsPageRenderer = new MetricsPageRenderer();
+        }
+
+        final long metricsPageCacheTimeToLiveMillis =
+                getNonNegativeLongInitParameter(filterConfig, METRICS_PAGE_CACHE_TTL_MILLIS_KEY, 0);
+
+        if (metricsPageCacheTimeToLiveMillis > 0) {
+            metricsPageCache = new MetricsPageCache(metricsPageCacheTimeToLiveMillis);
+        }
+
+        if (metricsExporter != null) {
+            metricsExporter.start(exportIntervalMillis);
+        }
+
+        if (metricsRollups != null) {
+            metricsRollups.start();
+        }
+
+        if (metricsEventStream != null) {
+            metricsEventStream.start();
         }
+
+        registerMXBean(filterConfig);
     }
 
     @Override
@@ -102,64 +648,1061 @@ public final class MetricsFilter implements Filter {
 
         final HttpServletRequest httpServletRequest = (HttpServletRequest) request;
         final String servletPath = httpServletRequest.getServletPath();
+        final Object measuredResponseMetrics = request.getAttribute(MEASURED_RESPONSE_METRICS);
+        final ResponseCache currentResponseCache = responseCache;
+        final ResponseHistoryIndex currentResponseHistoryIndex = responseHistoryIndex;
+        final MetricsEventStream currentMetricsEventStream = metricsEventStream;
 
         if (METRICS_JSP_PAGE.equals(servletPath)) {
-            final Map<String, SpecificResponseMetrics> metrics = new HashMap<>(responseMetrics);
-            final Collection<SpecificResponseMetrics> metricsCollection = metrics.values();
 
-            metricsCollection.removeIf((specificResponseMetrics) -> {
-                return specificResponseMetrics.getMetrics() == null;
-            });
+            if (metricsPageCache == null) {
+                renderMetricsPage(httpServletRequest, response, chain);
+            } else {
 
-            setMetricsAttributes(SpecificResponseMetrics.Metric.RESPONSE_SIZE, httpServletRequest, metricsCollection);
-            setMetricsAttributes(SpecificResponseMetrics.Metric.RESPONSE_TIME, httpServletRequest, metricsCollection);
-            httpServletRequest.setAttribute(RESPONSE_METRICS, metrics);
-            chain.doFilter(httpServletRequest, response);
+                final long currentMetricsSnapshotVersion =
+                        (metricsSnapshotPublisher != null) ? metricsSnapshot.getVersion() : -1;
+                metricsPageCache.serve(httpServletRequest, (HttpServletResponse) response,
+                        currentMetricsSnapshotVersion, (bufferedResponse) -> {
+                            return renderMetricsPage(httpServletRequest, bufferedResponse, chain);
+                        });
+            }
+        } else if (currentResponseHistoryIndex != null && RESPONSE_HISTORY_JSON_PATH.equals(servletPath)) {
+            ResponseHistoryJson.serve(currentResponseHistoryIndex, httpServletRequest, (HttpServletResponse) response);
+        } else if (currentMetricsEventStream != null && METRICS_EVENTS_PATH.equals(servletPath)) {
+            currentMetricsEventStream.subscribe(httpServletRequest, (HttpServletResponse) response);
+        } else if (measuredResponseMetrics != null) {
+
+            // The request is already being measured by an outer dispatch (or was measured by the REQUEST dispatch which
+            // started asynchronous processing), so the response must not be wrapped or counted again.
+            if (recordDispatchSegments && measuredResponseMetrics instanceof SpecificResponseMetrics) {
+                doFilterDispatchSegment(httpServletRequest, response, chain,
+                        (SpecificResponseMetrics) measuredResponseMetrics);
+            } else {
+                chain.doFilter(request, response);
+            }
+        } else if (!DispatcherType.REQUEST.equals(getDispatcherType(request))) {
+            chain.doFilter(request, response);
+        } else if (!isMeasured(httpServletRequest, servletPath)) {
+            excludedResponseCount.increment();
+
+            final MetricsIntervals currentMetricsIntervals = metricsIntervals;
+
+            if (currentMetricsIntervals != null) {
+                currentMetricsIntervals.recordExcludedResponse();
+            }
+
+            chain.doFilter(request, response);
+        } else {
+
+            final DistinctCounts currentDistinctCounts = distinctCounts;
+
+            // Responses served from the cache and rejected requests are counted as well.
+            if (currentDistinctCounts != null) {
+                currentDistinctCounts.record(httpServletRequest.getRemoteAddr(), httpServletRequest.getRequestURI(),
+                        httpServletRequest.isRequestedSessionIdValid() ? httpServletRequest.getRequestedSessionId()
+                                : null, System.currentTimeMillis());
+            }
+
+            if (currentResponseCache == null) {
+                doFilterMeasured(httpServletRequest, response, chain, null);
+            } else {
+                doFilterCacheable(httpServletRequest, response, chain, currentResponseCache,
+                        getPath(servletPath, httpServletRequest.getPathInfo()));
+            }
+        }
+    }
+
+    private void doFilterCacheable(HttpServletRequest httpServletRequest, ServletResponse response, FilterChain chain,
+            ResponseCache currentResponseCache, String path) throws IOException, ServletException {
+
+        if (!currentResponseCache.isCacheable(httpServletRequest, path)) {
+            doFilterMeasured(httpServletRequest, response, chain, null);
         } else {
+
+            final ResponseCache.ResponseCapture responseCapture =
+                    currentResponseCache.serve(httpServletRequest, (HttpServletResponse) response, path);
+
+            // A null capture means that the response was written from the cache.
+            if (responseCapture != null) {
+                doFilterMeasured(httpServletRequest, response, chain, responseCapture);
+            }
+        }
+    }
+
+    /**
+     * @param responseCapture the capture that caches the response or null if the response is not cacheable.
+     */
+    private void doFilterMeasured(HttpServletRequest httpServletRequest, ServletResponse response, FilterChain chain,
+            ResponseCache.ResponseCapture responseCapture) throws IOException, ServletException {
+
+        final AdaptiveConcurrencyLimiter currentConcurrencyLimiter = concurrencyLimiter;
+        final ThreadResourceUsageSampler resourceUsageSampler = threadResourceUsageSampler;
+        boolean asyncStarted = false;
+        boolean completed = false;
+
+        if (currentConcurrencyLimiter != null && !currentConcurrencyLimiter.tryAcquire()) {
+
+            if (responseCapture != null) {
+                responseCapture.abandon();
+            }
+
+            // Reject the request as cheaply as possible (without an error page dispatch) so that an overloaded
+            // application sheds load instead of queuing it.
+            final HttpServletResponse rejectedResponse = (HttpServletResponse) response;
+            rejectedResponse.setStatus(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+            rejectedResponse.setHeader("Retry-After", retryAfterSeconds);
+            return;
+        }
+
+        final MeasuredRequest measuredRequest = new MeasuredRequest(currentConcurrencyLimiter);
+
+        // Everything after the permit is acquired runs inside the try so that every path which does not reach
+        // recordMetrics() or the asynchronous listener releases the permit (and the unique id once it is reserved).
+        try {
+
+            final String contentEncoding = (responseCompression == null) ? null
+                    : ResponseCompression.selectEncoding(httpServletRequest.getHeader("Accept-Encoding"));
             final ResponseSizeHttpServletResponseWrapper httpServletResponse =
-                    new ResponseSizeHttpServletResponseWrapper((HttpServletResponse) response);
+                    new ResponseSizeHttpServletResponseWrapper((HttpServletResponse) response, responseCompression,
+                            contentEncoding);
+            measuredRequest.httpServletResponse = httpServletResponse;
+
+            if (responseCapture != null) {
+                httpServletResponse.captureResponseBody(responseCapture);
+            }
+
+            if (automaticETags && "GET".equals(httpServletRequest.getMethod())) {
+                httpServletResponse.enableETag(httpServletRequest.getHeader("If-None-Match"));
+            }
+
+            if (networkBlockingMinimumWriteSize >= 0) {
+                httpServletResponse.measureNetworkBlocking(networkBlockingMinimumWriteSize);
+            }
+
             final SpecificResponseMetrics specificResponseMetrics = new SpecificResponseMetrics();
-            String currentUniqueResponseId = uniqueResponseIdFactory.get();
+            measuredRequest.specificResponseMetrics = specificResponseMetrics;
+            String uniqueResponseId = uniqueResponseIdFactory.get();
+
+            if (reserveUniqueResponseIds) {
 
-            while (responseMetrics.putIfAbsent(currentUniqueResponseId, specificResponseMetrics) != null) {
-                currentUniqueResponseId = uniqueResponseIdFactory.get();
+                while (responseMetrics.putIfAbsent(uniqueResponseId, specificResponseMetrics) != null) {
+                    uniqueResponseId = uniqueResponseIdFactory.get();
+                }
             }
 
-            httpServletResponse.addHeader(UNIQUE_RESPONSE_ID, currentUniqueResponseId);
+            measuredRequest.uniqueResponseId = uniqueResponseId;
+            httpServletResponse.addHeader(UNIQUE_RESPONSE_ID, uniqueResponseId);
+            httpServletRequest.setAttribute(MEASURED_RESPONSE_METRICS, specificResponseMetrics);
 
-            final long startTime = System.nanoTime();
+            if (resourceUsageSampler != null) {
+                measuredRequest.cpuTime = resourceUsageSampler.getCurrentThreadCpuTime();
+                measuredRequest.allocatedBytes = resourceUsageSampler.getCurrentThreadAllocatedBytes();
+            }
+
+            measuredRequest.client = (heavyHitters == null) ? null : getClient(httpServletRequest);
+            measuredRequest.path = (responseHistoryIndex == null && responseCompression == null) ? null
+                    : getPath(httpServletRequest.getServletPath(), httpServletRequest.getPathInfo());
+            measuredRequest.queueTime = (requestStartHeader == null) ? 0
+                    : getQueueTime(httpServletRequest.getHeader(requestStartHeader), System.currentTimeMillis(),
+                            maximumQueueTimeMillis);
+            measuredRequest.startTime = System.nanoTime();
             chain.doFilter(httpServletRequest, httpServletResponse);
-            specificResponseMetrics.setMetrics((System.nanoTime() - startTime),
-                    httpServletResponse.getResponseSize());
+
+            if (resourceUsageSampler != null) {
+                measuredRequest.cpuTime = resourceUsageSampler.getCurrentThreadCpuTime() - measuredRequest.cpuTime;
+                measuredRequest.allocatedBytes =
+                        resourceUsageSampler.getCurrentThreadAllocatedBytes() - measuredRequest.allocatedBytes;
+            }
+
+            asyncStarted = httpServletRequest.isAsyncStarted();
+
+            if (asyncStarted) {
+                httpServletRequest.getAsyncContext().addListener(new MeasureResponseAsyncListener(measuredRequest),
+                        httpServletRequest, httpServletResponse);
+            } else {
+                httpServletResponse.finishResponse();
+            }
+
+            completed = true;
+        } finally {
+
+            if (measuredRequest.httpServletResponse != null && !asyncStarted) {
+                measuredRequest.httpServletResponse.releaseResources();
+            }
+
+            // Asynchronous and failed responses are not cached (and requests waiting for them must not wait forever).
+            if (responseCapture != null) {
+                responseCapture.abandon();
+            }
+
+            if (!completed) {
+
+                // Failed responses are not recorded, so they release their unique id right away.
+                if (reserveUniqueResponseIds && measuredRequest.uniqueResponseId != null) {
+                    responseMetrics.remove(measuredRequest.uniqueResponseId, measuredRequest.specificResponseMetrics);
+                }
+
+                // Failed requests release their permit without influencing the concurrency limit.
+                if (currentConcurrencyLimiter != null) {
+                    currentConcurrencyLimiter.release(-1);
+                }
+            }
+        }
+
+        if (!asyncStarted) {
+            recordMetrics(measuredRequest);
         }
     }
 
     @Override
     public void destroy() {
+
+        unregisterMXBean();
+
+        if (metricsExporter != null) {
+
+            try {
+                metricsExporter.close();
+            } catch (IOException e) {
+                logger.log(Level.WARNING, "Failed to export the final metrics.", e);
+            }
+
+            metricsExporter = null;
+        }
+
+        if (metricsRollups != null) {
+            metricsRollups.close();
+            metricsRollups = null;
+        }
+
+        if (metricsEventStream != null) {
+            metricsEventStream.close();
+            metricsEventStream = null;
+        }
+
+        if (metricsSnapshotPublisher != null) {
+            metricsSnapshotPublisher.shutdownNow();
+            metricsSnapshotPublisher = null;
+        }
+
+        if (metricsPageCache != null) {
+            metricsPageCache.clear();
+            metricsPageCache = null;
+        }
+
+        metricsPageRenderer = null;
+
+        if (responseCache != null) {
+            responseCache.clear();
+            responseCache = null;
+        }
+
+        if (responseCompression != null) {
+            responseCompression.close();
+            responseCompression = null;
+        }
+
         uniqueResponseIdFactory = null;
+        reserveUniqueResponseIds = false;
+        heavyHitters = null;
+        heavyHittersClientHeader = null;
+        distinctCounts = null;
+        responseHistoryIndex = null;
+        requestStartHeader = null;
+        recordDispatchSegments = false;
+        automaticETags = false;
+        concurrencyLimiter = null;
+        retryAfterSeconds = null;
+        threadResourceUsageSampler = null;
+        networkBlockingMinimumWriteSize = -1;
+        metricsIntervals = null;
+        includedPaths = null;
+        excludedPaths = null;
+        excludedResponseCount.reset();
+        recordedResponseCount.reset();
         responseMetrics.clear();
+        responseHistory.clear();
+        responseMetricsRecorder.reset();
+        metricsSnapshot = null;
+    }
+
+    /**
+     * Removes all recorded metrics, the response history, and the cached metrics page and then publishes a new
+     * snapshot. Responses that are in progress are still recorded when they complete.
+     */
+    void resetMetrics() {
+
+        responseMetrics.clear();
+        responseHistory.clear();
+        responseMetricsRecorder.reset();
+        excludedResponseCount.reset();
+
+        final HeavyHitters currentHeavyHitters = heavyHitters;
+
+        if (currentHeavyHitters != null) {
+            currentHeavyHitters.reset();
+        }
+
+        final DistinctCounts currentDistinctCounts = distinctCounts;
+
+        if (currentDistinctCounts != null) {
+            currentDistinctCounts.reset();
+        }
+
+        final ResponseHistoryIndex currentResponseHistoryIndex = responseHistoryIndex;
+
+        if (currentResponseHistoryIndex != null) {
+            currentResponseHistoryIndex.reset();
+        }
+
+        final ResponseCompression currentResponseCompression = responseCompression;
+
+        if (currentResponseCompression != null) {
+            currentResponseCompression.reset();
+        }
+
+        final MetricsPageCache currentMetricsPageCache = metricsPageCache;
+
+        if (currentMetricsPageCache != null) {
+            currentMetricsPageCache.clear();
+        }
+
+        final ResponseCache currentResponseCache = responseCache;
+
+        if (currentResponseCache != null) {
+            currentResponseCache.resetStatistics();
+        }
+
+        // The metrics changed even if the same number of responses has been recorded since the reset.
+        synchronized (this) {
+            recordedMetricsVersion = -1;
+        }
+
+        publishMetricsSnapshot();
+    }
+
+    /**
+     * @return the name that this filter's MXBean is registered under or null if it is not registered.
+     */
+    ObjectName getMXBeanObjectName() {
+        return mxBeanObjectName;
+    }
+
+    /**
+     * @return the number of random unique response ids that are reserved by responses in progress or in the response
+     * history.
+     */
+    int getReservedResponseIdCount() {
+        return responseMetrics.size();
+    }
+
+    /**
+     * @return the most recently published snapshot or a newly built snapshot if snapshots are not published in the
+     * background.
+     */
+    MetricsSnapshot getMetricsSnapshot() {
+
+        if (metricsSnapshotPublisher == null) {
+            return refreshMetricsSnapshot();
+        }
+
+        return metricsSnapshot;
+    }
+
+    /**
+     * Builds and publishes a new snapshot. If no responses have been recorded since the current snapshot was built, the
+     * new snapshot shares the current snapshot's histograms and history instead of copying them again. The other
+     * sources (which change without responses being recorded) are summarized again only if they changed, and the new
+     * snapshot keeps the current snapshot's version if nothing changed at all.
+     *
+     * @return the new snapshot.
+     */
+    private synchronized MetricsSnapshot refreshMetricsSnapshot() {
+
+        // The versions are read before the metrics are copied, so a change that is made while the snapshot is being
+        // built changes the version that the next refresh sees.
+        final long nowMillis = System.currentTimeMillis();
+        final long currentRecordedMetricsVersion = recordedResponseCount.sum() + excludedResponseCount.sum();
+        final DistinctCounts currentDistinctCounts = distinctCounts;
+        final long currentDistinctCountsVersion =
+                (currentDistinctCounts == null) ? 0 : currentDistinctCounts.getVersion(nowMillis);
+        final MetricsSnapshot currentMetricsSnapshot = metricsSnapshot;
+        final boolean recordedMetricsChanged =
+                currentMetricsSnapshot == null || currentRecordedMetricsVersion != recordedMetricsVersion;
+
+        // Distinct counts also change when cache hits and rejected requests are counted and when the window slides.
+        DistinctCounts.Summary distinctCountsSummary = null;
+
+        if (currentDistinctCounts != null) {
+
+            if (!recordedMetricsChanged && currentDistinctCountsVersion == distinctCountsVersion) {
+                distinctCountsSummary = currentMetricsSnapshot.getDistinctCounts();
+            } else {
+                distinctCountsSummary = currentDistinctCounts.summarize(nowMillis);
+            }
+        }
+
+        distinctCountsVersion = currentDistinctCountsVersion;
+
+        final AdaptiveConcurrencyLimiter currentConcurrencyLimiter = concurrencyLimiter;
+        AdaptiveConcurrencyLimiter.Summary concurrencyLimiterSummary =
+                (currentConcurrencyLimiter == null) ? null : currentConcurrencyLimiter.summarize();
+
+        if (currentMetricsSnapshot != null && concurrencyLimiterSummary != null &&
+                concurrencyLimiterSummary.equals(currentMetricsSnapshot.getConcurrencyLimiter())) {
+            concurrencyLimiterSummary = currentMetricsSnapshot.getConcurrencyLimiter();
+        }
+
+        final ResponseCache currentResponseCache = responseCache;
+        ResponseCache.Summary responseCacheSummary =
+                (currentResponseCache == null) ? null : currentResponseCache.summarize();
+
+        if (currentMetricsSnapshot != null && responseCacheSummary != null &&
+                responseCacheSummary.equals(currentMetricsSnapshot.getResponseCache())) {
+            responseCacheSummary = currentMetricsSnapshot.getResponseCache();
+        }
+
+        final MetricsRollups currentMetricsRollups = metricsRollups;
+        final MetricsRollups.Summary metricsRollupsSummary =
+                (currentMetricsRollups == null) ? null : currentMetricsRollups.summarize();
+        final long sequence = metricsSnapshotSequence.incrementAndGet();
+        final MetricsSnapshot newMetricsSnapshot;
+
+        if (recordedMetricsChanged) {
+
+            final Map<String, SpecificResponseMetrics> completedResponseMetrics = responseHistory.copy();
+            final HeavyHitters currentHeavyHitters = heavyHitters;
+            final ResponseCompression currentResponseCompression = responseCompression;
+
+            // Copy the histograms after the history so that every response in the history is included in the
+            // histograms.
+            newMetricsSnapshot = new MetricsSnapshot(sequence, sequence, nowMillis,
+                    responseMetricsRecorder.copyHistograms(), completedResponseMetrics, excludedResponseCount.sum(),
+                    (currentHeavyHitters == null) ? null : currentHeavyHitters.summarize(HEAVY_HITTERS_TOP_COUNT),
+                    (currentResponseCompression == null) ? null : currentResponseCompression.summarize(),
+                    distinctCountsSummary, concurrencyLimiterSummary, responseCacheSummary, metricsRollupsSummary,
+                    currentMetricsSnapshot);
+            recordedMetricsVersion = currentRecordedMetricsVersion;
+        } else {
+
+            // Heavy hitters and the sizes per path are only recorded along with responses, so they can't have changed
+            // either.
+            final boolean unchanged = distinctCountsSummary == currentMetricsSnapshot.getDistinctCounts() &&
+                    concurrencyLimiterSummary == currentMetricsSnapshot.getConcurrencyLimiter() &&
+                    responseCacheSummary == currentMetricsSnapshot.getResponseCache() &&
+                    metricsRollupsSummary == currentMetricsSnapshot.getRollups();
+            newMetricsSnapshot = new MetricsSnapshot(sequence,
+                    unchanged ? currentMetricsSnapshot.getVersion() : sequence, nowMillis, currentMetricsSnapshot,
+                    distinctCountsSummary, concurrencyLimiterSummary, responseCacheSummary, metricsRollupsSummary);
+        }
+
+        metricsSnapshot = newMetricsSnapshot;
+
+        return newMetricsSnapshot;
+    }
+
+    /**
+     * Renders the metrics page from a single snapshot (so the page is the same for every snapshot with the same
+     * version).
+     *
+     * @return the version of the rendered snapshot.
+     */
+    private long renderMetricsPage(HttpServletRequest httpServletRequest, ServletResponse response, FilterChain chain)
+            throws IOException, ServletException {
+
+        final MetricsSnapshot currentMetricsSnapshot = getMetricsSnapshot();
+
+        for (SpecificResponseMetrics.Metric metric : SpecificResponseMetrics.Metric.values()) {
+            setMetricsAttributes(metric, httpServletRequest, currentMetricsSnapshot.getHistogram(metric));
+        }
+
+        httpServletRequest.setAttribute(RESPONSE_METRICS, currentMetricsSnapshot.getResponseMetrics());
+        httpServletRequest.setAttribute(EXCLUDED_RESPONSE_COUNT, currentMetricsSnapshot.getExcludedResponseCount());
+
+        httpServletRequest.setAttribute(RESOURCE_USAGE_MEASURED, threadResourceUsageSampler != null);
+        httpServletRequest.setAttribute(NETWORK_BLOCKING_MEASURED, networkBlockingMinimumWriteSize >= 0);
+
+        final AdaptiveConcurrencyLimiter.Summary concurrencyLimiterSummary =
+                currentMetricsSnapshot.getConcurrencyLimiter();
+
+        if (concurrencyLimiterSummary != null) {
+            httpServletRequest.setAttribute(CONCURRENCY_LIMIT, concurrencyLimiterSummary.getLimit());
+            httpServletRequest.setAttribute(IN_FLIGHT_REQUEST_COUNT, concurrencyLimiterSummary.getInFlightCount());
+            httpServletRequest.setAttribute(REJECTED_RESPONSE_COUNT, concurrencyLimiterSummary.getRejectedCount());
+        }
+
+        final ResponseCache.Summary responseCacheSummary = currentMetricsSnapshot.getResponseCache();
+
+        if (responseCacheSummary != null) {
+
+            httpServletRequest.setAttribute(CACHE_HIT_COUNT, responseCacheSummary.getHitCount());
+            httpServletRequest.setAttribute(CACHE_MISS_COUNT, responseCacheSummary.getMissCount());
+            httpServletRequest.setAttribute(CACHE_EVICTION_COUNT, responseCacheSummary.getEvictionCount());
+            httpServletRequest.setAttribute(CACHED_RESPONSE_COUNT, responseCacheSummary.getCachedResponseCount());
+            httpServletRequest.setAttribute(CACHE_SIZE, responseCacheSummary.getSize());
+
+            final MetricsHistogram hitTimes = responseCacheSummary.getHitTimes();
+            httpServletRequest.setAttribute("minimum" + CACHE_HIT_TIME_SUFFIX, hitTimes.getMinimum());
+            httpServletRequest.setAttribute("maximum" + CACHE_HIT_TIME_SUFFIX, hitTimes.getMaximum());
+            httpServletRequest.setAttribute("average" + CACHE_HIT_TIME_SUFFIX, hitTimes.getAverage());
+
+            for (int percentile : PERCENTILES) {
+                httpServletRequest.setAttribute("percentile" + percentile + CACHE_HIT_TIME_SUFFIX,
+                        hitTimes.getValueAtPercentile(percentile));
+            }
+        }
+
+        if (recordDispatchSegments) {
+
+            final Map<String, List<SpecificResponseMetrics.DispatchSegment>> dispatchSegments = new HashMap<>();
+
+            for (Map.Entry<String, SpecificResponseMetrics> entry :
+                    currentMetricsSnapshot.getResponseMetrics().entrySet()) {
+
+                final List<SpecificResponseMetrics.DispatchSegment> specificDispatchSegments =
+                        entry.getValue().getDispatchSegments();
+
+                if (!specificDispatchSegments.isEmpty()) {
+                    dispatchSegments.put(entry.getKey(), specificDispatchSegments);
+                }
+            }
+
+            httpServletRequest.setAttribute(DISPATCH_SEGMENTS, dispatchSegments);
+        }
+
+        final HeavyHitters.Summary heavyHittersSummary = currentMetricsSnapshot.getHeavyHitters();
+
+        if (heavyHittersSummary != null) {
+            httpServletRequest.setAttribute(TOP_CLIENTS_BY_REQUESTS,
+                    heavyHittersSummary.getTopClients(HeavyHitters.Weight.REQUESTS));
+            httpServletRequest.setAttribute(TOP_CLIENTS_BY_BYTES,
+                    heavyHittersSummary.getTopClients(HeavyHitters.Weight.BYTES));
+            httpServletRequest.setAttribute(TOP_CLIENTS_BY_SERVER_TIME,
+                    heavyHittersSummary.getTopClients(HeavyHitters.Weight.SERVER_TIME));
+            httpServletRequest.setAttribute(HEAVY_HITTERS_ERROR_PERCENT, heavyHittersSummary.getRelativeError() * 100);
+            httpServletRequest.setAttribute(HEAVY_HITTERS_CONFIDENCE_PERCENT,
+                    (1 - heavyHittersSummary.getFailureProbability()) * 100);
+        }
+
+        final List<MetricsFilterMXBean.PathCompression> compressionByPath =
+                currentMetricsSnapshot.getCompressionByPath();
+
+        if (compressionByPath != null) {
+            httpServletRequest.setAttribute(COMPRESSION_BY_PATH, compressionByPath);
+        }
+
+        final DistinctCounts.Summary distinctCountsSummary = currentMetricsSnapshot.getDistinctCounts();
+
+        if (distinctCountsSummary != null) {
+            httpServletRequest.setAttribute(DISTINCT_CLIENTS,
+                    distinctCountsSummary.getDistinctCount(DistinctCounts.Dimension.CLIENTS));
+            httpServletRequest.setAttribute(DISTINCT_PATHS,
+                    distinctCountsSummary.getDistinctCount(DistinctCounts.Dimension.PATHS));
+            httpServletRequest.setAttribute(DISTINCT_SESSIONS,
+                    distinctCountsSummary.getDistinctCount(DistinctCounts.Dimension.SESSIONS));
+        }
+
+        final MetricsRollups.Summary metricsRollupsSummary = currentMetricsSnapshot.getRollups();
+
+        if (metricsRollupsSummary != null) {
+            httpServletRequest.setAttribute(ROLLUP_CHARTS, RollupCharts.build(metricsRollupsSummary));
+        }
+
+        httpServletRequest.setAttribute(LIVE_METRICS, metricsEventStream != null);
+
+        final long responseSize =
+                currentMetricsSnapshot.getHistogram(SpecificResponseMetrics.Metric.RESPONSE_SIZE).getSum();
+        final long transferredResponseSize =
+                currentMetricsSnapshot.getHistogram(SpecificResponseMetrics.Metric.TRANSFERRED_RESPONSE_SIZE).getSum();
+        httpServletRequest.setAttribute(COMPRESSION_RATIO,
+                (transferredResponseSize == 0) ? 1.0 : ((double) responseSize) / transferredResponseSize);
+
+        final MetricsPageRenderer currentMetricsPageRenderer = metricsPageRenderer;
+
+        if (currentMetricsPageRenderer == null) {
+            chain.doFilter(httpServletRequest, response);
+        } else {
+            currentMetricsPageRenderer.render(httpServletRequest, response);
+        }
+
+        return currentMetricsSnapshot.getVersion();
+    }
+
+    private void doFilterDispatchSegment(HttpServletRequest httpServletRequest, ServletResponse response,
+            FilterChain chain, SpecificResponseMetrics specificResponseMetrics) throws IOException, ServletException {
+
+        final DispatcherType dispatcherType = getDispatcherType(httpServletRequest);
+        final String path;
+
+        if (DispatcherType.INCLUDE.equals(dispatcherType)) {
+            path = getPath((String) httpServletRequest.getAttribute(RequestDispatcher.INCLUDE_SERVLET_PATH),
+                    (String) httpServletRequest.getAttribute(RequestDispatcher.INCLUDE_PATH_INFO));
+        } else {
+            path = getPath(httpServletRequest.getServletPath(), httpServletRequest.getPathInfo());
+        }
+
+        final SpecificResponseMetrics.DispatchSegment dispatchSegment =
+                specificResponseMetrics.startDispatchSegment(dispatcherType, path);
+        final long startTime = System.nanoTime();
+
+        try {
+            chain.doFilter(httpServletRequest, response);
+        } finally {
+            dispatchSegment.finish(System.nanoTime() - startTime);
+        }
+    }
+
+    private void recordMetrics(MeasuredRequest measuredRequest) {
+
+        final long serviceTime = System.nanoTime() - measuredRequest.startTime;
+
+        // The limit adapts to the latency of the work it admits, which doesn't include the time spent queued before it.
+        if (measuredRequest.concurrencyLimiter != null) {
+            measuredRequest.concurrencyLimiter.release(serviceTime);
+        }
+
+        final ResponseSizeHttpServletResponseWrapper httpServletResponse = measuredRequest.httpServletResponse;
+        final long responseSize = httpServletResponse.getResponseSize();
+        final long transferredResponseSize = httpServletResponse.getTransferredResponseSize();
+        final long headerSize = httpServletResponse.getHeaderSize();
+        final long networkBlockedTime = httpServletResponse.getNetworkBlockedTime();
+        final long clientThroughput = httpServletResponse.getClientThroughput();
+        final long[] metrics = new long[SpecificResponseMetrics.METRIC_COUNT];
+        metrics[SpecificResponseMetrics.Metric.RESPONSE_TIME.getIndex()] = serviceTime + measuredRequest.queueTime;
+        metrics[SpecificResponseMetrics.Metric.RESPONSE_SIZE.getIndex()] = responseSize;
+        metrics[SpecificResponseMetrics.Metric.TRANSFERRED_RESPONSE_SIZE.getIndex()] = transferredResponseSize;
+        metrics[SpecificResponseMetrics.Metric.CPU_TIME.getIndex()] = measuredRequest.cpuTime;
+        metrics[SpecificResponseMetrics.Metric.ALLOCATED_BYTES.getIndex()] = measuredRequest.allocatedBytes;
+        metrics[SpecificResponseMetrics.Metric.HEADER_SIZE.getIndex()] = headerSize;
+        metrics[SpecificResponseMetrics.Metric.NETWORK_BLOCKED_TIME.getIndex()] = networkBlockedTime;
+        metrics[SpecificResponseMetrics.Metric.CLIENT_THROUGHPUT.getIndex()] = clientThroughput;
+
+        // Metrics which aren't measured are left out of the histograms (rather than recorded as zero). Network blocking
+        // is only measured for responses that sent bytes through timed writes or flushes.
+        final Long[] recordedMetrics = new Long[SpecificResponseMetrics.METRIC_COUNT];
+
+        for (int i = 0; i < recordedMetrics.length; i++) {
+            recordedMetrics[i] = metrics[i];
+        }
+
+        final ThreadResourceUsageSampler resourceUsageSampler = threadResourceUsageSampler;
+
+        if (resourceUsageSampler == null || !resourceUsageSampler.isCpuTimeSupported()) {
+            recordedMetrics[SpecificResponseMetrics.Metric.CPU_TIME.getIndex()] = null;
+        }
+
+        if (resourceUsageSampler == null || !resourceUsageSampler.isAllocatedBytesSupported()) {
+            recordedMetrics[SpecificResponseMetrics.Metric.ALLOCATED_BYTES.getIndex()] = null;
+        }
+
+        if (!httpServletResponse.isNetworkBlockingTimed()) {
+            recordedMetrics[SpecificResponseMetrics.Metric.NETWORK_BLOCKED_TIME.getIndex()] = null;
+        }
+
+        if (!httpServletResponse.isNetworkBlockingTimed() || networkBlockedTime <= 0) {
+            recordedMetrics[SpecificResponseMetrics.Metric.CLIENT_THROUGHPUT.getIndex()] = null;
+        }
+
+        // Record the metrics before adding them to the response history so that every completed response in a
+        // snapshot's history is also included in the snapshot's histograms.
+        final List<Long> recordedMetricsList = Arrays.asList(recordedMetrics);
+        responseMetricsRecorder.record(recordedMetricsList);
+
+        final MetricsIntervals currentMetricsIntervals = metricsIntervals;
+
+        if (currentMetricsIntervals != null) {
+            currentMetricsIntervals.record(recordedMetricsList);
+        }
+
+        final SpecificResponseMetrics specificResponseMetrics = measuredRequest.specificResponseMetrics;
+        final String uniqueResponseId = measuredRequest.uniqueResponseId;
+        final String path = measuredRequest.path;
+        specificResponseMetrics.setMetrics(metrics);
+
+        final ResponseHistoryIndex currentResponseHistoryIndex = responseHistoryIndex;
+
+        if (currentResponseHistoryIndex != null && path != null) {
+            currentResponseHistoryIndex.add(uniqueResponseId, path, specificResponseMetrics,
+                    System.currentTimeMillis());
+        }
+
+        final ResponseCompression currentResponseCompression = responseCompression;
+
+        if (currentResponseCompression != null && path != null) {
+            currentResponseCompression.record(path, responseSize, transferredResponseSize);
+        }
+
+        final HeavyHitters currentHeavyHitters = heavyHitters;
+
+        if (currentHeavyHitters != null && measuredRequest.client != null) {
+            currentHeavyHitters.record(measuredRequest.client, transferredResponseSize + headerSize, serviceTime);
+        }
+
+        final Map.Entry<String, SpecificResponseMetrics> evictedEntry =
+                responseHistory.add(uniqueResponseId, specificResponseMetrics);
+
+        // The ids of responses which leave the response history are released so that memory does not grow with the
+        // number of responses (the histograms and rollups are the long-term record of the metrics).
+        if (evictedEntry != null && reserveUniqueResponseIds) {
+            responseMetrics.remove(evictedEntry.getKey(), evictedEntry.getValue());
+        }
+
+        // The count is incremented last so that a snapshot built after it changes includes everything above.
+        recordedResponseCount.increment();
+    }
+
+    /**
+     * @return the value of the configured client header or the client's IP address if the header is not configured or
+     * not sent.
+     */
+    private String getClient(HttpServletRequest httpServletRequest) {
+
+        if (heavyHittersClientHeader != null) {
+
+            final String client = httpServletRequest.getHeader(heavyHittersClientHeader);
+
+            if (client != null && !client.isEmpty()) {
+                return client;
+            }
+        }
+
+        final String remoteAddress = httpServletRequest.getRemoteAddr();
+
+        return (remoteAddress == null) ? "unknown" : remoteAddress;
+    }
+
+    /**
+     * @return true if the request path is matched by the included paths (or no included paths are configured) and is
+     * not matched by the excluded paths.
+     */
+    private boolean isMeasured(HttpServletRequest httpServletRequest, String servletPath) {
+
+        if (includedPaths == null && excludedPaths == null) {
+            return true;
+        }
+
+        // The servlet path and path info are matched separately so that excluded requests never allocate a path.
+        final String pathInfo = httpServletRequest.getPathInfo();
+
+        return (includedPaths == null || includedPaths.matches(servletPath, pathInfo)) &&
+                (excludedPaths == null || !excludedPaths.matches(servletPath, pathInfo));
+    }
+
+    private static String getPath(String servletPath, String pathInfo) {
+
+        final String path = (servletPath == null) ? "" : servletPath;
+
+        if (pathInfo != null) {
+            return path + pathInfo;
+        }
+
+        return path;
+    }
+
+    /**
+     * @return the dispatcher type of the request or {@link DispatcherType#REQUEST} if the container did not provide
+     * one.
+     */
+    private static DispatcherType getDispatcherType(ServletRequest request) {
+
+        final DispatcherType dispatcherType = request.getDispatcherType();
+
+        if (dispatcherType == null) {
+            return DispatcherType.REQUEST;
+        }
+
+        return dispatcherType;
+    }
+
+    private void registerMXBean(FilterConfig filterConfig) {
+
+        final ServletContext servletContext = filterConfig.getServletContext();
+        final String contextPath = (servletContext == null) ? null : servletContext.getContextPath();
+        final String filterName = filterConfig.getFilterName();
+        final String baseObjectName = MetricsFilterMXBean.DOMAIN + ":type=" + MetricsFilter.class.getSimpleName() +
+                ",context=" + ObjectName.quote((contextPath == null || contextPath.isEmpty()) ? "/" : contextPath) +
+                ",name=" + ObjectName.quote((filterName == null) ? MetricsFilter.class.getName() : filterName);
+        final MBeanServer mBeanServer = ManagementFactory.getPlatformMBeanServer();
+        final MetricsFilterMXBean metricsFilterMXBean =
+                new MetricsFilterMXBeanImpl(this::getMetricsSnapshot, this::resetMetrics, concurrencyLimiter,
+                        metricsIntervals);
+
+        try {
+
+            ObjectName objectName = new ObjectName(baseObjectName);
+
+            // Several instances of the same filter (for example in tests) are distinguished by their identity.
+            if (mBeanServer.isRegistered(objectName)) {
+                objectName = new ObjectName(baseObjectName + ",instance=" +
+                        Integer.toHexString(System.identityHashCode(this)));
+            }
+
+            mxBeanObjectName = mBeanServer.registerMBean(metricsFilterMXBean, objectName).getObjectName();
+        } catch (JMException | SecurityException e) {
+            logger.log(Level.WARNING, "Failed to register the " + MetricsFilterMXBean.class.getSimpleName() +
+                    " for " + baseObjectName + ".", e);
+        }
+    }
+
+    private void unregisterMXBean() {
+
+        if (mxBeanObjectName == null) {
+            return;
+        }
+
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(mxBeanObjectName);
+        } catch (JMException | SecurityException e) {
+            logger.log(Level.WARNING, "Failed to unregister " + mxBeanObjectName + ".", e);
+        }
+
+        mxBeanObjectName = null;
+    }
+
+    private void publishMetricsSnapshot() {
+
+        try {
+            refreshMetricsSnapshot();
+        } catch (RuntimeException e) {
+            logger.log(Level.WARNING, "Failed to publish metrics snapshot.", e);
+        }
+    }
+
+    /**
+     * Calculates the time a request spent queued (for example in a load balancer or in the container's accept queue)
+     * before it reached the filter from a request start header set by a front proxy. The header value may be prefixed
+     * with {@code "t="} and may either be a number of seconds since the epoch with a fractional part (such as nginx's
+     * {@code $msec}) or an integer number of seconds, milliseconds, microseconds, or nanoseconds since the epoch (the
+     * unit is inferred from the magnitude). Queue times longer than the maximum are treated as invalid, since they are
+     * far more likely to come from a stale, forged, or mis-scaled header than from a request that actually queued that
+     * long.
+     *
+     * @param requestStart the value of the request start header (or null).
+     * @param nowMillis the current time in milliseconds since the epoch.
+     * @param maximumQueueTimeMillis the longest queue time that is accepted.
+     * @return the queue time in nanoseconds or zero if the header is missing, invalid, not positive, in the future (due
+     * to clock skew), or longer than the maximum.
+     */
+    static long getQueueTime(String requestStart, long nowMillis, long maximumQueueTimeMillis) {
+
+        if (requestStart == null) {
+            return 0;
+        }
+
+        String value = requestStart.trim();
+
+        if (value.startsWith("t=")) {
+            value = value.substring("t=".length());
+        }
+
+        final long requestStartMicros;
+
+        try {
+
+            final int decimalPoint = value.indexOf('.');
+
+            if (decimalPoint >= 0) {
+
+                final String fraction = (value.substring(decimalPoint + 1) + "000000").substring(0, 6);
+                requestStartMicros = TimeUnit.SECONDS.toMicros(Long.parseLong(value.substring(0, decimalPoint))) +
+                        Long.parseLong(fraction);
+            } else {
+
+                final long timestamp = Long.parseLong(value);
+
+                if (timestamp < 100_000_000_000L) {
+                    requestStartMicros = TimeUnit.SECONDS.toMicros(timestamp);
+                } else if (timestamp < 100_000_000_000_000L) {
+                    requestStartMicros = TimeUnit.MILLISECONDS.toMicros(timestamp);
+                } else if (timestamp < 100_000_000_000_000_000L) {
+                    requestStartMicros = timestamp;
+                } else {
+                    requestStartMicros = TimeUnit.NANOSECONDS.toMicros(timestamp);
+                }
+            }
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+
+        if (requestStartMicros <= 0) {
+            return 0;
+        }
+
+        final long queueTimeMicros = TimeUnit.MILLISECONDS.toMicros(nowMillis) - requestStartMicros;
+
+        if (queueTimeMicros <= 0 || queueTimeMicros > TimeUnit.MILLISECONDS.toMicros(maximumQueueTimeMillis)) {
+            return 0;
+        }
+
+        return TimeUnit.MICROSECONDS.toNanos(queueTimeMicros);
+    }
+
+    /**
+     * @param useUUID true if ids should be random {@link UUID}s.
+     * @param usePerThreadIds true if ids should be generated from per-thread stripe counters (ignored if
+     * {@code useUUID} is true).
+     * @return a new thread-safe factory of unique response ids.
+     */
+    static Supplier<String> newUniqueResponseIdFactory(boolean useUUID, boolean usePerThreadIds) {
+
+        if (useUUID) {
+            return () -> {
+                return UUID.randomUUID().toString();
+            };
+        } else if (usePerThreadIds) {
+            return new Supplier<String>() {
+
+                // Each stripe's counter is padded onto its own cache line. Stripe s generates the ids
+                // s + 1, s + 1 + STRIPE_COUNT, s + 1 + (2 * STRIPE_COUNT), etc. so ids never collide across stripes.
+                private static final int COUNTER_STRIDE = 8;
+                private final AtomicLongArray stripeCounters =
+                        new AtomicLongArray((PerThreadResponseMetricsRecorder.STRIPE_COUNT + 1) * COUNTER_STRIDE);
+
+                @Override
+                public String get() {
+
+                    final int stripe = PerThreadResponseMetricsRecorder.getCurrentThreadStripe();
+                    final long count = stripeCounters.getAndIncrement((stripe + 1) * COUNTER_STRIDE);
+
+                    return Long.toString((count * PerThreadResponseMetricsRecorder.STRIPE_COUNT) + stripe + 1);
+                }
+            };
+        } else {
+            return new Supplier<String>() {
+                private final AtomicLong uniqueResponseId = new AtomicLong();
+
+                @Override
+                public String get() {
+                    return Long.toString(uniqueResponseId.incrementAndGet());
+                }
+            };
+        }
+    }
+
+    private static long getNonNegativeLongInitParameter(FilterConfig filterConfig, String name, long defaultValue)
+            throws ServletException {
+
+        final String value = filterConfig.getInitParameter(name);
+
+        if (value == null || value.trim().isEmpty()) {
+            return defaultValue;
+        }
+
+        final long longValue;
+
+        try {
+            longValue = Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            throw new ServletException("Invalid value \"" + value + "\" for init-param " + name + ".", e);
+        }
+
+        if (longValue < 0) {
+            throw new ServletException("Invalid value \"" + value + "\" for init-param " + name +
+                    ". The value must not be negative.");
+        }
+
+        return longValue;
     }
 
     private void setMetricsAttributes(SpecificResponseMetrics.Metric metric, HttpServletRequest httpServletRequest,
-            Collection<SpecificResponseMetrics> metrics) {
+            MetricsHistogram histogram) {
+
+        httpServletRequest.setAttribute(metric.getMinId(), histogram.getMinimum());
+        httpServletRequest.setAttribute(metric.getMaxId(), histogram.getMaximum());
+        httpServletRequest.setAttribute(metric.getAverageId(), histogram.getAverage());
+
+        for (int percentile : PERCENTILES) {
+            httpServletRequest.setAttribute(metric.getPercentileId(percentile),
+                    histogram.getValueAtPercentile(percentile));
+        }
+    }
+
+    /**
+     * The state of a measured request that is needed to record its metrics once its response is complete. The state is
+     * set by the request thread before the response completes, and it is shared with the {@link
+     * MeasureResponseAsyncListener} if the request is put into asynchronous mode.
+     */
+    private static final class MeasuredRequest {
+
+        /**
+         * The limiter that the request acquired a permit from (or null).
+         */
+        private final AdaptiveConcurrencyLimiter concurrencyLimiter;
+        private ResponseSizeHttpServletResponseWrapper httpServletResponse;
+        private SpecificResponseMetrics specificResponseMetrics;
+        private String uniqueResponseId;
+
+        /**
+         * The path to index the response history entry and to total the response sizes under (or null if the response
+         * history is not indexed and responses are not compressed).
+         */
+        private String path;
+
+        /**
+         * The client to record as a potential heavy hitter (or null if heavy hitters are not tracked).
+         */
+        private String client;
 
-        long min = 0;
-        long max = 0;
-        double average = 0.0;
+        /**
+         * The time in nanoseconds that the request was queued before it reached the filter (or zero).
+         */
+        private long queueTime;
+        private long startTime;
 
-        if (!metrics.isEmpty()) {
-            final LongSummaryStatistics stats =
-                    metrics.stream().collect(Collectors.summarizingLong((specificResponseMetrics) -> {
-                        return specificResponseMetrics.get(metric.getIndex());
-                    }));
+        /**
+         * The CPU time of the initial dispatch (CPU time spent on other threads during asynchronous processing is not
+         * measured).
+         */
+        private long cpuTime;
 
-            min = stats.getMin();
-            max = stats.getMax();
-            average = stats.getAverage();
+        /**
+         * The bytes allocated by the initial dispatch (bytes allocated by other threads during asynchronous processing
+         * are not measured).
+         */
+        private long allocatedBytes;
+
+        private MeasuredRequest(AdaptiveConcurrencyLimiter concurrencyLimiter) {
+            this.concurrencyLimiter = concurrencyLimiter;
+        }
+    }
+
+    /**
+     * Finishes the (possibly compressed) response of a request that was put into asynchronous mode and records its
+     * metrics once the asynchronous processing is done, so that the response time and size include the time and bytes
+     * of the asynchronous processing.
+     */
+    private final class MeasureResponseAsyncListener implements AsyncListener {
+
+        private final MeasuredRequest measuredRequest;
+
+        private MeasureResponseAsyncListener(MeasuredRequest measuredRequest) {
+            this.measuredRequest = measuredRequest;
         }
 
-        httpServletRequest.setAttribute(metric.getMinId(), min);
-        httpServletRequest.setAttribute(metric.getMaxId(), max);
-        httpServletRequest.setAttribute(metric.getAverageId(), average);
+        @Override
+        public void onComplete(AsyncEvent event) throws IOException {
+
+            try {
+                measuredRequest.httpServletResponse.finishResponse();
+            } finally {
+                measuredRequest.httpServletResponse.releaseResources();
+                recordMetrics(measuredRequest);
+            }
+        }
+
+        @Override
+        public void onTimeout(AsyncEvent event) throws IOException {
+            // Nothing to do until the request is completed.
+        }
+
+        @Override
+        public void onError(AsyncEvent event) throws IOException {
+            measuredRequest.httpServletResponse.releaseResources();
+        }
+
+        @Override
+        public void onStartAsync(AsyncEvent event) throws IOException {
+            event.getAsyncContext().addListener(this, event.getSuppliedRequest(), event.getSuppliedResponse());
+        }
     }
 }
@@ -0,0 +1,433 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2019 Kyle Stiemann.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.github.stiemannkj1.servlet.filter.example;
+
+import java.beans.ConstructorProperties;
+import java.util.Map;
+
+/**
+ * The JMX management interface of a {@link MetricsFilter} instance. Each MetricsFilter registers an MXBean with the
+ * platform MBeanServer under the {@value #DOMAIN} domain when it is initialized and unregisters it when it is
+ * destroyed. All attributes are served from the most recently published metrics snapshot, so polling them never
+ * touches the structures that requests record into. This interface is public because JMX requires it.
+ *
+ * @author Kyle Stiemann
+ */
+public interface MetricsFilterMXBean {
+
+    String DOMAIN = "com.github.stiemannkj1.servlet.filter.example";
+
+    /**
+     * @return the number of measured responses.
+     */
+    long getResponseCount();
+
+    /**
+     * @return the number of responses that were excluded from measurement.
+     */
+    long getExcludedResponseCount();
+
+    /**
+     * @return the number of measured responses per second in the window between the two most recent snapshots.
+     */
+    double getResponsesPerSecond();
+
+    /**
+     * @return the current adaptive concurrency limit or zero if the concurrency limit is disabled. Unlike the other
+     * attributes, the concurrency attributes are read live (which is just as cheap since they are single counters).
+     */
+    int getConcurrencyLimit();
+
+    /**
+     * @return the number of requests holding a concurrency permit or zero if the concurrency limit is disabled.
+     */
+    int getInFlightRequestCount();
+
+    /**
+     * @return the number of requests rejected by the concurrency limit.
+     */
+    long getRejectedResponseCount();
+
+    /**
+     * @return the sequence of the snapshot that the attributes are served from.
+     */
+    long getSnapshotSequence();
+
+    /**
+     * @return the time that the snapshot that the attributes are served from was built in milliseconds since the
+     * epoch.
+     */
+    long getSnapshotTimestampMillis();
+
+    /**
+     * @return the statistics of the response times in nanoseconds. The count is the number of responses even if
+     * back-filled response times are recorded (see {@link MetricsHistogram#recordWithExpectedInterval(long, long)}).
+     */
+    MetricStatistics getResponseTime();
+
+    /**
+     * @return the statistics of the response sizes in bytes.
+     */
+    MetricStatistics getResponseSize();
+
+    /**
+     * @return the statistics of the transferred (possibly compressed) response sizes in bytes.
+     */
+    MetricStatistics getTransferredResponseSize();
+
+    /**
+     * @return the statistics of the CPU time of the request threads in nanoseconds (all zero unless resource usage is
+     * measured).
+     */
+    MetricStatistics getCpuTime();
+
+    /**
+     * @return the statistics of the heap bytes allocated by the request threads (all zero unless resource usage is
+     * measured).
+     */
+    MetricStatistics getAllocatedBytes();
+
+    /**
+     * @return the statistics of the size of the status lines and the headers of the responses.
+     */
+    MetricStatistics getHeaderSize();
+
+    /**
+     * @return the statistics of the time in nanoseconds that writes of the response bodies were blocked on the network
+     * (all zero unless network blocking is measured).
+     */
+    MetricStatistics getNetworkBlockedTime();
+
+    /**
+     * @return the statistics of the bytes per second that the clients received the response bodies at while writes
+     * were blocked (all zero unless network blocking is measured).
+     */
+    MetricStatistics getClientThroughput();
+
+    /**
+     * @return the clients with the most requests in descending order (empty unless heavy hitters are tracked).
+     */
+    HeavyHitter[] getTopClientsByRequests();
+
+    /**
+     * @return the clients with the most transferred bytes (including headers) in descending order (empty unless heavy
+     * hitters are tracked).
+     */
+    HeavyHitter[] getTopClientsByBytes();
+
+    /**
+     * @return the clients with the most server time in nanoseconds in descending order (empty unless heavy hitters are
+     * tracked).
+     */
+    HeavyHitter[] getTopClientsByServerTime();
+
+    /**
+     * @return the estimated number of distinct client IP addresses in the last hour (or null unless distinct counts are
+     * tracked).
+     */
+    DistinctCount getDistinctClients();
+
+    /**
+     * @return the estimated number of distinct request URIs in the last hour (or null unless distinct counts are
+     * tracked).
+     */
+    DistinctCount getDistinctPaths();
+
+    /**
+     * @return the estimated number of distinct sessions in the last hour (or null unless distinct counts are tracked).
+     */
+    DistinctCount getDistinctSessions();
+
+    /**
+     * @return the response and transferred sizes of each tracked path ordered by response size (largest first) which
+     * show how well each path's responses compress (empty unless responses are compressed).
+     */
+    PathCompression[] getCompressionByPath();
+
+    /**
+     * Removes all recorded metrics and the response history and publishes a new (empty) snapshot.
+     */
+    void reset();
+
+    /**
+     * Atomically retires everything recorded since the consumer's previous call and returns it. Each consumer has its
+     * own cursor, so several delta-based collectors can take intervals independently without losing or double
+     * counting a response. The consumer's first call opens its cursor and returns an empty interval.
+     *
+     * @param consumer the name of the collector.
+     * @return the metrics recorded since the consumer's previous call (or null unless intervals are recorded).
+     * @throws IllegalStateException if the consumer has no open cursor and the maximum number of cursors is open.
+     */
+    Interval takeInterval(String consumer);
+
+    /**
+     * Closes the consumer's interval cursor (if it is open) so that it stops accumulating metrics.
+     */
+    void closeInterval(String consumer);
+
+    /**
+     * The aggregates, percentiles, and windowed rate of a single metric.
+     */
+    final class MetricStatistics {
+
+        private final long count;
+        private final long minimum;
+        private final long maximum;
+        private final double average;
+        private final long percentile50;
+        private final long percentile90;
+        private final long percentile99;
+        private final double ratePerSecond;
+
+        @ConstructorProperties({ "count", "minimum", "maximum", "average", "percentile50", "percentile90",
+                "percentile99", "ratePerSecond" })
+        public MetricStatistics(long count, long minimum, long maximum, double average, long percentile50,
+                long percentile90, long percentile99, double ratePerSecond) {
+            this.count = count;
+            this.minimum = minimum;
+            this.maximum = maximum;
+            this.average = average;
+            this.percentile50 = percentile50;
+            this.percentile90 = percentile90;
+            this.percentile99 = percentile99;
+            this.ratePerSecond = ratePerSecond;
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        public long getMinimum() {
+            return minimum;
+        }
+
+        public long getMaximum() {
+            return maximum;
+        }
+
+        public double getAverage() {
+            return average;
+        }
+
+        public long getPercentile50() {
+            return percentile50;
+        }
+
+        public long getPercentile90() {
+            return percentile90;
+        }
+
+        public long getPercentile99() {
+            return percentile99;
+        }
+
+        /**
+         * @return the sum of the metric's values per second (for example bytes per second for response sizes) in the
+         * window between the two most recent snapshots.
+         */
+        public double getRatePerSecond() {
+            return ratePerSecond;
+        }
+    }
+
+    /**
+     * The metrics recorded in one interval of a consumer (see {@link #takeInterval(java.lang.String)}).
+     */
+    final class Interval {
+
+        private final long sequence;
+        private final long startMillis;
+        private final long endMillis;
+        private final long responseCount;
+        private final long excludedResponseCount;
+        private final Map<String, MetricStatistics> metrics;
+
+        @ConstructorProperties({ "sequence", "startMillis", "endMillis", "responseCount", "excludedResponseCount",
+                "metrics" })
+        public Interval(long sequence, long startMillis, long endMillis, long responseCount, long excludedResponseCount,
+                Map<String, MetricStatistics> metrics) {
+            this.sequence = sequence;
+            this.startMillis = startMillis;
+            this.endMillis = endMillis;
+            this.responseCount = responseCount;
+            this.excludedResponseCount = excludedResponseCount;
+            this.metrics = metrics;
+        }
+
+        /**
+         * @return the number of intervals that the consumer took before this one.
+         */
+        public long getSequence() {
+            return sequence;
+        }
+
+        public long getStartMillis() {
+            return startMillis;
+        }
+
+        public long getEndMillis() {
+            return endMillis;
+        }
+
+        public long getResponseCount() {
+            return responseCount;
+        }
+
+        public long getExcludedResponseCount() {
+            return excludedResponseCount;
+        }
+
+        /**
+         * @return the statistics of each metric in the interval by name (for example {@code "responseTime"}). The rate
+         * per second is the sum of the metric's values divided by the length of the interval.
+         */
+        public Map<String, MetricStatistics> getMetrics() {
+            return metrics;
+        }
+    }
+
+    /**
+     * A client that accounts for a large share of a weight (requests, bytes, or server time). The client's actual
+     * weight lies between {@link #getMinimum()} and {@link #getEstimate()}.
+     */
+    final class HeavyHitter {
+
+        private final String client;
+        private final long estimate;
+        private final long minimum;
+
+        @ConstructorProperties({ "client", "estimate", "minimum" })
+        public HeavyHitter(String client, long estimate, long minimum) {
+            this.client = client;
+            this.estimate = estimate;
+            this.minimum = minimum;
+        }
+
+        /**
+         * @return the client's IP address or the value of the configured client header.
+         */
+        public String getClient() {
+            return client;
+        }
+
+        /**
+         * @return the estimated weight of the client which is never less than its actual weight.
+         */
+        public long getEstimate() {
+            return estimate;
+        }
+
+        /**
+         * @return the guaranteed minimum weight of the client.
+         */
+        public long getMinimum() {
+            return minimum;
+        }
+    }
+
+    /**
+     * The total response and transferred (possibly compressed) sizes of the responses of a path.
+     */
+    final class PathCompression {
+
+        private final String path;
+        private final long responseSize;
+        private final long transferredResponseSize;
+        private final double compressionRatio;
+
+        @ConstructorProperties({ "path", "responseSize", "transferredResponseSize", "compressionRatio" })
+        public PathCompression(String path, long responseSize, long transferredResponseSize,
+                double compressionRatio) {
+            this.path = path;
+            this.responseSize = responseSize;
+            this.transferredResponseSize = transferredResponseSize;
+            this.compressionRatio = compressionRatio;
+        }
+
+        /**
+         * @return the servlet path and path info of the responses.
+         */
+        public String getPath() {
+            return path;
+        }
+
+        /**
+         * @return the total uncompressed size of the responses in bytes.
+         */
+        public long getResponseSize() {
+            return responseSize;
+        }
+
+        /**
+         * @return the total transferred size of the responses in bytes.
+         */
+        public long getTransferredResponseSize() {
+            return transferredResponseSize;
+        }
+
+        /**
+         * @return the response size divided by the transferred response size.
+         */
+        public double getCompressionRatio() {
+            return compressionRatio;
+        }
+    }
+
+    /**
+     * An estimated number of distinct values and the HyperLogLog sketch that it was estimated from. Sketches from
+     * several servers can be merged (by taking the maximum of each register) to estimate the distinct values across
+     * all of them.
+     */
+    final class DistinctCount {
+
+        private final long estimate;
+        private final double standardError;
+        private final byte[] sketch;
+
+        @ConstructorProperties({ "estimate", "standardError", "sketch" })
+        public DistinctCount(long estimate, double standardError, byte[] sketch) {
+            this.estimate = estimate;
+            this.standardError = standardError;
+            this.sketch = sketch;
+        }
+
+        public long getEstimate() {
+            return estimate;
+        }
+
+        /**
+         * @return the relative standard error of the estimate.
+         */
+        public double getStandardError() {
+            return standardError;
+        }
+
+        /**
+         * @return the precision of the sketch followed by one byte per register (a copy).
+         */
+        public byte[] getSketch() {
+            return sketch.clone();
+        }
+    }
+}
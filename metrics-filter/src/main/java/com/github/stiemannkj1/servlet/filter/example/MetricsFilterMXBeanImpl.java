@@ -0,0 +1,289 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2019 Kyle Stiemann.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.github.stiemannkj1.servlet.filter.example;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Supplier;
+
+/**
+ * The {@link MetricsFilterMXBean} of a {@link MetricsFilter} instance. The statistics of each snapshot are calculated
+ * at most once and then reused until a newer snapshot is published. This class is thread-safe.
+ *
+ * @author Kyle Stiemann
+ */
+final class MetricsFilterMXBeanImpl implements MetricsFilterMXBean {
+
+    private final Supplier<MetricsSnapshot> metricsSnapshotSupplier;
+    private final Runnable resetAction;
+    private final AdaptiveConcurrencyLimiter concurrencyLimiter;
+    private final MetricsIntervals metricsIntervals;
+    private volatile Statistics statistics;
+
+    /**
+     * @param metricsSnapshotSupplier supplies the most recently published snapshot.
+     * @param resetAction resets the metrics of the filter.
+     * @param concurrencyLimiter the concurrency limiter of the filter (or null if the limit is disabled).
+     * @param metricsIntervals the intervals of the filter (or null if intervals are not recorded).
+     */
+    MetricsFilterMXBeanImpl(Supplier<MetricsSnapshot> metricsSnapshotSupplier, Runnable resetAction,
+            AdaptiveConcurrencyLimiter concurrencyLimiter, MetricsIntervals metricsIntervals) {
+        this.metricsSnapshotSupplier = metricsSnapshotSupplier;
+        this.resetAction = resetAction;
+        this.concurrencyLimiter = concurrencyLimiter;
+        this.metricsIntervals = metricsIntervals;
+    }
+
+    @Override
+    public long getResponseCount() {
+        return getStatistics().metricsSnapshot.getResponseCount();
+    }
+
+    @Override
+    public long getExcludedResponseCount() {
+        return getStatistics().metricsSnapshot.getExcludedResponseCount();
+    }
+
+    @Override
+    public double getResponsesPerSecond() {
+        return getStatistics().metricsSnapshot.getResponsesPerSecond();
+    }
+
+    @Override
+    public int getConcurrencyLimit() {
+        return (concurrencyLimiter == null) ? 0 : concurrencyLimiter.getLimit();
+    }
+
+    @Override
+    public int getInFlightRequestCount() {
+        return (concurrencyLimiter == null) ? 0 : concurrencyLimiter.getInFlightCount();
+    }
+
+    @Override
+    public long getRejectedResponseCount() {
+        return (concurrencyLimiter == null) ? 0 : concurrencyLimiter.getRejectedCount();
+    }
+
+    @Override
+    public long getSnapshotSequence() {
+        return getStatistics().metricsSnapshot.getSequence();
+    }
+
+    @Override
+    public long getSnapshotTimestampMillis() {
+        return getStatistics().metricsSnapshot.getTimestampMillis();
+    }
+
+    @Override
+    public MetricStatistics getResponseTime() {
+        return getMetricStatistics(SpecificResponseMetrics.Metric.RESPONSE_TIME);
+    }
+
+    @Override
+    public MetricStatistics getResponseSize() {
+        return getMetricStatistics(SpecificResponseMetrics.Metric.RESPONSE_SIZE);
+    }
+
+    @Override
+    public MetricStatistics getTransferredResponseSize() {
+        return getMetricStatistics(SpecificResponseMetrics.Metric.TRANSFERRED_RESPONSE_SIZE);
+    }
+
+    @Override
+    public MetricStatistics getCpuTime() {
+        return getMetricStatistics(SpecificResponseMetrics.Metric.CPU_TIME);
+    }
+
+    @Override
+    public MetricStatistics getAllocatedBytes() {
+        return getMetricStatistics(SpecificResponseMetrics.Metric.ALLOCATED_BYTES);
+    }
+
+    @Override
+    public MetricStatistics getHeaderSize() {
+        return getMetricStatistics(SpecificResponseMetrics.Metric.HEADER_SIZE);
+    }
+
+    @Override
+    public MetricStatistics getNetworkBlockedTime() {
+        return getMetricStatistics(SpecificResponseMetrics.Metric.NETWORK_BLOCKED_TIME);
+    }
+
+    @Override
+    public MetricStatistics getClientThroughput() {
+        return getMetricStatistics(SpecificResponseMetrics.Metric.CLIENT_THROUGHPUT);
+    }
+
+    @Override
+    public HeavyHitter[] getTopClientsByRequests() {
+        return getTopClients(HeavyHitters.Weight.REQUESTS);
+    }
+
+    @Override
+    public HeavyHitter[] getTopClientsByBytes() {
+        return getTopClients(HeavyHitters.Weight.BYTES);
+    }
+
+    @Override
+    public HeavyHitter[] getTopClientsByServerTime() {
+        return getTopClients(HeavyHitters.Weight.SERVER_TIME);
+    }
+
+    @Override
+    public DistinctCount getDistinctClients() {
+        return getDistinctCount(DistinctCounts.Dimension.CLIENTS);
+    }
+
+    @Override
+    public DistinctCount getDistinctPaths() {
+        return getDistinctCount(DistinctCounts.Dimension.PATHS);
+    }
+
+    @Override
+    public DistinctCount getDistinctSessions() {
+        return getDistinctCount(DistinctCounts.Dimension.SESSIONS);
+    }
+
+    @Override
+    public void reset() {
+        resetAction.run();
+    }
+
+    @Override
+    public PathCompression[] getCompressionByPath() {
+
+        final List<PathCompression> compressionByPath = getStatistics().metricsSnapshot.getCompressionByPath();
+
+        if (compressionByPath == null) {
+            return new PathCompression[0];
+        }
+
+        return compressionByPath.toArray(new PathCompression[0]);
+    }
+
+    private HeavyHitter[] getTopClients(HeavyHitters.Weight weight) {
+
+        final HeavyHitters.Summary heavyHitters = getStatistics().metricsSnapshot.getHeavyHitters();
+
+        if (heavyHitters == null) {
+            return new HeavyHitter[0];
+        }
+
+        return heavyHitters.getTopClients(weight).toArray(new HeavyHitter[0]);
+    }
+
+    private DistinctCount getDistinctCount(DistinctCounts.Dimension dimension) {
+
+        final DistinctCounts.Summary distinctCounts = getStatistics().metricsSnapshot.getDistinctCounts();
+
+        if (distinctCounts == null) {
+            return null;
+        }
+
+        return distinctCounts.getDistinctCount(dimension);
+    }
+
+    @Override
+    public Interval takeInterval(String consumer) {
+
+        if (metricsIntervals == null) {
+            return null;
+        }
+
+        final MetricsIntervals.Interval interval = metricsIntervals.takeInterval(consumer, System.currentTimeMillis());
+        final double intervalSeconds = Math.max(1, interval.getEndMillis() - interval.getStartMillis()) / 1000.0;
+        final Map<String, MetricStatistics> metrics = new LinkedHashMap<>();
+
+        for (SpecificResponseMetrics.Metric metric : SpecificResponseMetrics.Metric.values()) {
+            metrics.put(metric.getName(), newMetricStatistics(metric, interval.getHistogram(metric),
+                    interval.getResponseCount(), interval.getHistogram(metric).getSum() / intervalSeconds));
+        }
+
+        return new Interval(interval.getSequence(), interval.getStartMillis(), interval.getEndMillis(),
+                interval.getResponseCount(), interval.getExcludedResponseCount(), Collections.unmodifiableMap(metrics));
+    }
+
+    @Override
+    public void closeInterval(String consumer) {
+
+        if (metricsIntervals != null) {
+            metricsIntervals.closeCursor(consumer);
+        }
+    }
+
+    /**
+     * @param responseCount the number of responses that the histogram covers.
+     */
+    private static MetricStatistics newMetricStatistics(SpecificResponseMetrics.Metric metric,
+            MetricsHistogram histogram, long responseCount, double ratePerSecond) {
+
+        // Response times may include back-filled values (see MetricsHistogram#recordWithExpectedInterval()), so their
+        // count is the number of responses rather than the number of values.
+        final long count =
+                (metric == SpecificResponseMetrics.Metric.RESPONSE_TIME) ? responseCount : histogram.getCount();
+        return new MetricStatistics(count, histogram.getMinimum(), histogram.getMaximum(),
+                histogram.getAverage(), histogram.getValueAtPercentile(50), histogram.getValueAtPercentile(90),
+                histogram.getValueAtPercentile(99), ratePerSecond);
+    }
+
+    private MetricStatistics getMetricStatistics(SpecificResponseMetrics.Metric metric) {
+        return getStatistics().metricStatistics[metric.getIndex()];
+    }
+
+    private Statistics getStatistics() {
+
+        final MetricsSnapshot metricsSnapshot = metricsSnapshotSupplier.get();
+        Statistics currentStatistics = statistics;
+
+        if (currentStatistics == null || currentStatistics.metricsSnapshot != metricsSnapshot) {
+
+            currentStatistics = new Statistics(metricsSnapshot);
+            statistics = currentStatistics;
+        }
+
+        return currentStatistics;
+    }
+
+    private static final class Statistics {
+
+        private final MetricsSnapshot metricsSnapshot;
+        private final MetricStatistics[] metricStatistics;
+
+        private Statistics(MetricsSnapshot metricsSnapshot) {
+
+            this.metricsSnapshot = metricsSnapshot;
+
+            final SpecificResponseMetrics.Metric[] metrics = SpecificResponseMetrics.Metric.values();
+            metricStatistics = new MetricStatistics[metrics.length];
+
+            for (SpecificResponseMetrics.Metric metric : metrics) {
+
+                metricStatistics[metric.getIndex()] = newMetricStatistics(metric, metricsSnapshot.getHistogram(metric),
+                        metricsSnapshot.getResponseCount(), metricsSnapshot.getRatePerSecond(metric));
+            }
+        }
+    }
+}
@@ -0,0 +1,386 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2019 Kyle Stiemann.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.github.stiemannkj1.servlet.filter.example;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * <p>
+ * A fixed-size, log-linear histogram of non-negative {@code long} values. Each power of two is split into {@value
+ * #SUB_BUCKET_COUNT} linear sub-buckets, so any recorded value can be reported with a relative error of at most
+ * {@code 1/}{@value #SUB_BUCKET_COUNT}. The count, sum, minimum, and maximum are tracked exactly so that aggregates
+ * derived from the histogram do not suffer from bucketing error.</p>
+ *
+ * <p>
+ * Recording is lock-free and thread-safe. Reads are not atomic with respect to concurrent recording, so a copy made
+ * while values are being recorded may include part of a concurrently recorded value (for example the count but not yet
+ * the sum). Copies are never mutated once they are published to readers.</p>
+ *
+ * @author Kyle Stiemann
+ */
+final class MetricsHistogram {
+
+    private static final int SUB_BUCKET_BITS = 5;
+    private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+    private static final int BUCKET_COUNT = ((Long.SIZE - 1) - SUB_BUCKET_BITS + 1) * SUB_BUCKET_COUNT;
+    static final long MAXIMUM_BACK_FILLED_VALUE_COUNT = 100_000;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKET_COUNT);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong sum = new AtomicLong();
+    private final AtomicLong minimum = new AtomicLong(Long.MAX_VALUE);
+    private final AtomicLong maximum = new AtomicLong(Long.MIN_VALUE);
+
+    /**
+     * Records a single value. Negative values are recorded as zero.
+     */
+    void record(long value) {
+
+        if (value < 0) {
+            value = 0;
+        }
+
+        counts.incrementAndGet(getBucketIndex(value));
+        sum.addAndGet(value);
+        count.incrementAndGet();
+        updateMinimum(value);
+        updateMaximum(value);
+    }
+
+    /**
+     * Records a single value and corrects for coordinated omission. If the value is larger than the expected interval
+     * between values, the values that the samples delayed by it would have had ({@code value - expectedInterval},
+     * {@code value - 2 * expectedInterval}, and so on down to {@code expectedInterval}) are back-filled as well. The
+     * back-filled values are added one bucket at a time, so the cost depends on the number of buckets they span rather
+     * than on the number of missing samples. At most {@value #MAXIMUM_BACK_FILLED_VALUE_COUNT} of the largest missing
+     * values are back-filled for a single value, and the back-fill is dropped entirely if it would overflow the sum, so
+     * a single pathological value can't swamp the histogram.
+     *
+     * @param expectedInterval the expected interval between values or zero to disable the correction.
+     */
+    void recordWithExpectedInterval(long value, long expectedInterval) {
+
+        record(value);
+
+        if (expectedInterval <= 0 || value <= expectedInterval) {
+            return;
+        }
+
+        final long missingSum;
+
+        try {
+            missingSum = backFill(value, expectedInterval, false);
+        } catch (ArithmeticException e) {
+            return;
+        }
+
+        if (missingSum > Long.MAX_VALUE - sum.get()) {
+            return;
+        }
+
+        backFill(value, expectedInterval, true);
+        sum.addAndGet(missingSum);
+    }
+
+    /**
+     * Calculates (and optionally adds) the values that are back-filled for a value.
+     *
+     * @param apply true if the back-filled values should be added to the buckets, count, and minimum.
+     * @return the sum of the back-filled values.
+     * @throws ArithmeticException if the sum overflows.
+     */
+    private long backFill(long value, long expectedInterval, boolean apply) {
+
+        long missingValue = value - expectedInterval;
+        long missingCount = 0;
+        long missingSum = 0;
+
+        while (missingValue >= expectedInterval && missingCount < MAXIMUM_BACK_FILLED_VALUE_COUNT) {
+
+            final int bucketIndex = getBucketIndex(missingValue);
+            final long bucketMinimum = Math.max(getLowestEquivalentValue(bucketIndex), expectedInterval);
+            final long bucketCount = Math.min(((missingValue - bucketMinimum) / expectedInterval) + 1,
+                    MAXIMUM_BACK_FILLED_VALUE_COUNT - missingCount);
+
+            if (apply) {
+                counts.addAndGet(bucketIndex, bucketCount);
+            }
+
+            missingCount += bucketCount;
+            missingSum = Math.addExact(missingSum, Math.subtractExact(Math.multiplyExact(bucketCount, missingValue),
+                    Math.multiplyExact(expectedInterval, (bucketCount * (bucketCount - 1)) / 2)));
+            missingValue -= bucketCount * expectedInterval;
+        }
+
+        if (apply) {
+            count.addAndGet(missingCount);
+            updateMinimum(missingValue + expectedInterval);
+        }
+
+        return missingSum;
+    }
+
+    /**
+     * Adds all values recorded in the other histogram to this histogram.
+     */
+    void add(MetricsHistogram other) {
+
+        final long otherCount = other.getCount();
+
+        if (otherCount == 0) {
+            return;
+        }
+
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+
+            final long bucketCount = other.counts.get(i);
+
+            if (bucketCount != 0) {
+                counts.addAndGet(i, bucketCount);
+            }
+        }
+
+        sum.addAndGet(other.getSum());
+        count.addAndGet(otherCount);
+        updateMinimum(other.minimum.get());
+        updateMaximum(other.maximum.get());
+    }
+
+    /**
+     * @return a copy of this histogram.
+     */
+    MetricsHistogram copy() {
+        final MetricsHistogram copy = new MetricsHistogram();
+        copy.add(this);
+        return copy;
+    }
+
+    /**
+     * @param previous a copy of this histogram made earlier (or null).
+     * @return a new histogram containing only the values that were recorded after the previous copy was made. If this
+     * histogram was reset after the previous copy was made, a copy of this histogram is returned instead. The count
+     * and sum of the interval are exact, but its minimum and maximum are the bounds of its lowest and highest non-empty
+     * buckets (clamped to the exact minimum and maximum of this histogram).
+     */
+    MetricsHistogram getIntervalSince(MetricsHistogram previous) {
+
+        if (previous == null || previous.getCount() > getCount() || previous.getSum() > getSum()) {
+            return copy();
+        }
+
+        final MetricsHistogram interval = new MetricsHistogram();
+        int lowestBucketIndex = -1;
+        int highestBucketIndex = -1;
+
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+
+            final long bucketCount = counts.get(i) - previous.counts.get(i);
+
+            if (bucketCount < 0) {
+                return copy();
+            }
+
+            if (bucketCount > 0) {
+
+                interval.counts.set(i, bucketCount);
+                highestBucketIndex = i;
+
+                if (lowestBucketIndex < 0) {
+                    lowestBucketIndex = i;
+                }
+            }
+        }
+
+        interval.count.set(getCount() - previous.getCount());
+        interval.sum.set(getSum() - previous.getSum());
+
+        if (lowestBucketIndex >= 0) {
+            interval.minimum.set(Math.max(getLowestEquivalentValue(lowestBucketIndex), getMinimum()));
+            interval.maximum.set(Math.min(getHighestEquivalentValue(highestBucketIndex), getMaximum()));
+        } else {
+
+            // The copies may have been made while a value was being recorded.
+            interval.minimum.set(0);
+            interval.maximum.set(0);
+        }
+
+        return interval;
+    }
+
+    /**
+     * Removes all recorded values.
+     */
+    void reset() {
+
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            counts.set(i, 0);
+        }
+
+        sum.set(0);
+        count.set(0);
+        minimum.set(Long.MAX_VALUE);
+        maximum.set(Long.MIN_VALUE);
+    }
+
+    /**
+     * @return the total number of recorded values.
+     */
+    long getCount() {
+        return count.get();
+    }
+
+    /**
+     * @return the sum of all recorded values.
+     */
+    long getSum() {
+        return sum.get();
+    }
+
+    /**
+     * @return the minimum recorded value or zero if no values have been recorded.
+     */
+    long getMinimum() {
+        return getCount() == 0 ? 0 : minimum.get();
+    }
+
+    /**
+     * @return the maximum recorded value or zero if no values have been recorded.
+     */
+    long getMaximum() {
+        return getCount() == 0 ? 0 : maximum.get();
+    }
+
+    /**
+     * @return the average of all recorded values or zero if no values have been recorded.
+     */
+    double getAverage() {
+
+        final long currentCount = getCount();
+
+        if (currentCount == 0) {
+            return 0.0;
+        }
+
+        return ((double) getSum()) / currentCount;
+    }
+
+    /**
+     * @param percentile the percentile between 0 and 100.
+     * @return an approximation of the value at the given percentile (within the relative error of the histogram and
+     * clamped to the recorded minimum and maximum) or zero if no values have been recorded. The 0th and 100th
+     * percentiles are the exact minimum and maximum.
+     */
+    long getValueAtPercentile(double percentile) {
+
+        if (percentile <= 0.0) {
+            return getMinimum();
+        } else if (percentile >= 100.0) {
+            return getMaximum();
+        }
+
+        long totalCount = 0;
+
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            totalCount += counts.get(i);
+        }
+
+        if (totalCount == 0) {
+            return 0;
+        }
+
+        final long targetCount = Math.max(1, (long) Math.ceil((percentile / 100.0) * totalCount));
+        long cumulativeCount = 0;
+        int i = 0;
+
+        for (; i < BUCKET_COUNT; i++) {
+
+            cumulativeCount += counts.get(i);
+
+            if (cumulativeCount >= targetCount) {
+                break;
+            }
+        }
+
+        // Values may be reset concurrently, so the target count may never be reached.
+        final int bucketIndex = Math.min(i, BUCKET_COUNT - 1);
+        final long lowerBound = getLowestEquivalentValue(bucketIndex);
+        final long value = lowerBound + ((getHighestEquivalentValue(bucketIndex) - lowerBound) / 2);
+
+        return Math.min(Math.max(value, getMinimum()), getMaximum());
+    }
+
+    static int getBucketIndex(long value) {
+
+        if (value < SUB_BUCKET_COUNT) {
+            return (int) value;
+        }
+
+        final int exponent = (Long.SIZE - 1) - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+        final int subBucket = (int) (value >>> exponent) - SUB_BUCKET_COUNT;
+
+        return ((exponent + 1) * SUB_BUCKET_COUNT) + subBucket;
+    }
+
+    static long getLowestEquivalentValue(int bucketIndex) {
+
+        if (bucketIndex < SUB_BUCKET_COUNT) {
+            return bucketIndex;
+        }
+
+        final int exponent = (bucketIndex / SUB_BUCKET_COUNT) - 1;
+        final long subBucket = SUB_BUCKET_COUNT + (bucketIndex % SUB_BUCKET_COUNT);
+
+        return subBucket << exponent;
+    }
+
+    static long getHighestEquivalentValue(int bucketIndex) {
+
+        if (bucketIndex < SUB_BUCKET_COUNT) {
+            return bucketIndex;
+        }
+
+        final int exponent = (bucketIndex / SUB_BUCKET_COUNT) - 1;
+
+        return getLowestEquivalentValue(bucketIndex) + ((1L << exponent) - 1);
+    }
+
+    private void updateMinimum(long value) {
+
+        long currentMinimum = minimum.get();
+
+        while (value < currentMinimum && !minimum.compareAndSet(currentMinimum, value)) {
+            currentMinimum = minimum.get();
+        }
+    }
+
+    private void updateMaximum(long value) {
+
+        long currentMaximum = maximum.get();
+
+        while (value > currentMaximum && !maximum.compareAndSet(currentMaximum, value)) {
+            currentMaximum = maximum.get();
+        }
+    }
+}
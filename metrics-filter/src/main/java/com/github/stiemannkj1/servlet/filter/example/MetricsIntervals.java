@@ -0,0 +1,282 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2019 Kyle Stiemann.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.github.stiemannkj1.servlet.filter.example;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * <p>
+ * Records the metrics of completed responses into intervals which independent consumers (such as delta-based
+ * collectors) take from their own cursors. {@link #takeInterval(java.lang.String, long)} atomically swaps the active
+ * histograms and excluded response counter for empty ones, waits for in-flight recordings to finish with a {@link
+ * WriterReaderPhaser}, and adds the retired values to the pending interval of every consumer. The caller then receives
+ * its pending interval (everything recorded since its previous call) and its cursor starts a new interval. Every
+ * response is therefore included in exactly one interval of each consumer, and recording threads never wait for
+ * consumers.</p>
+ *
+ * <p>
+ * Intervals are independent of {@link MetricsFilter#resetMetrics()}, so resetting the cumulative metrics does not
+ * affect the consumers. A consumer's first call opens its cursor and returns an empty interval. At most {@value
+ * #MAXIMUM_CONSUMERS} consumers may have open cursors since each cursor holds its own histograms. This class is
+ * thread-safe.</p>
+ *
+ * @author Kyle Stiemann
+ */
+final class MetricsIntervals {
+
+    static final int MAXIMUM_CONSUMERS = 16;
+
+    private final WriterReaderPhaser phaser = new WriterReaderPhaser();
+    private final long expectedResponseTimeInterval;
+    private volatile Accumulator activeAccumulator = new Accumulator();
+
+    // Guarded by the phaser's reader lock.
+    private Accumulator inactiveAccumulator = new Accumulator();
+    private final Map<String, Cursor> cursors = new HashMap<>();
+
+    /**
+     * @param expectedResponseTimeInterval the expected interval between responses in nanoseconds used to correct the
+     * response times for coordinated omission or zero to record the response times as measured.
+     */
+    MetricsIntervals(long expectedResponseTimeInterval) {
+        this.expectedResponseTimeInterval = expectedResponseTimeInterval;
+    }
+
+    /**
+     * Records the metrics of a single response.
+     *
+     * @param metrics the metrics indexed by {@link SpecificResponseMetrics.Metric#getIndex()} (see {@link
+     * ResponseMetricsRecorder#record(List)}).
+     */
+    void record(List<Long> metrics) {
+
+        final long criticalValueAtEnter = phaser.writerCriticalSectionEnter();
+
+        try {
+            ResponseMetricsRecorder.record(activeAccumulator.histograms, metrics, expectedResponseTimeInterval);
+        } finally {
+            phaser.writerCriticalSectionExit(criticalValueAtEnter);
+        }
+    }
+
+    /**
+     * Records a response which was excluded from measurement.
+     */
+    void recordExcludedResponse() {
+
+        final long criticalValueAtEnter = phaser.writerCriticalSectionEnter();
+
+        try {
+            activeAccumulator.excludedResponseCount.increment();
+        } finally {
+            phaser.writerCriticalSectionExit(criticalValueAtEnter);
+        }
+    }
+
+    /**
+     * @param consumer the name of the consumer whose cursor the interval is taken from.
+     * @param timestampMillis the end of the interval in milliseconds since the epoch.
+     * @return the metrics recorded since the consumer's previous call (or an empty interval if this is the consumer's
+     * first call).
+     * @throws IllegalStateException if the consumer has no open cursor and {@value #MAXIMUM_CONSUMERS} cursors are
+     * already open.
+     */
+    Interval takeInterval(String consumer, long timestampMillis) {
+
+        phaser.readerLock();
+
+        try {
+
+            Cursor cursor = cursors.get(consumer);
+
+            if (cursor == null && cursors.size() >= MAXIMUM_CONSUMERS) {
+                throw new IllegalStateException("Unable to open an interval cursor for \"" + consumer + "\". At most " +
+                        MAXIMUM_CONSUMERS + " consumers may take intervals.");
+            }
+
+            final Accumulator retiredAccumulator = activeAccumulator;
+            activeAccumulator = inactiveAccumulator;
+            phaser.flipPhase();
+
+            // No writer can touch the retired accumulator anymore, so its values can be read and reset exactly.
+            for (Cursor openCursor : cursors.values()) {
+                openCursor.pendingAccumulator.add(retiredAccumulator);
+            }
+
+            retiredAccumulator.reset();
+            inactiveAccumulator = retiredAccumulator;
+
+            if (cursor == null) {
+
+                cursor = new Cursor(timestampMillis);
+                cursors.put(consumer, cursor);
+            }
+
+            return cursor.take(timestampMillis);
+        } finally {
+            phaser.readerUnlock();
+        }
+    }
+
+    /**
+     * Closes the consumer's cursor (if it is open) and discards its pending interval.
+     */
+    void closeCursor(String consumer) {
+
+        phaser.readerLock();
+
+        try {
+            cursors.remove(consumer);
+        } finally {
+            phaser.readerUnlock();
+        }
+    }
+
+    /**
+     * @return the number of open cursors.
+     */
+    int getConsumerCount() {
+
+        phaser.readerLock();
+
+        try {
+            return cursors.size();
+        } finally {
+            phaser.readerUnlock();
+        }
+    }
+
+    /**
+     * The metrics of the responses that completed in an interval of a single consumer. This class is immutable.
+     */
+    static final class Interval {
+
+        private final long sequence;
+        private final long startMillis;
+        private final long endMillis;
+        private final MetricsHistogram[] histograms;
+        private final long excludedResponseCount;
+
+        private Interval(long sequence, long startMillis, long endMillis, MetricsHistogram[] histograms,
+                long excludedResponseCount) {
+            this.sequence = sequence;
+            this.startMillis = startMillis;
+            this.endMillis = endMillis;
+            this.histograms = histograms;
+            this.excludedResponseCount = excludedResponseCount;
+        }
+
+        /**
+         * @return the number of intervals that the consumer took before this one.
+         */
+        long getSequence() {
+            return sequence;
+        }
+
+        /**
+         * @return the start of the interval in milliseconds since the epoch.
+         */
+        long getStartMillis() {
+            return startMillis;
+        }
+
+        /**
+         * @return the end of the interval in milliseconds since the epoch.
+         */
+        long getEndMillis() {
+            return endMillis;
+        }
+
+        MetricsHistogram getHistogram(SpecificResponseMetrics.Metric metric) {
+            return histograms[metric.getIndex()];
+        }
+
+        /**
+         * @return the number of measured responses in the interval.
+         */
+        long getResponseCount() {
+
+            // Response times may include back-filled values (see MetricsHistogram#recordWithExpectedInterval()), so the
+            // response size histogram holds the actual number of responses.
+            return getHistogram(SpecificResponseMetrics.Metric.RESPONSE_SIZE).getCount();
+        }
+
+        /**
+         * @return the number of responses that were excluded from measurement in the interval.
+         */
+        long getExcludedResponseCount() {
+            return excludedResponseCount;
+        }
+    }
+
+    private static final class Accumulator {
+
+        private final MetricsHistogram[] histograms = ResponseMetricsRecorder.newHistograms();
+        private final LongAdder excludedResponseCount = new LongAdder();
+
+        private void add(Accumulator other) {
+
+            for (int i = 0; i < histograms.length; i++) {
+                histograms[i].add(other.histograms[i]);
+            }
+
+            excludedResponseCount.add(other.excludedResponseCount.sum());
+        }
+
+        private void reset() {
+
+            for (MetricsHistogram histogram : histograms) {
+                histogram.reset();
+            }
+
+            excludedResponseCount.reset();
+        }
+    }
+
+    private static final class Cursor {
+
+        private final Accumulator pendingAccumulator = new Accumulator();
+
+        private long sequence = 0;
+        private long startMillis;
+
+        private Cursor(long startMillis) {
+            this.startMillis = startMillis;
+        }
+
+        private Interval take(long timestampMillis) {
+
+            final Interval interval = new Interval(sequence++, startMillis, Math.max(startMillis, timestampMillis),
+                    ResponseMetricsRecorder.copyOf(pendingAccumulator.histograms),
+                    pendingAccumulator.excludedResponseCount.sum());
+            pendingAccumulator.reset();
+            startMillis = interval.endMillis;
+
+            return interval;
+        }
+    }
+}
@@ -0,0 +1,285 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2019 Kyle Stiemann.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.github.stiemannkj1.servlet.filter.example;
+
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * <p>
+ * Caches the rendered bytes of the metrics page per path and query string. A cached page is reused while it is younger
+ * than the configured time-to-live or while it was rendered from a snapshot with the same {@link
+ * MetricsSnapshot#getVersion() version} as the currently published snapshot (since the page would render
+ * identically). When a page must be rendered, concurrent requests for the same page wait for and share a single
+ * render.</p>
+ *
+ * <p>
+ * Each cached page has a strong {@code ETag} derived from the version of the snapshot it was rendered from, so an
+ * unchanged page keeps its {@code ETag} while snapshots of the same data are published, and requests with a
+ * matching {@code If-None-Match} header receive {@code 304 Not Modified} without a body. This class is
+ * thread-safe.</p>
+ *
+ * @author Kyle Stiemann
+ */
+final class MetricsPageCache {
+
+    /**
+     * The maximum number of distinct pages (paths and query strings) that will be cached. Requests for other pages are
+     * rendered without caching to bound the memory used by arbitrary query strings.
+     */
+    static final int MAX_CACHED_PAGES = 64;
+
+    private final ConcurrentMap<String, CompletableFuture<CachedMetricsPage>> cachedPages = new ConcurrentHashMap<>();
+    private final long timeToLiveNanos;
+    private final String eTagPrefix;
+
+    /**
+     * @param timeToLiveMillis the time in milliseconds that a rendered page may be served after it is rendered.
+     */
+    MetricsPageCache(long timeToLiveMillis) {
+        this.timeToLiveNanos = timeToLiveMillis * 1000000L;
+
+        // Snapshot versions restart with each filter instance, so prefix ETags with a value that is unique to this
+        // instance to avoid matching ETags that were issued by a previous deployment.
+        this.eTagPrefix = "\"" + Long.toHexString(System.currentTimeMillis()) + "-" +
+                Integer.toHexString(System.identityHashCode(this)) + "-";
+    }
+
+    /**
+     * Writes the cached page (rendering it first if necessary) or a {@code 304 Not Modified} response.
+     *
+     * @param currentSnapshotVersion the version of the currently published snapshot or a negative number if snapshots
+     * are built on demand.
+     * @param renderer renders the page into the provided buffered response and returns the version of the snapshot
+     * that it rendered.
+     */
+    void serve(HttpServletRequest request, HttpServletResponse response, long currentSnapshotVersion,
+            Renderer renderer) throws IOException, ServletException {
+
+        final String key = getKey(request);
+        CachedMetricsPage cachedMetricsPage = null;
+        boolean renderedByThisRequest = false;
+
+        while (cachedMetricsPage == null) {
+
+            final CompletableFuture<CachedMetricsPage> cachedPageFuture = cachedPages.get(key);
+
+            if (cachedPageFuture != null) {
+
+                if (!cachedPageFuture.isDone()) {
+                    cachedMetricsPage = await(cachedPageFuture);
+                    break;
+                }
+
+                final CachedMetricsPage completedMetricsPage = cachedPageFuture.getNow(null);
+
+                if (completedMetricsPage != null && completedMetricsPage.isFresh(currentSnapshotVersion)) {
+                    cachedMetricsPage = completedMetricsPage;
+                    break;
+                }
+            } else if (cachedPages.size() >= MAX_CACHED_PAGES) {
+                renderer.render(response);
+                return;
+            }
+
+            final CompletableFuture<CachedMetricsPage> renderFuture = new CompletableFuture<>();
+            final boolean renderFutureAdded = (cachedPageFuture == null)
+                    ? (cachedPages.putIfAbsent(key, renderFuture) == null)
+                    : cachedPages.replace(key, cachedPageFuture, renderFuture);
+
+            if (renderFutureAdded) {
+                cachedMetricsPage = render(key, response, renderer, renderFuture);
+                renderedByThisRequest = true;
+            }
+        }
+
+        if (cachedMetricsPage.eTag == null) {
+
+            // The page could not be cached (for example because it was rendered as an error) and it has already been
+            // written by the rendering request, so render this request independently.
+            if (!renderedByThisRequest) {
+                renderer.render(response);
+            }
+
+            return;
+        }
+
+        response.setHeader("ETag", cachedMetricsPage.eTag);
+
+        if (matchesIfNoneMatch(request.getHeader("If-None-Match"), cachedMetricsPage.eTag)) {
+            response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+            return;
+        }
+
+        if (cachedMetricsPage.contentType != null) {
+            response.setContentType(cachedMetricsPage.contentType);
+        }
+
+        response.setContentLength(cachedMetricsPage.body.length);
+        response.getOutputStream().write(cachedMetricsPage.body);
+    }
+
+    /**
+     * Removes all cached pages.
+     */
+    void clear() {
+        cachedPages.clear();
+    }
+
+    private CachedMetricsPage render(String key, HttpServletResponse response, Renderer renderer,
+            CompletableFuture<CachedMetricsPage> renderFuture) throws IOException, ServletException {
+
+        try {
+
+            final BufferedHttpServletResponseWrapper bufferedResponse =
+                    new BufferedHttpServletResponseWrapper(response);
+            final long snapshotVersion = renderer.render(bufferedResponse);
+            final CachedMetricsPage cachedMetricsPage;
+
+            if (bufferedResponse.isBodyReusable()) {
+                cachedMetricsPage = new CachedMetricsPage(bufferedResponse.toByteArray(),
+                        bufferedResponse.getContentType(), eTagPrefix + snapshotVersion + "\"", snapshotVersion,
+                        System.nanoTime() + timeToLiveNanos);
+            } else {
+
+                cachedPages.remove(key, renderFuture);
+
+                if (!response.isCommitted()) {
+                    response.getOutputStream().write(bufferedResponse.toByteArray());
+                }
+
+                cachedMetricsPage = new CachedMetricsPage(null, null, null, snapshotVersion, System.nanoTime());
+            }
+
+            renderFuture.complete(cachedMetricsPage);
+            return cachedMetricsPage;
+        } catch (IOException | ServletException | RuntimeException | Error e) {
+            cachedPages.remove(key, renderFuture);
+            renderFuture.completeExceptionally(e);
+            throw e;
+        }
+    }
+
+    private static CachedMetricsPage await(CompletableFuture<CachedMetricsPage> cachedPageFuture)
+            throws IOException, ServletException {
+
+        try {
+            return cachedPageFuture.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ServletException("Interrupted while waiting for the metrics page to be rendered.", e);
+        } catch (ExecutionException e) {
+
+            final Throwable cause = e.getCause();
+
+            if (cause instanceof IOException) {
+                throw new IOException("Failed to render the metrics page.", cause);
+            }
+
+            throw new ServletException("Failed to render the metrics page.", cause);
+        }
+    }
+
+    private static String getKey(HttpServletRequest request) {
+
+        final String servletPath = request.getServletPath();
+        final String queryString = request.getQueryString();
+
+        if (queryString == null) {
+            return servletPath;
+        }
+
+        return servletPath + "?" + queryString;
+    }
+
+    /**
+     * @return true if the If-None-Match header value contains the ETag or {@code *}. Weak comparison is used as
+     * required for If-None-Match by RFC 7232.
+     */
+    static boolean matchesIfNoneMatch(String ifNoneMatch, String eTag) {
+
+        if (ifNoneMatch == null) {
+            return false;
+        }
+
+        if (eTag.startsWith("W/")) {
+            eTag = eTag.substring(2);
+        }
+
+        for (String candidateETag : ifNoneMatch.split(",")) {
+
+            candidateETag = candidateETag.trim();
+
+            if (candidateETag.startsWith("W/")) {
+                candidateETag = candidateETag.substring(2);
+            }
+
+            if ("*".equals(candidateETag) || eTag.equals(candidateETag)) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Renders the metrics page.
+     */
+    @FunctionalInterface
+    interface Renderer {
+
+        /**
+         * @return the version of the {@link MetricsSnapshot} that was rendered.
+         */
+        long render(HttpServletResponse response) throws IOException, ServletException;
+    }
+
+    private static final class CachedMetricsPage {
+
+        private final byte[] body;
+        private final String contentType;
+        private final String eTag;
+        private final long snapshotVersion;
+        private final long expirationNanos;
+
+        private CachedMetricsPage(byte[] body, String contentType, String eTag, long snapshotVersion,
+                long expirationNanos) {
+            this.body = body;
+            this.contentType = contentType;
+            this.eTag = eTag;
+            this.snapshotVersion = snapshotVersion;
+            this.expirationNanos = expirationNanos;
+        }
+
+        private boolean isFresh(long currentSnapshotVersion) {
+            return (snapshotVersion == currentSnapshotVersion) || (System.nanoTime() - expirationNanos < 0);
+        }
+    }
+}
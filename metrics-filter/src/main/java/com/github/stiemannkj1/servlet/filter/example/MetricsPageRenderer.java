@@ -0,0 +1,724 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2019 Kyle Stiemann.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.github.stiemannkj1.servlet.filter.example;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.IntFunction;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+
+/**
+ * <p>
+ * Renders the metrics page from the request attributes that {@link MetricsFilter} sets for {@code
+ * com_github_stiemannkj1_servlet_filter_example_Metrics.jsp}. The page has the same element ids and row markup as the
+ * JSP, but it is written without JSTL or EL: the static HTML is encoded to UTF-8 once when the class is loaded, numbers
+ * are written as ASCII digits without creating strings, and the page is written into a pooled buffer of {@value
+ * #BUFFER_SIZE} bytes that is flushed to the response whenever it fills up. Client-supplied strings (such as heavy
+ * hitter clients and dispatch segment paths) are HTML-escaped.</p>
+ *
+ * <p>
+ * This class is thread-safe.</p>
+ *
+ * @author Kyle Stiemann
+ */
+final class MetricsPageRenderer {
+
+    static final int BUFFER_SIZE = 8192;
+    private static final int MAXIMUM_POOLED_BUFFERS = 4;
+
+    private static final byte[] PAGE_START = encode("<!DOCTYPE html>\n<html>\n<head>\n" +
+            "<meta http-equiv=\"Content-Type\" content=\"text/html; charset=UTF-8\">\n<title>Metrics</title>\n" +
+            "<style>\ntable {\nborder-collapse: collapse;\n}\n\ntable, th, td {\nborder: 1px solid black;\n}\n" +
+            "</style>\n</head>\n<body>\n<h1>Metrics</h1>\n");
+    private static final byte[] PAGE_END = encode("</body>\n</html>\n");
+    private static final byte[] LIST_START = encode("<ul>\n");
+    private static final byte[] LIST_END = encode("</ul>\n");
+    private static final byte[] ITEM_END = encode("</span></li>\n");
+
+    private static final Item[] EXCLUDED_ITEMS =
+            { new Item("Excluded Responses", MetricsFilter.EXCLUDED_RESPONSE_COUNT) };
+    private static final Item[] CONCURRENCY_ITEMS = {
+        new Item("Adaptive Concurrency Limit", MetricsFilter.CONCURRENCY_LIMIT),
+        new Item("In-Flight Requests", MetricsFilter.IN_FLIGHT_REQUEST_COUNT),
+        new Item("Rejected Responses", MetricsFilter.REJECTED_RESPONSE_COUNT)
+    };
+    private static final Item[] CACHE_ITEMS = {
+        new Item("Cache Hits", MetricsFilter.CACHE_HIT_COUNT),
+        new Item("Cache Misses", MetricsFilter.CACHE_MISS_COUNT),
+        new Item("Cache Evictions", MetricsFilter.CACHE_EVICTION_COUNT),
+        new Item("Cached Responses", MetricsFilter.CACHED_RESPONSE_COUNT),
+        new Item("Cache Size (in bytes)", MetricsFilter.CACHE_SIZE)
+    };
+    private static final Item[] CACHE_HIT_TIME_ITEMS = newStatisticItems("Cache Hit Time (in nanoseconds)",
+            "minimum" + MetricsFilter.CACHE_HIT_TIME_SUFFIX, "maximum" + MetricsFilter.CACHE_HIT_TIME_SUFFIX,
+            "average" + MetricsFilter.CACHE_HIT_TIME_SUFFIX, (percentile) -> {
+                return "percentile" + percentile + MetricsFilter.CACHE_HIT_TIME_SUFFIX;
+            });
+    private static final Item[] RESPONSE_SIZE_ITEMS =
+            newMetricItems(SpecificResponseMetrics.Metric.RESPONSE_SIZE, "Servlet Response Size (in bytes)");
+    private static final Item[] RESPONSE_TIME_ITEMS =
+            newMetricItems(SpecificResponseMetrics.Metric.RESPONSE_TIME, "Servlet Response Time (in nanoseconds)");
+    private static final Item[] TRANSFERRED_RESPONSE_SIZE_ITEMS = {
+        new Item("Minimum Transferred Response Size (in bytes)",
+                SpecificResponseMetrics.Metric.TRANSFERRED_RESPONSE_SIZE.getMinId()),
+        new Item("Maximum Transferred Response Size (in bytes)",
+                SpecificResponseMetrics.Metric.TRANSFERRED_RESPONSE_SIZE.getMaxId()),
+        new Item("Average Transferred Response Size (in bytes)",
+                SpecificResponseMetrics.Metric.TRANSFERRED_RESPONSE_SIZE.getAverageId()),
+        new Item("Compression Ratio (response size / transferred response size)", MetricsFilter.COMPRESSION_RATIO)
+    };
+    private static final Item[] HEADER_SIZE_ITEMS =
+            newMetricItems(SpecificResponseMetrics.Metric.HEADER_SIZE, "Response Header Size (in bytes)");
+    private static final Item[] CPU_TIME_ITEMS =
+            newMetricItems(SpecificResponseMetrics.Metric.CPU_TIME, "Servlet CPU Time (in nanoseconds)");
+    private static final Item[] ALLOCATED_BYTES_ITEMS =
+            newMetricItems(SpecificResponseMetrics.Metric.ALLOCATED_BYTES, "Servlet Allocated Heap (in bytes)");
+    private static final Item[] NETWORK_BLOCKED_TIME_ITEMS = newMetricItems(
+            SpecificResponseMetrics.Metric.NETWORK_BLOCKED_TIME, "Network Blocked Time (in nanoseconds)");
+    private static final Item[] CLIENT_THROUGHPUT_ITEMS = newMetricItems(
+            SpecificResponseMetrics.Metric.CLIENT_THROUGHPUT, "Client Throughput (in bytes per second)");
+
+    private static final byte[] DISTINCT_CLIENTS_START =
+            encode("<ul>\n<li><strong>Distinct Clients (last hour):</strong> <span id=\"distinctClients\">");
+    private static final byte[] DISTINCT_PATHS_START =
+            encode("<li><strong>Distinct Paths (last hour):</strong> <span id=\"distinctPaths\">");
+    private static final byte[] DISTINCT_SESSIONS_START =
+            encode("<li><strong>Distinct Sessions (last hour):</strong> <span id=\"distinctSessions\">");
+    private static final byte[] DISTINCT_COUNT_STANDARD_ERROR_START = encode("<li><strong>Distinct Count Standard " +
+            "Error (in percent):</strong> <span id=\"distinctCountStandardErrorPercent\">");
+
+    private static final byte[] HEAVY_HITTERS_ERROR_START = encode("<p>\nEstimates exceed the actual values by at " +
+            "most\n<span id=\"heavyHittersErrorPercent\">");
+    private static final byte[] HEAVY_HITTERS_CONFIDENCE_START =
+            encode("</span>% of the total (with a probability\nof <span id=\"heavyHittersConfidencePercent\">");
+    private static final byte[] HEAVY_HITTERS_CONFIDENCE_END =
+            encode("</span>%). The actual values\nare never less than the minimums.\n</p>\n");
+    private static final byte[] TOP_CLIENTS_BY_REQUESTS_START = newHeavyHittersTableStart(
+            MetricsFilter.TOP_CLIENTS_BY_REQUESTS, "Requests", "Estimated Requests", "Minimum Requests");
+    private static final byte[] TOP_CLIENTS_BY_BYTES_START = newHeavyHittersTableStart(
+            MetricsFilter.TOP_CLIENTS_BY_BYTES, "Transferred Bytes", "Estimated Bytes", "Minimum Bytes");
+    private static final byte[] TOP_CLIENTS_BY_SERVER_TIME_START = newHeavyHittersTableStart(
+            MetricsFilter.TOP_CLIENTS_BY_SERVER_TIME, "Server Time", "Estimated Server Time (in nanoseconds)",
+            "Minimum Server Time (in nanoseconds)");
+    private static final byte[] HEAVY_HITTER_ROW_START = encode("<tr>\n<th scope=\"row\">");
+    private static final byte[] HEAVY_HITTER_CLIENT_END = encode("</th>\n<td align=\"right\">");
+    private static final byte[] TABLE_END = encode("</tbody>\n</table>\n");
+    private static final byte[] COMPRESSION_BY_PATH_START = encode("<table id=\"" + MetricsFilter.COMPRESSION_BY_PATH +
+            "\">\n<caption>Compression Ratio by Path</caption>\n<thead>\n<tr>\n<th>Path</th>\n" +
+            "<th>Response Size (in bytes)</th>\n<th>Transferred Response Size (in bytes)</th>\n" +
+            "<th>Compression Ratio</th>\n</tr>\n</thead>\n<tbody>\n");
+
+    private static final byte[] CHART_START = encode("<figure id=\"");
+    private static final byte[] CHART_TITLE_START = encode("\">\n<figcaption>\n<strong>");
+    private static final byte[] CHART_MAXIMUM_START = encode(":</strong> maximum <span class=\"maximum\">");
+    private static final byte[] CHART_FROM_START = encode("</span> from\n<time>");
+    private static final byte[] CHART_TO_START = encode("</time> to <time>");
+    private static final byte[] CHART_SVG_START = encode("</time>\n</figcaption>\n" +
+            "<svg xmlns=\"http://www.w3.org/2000/svg\" width=\"" + RollupCharts.WIDTH + "\" height=\"" +
+            RollupCharts.HEIGHT + "\" viewBox=\"0 0 " + RollupCharts.WIDTH + " " + RollupCharts.HEIGHT +
+            "\" style=\"border: 1px solid black;\">\n");
+    private static final byte[] SERIES_COLOR_START = encode("<polyline fill=\"none\" stroke=\"");
+    private static final byte[] SERIES_POINTS_START = encode("\" points=\"");
+    private static final byte[] SERIES_NAME_START = encode("\"><title>");
+    private static final byte[] SERIES_END = encode("</title></polyline>\n");
+    private static final byte[] CHART_END = encode("</svg>\n</figure>\n");
+
+    private static final byte[] LIVE_METRICS = encode("<ul id=\"liveMetrics\">\n" +
+            "<li><strong>Live Responses (last interval):</strong> <span id=\"liveResponseCount\"></span></li>\n" +
+            "<li><strong>Live Excluded Responses (last interval):</strong> " +
+            "<span id=\"liveExcludedResponseCount\"></span></li>\n" +
+            "<li><strong>Live Response Size (in bytes, last interval):</strong> " +
+            "<span id=\"liveResponseSize\"></span></li>\n" +
+            "<li><strong>Live 50th Percentile Servlet Response Time (in nanoseconds):</strong> " +
+            "<span id=\"livePercentile50ResponseTime\"></span></li>\n" +
+            "<li><strong>Live 90th Percentile Servlet Response Time (in nanoseconds):</strong> " +
+            "<span id=\"livePercentile90ResponseTime\"></span></li>\n" +
+            "<li><strong>Live 99th Percentile Servlet Response Time (in nanoseconds):</strong> " +
+            "<span id=\"livePercentile99ResponseTime\"></span></li>\n" +
+            "<li><strong>Live Maximum Servlet Response Time (in nanoseconds):</strong> " +
+            "<span id=\"liveMaximumResponseTime\"></span></li>\n" +
+            "</ul>\n" +
+            "<ol id=\"liveTopClients\"></ol>\n" +
+            "<script>\n" +
+            "(function () {\n" +
+            "    if (!window.EventSource) {\n" +
+            "        return;\n" +
+            "    }\n" +
+            "    var topClients = {};\n" +
+            "    var events = new EventSource(\"" + MetricsFilter.METRICS_EVENTS_PATH.substring(1) + "\");\n" +
+            "    events.onmessage = function (event) {\n" +
+            "        var data = JSON.parse(event.data);\n" +
+            "        for (var key in data) {\n" +
+            "            var element = document.getElementById(\"live\" + key.charAt(0).toUpperCase() + " +
+            "key.substring(1));\n" +
+            "            if (element !== null) {\n" +
+            "                element.textContent = data[key];\n" +
+            "            }\n" +
+            "        }\n" +
+            "        (data.removedTopClients || []).forEach(function (client) {\n" +
+            "            delete topClients[client];\n" +
+            "        });\n" +
+            "        for (var client in data.topClients) {\n" +
+            "            topClients[client] = data.topClients[client];\n" +
+            "        }\n" +
+            "        var list = document.getElementById(\"liveTopClients\");\n" +
+            "        while (list.firstChild !== null) {\n" +
+            "            list.removeChild(list.firstChild);\n" +
+            "        }\n" +
+            "        Object.keys(topClients).sort(function (a, b) {\n" +
+            "            return topClients[b] - topClients[a];\n" +
+            "        }).forEach(function (client) {\n" +
+            "            var item = document.createElement(\"li\");\n" +
+            "            item.textContent = client + \": \" + topClients[client];\n" +
+            "            list.appendChild(item);\n" +
+            "        });\n" +
+            "    };\n" +
+            "}());\n" +
+            "</script>\n");
+
+    private static final byte[] HISTORY_TABLE_START = encode("<table>\n<caption>Historical Response Data</caption>\n" +
+            "<thead>\n<tr>\n<th>Response Id</th>\n<th>Servlet Response Time (in nanoseconds)</th>\n" +
+            "<th>Response Size (in bytes)</th>\n<th>Transferred Response Size (in bytes)</th>\n" +
+            "<th>Response Header Size (in bytes)</th>\n");
+    private static final byte[] HISTORY_RESOURCE_USAGE_HEADERS = encode("<th>Servlet CPU Time (in nanoseconds)</th>\n" +
+            "<th>Servlet Allocated Heap (in bytes)</th>\n");
+    private static final byte[] HISTORY_NETWORK_BLOCKING_HEADERS = encode(
+            "<th>Network Blocked Time (in nanoseconds)</th>\n<th>Client Throughput (in bytes per second)</th>\n");
+    private static final byte[] HISTORY_DISPATCH_SEGMENTS_HEADER =
+            encode("<th>Dispatch Segments (in nanoseconds)</th>\n");
+    private static final byte[] HISTORY_TABLE_BODY_START = encode("</tr>\n</thead>\n<tbody>\n");
+    private static final byte[] ROW_START = encode("<tr>\n<td align=\"right\">");
+    private static final byte[] NUMERIC_CELL_START = encode("</td>\n<td align=\"right\">");
+    private static final byte[] DISPATCH_SEGMENTS_CELL_START = encode("</td>\n<td>\n");
+    private static final byte[] DISPATCH_SEGMENT_START = encode("<div>");
+    private static final byte[] DISPATCH_SEGMENT_END = encode("</div>\n");
+    private static final byte[] CELL_END = encode("</td>\n");
+    private static final byte[] ROW_END = encode("</tr>\n");
+    private static final byte[] HISTORY_TABLE_END = encode("</tbody>\n</table>\n");
+
+    private final ConcurrentLinkedQueue<byte[]> pooledBuffers = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger pooledBufferCount = new AtomicInteger();
+
+    /**
+     * Writes the metrics page to the response's output stream.
+     *
+     * @param request the request with the attributes that {@link MetricsFilter} sets for the metrics page.
+     */
+    void render(ServletRequest request, ServletResponse response) throws IOException {
+
+        response.setContentType("text/html;charset=UTF-8");
+
+        byte[] buffer = pooledBuffers.poll();
+
+        if (buffer == null) {
+            buffer = new byte[BUFFER_SIZE];
+        } else {
+            pooledBufferCount.decrementAndGet();
+        }
+
+        try {
+
+            final PageWriter pageWriter = new PageWriter(response.getOutputStream(), buffer);
+            writePage(pageWriter, request);
+            pageWriter.flush();
+        } finally {
+
+            if (pooledBufferCount.incrementAndGet() <= MAXIMUM_POOLED_BUFFERS) {
+                pooledBuffers.offer(buffer);
+            } else {
+                pooledBufferCount.decrementAndGet();
+            }
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static void writePage(PageWriter pageWriter, ServletRequest request) throws IOException {
+
+        pageWriter.write(PAGE_START);
+        writeList(pageWriter, request, EXCLUDED_ITEMS);
+
+        if (request.getAttribute(MetricsFilter.CONCURRENCY_LIMIT) != null) {
+            writeList(pageWriter, request, CONCURRENCY_ITEMS);
+        }
+
+        if (request.getAttribute(MetricsFilter.CACHE_HIT_COUNT) != null) {
+            writeList(pageWriter, request, CACHE_ITEMS);
+            writeList(pageWriter, request, CACHE_HIT_TIME_ITEMS);
+        }
+
+        writeList(pageWriter, request, RESPONSE_SIZE_ITEMS);
+        writeList(pageWriter, request, RESPONSE_TIME_ITEMS);
+        writeList(pageWriter, request, TRANSFERRED_RESPONSE_SIZE_ITEMS);
+        writeList(pageWriter, request, HEADER_SIZE_ITEMS);
+
+        final boolean resourceUsageMeasured =
+                Boolean.TRUE.equals(request.getAttribute(MetricsFilter.RESOURCE_USAGE_MEASURED));
+
+        if (resourceUsageMeasured) {
+            writeList(pageWriter, request, CPU_TIME_ITEMS);
+            writeList(pageWriter, request, ALLOCATED_BYTES_ITEMS);
+        }
+
+        final boolean networkBlockingMeasured =
+                Boolean.TRUE.equals(request.getAttribute(MetricsFilter.NETWORK_BLOCKING_MEASURED));
+
+        if (networkBlockingMeasured) {
+            writeList(pageWriter, request, NETWORK_BLOCKED_TIME_ITEMS);
+            writeList(pageWriter, request, CLIENT_THROUGHPUT_ITEMS);
+        }
+
+        final MetricsFilterMXBean.DistinctCount distinctClients =
+                (MetricsFilterMXBean.DistinctCount) request.getAttribute(MetricsFilter.DISTINCT_CLIENTS);
+
+        if (distinctClients != null) {
+
+            pageWriter.write(DISTINCT_CLIENTS_START);
+            pageWriter.writeLong(distinctClients.getEstimate());
+            pageWriter.write(ITEM_END);
+            pageWriter.write(DISTINCT_PATHS_START);
+            pageWriter.writeLong(((MetricsFilterMXBean.DistinctCount) request.getAttribute(
+                    MetricsFilter.DISTINCT_PATHS)).getEstimate());
+            pageWriter.write(ITEM_END);
+            pageWriter.write(DISTINCT_SESSIONS_START);
+            pageWriter.writeLong(((MetricsFilterMXBean.DistinctCount) request.getAttribute(
+                    MetricsFilter.DISTINCT_SESSIONS)).getEstimate());
+            pageWriter.write(ITEM_END);
+            pageWriter.write(DISTINCT_COUNT_STANDARD_ERROR_START);
+            pageWriter.writeDouble(distinctClients.getStandardError() * 100);
+            pageWriter.write(ITEM_END);
+            pageWriter.write(LIST_END);
+        }
+
+        final Object topClientsByRequests = request.getAttribute(MetricsFilter.TOP_CLIENTS_BY_REQUESTS);
+
+        if (topClientsByRequests != null) {
+
+            pageWriter.write(HEAVY_HITTERS_ERROR_START);
+            pageWriter.writeValue(request.getAttribute(MetricsFilter.HEAVY_HITTERS_ERROR_PERCENT));
+            pageWriter.write(HEAVY_HITTERS_CONFIDENCE_START);
+            pageWriter.writeValue(request.getAttribute(MetricsFilter.HEAVY_HITTERS_CONFIDENCE_PERCENT));
+            pageWriter.write(HEAVY_HITTERS_CONFIDENCE_END);
+            writeHeavyHittersTable(pageWriter, TOP_CLIENTS_BY_REQUESTS_START,
+                    (List<MetricsFilterMXBean.HeavyHitter>) topClientsByRequests);
+            writeHeavyHittersTable(pageWriter, TOP_CLIENTS_BY_BYTES_START,
+                    (List<MetricsFilterMXBean.HeavyHitter>) request.getAttribute(MetricsFilter.TOP_CLIENTS_BY_BYTES));
+            writeHeavyHittersTable(pageWriter, TOP_CLIENTS_BY_SERVER_TIME_START,
+                    (List<MetricsFilterMXBean.HeavyHitter>) request.getAttribute(
+                            MetricsFilter.TOP_CLIENTS_BY_SERVER_TIME));
+        }
+
+        final List<MetricsFilterMXBean.PathCompression> compressionByPath =
+                (List<MetricsFilterMXBean.PathCompression>) request.getAttribute(MetricsFilter.COMPRESSION_BY_PATH);
+
+        if (compressionByPath != null) {
+            writeCompressionByPathTable(pageWriter, compressionByPath);
+        }
+
+        final List<Map<String, Object>> rollupCharts =
+                (List<Map<String, Object>>) request.getAttribute(MetricsFilter.ROLLUP_CHARTS);
+
+        if (rollupCharts != null) {
+
+            for (Map<String, Object> chart : rollupCharts) {
+                writeChart(pageWriter, chart);
+            }
+        }
+
+        if (Boolean.TRUE.equals(request.getAttribute(MetricsFilter.LIVE_METRICS))) {
+            pageWriter.write(LIVE_METRICS);
+        }
+
+        final Map<String, List<SpecificResponseMetrics.DispatchSegment>> dispatchSegments =
+                (Map<String, List<SpecificResponseMetrics.DispatchSegment>>) request.getAttribute(
+                        MetricsFilter.DISPATCH_SEGMENTS);
+        pageWriter.write(HISTORY_TABLE_START);
+
+        if (resourceUsageMeasured) {
+            pageWriter.write(HISTORY_RESOURCE_USAGE_HEADERS);
+        }
+
+        if (networkBlockingMeasured) {
+            pageWriter.write(HISTORY_NETWORK_BLOCKING_HEADERS);
+        }
+
+        if (dispatchSegments != null) {
+            pageWriter.write(HISTORY_DISPATCH_SEGMENTS_HEADER);
+        }
+
+        pageWriter.write(HISTORY_TABLE_BODY_START);
+
+        final Map<String, SpecificResponseMetrics> responseMetrics =
+                (Map<String, SpecificResponseMetrics>) request.getAttribute(MetricsFilter.RESPONSE_METRICS);
+
+        if (responseMetrics != null) {
+
+            for (Map.Entry<String, SpecificResponseMetrics> entry : responseMetrics.entrySet()) {
+
+                final List<Long> metrics = entry.getValue().getMetrics();
+
+                if (metrics == null) {
+                    continue;
+                }
+
+                pageWriter.write(ROW_START);
+                pageWriter.writeEscaped(entry.getKey());
+                writeMetricCell(pageWriter, metrics, SpecificResponseMetrics.Metric.RESPONSE_TIME);
+                writeMetricCell(pageWriter, metrics, SpecificResponseMetrics.Metric.RESPONSE_SIZE);
+                writeMetricCell(pageWriter, metrics, SpecificResponseMetrics.Metric.TRANSFERRED_RESPONSE_SIZE);
+                writeMetricCell(pageWriter, metrics, SpecificResponseMetrics.Metric.HEADER_SIZE);
+
+                if (resourceUsageMeasured) {
+                    writeMetricCell(pageWriter, metrics, SpecificResponseMetrics.Metric.CPU_TIME);
+                    writeMetricCell(pageWriter, metrics, SpecificResponseMetrics.Metric.ALLOCATED_BYTES);
+                }
+
+                if (networkBlockingMeasured) {
+                    writeMetricCell(pageWriter, metrics, SpecificResponseMetrics.Metric.NETWORK_BLOCKED_TIME);
+                    writeMetricCell(pageWriter, metrics, SpecificResponseMetrics.Metric.CLIENT_THROUGHPUT);
+                }
+
+                if (dispatchSegments != null) {
+
+                    pageWriter.write(DISPATCH_SEGMENTS_CELL_START);
+
+                    final List<SpecificResponseMetrics.DispatchSegment> specificDispatchSegments =
+                            dispatchSegments.get(entry.getKey());
+
+                    if (specificDispatchSegments != null) {
+
+                        for (SpecificResponseMetrics.DispatchSegment dispatchSegment : specificDispatchSegments) {
+                            pageWriter.write(DISPATCH_SEGMENT_START);
+                            pageWriter.writeEscaped(dispatchSegment.toString());
+                            pageWriter.write(DISPATCH_SEGMENT_END);
+                        }
+                    }
+                }
+
+                pageWriter.write(CELL_END);
+                pageWriter.write(ROW_END);
+            }
+        }
+
+        pageWriter.write(HISTORY_TABLE_END);
+        pageWriter.write(PAGE_END);
+    }
+
+    private static void writeList(PageWriter pageWriter, ServletRequest request, Item[] items) throws IOException {
+
+        pageWriter.write(LIST_START);
+
+        for (Item item : items) {
+            pageWriter.write(item.start);
+            pageWriter.writeValue(request.getAttribute(item.attributeName));
+            pageWriter.write(ITEM_END);
+        }
+
+        pageWriter.write(LIST_END);
+    }
+
+    private static void writeHeavyHittersTable(PageWriter pageWriter, byte[] tableStart,
+            List<MetricsFilterMXBean.HeavyHitter> heavyHitters) throws IOException {
+
+        pageWriter.write(tableStart);
+
+        for (MetricsFilterMXBean.HeavyHitter heavyHitter : heavyHitters) {
+            pageWriter.write(HEAVY_HITTER_ROW_START);
+            pageWriter.writeEscaped(heavyHitter.getClient());
+            pageWriter.write(HEAVY_HITTER_CLIENT_END);
+            pageWriter.writeLong(heavyHitter.getEstimate());
+            pageWriter.write(NUMERIC_CELL_START);
+            pageWriter.writeLong(heavyHitter.getMinimum());
+            pageWriter.write(CELL_END);
+            pageWriter.write(ROW_END);
+        }
+
+        pageWriter.write(TABLE_END);
+    }
+
+    private static void writeCompressionByPathTable(PageWriter pageWriter,
+            List<MetricsFilterMXBean.PathCompression> compressionByPath) throws IOException {
+
+        pageWriter.write(COMPRESSION_BY_PATH_START);
+
+        for (MetricsFilterMXBean.PathCompression pathCompression : compressionByPath) {
+            pageWriter.write(HEAVY_HITTER_ROW_START);
+            pageWriter.writeEscaped(pathCompression.getPath());
+            pageWriter.write(HEAVY_HITTER_CLIENT_END);
+            pageWriter.writeLong(pathCompression.getResponseSize());
+            pageWriter.write(NUMERIC_CELL_START);
+            pageWriter.writeLong(pathCompression.getTransferredResponseSize());
+            pageWriter.write(NUMERIC_CELL_START);
+            pageWriter.writeDouble(pathCompression.getCompressionRatio());
+            pageWriter.write(CELL_END);
+            pageWriter.write(ROW_END);
+        }
+
+        pageWriter.write(TABLE_END);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static void writeChart(PageWriter pageWriter, Map<String, Object> chart) throws IOException {
+
+        pageWriter.write(CHART_START);
+        pageWriter.writeEscaped((String) chart.get("id"));
+        pageWriter.write(CHART_TITLE_START);
+        pageWriter.writeEscaped((String) chart.get("title"));
+        pageWriter.write(CHART_MAXIMUM_START);
+        pageWriter.writeEscaped((String) chart.get("maximum"));
+        pageWriter.write(CHART_FROM_START);
+        pageWriter.writeEscaped((String) chart.get("from"));
+        pageWriter.write(CHART_TO_START);
+        pageWriter.writeEscaped((String) chart.get("to"));
+        pageWriter.write(CHART_SVG_START);
+
+        for (Map<String, Object> series : (List<Map<String, Object>>) chart.get("series")) {
+            pageWriter.write(SERIES_COLOR_START);
+            pageWriter.writeEscaped((String) series.get("color"));
+            pageWriter.write(SERIES_POINTS_START);
+            pageWriter.writeEscaped((String) series.get("points"));
+            pageWriter.write(SERIES_NAME_START);
+            pageWriter.writeEscaped((String) series.get("name"));
+            pageWriter.write(SERIES_END);
+        }
+
+        pageWriter.write(CHART_END);
+    }
+
+    private static void writeMetricCell(PageWriter pageWriter, List<Long> metrics,
+            SpecificResponseMetrics.Metric metric) throws IOException {
+        pageWriter.write(NUMERIC_CELL_START);
+        pageWriter.writeLong(metrics.get(metric.getIndex()));
+    }
+
+    private static Item[] newMetricItems(SpecificResponseMetrics.Metric metric, String label) {
+        return newStatisticItems(label, metric.getMinId(), metric.getMaxId(), metric.getAverageId(),
+                metric::getPercentileId);
+    }
+
+    private static Item[] newStatisticItems(String label, String minimumId, String maximumId, String averageId,
+            IntFunction<String> percentileId) {
+
+        final Item[] items = new Item[3 + MetricsFilter.PERCENTILES.length];
+        items[0] = new Item("Minimum " + label, minimumId);
+        items[1] = new Item("Maximum " + label, maximumId);
+        items[2] = new Item("Average " + label, averageId);
+
+        for (int i = 0; i < MetricsFilter.PERCENTILES.length; i++) {
+            items[3 + i] = new Item(MetricsFilter.PERCENTILES[i] + "th Percentile " + label,
+                    percentileId.apply(MetricsFilter.PERCENTILES[i]));
+        }
+
+        return items;
+    }
+
+    private static byte[] newHeavyHittersTableStart(String id, String caption, String estimateHeading,
+            String minimumHeading) {
+        return encode("<table id=\"" + id + "\">\n<caption>Top Clients by " + caption + "</caption>\n<thead>\n" +
+                "<tr>\n<th>Client</th>\n<th>" + estimateHeading + "</th>\n<th>" + minimumHeading + "</th>\n</tr>\n" +
+                "</thead>\n<tbody>\n");
+    }
+
+    private static byte[] encode(String html) {
+        return html.getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * A list item with a static label whose value is read from the request attribute with the same name as the item's
+     * id.
+     */
+    private static final class Item {
+
+        private final byte[] start;
+        private final String attributeName;
+
+        private Item(String label, String id) {
+            this.start = encode("<li><strong>" + label + ":</strong> <span id=\"" + id + "\">");
+            this.attributeName = id;
+        }
+    }
+
+    /**
+     * Writes UTF-8 into a buffer that is flushed to the output stream whenever it fills up.
+     */
+    private static final class PageWriter {
+
+        private final OutputStream outputStream;
+        private final byte[] buffer;
+        private int position;
+
+        private PageWriter(OutputStream outputStream, byte[] buffer) {
+            this.outputStream = outputStream;
+            this.buffer = buffer;
+        }
+
+        private void write(byte[] bytes) throws IOException {
+
+            if (bytes.length > (buffer.length - position)) {
+
+                flush();
+
+                if (bytes.length > buffer.length) {
+                    outputStream.write(bytes);
+                    return;
+                }
+            }
+
+            System.arraycopy(bytes, 0, buffer, position, bytes.length);
+            position += bytes.length;
+        }
+
+        /**
+         * Writes the value the way that EL would (except that strings are escaped and null is written as nothing).
+         */
+        private void writeValue(Object value) throws IOException {
+
+            if (value instanceof Long || value instanceof Integer) {
+                writeLong(((Number) value).longValue());
+            } else if (value instanceof Double) {
+                writeDouble((Double) value);
+            } else if (value != null) {
+                writeEscaped(value.toString());
+            }
+        }
+
+        private void writeLong(long value) throws IOException {
+
+            // The longest long is 20 characters including the sign.
+            ensureCapacity(20);
+
+            if (value == Long.MIN_VALUE) {
+                writeAscii(Long.toString(value));
+                return;
+            }
+
+            if (value < 0) {
+                buffer[position++] = '-';
+                value = -value;
+            }
+
+            int digitCount = 1;
+
+            for (long remaining = value / 10; remaining != 0; remaining /= 10) {
+                digitCount++;
+            }
+
+            position += digitCount;
+
+            for (int i = position - 1; i >= position - digitCount; i--) {
+                buffer[i] = (byte) ('0' + (value % 10));
+                value /= 10;
+            }
+        }
+
+        private void writeDouble(double value) throws IOException {
+            writeAscii(Double.toString(value));
+        }
+
+        private void writeAscii(String value) throws IOException {
+
+            ensureCapacity(value.length());
+
+            for (int i = 0; i < value.length(); i++) {
+                buffer[position++] = (byte) value.charAt(i);
+            }
+        }
+
+        /**
+         * Writes the string with the same characters escaped as {@code <c:out>}.
+         */
+        private void writeEscaped(String value) throws IOException {
+
+            for (int i = 0; i < value.length(); i++) {
+
+                // The longest escape sequence or UTF-8 encoded character is 6 bytes.
+                ensureCapacity(6);
+
+                final char c = value.charAt(i);
+
+                switch (c) {
+                    case '<':
+                        writeAscii("&lt;");
+                        break;
+                    case '>':
+                        writeAscii("&gt;");
+                        break;
+                    case '&':
+                        writeAscii("&amp;");
+                        break;
+                    case '"':
+                        writeAscii("&#034;");
+                        break;
+                    case '\'':
+                        writeAscii("&#039;");
+                        break;
+                    default:
+
+                        if (c < 0x80) {
+                            buffer[position++] = (byte) c;
+                        } else if (c < 0x800) {
+                            buffer[position++] = (byte) (0xC0 | (c >> 6));
+                            buffer[position++] = (byte) (0x80 | (c & 0x3F));
+                        } else if (Character.isHighSurrogate(c) && (i + 1) < value.length() &&
+                                Character.isLowSurrogate(value.charAt(i + 1))) {
+
+                            final int codePoint = Character.toCodePoint(c, value.charAt(++i));
+                            buffer[position++] = (byte) (0xF0 | (codePoint >> 18));
+                            buffer[position++] = (byte) (0x80 | ((codePoint >> 12) & 0x3F));
+                            buffer[position++] = (byte) (0x80 | ((codePoint >> 6) & 0x3F));
+                            buffer[position++] = (byte) (0x80 | (codePoint & 0x3F));
+                        } else if (Character.isSurrogate(c)) {
+                            buffer[position++] = '?';
+                        } else {
+                            buffer[position++] = (byte) (0xE0 | (c >> 12));
+                            buffer[position++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+                            buffer[position++] = (byte) (0x80 | (c & 0x3F));
+                        }
+
+                        break;
+                }
+            }
+        }
+
+        private void ensureCapacity(int length) throws IOException {
+
+            if (length > (buffer.length - position)) {
+                flush();
+            }
+        }
+
+        private void flush() throws IOException {
+
+            if (position > 0) {
+                outputStream.write(buffer, 0, position);
+                position = 0;
+            }
+        }
+    }
+}
@@ -0,0 +1,401 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2019 Kyle Stiemann.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.github.stiemannkj1.servlet.filter.example;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * <p>
+ * Downsamples the published {@link MetricsSnapshot}s into per-second, per-minute, and per-hour {@link Rollup}s for
+ * long-term trends. Every second, a background thread takes the interval of each histogram since the previous
+ * snapshot, adds a per-second rollup, and adds the interval to the histograms of the current minute. When a minute
+ * ends, its histograms are summarized into a per-minute rollup and added to the histograms of the current hour, and the
+ * same happens when an hour ends. Percentiles of each tier are therefore calculated from the merged histograms of the
+ * whole minute or hour rather than from the percentiles of the finer tier.</p>
+ *
+ * <p>
+ * Each {@link Tier} keeps a fixed number of immutable rollups in a ring and only the current minute and hour keep
+ * histograms, so memory use is bounded no matter how long the node runs. Since rollups are immutable, a {@link
+ * Summary} of every tier only copies references, and it is reused until the next rollup is added. The rollups of a
+ * tier are at most one snapshot refresh interval late, since each second covers the time between two published
+ * snapshots. Resetting the metrics does not remove rollups. This class is thread-safe.</p>
+ *
+ * @author Kyle Stiemann
+ */
+final class MetricsRollups implements Closeable {
+
+    /**
+     * The resolutions that rollups are kept at.
+     */
+    enum Tier {
+
+        SECONDS(TimeUnit.SECONDS.toMillis(1), 300),
+        MINUTES(TimeUnit.MINUTES.toMillis(1), 1440),
+        HOURS(TimeUnit.HOURS.toMillis(1), 672);
+
+        private final long durationMillis;
+        private final int defaultCapacity;
+
+        private Tier(long durationMillis, int defaultCapacity) {
+            this.durationMillis = durationMillis;
+            this.defaultCapacity = defaultCapacity;
+        }
+
+        long getDurationMillis() {
+            return durationMillis;
+        }
+
+        /**
+         * @return the default number of rollups kept (five minutes of seconds, a day of minutes, and four weeks of
+         * hours).
+         */
+        int getDefaultCapacity() {
+            return defaultCapacity;
+        }
+    }
+
+    /**
+     * The statistics that are kept for each metric of a rollup.
+     */
+    enum Statistic {
+        COUNT,
+        SUM,
+        MINIMUM,
+        MAXIMUM,
+        PERCENTILE_50,
+        PERCENTILE_90,
+        PERCENTILE_99
+    }
+
+    private static final Logger logger = Logger.getLogger(MetricsRollups.class.getName());
+    private static final int METRIC_COUNT = SpecificResponseMetrics.Metric.values().length;
+    private static final int VALUE_COUNT = METRIC_COUNT * Statistic.values().length;
+
+    private final Supplier<MetricsSnapshot> metricsSnapshotSupplier;
+    private final Ring[] rings = new Ring[Tier.values().length];
+    private ScheduledExecutorService rollupScheduler;
+
+    // Guarded by this.
+    private final MetricsHistogram[][] accumulators = new MetricsHistogram[Tier.values().length][];
+    private final long[] accumulatorStartMillis = new long[Tier.values().length];
+    private MetricsHistogram[] previousHistograms;
+    private long previousTimestampMillis;
+    private Summary summary;
+
+    /**
+     * @param capacities the number of rollups to keep for each tier indexed by {@link Tier#ordinal()}.
+     * @param metricsSnapshotSupplier supplies the most recently published snapshot.
+     */
+    MetricsRollups(int[] capacities, Supplier<MetricsSnapshot> metricsSnapshotSupplier) {
+
+        this.metricsSnapshotSupplier = metricsSnapshotSupplier;
+
+        for (Tier tier : Tier.values()) {
+
+            rings[tier.ordinal()] = new Ring(capacities[tier.ordinal()]);
+            accumulatorStartMillis[tier.ordinal()] = Long.MIN_VALUE;
+
+            // The rollups of the seconds tier are added directly, so only the coarser tiers need histograms.
+            if (tier != Tier.SECONDS) {
+                accumulators[tier.ordinal()] = ResponseMetricsRecorder.newHistograms();
+            }
+        }
+
+        final MetricsSnapshot metricsSnapshot = metricsSnapshotSupplier.get();
+        previousHistograms = getHistograms(metricsSnapshot);
+        previousTimestampMillis = metricsSnapshot.getTimestampMillis();
+    }
+
+    /**
+     * Starts rolling up a snapshot every second on a background thread.
+     */
+    synchronized void start() {
+
+        rollupScheduler = Executors.newSingleThreadScheduledExecutor((runnable) -> {
+            final Thread thread = new Thread(runnable, MetricsFilter.class.getSimpleName() + " metrics rollups");
+            thread.setDaemon(true);
+            return thread;
+        });
+        rollupScheduler.scheduleWithFixedDelay(() -> {
+
+            try {
+                roll(metricsSnapshotSupplier.get());
+            } catch (RuntimeException e) {
+                logger.log(Level.WARNING, "Failed to roll up metrics.", e);
+            }
+        }, Tier.SECONDS.durationMillis, Tier.SECONDS.durationMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Adds the interval between the previous snapshot and this snapshot to the rollups. Snapshots which are not newer
+     * than the previous snapshot are ignored.
+     */
+    synchronized void roll(MetricsSnapshot metricsSnapshot) {
+
+        final long timestampMillis = metricsSnapshot.getTimestampMillis();
+
+        if (timestampMillis <= previousTimestampMillis) {
+            return;
+        }
+
+        final MetricsHistogram[] histograms = getHistograms(metricsSnapshot);
+        final MetricsHistogram[] intervals = new MetricsHistogram[METRIC_COUNT];
+
+        for (int i = 0; i < METRIC_COUNT; i++) {
+            intervals[i] = histograms[i].getIntervalSince(previousHistograms[i]);
+        }
+
+        // The interval is attributed to the second that it started in.
+        final long startMillis = truncate(previousTimestampMillis, Tier.SECONDS);
+        previousHistograms = histograms;
+        previousTimestampMillis = timestampMillis;
+        rings[Tier.SECONDS.ordinal()].add(startMillis, Tier.SECONDS, intervals);
+        accumulate(Tier.MINUTES, startMillis, intervals);
+        summary = null;
+    }
+
+    /**
+     * @return the rollups of the tier from oldest to newest (not including the current minute or hour).
+     */
+    List<Rollup> getRollups(Tier tier) {
+        return summarize().getRollups(tier);
+    }
+
+    /**
+     * @return the rollups of every tier. The same summary is returned until a rollup is added, so summaries may be
+     * compared by identity to find out whether the rollups changed.
+     */
+    synchronized Summary summarize() {
+
+        if (summary == null) {
+
+            final List<List<Rollup>> tierRollups = new ArrayList<>(rings.length);
+
+            for (Tier tier : Tier.values()) {
+                tierRollups.add(rings[tier.ordinal()].getRollups());
+            }
+
+            summary = new Summary(Collections.unmodifiableList(tierRollups), this);
+        }
+
+        return summary;
+    }
+
+    /**
+     * @return the maximum number of rollups kept for the tier.
+     */
+    int getCapacity(Tier tier) {
+        return rings[tier.ordinal()].rollups.length;
+    }
+
+    /**
+     * Stops the background thread.
+     */
+    @Override
+    public synchronized void close() {
+
+        if (rollupScheduler != null) {
+            rollupScheduler.shutdownNow();
+            rollupScheduler = null;
+        }
+    }
+
+    private void accumulate(Tier tier, long startMillis, MetricsHistogram[] intervals) {
+
+        final int index = tier.ordinal();
+        final long tierStartMillis = truncate(startMillis, tier);
+        final long currentStartMillis = accumulatorStartMillis[index];
+
+        if (currentStartMillis != tierStartMillis) {
+
+            if (currentStartMillis != Long.MIN_VALUE) {
+
+                final MetricsHistogram[] accumulator = accumulators[index];
+                rings[index].add(currentStartMillis, tier, accumulator);
+
+                if (index + 1 < accumulators.length) {
+                    accumulate(Tier.values()[index + 1], currentStartMillis, accumulator);
+                }
+
+                for (MetricsHistogram histogram : accumulator) {
+                    histogram.reset();
+                }
+            }
+
+            accumulatorStartMillis[index] = tierStartMillis;
+        }
+
+        for (int i = 0; i < METRIC_COUNT; i++) {
+            accumulators[index][i].add(intervals[i]);
+        }
+    }
+
+    private static long truncate(long millis, Tier tier) {
+        return Math.floorDiv(millis, tier.durationMillis) * tier.durationMillis;
+    }
+
+    private static MetricsHistogram[] getHistograms(MetricsSnapshot metricsSnapshot) {
+
+        final MetricsHistogram[] histograms = new MetricsHistogram[METRIC_COUNT];
+
+        for (SpecificResponseMetrics.Metric metric : SpecificResponseMetrics.Metric.values()) {
+            histograms[metric.getIndex()] = metricsSnapshot.getHistogram(metric);
+        }
+
+        return histograms;
+    }
+
+    /**
+     * The statistics of every metric over one second, minute, or hour.
+     */
+    static final class Rollup {
+
+        private final long startMillis;
+        private final long durationMillis;
+        private final long[] values;
+
+        private Rollup(long startMillis, long durationMillis, long[] values) {
+            this.startMillis = startMillis;
+            this.durationMillis = durationMillis;
+            this.values = values;
+        }
+
+        /**
+         * @return the start of the second, minute, or hour in milliseconds since the epoch.
+         */
+        long getStartMillis() {
+            return startMillis;
+        }
+
+        long getDurationMillis() {
+            return durationMillis;
+        }
+
+        long get(SpecificResponseMetrics.Metric metric, Statistic statistic) {
+            return values[(metric.getIndex() * Statistic.values().length) + statistic.ordinal()];
+        }
+
+        /**
+         * @return the average value of the metric or zero if no values were recorded.
+         */
+        double getAverage(SpecificResponseMetrics.Metric metric) {
+
+            final long count = get(metric, Statistic.COUNT);
+
+            return (count == 0) ? 0.0 : ((double) get(metric, Statistic.SUM)) / count;
+        }
+    }
+
+    /**
+     * An immutable view of the rollups of every tier.
+     */
+    static final class Summary {
+
+        private final List<List<Rollup>> tierRollups;
+        private final int[] capacities;
+
+        private Summary(List<List<Rollup>> tierRollups, MetricsRollups metricsRollups) {
+
+            this.tierRollups = tierRollups;
+            this.capacities = new int[Tier.values().length];
+
+            for (Tier tier : Tier.values()) {
+                capacities[tier.ordinal()] = metricsRollups.getCapacity(tier);
+            }
+        }
+
+        /**
+         * @return the rollups of the tier from oldest to newest (not including the current minute or hour).
+         */
+        List<Rollup> getRollups(Tier tier) {
+            return tierRollups.get(tier.ordinal());
+        }
+
+        /**
+         * @return the maximum number of rollups kept for the tier.
+         */
+        int getCapacity(Tier tier) {
+            return capacities[tier.ordinal()];
+        }
+    }
+
+    /**
+     * The rollups of a tier (from oldest to newest starting at {@code next - size}).
+     */
+    private static final class Ring {
+
+        private final Rollup[] rollups;
+        private int next;
+        private int size;
+
+        private Ring(int capacity) {
+            this.rollups = new Rollup[capacity];
+        }
+
+        private void add(long rollupStartMillis, Tier tier, MetricsHistogram[] histograms) {
+
+            if (rollups.length == 0) {
+                return;
+            }
+
+            final long[] values = new long[VALUE_COUNT];
+            int valueIndex = 0;
+
+            for (MetricsHistogram histogram : histograms) {
+
+                values[valueIndex++] = histogram.getCount();
+                values[valueIndex++] = histogram.getSum();
+                values[valueIndex++] = histogram.getMinimum();
+                values[valueIndex++] = histogram.getMaximum();
+                values[valueIndex++] = histogram.getValueAtPercentile(50);
+                values[valueIndex++] = histogram.getValueAtPercentile(90);
+                values[valueIndex++] = histogram.getValueAtPercentile(99);
+            }
+
+            rollups[next] = new Rollup(rollupStartMillis, tier.durationMillis, values);
+            next = (next + 1) % rollups.length;
+            size = Math.min(size + 1, rollups.length);
+        }
+
+        private List<Rollup> getRollups() {
+
+            final List<Rollup> orderedRollups = new ArrayList<>(size);
+
+            for (int i = 0; i < size; i++) {
+                orderedRollups.add(rollups[Math.floorMod(next - size + i, rollups.length)]);
+            }
+
+            return Collections.unmodifiableList(orderedRollups);
+        }
+    }
+}
@@ -0,0 +1,258 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2019 Kyle Stiemann.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.github.stiemannkj1.servlet.filter.example;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * An immutable, point-in-time view of the metrics collected by {@link MetricsFilter}. Snapshots are built off of the
+ * request path and published to readers so that reading metrics never contends with recording them.
+ *
+ * @author Kyle Stiemann
+ */
+final class MetricsSnapshot {
+
+    private final long sequence;
+    private final long version;
+    private final long timestampMillis;
+    private final MetricsHistogram[] histograms;
+    private final Map<String, SpecificResponseMetrics> responseMetrics;
+    private final long excludedResponseCount;
+    private final long nanoTime;
+    private final double responsesPerSecond;
+    private final double[] ratesPerSecond;
+    private final HeavyHitters.Summary heavyHitters;
+    private final List<MetricsFilterMXBean.PathCompression> compressionByPath;
+    private final DistinctCounts.Summary distinctCounts;
+    private final AdaptiveConcurrencyLimiter.Summary concurrencyLimiter;
+    private final ResponseCache.Summary responseCache;
+    private final MetricsRollups.Summary rollups;
+
+    /**
+     * @param sequence the monotonically increasing number of this snapshot.
+     * @param version the version of the data in this snapshot (see {@link #getVersion()}).
+     * @param timestampMillis the time this snapshot was built in milliseconds since the epoch.
+     * @param histograms copies of the histograms indexed by {@link SpecificResponseMetrics.Metric#getIndex()} which
+     * must not be mutated after being passed to this constructor.
+     * @param responseMetrics a copy of the recent completed response history (see {@link ResponseHistory}) which must
+     * not be mutated after being passed to this constructor.
+     * @param excludedResponseCount the number of responses that were excluded from measurement.
+     * @param heavyHitters the top clients (or null if heavy hitters are not tracked).
+     * @param compressionByPath the response sizes per path (or null if responses are not compressed).
+     * @param distinctCounts the distinct counts of the last hour (or null if distinct counts are not tracked).
+     * @param concurrencyLimiter the state of the concurrency limiter (or null if concurrency is not limited).
+     * @param responseCache the statistics of the response cache (or null if responses are not cached).
+     * @param rollups the metric rollups (or null if rollups are not recorded).
+     * @param previousMetricsSnapshot the previously built snapshot (or null) which is used to calculate the rates of
+     * the window between the two snapshots. No reference to the previous snapshot is kept.
+     */
+    MetricsSnapshot(long sequence, long version, long timestampMillis, MetricsHistogram[] histograms,
+            Map<String, SpecificResponseMetrics> responseMetrics, long excludedResponseCount,
+            HeavyHitters.Summary heavyHitters, List<MetricsFilterMXBean.PathCompression> compressionByPath,
+            DistinctCounts.Summary distinctCounts, AdaptiveConcurrencyLimiter.Summary concurrencyLimiter,
+            ResponseCache.Summary responseCache, MetricsRollups.Summary rollups,
+            MetricsSnapshot previousMetricsSnapshot) {
+        this(previousMetricsSnapshot, sequence, version, timestampMillis, histograms,
+                Collections.unmodifiableMap(responseMetrics), excludedResponseCount, heavyHitters, compressionByPath,
+                distinctCounts, concurrencyLimiter, responseCache, rollups);
+    }
+
+    /**
+     * Creates a newer snapshot of the same recorded metrics as the previous snapshot without copying them. This must
+     * only be used when no responses have been recorded since the previous snapshot was built. The summaries of the
+     * other sources (which change without responses being recorded) are replaced.
+     *
+     * @param sequence the monotonically increasing number of this snapshot.
+     * @param version the version of the data in this snapshot (see {@link #getVersion()}).
+     * @param timestampMillis the time this snapshot was built in milliseconds since the epoch.
+     * @param previousMetricsSnapshot the previously built snapshot whose recorded metrics are shared with this
+     * snapshot.
+     */
+    MetricsSnapshot(long sequence, long version, long timestampMillis, MetricsSnapshot previousMetricsSnapshot,
+            DistinctCounts.Summary distinctCounts, AdaptiveConcurrencyLimiter.Summary concurrencyLimiter,
+            ResponseCache.Summary responseCache, MetricsRollups.Summary rollups) {
+        this(previousMetricsSnapshot, sequence, version, timestampMillis, previousMetricsSnapshot.histograms,
+                previousMetricsSnapshot.responseMetrics, previousMetricsSnapshot.excludedResponseCount,
+                previousMetricsSnapshot.heavyHitters, previousMetricsSnapshot.compressionByPath, distinctCounts,
+                concurrencyLimiter, responseCache, rollups);
+    }
+
+    /**
+     * @param unmodifiableResponseMetrics an unmodifiable copy of the completed response history (which is shared
+     * rather than wrapped again so that snapshots of unchanged metrics don't nest wrappers).
+     */
+    private MetricsSnapshot(MetricsSnapshot previousMetricsSnapshot, long sequence, long version,
+            long timestampMillis, MetricsHistogram[] histograms,
+            Map<String, SpecificResponseMetrics> unmodifiableResponseMetrics, long excludedResponseCount,
+            HeavyHitters.Summary heavyHitters, List<MetricsFilterMXBean.PathCompression> compressionByPath,
+            DistinctCounts.Summary distinctCounts, AdaptiveConcurrencyLimiter.Summary concurrencyLimiter,
+            ResponseCache.Summary responseCache, MetricsRollups.Summary rollups) {
+        this.sequence = sequence;
+        this.version = version;
+        this.timestampMillis = timestampMillis;
+        this.histograms = histograms;
+        this.responseMetrics = unmodifiableResponseMetrics;
+        this.excludedResponseCount = excludedResponseCount;
+        this.heavyHitters = heavyHitters;
+        this.compressionByPath = compressionByPath;
+        this.distinctCounts = distinctCounts;
+        this.concurrencyLimiter = concurrencyLimiter;
+        this.responseCache = responseCache;
+        this.rollups = rollups;
+        this.nanoTime = System.nanoTime();
+        this.ratesPerSecond = new double[histograms.length];
+
+        final double windowSeconds = (previousMetricsSnapshot == null) ? 0
+                : (nanoTime - previousMetricsSnapshot.nanoTime) / 1_000_000_000.0;
+
+        if (windowSeconds > 0) {
+
+            // Metrics may have been reset since the previous snapshot, in which case the window's rate is unknown.
+            responsesPerSecond = Math.max(0, getResponseCount() - previousMetricsSnapshot.getResponseCount()) /
+                    windowSeconds;
+
+            for (int i = 0; i < histograms.length; i++) {
+                ratesPerSecond[i] = Math.max(0, histograms[i].getSum() -
+                        previousMetricsSnapshot.histograms[i].getSum()) / windowSeconds;
+            }
+        } else {
+            responsesPerSecond = 0;
+        }
+    }
+
+    /**
+     * @return the monotonically increasing number of this snapshot.
+     */
+    long getSequence() {
+        return sequence;
+    }
+
+    /**
+     * @return the version of the data in this snapshot. Snapshots with the same version contain the same data (apart
+     * from their timestamps and rates), so the version only changes when something was recorded or a summarized source
+     * changed.
+     */
+    long getVersion() {
+        return version;
+    }
+
+    /**
+     * @return the time this snapshot was built in milliseconds since the epoch.
+     */
+    long getTimestampMillis() {
+        return timestampMillis;
+    }
+
+    /**
+     * @return the histogram of all recorded values for the metric. The returned histogram must not be mutated.
+     */
+    MetricsHistogram getHistogram(SpecificResponseMetrics.Metric metric) {
+        return histograms[metric.getIndex()];
+    }
+
+    /**
+     * @return an unmodifiable map of response ids to the metrics of the most recently completed responses (from oldest
+     * to newest).
+     */
+    Map<String, SpecificResponseMetrics> getResponseMetrics() {
+        return responseMetrics;
+    }
+
+    /**
+     * @return the number of measured responses.
+     */
+    long getResponseCount() {
+
+        // Response times may include back-filled values (see MetricsHistogram#recordWithExpectedInterval()), so the
+        // responses are counted via a metric that is recorded exactly once per response.
+        return histograms[SpecificResponseMetrics.Metric.RESPONSE_SIZE.getIndex()].getCount();
+    }
+
+    /**
+     * @return the number of measured responses per second in the window between the previous snapshot and this one.
+     */
+    double getResponsesPerSecond() {
+        return responsesPerSecond;
+    }
+
+    /**
+     * @return the sum of the metric's values per second (for example bytes per second for {@link
+     * SpecificResponseMetrics.Metric#RESPONSE_SIZE}) in the window between the previous snapshot and this one.
+     */
+    double getRatePerSecond(SpecificResponseMetrics.Metric metric) {
+        return ratesPerSecond[metric.getIndex()];
+    }
+
+    /**
+     * @return the number of responses that were excluded from measurement.
+     */
+    long getExcludedResponseCount() {
+        return excludedResponseCount;
+    }
+
+    /**
+     * @return the top clients or null if heavy hitters are not tracked.
+     */
+    HeavyHitters.Summary getHeavyHitters() {
+        return heavyHitters;
+    }
+
+    /**
+     * @return an unmodifiable list of the response sizes per path ordered by response size (largest first) or null if
+     * responses are not compressed.
+     */
+    List<MetricsFilterMXBean.PathCompression> getCompressionByPath() {
+        return compressionByPath;
+    }
+
+    /**
+     * @return the distinct counts of the last hour or null if distinct counts are not tracked.
+     */
+    DistinctCounts.Summary getDistinctCounts() {
+        return distinctCounts;
+    }
+
+    /**
+     * @return the state of the concurrency limiter or null if concurrency is not limited.
+     */
+    AdaptiveConcurrencyLimiter.Summary getConcurrencyLimiter() {
+        return concurrencyLimiter;
+    }
+
+    /**
+     * @return the statistics of the response cache or null if responses are not cached.
+     */
+    ResponseCache.Summary getResponseCache() {
+        return responseCache;
+    }
+
+    /**
+     * @return the metric rollups or null if rollups are not recorded.
+     */
+    MetricsRollups.Summary getRollups() {
+        return rollups;
+    }
+}
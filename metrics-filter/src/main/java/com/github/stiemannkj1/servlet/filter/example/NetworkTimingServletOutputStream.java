@@ -0,0 +1,159 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2019 Kyle Stiemann.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.github.stiemannkj1.servlet.filter.example;
+
+import java.io.IOException;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+
+/**
+ * <p>
+ * Accumulates the time spent in bulk writes of at least the minimum timed write size and in flushes and closes of the
+ * container's response stream (see {@link #getNetworkBlockedTime()}). The container blocks in those calls while the
+ * socket drains to a slow client, so the time approximates how long the response was blocked on the network. This
+ * stream wraps the container's stream directly, so it sees the bytes that are sent to the client (after compression)
+ * including those written when the response is finished, and not the copies made by the streams in front of it.</p>
+ *
+ * <p>
+ * Smaller writes usually only copy into the container's buffer, so they are not timed to keep the overhead to two
+ * {@link System#nanoTime()} calls per bulk write.</p>
+ *
+ * @author Kyle Stiemann
+ */
+final class NetworkTimingServletOutputStream extends ServletOutputStream {
+
+    private final ServletOutputStream wrappedServletOutputStream;
+    private final int minimumTimedWriteSize;
+
+    private long untimedSize = 0;
+    private long networkBlockedSize = 0;
+    private long networkBlockedTime = 0;
+
+    /**
+     * @param minimumTimedWriteSize the minimum size in bytes of the writes to time.
+     */
+    public NetworkTimingServletOutputStream(ServletOutputStream wrappedServletOutputStream,
+            int minimumTimedWriteSize) {
+        this.wrappedServletOutputStream = wrappedServletOutputStream;
+        this.minimumTimedWriteSize = minimumTimedWriteSize;
+    }
+
+    @Override
+    public void close() throws IOException {
+
+        // Closing the stream sends the bytes that were buffered by untimed writes.
+        final long startTime = System.nanoTime();
+        wrappedServletOutputStream.close();
+        recordUntimedSizeSent(startTime);
+    }
+
+    @Override
+    public void flush() throws IOException {
+
+        // A flush sends the bytes that were buffered by untimed writes.
+        final long startTime = System.nanoTime();
+        wrappedServletOutputStream.flush();
+        recordUntimedSizeSent(startTime);
+    }
+
+    /**
+     * @return true if any bytes were sent by timed writes, flushes, or closes.
+     */
+    boolean isNetworkBlockingTimed() {
+        return networkBlockedSize > 0;
+    }
+
+    /**
+     * @return the time in nanoseconds spent in timed writes, flushes, and closes.
+     */
+    long getNetworkBlockedTime() {
+        return networkBlockedTime;
+    }
+
+    /**
+     * @return the number of bytes sent per second by the timed writes, flushes, and closes (or zero if no time was
+     * spent in them).
+     */
+    long getClientThroughput() {
+
+        if (networkBlockedTime <= 0) {
+            return 0;
+        }
+
+        return (long) (networkBlockedSize * 1_000_000_000.0 / networkBlockedTime);
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        return wrappedServletOutputStream.equals(obj);
+    }
+
+    @Override
+    public int hashCode() {
+        return wrappedServletOutputStream.hashCode();
+    }
+
+    @Override
+    public boolean isReady() {
+        return wrappedServletOutputStream.isReady();
+    }
+
+    @Override
+    public void setWriteListener(WriteListener writeListener) {
+        wrappedServletOutputStream.setWriteListener(writeListener);
+    }
+
+    @Override
+    public String toString() {
+        return wrappedServletOutputStream.toString();
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        untimedSize++;
+        wrappedServletOutputStream.write(b);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+
+        if (len < minimumTimedWriteSize) {
+
+            untimedSize += len;
+            wrappedServletOutputStream.write(b, off, len);
+        } else {
+
+            final long startTime = System.nanoTime();
+            wrappedServletOutputStream.write(b, off, len);
+            networkBlockedTime += System.nanoTime() - startTime;
+            networkBlockedSize += len;
+        }
+    }
+
+    private void recordUntimedSizeSent(long startTime) {
+        networkBlockedTime += System.nanoTime() - startTime;
+        networkBlockedSize += untimedSize;
+        untimedSize = 0;
+    }
+}
@@ -0,0 +1,310 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2019 Kyle Stiemann.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.github.stiemannkj1.servlet.filter.example;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * <p>
+ * Matches request paths (relative to the context path) against a list of patterns which is compiled once so that
+ * matching never allocates. A request path may be matched as its servlet path and path info without concatenating
+ * them. The following kinds of patterns are supported:</p>
+ * <ul>
+ * <li>Exact paths such as {@code /favicon.ico}. Exact paths are stored in a trie.</li>
+ * <li>Prefixes such as {@code /static/*} (or {@code /static/**}) which match any path starting with {@code /static/}.
+ * Prefixes are stored in a trie.</li>
+ * <li>Suffixes such as {@code *.css} which match any path ending with {@code .css}. Suffixes are stored in a trie of
+ * reversed suffixes.</li>
+ * <li>Any other glob such as {@code /images/*.png} where {@code *} matches any sequence of characters (including
+ * {@code /}) and {@code ?} matches any single character.</li>
+ * </ul>
+ * <p>
+ * This class is immutable and thread-safe.</p>
+ *
+ * @author Kyle Stiemann
+ */
+final class PathMatcher {
+
+    private final TrieNode exactPaths;
+    private final TrieNode prefixes;
+    private final TrieNode reversedSuffixes;
+    private final char[][] globs;
+
+    private PathMatcher(TrieNode exactPaths, TrieNode prefixes, TrieNode reversedSuffixes, char[][] globs) {
+        this.exactPaths = exactPaths;
+        this.prefixes = prefixes;
+        this.reversedSuffixes = reversedSuffixes;
+        this.globs = globs;
+    }
+
+    /**
+     * @param patterns a comma and/or whitespace separated list of patterns.
+     * @return the compiled matcher or null if no patterns were provided.
+     */
+    static PathMatcher compile(String patterns) {
+
+        if (patterns == null) {
+            return null;
+        }
+
+        final TrieNode exactPaths = new TrieNode();
+        final TrieNode prefixes = new TrieNode();
+        final TrieNode reversedSuffixes = new TrieNode();
+        final List<char[]> globs = new ArrayList<>();
+        boolean patternsFound = false;
+
+        for (String pattern : patterns.trim().split("[,\\s]+")) {
+
+            if (pattern.isEmpty()) {
+                continue;
+            }
+
+            patternsFound = true;
+
+            final int firstWildcard = indexOfWildcard(pattern, 0);
+
+            if (firstWildcard < 0) {
+                exactPaths.add(pattern, false);
+            } else if (pattern.endsWith("/**") && firstWildcard == (pattern.length() - 2)) {
+                prefixes.add(pattern.substring(0, pattern.length() - 2), false);
+            } else if (pattern.endsWith("*") && firstWildcard == (pattern.length() - 1)) {
+                prefixes.add(pattern.substring(0, pattern.length() - 1), false);
+            } else if (pattern.startsWith("*") && indexOfWildcard(pattern, 1) < 0) {
+                reversedSuffixes.add(pattern.substring(1), true);
+            } else {
+                globs.add(pattern.toCharArray());
+            }
+        }
+
+        if (!patternsFound) {
+            return null;
+        }
+
+        return new PathMatcher(exactPaths, prefixes, reversedSuffixes, globs.toArray(new char[globs.size()][]));
+    }
+
+    /**
+     * @return true if the path matches any of the patterns.
+     */
+    boolean matches(String path) {
+        return matches(path, null);
+    }
+
+    /**
+     * @param servletPath the servlet path of the request (or null).
+     * @param pathInfo the path info of the request (or null).
+     * @return true if the servlet path followed by the path info matches any of the patterns.
+     */
+    boolean matches(String servletPath, String pathInfo) {
+
+        final String head = (servletPath == null) ? "" : servletPath;
+        final String tail = (pathInfo == null) ? "" : pathInfo;
+
+        if (exactPaths.matches(head, tail) || prefixes.matchesPrefixOf(head, tail) ||
+                reversedSuffixes.matchesSuffixOf(head, tail)) {
+            return true;
+        }
+
+        for (char[] glob : globs) {
+
+            if (matchesGlob(glob, head, tail)) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    private static int indexOfWildcard(String pattern, int fromIndex) {
+
+        for (int i = fromIndex; i < pattern.length(); i++) {
+
+            final char c = pattern.charAt(i);
+
+            if (c == '*' || c == '?') {
+                return i;
+            }
+        }
+
+        return -1;
+    }
+
+    static boolean matchesGlob(char[] glob, String path) {
+        return matchesGlob(glob, path, "");
+    }
+
+    /**
+     * @return true if the path formed by the head followed by the tail matches the glob.
+     */
+    private static boolean matchesGlob(char[] glob, String head, String tail) {
+
+        final int pathLength = head.length() + tail.length();
+        int globIndex = 0;
+        int pathIndex = 0;
+        int starGlobIndex = -1;
+        int starPathIndex = -1;
+
+        while (pathIndex < pathLength) {
+
+            if (globIndex < glob.length &&
+                    (glob[globIndex] == '?' || glob[globIndex] == charAt(head, tail, pathIndex))) {
+                globIndex++;
+                pathIndex++;
+            } else if (globIndex < glob.length && glob[globIndex] == '*') {
+                starGlobIndex = globIndex++;
+                starPathIndex = pathIndex;
+            } else if (starGlobIndex >= 0) {
+
+                // Backtrack by letting the most recent star consume one more character.
+                globIndex = starGlobIndex + 1;
+                pathIndex = ++starPathIndex;
+            } else {
+                return false;
+            }
+        }
+
+        while (globIndex < glob.length && glob[globIndex] == '*') {
+            globIndex++;
+        }
+
+        return globIndex == glob.length;
+    }
+
+    /**
+     * @return the character at the index of the path formed by the head followed by the tail.
+     */
+    private static char charAt(String head, String tail, int index) {
+        return (index < head.length()) ? head.charAt(index) : tail.charAt(index - head.length());
+    }
+
+    private static final class TrieNode {
+
+        private char[] keys = new char[0];
+        private TrieNode[] children = new TrieNode[0];
+        private boolean terminal;
+
+        private void add(String value, boolean reversed) {
+
+            TrieNode node = this;
+
+            for (int i = 0; i < value.length(); i++) {
+                node = node.getOrAddChild(value.charAt(reversed ? (value.length() - 1 - i) : i));
+            }
+
+            node.terminal = true;
+        }
+
+        private TrieNode getOrAddChild(char key) {
+
+            final int index = Arrays.binarySearch(keys, key);
+
+            if (index >= 0) {
+                return children[index];
+            }
+
+            final int insertionIndex = -(index + 1);
+            final char[] newKeys = new char[keys.length + 1];
+            final TrieNode[] newChildren = new TrieNode[children.length + 1];
+            System.arraycopy(keys, 0, newKeys, 0, insertionIndex);
+            System.arraycopy(children, 0, newChildren, 0, insertionIndex);
+            System.arraycopy(keys, insertionIndex, newKeys, insertionIndex + 1, keys.length - insertionIndex);
+            System.arraycopy(children, insertionIndex, newChildren, insertionIndex + 1,
+                    children.length - insertionIndex);
+
+            final TrieNode child = new TrieNode();
+            newKeys[insertionIndex] = key;
+            newChildren[insertionIndex] = child;
+            keys = newKeys;
+            children = newChildren;
+
+            return child;
+        }
+
+        private TrieNode getChild(char key) {
+
+            final int index = Arrays.binarySearch(keys, key);
+
+            if (index < 0) {
+                return null;
+            }
+
+            return children[index];
+        }
+
+        /**
+         * @return true if the path formed by the head followed by the tail was added.
+         */
+        private boolean matches(String head, String tail) {
+
+            final int pathLength = head.length() + tail.length();
+            TrieNode node = this;
+
+            for (int i = 0; i < pathLength; i++) {
+
+                node = node.getChild(charAt(head, tail, i));
+
+                if (node == null) {
+                    return false;
+                }
+            }
+
+            return node.terminal;
+        }
+
+        private boolean matchesPrefixOf(String head, String tail) {
+
+            final int pathLength = head.length() + tail.length();
+            TrieNode node = this;
+
+            for (int i = 0; i < pathLength && !node.terminal; i++) {
+
+                node = node.getChild(charAt(head, tail, i));
+
+                if (node == null) {
+                    return false;
+                }
+            }
+
+            return node.terminal;
+        }
+
+        private boolean matchesSuffixOf(String head, String tail) {
+
+            TrieNode node = this;
+
+            for (int i = head.length() + tail.length() - 1; i >= 0 && !node.terminal; i--) {
+
+                node = node.getChild(charAt(head, tail, i));
+
+                if (node == null) {
+                    return false;
+                }
+            }
+
+            return node.terminal;
+        }
+    }
+}
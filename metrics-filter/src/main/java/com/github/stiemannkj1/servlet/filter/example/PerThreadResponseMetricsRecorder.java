@@ -0,0 +1,169 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2019 Kyle Stiemann.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.github.stiemannkj1.servlet.filter.example;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * <p>
+ * A {@link ResponseMetricsRecorder} that avoids cross-core contention by giving each request thread its own recorder.
+ * Recording threads never write to a cache line that another recording thread writes to. Instead, the per-thread
+ * recorders are merged into cumulative histograms when metrics are read (which only happens once per snapshot).</p>
+ *
+ * <p>
+ * Recorders are selected by {@link Thread#getId() thread id} from a fixed number of {@link #STRIPE_COUNT stripes}
+ * rather than stored in a {@link ThreadLocal}, so that container threads never hold on to this web application's
+ * classes after it is undeployed. Since thread ids are assigned sequentially, a pool of up to {@link #STRIPE_COUNT}
+ * request threads maps each thread to its own recorder. Threads that share a recorder are still recorded correctly
+ * since {@link MetricsHistogram} is thread-safe. Each recorder is allocated lazily by the first thread that uses it and
+ * uses a {@link WriterReaderPhaser} to swap its active histograms for inactive ones when metrics are read, so recording
+ * threads never wait for readers.</p>
+ *
+ * @author Kyle Stiemann
+ */
+final class PerThreadResponseMetricsRecorder implements ResponseMetricsRecorder {
+
+    static final int STRIPE_COUNT = Math.min(256,
+            Integer.highestOneBit(Math.max(1, (Runtime.getRuntime().availableProcessors() * 2) - 1)) << 1);
+
+    private final AtomicReferenceArray<ThreadRecorder> threadRecorders = new AtomicReferenceArray<>(STRIPE_COUNT);
+
+    // Guarded by this.
+    private final MetricsHistogram[] cumulativeHistograms = ResponseMetricsRecorder.newHistograms();
+
+    private final long expectedResponseTimeInterval;
+
+    PerThreadResponseMetricsRecorder() {
+        this(0);
+    }
+
+    /**
+     * @param expectedResponseTimeInterval the expected interval between responses in nanoseconds used to correct the
+     * response times for coordinated omission or zero to record the response times as measured.
+     */
+    PerThreadResponseMetricsRecorder(long expectedResponseTimeInterval) {
+        this.expectedResponseTimeInterval = expectedResponseTimeInterval;
+    }
+
+    /**
+     * @return the stripe index of the current thread which is less than {@link #STRIPE_COUNT}.
+     */
+    static int getCurrentThreadStripe() {
+        return ((int) Thread.currentThread().getId()) & (STRIPE_COUNT - 1);
+    }
+
+    @Override
+    public void record(List<Long> metrics) {
+
+        final int stripe = getCurrentThreadStripe();
+        ThreadRecorder threadRecorder = threadRecorders.get(stripe);
+
+        if (threadRecorder == null) {
+
+            threadRecorder = new ThreadRecorder();
+
+            if (!threadRecorders.compareAndSet(stripe, null, threadRecorder)) {
+                threadRecorder = threadRecorders.get(stripe);
+            }
+        }
+
+        threadRecorder.record(metrics, expectedResponseTimeInterval);
+    }
+
+    @Override
+    public synchronized MetricsHistogram[] copyHistograms() {
+
+        mergeThreadRecorders();
+
+        return ResponseMetricsRecorder.copyOf(cumulativeHistograms);
+    }
+
+    @Override
+    public synchronized void reset() {
+
+        mergeThreadRecorders();
+
+        for (MetricsHistogram cumulativeHistogram : cumulativeHistograms) {
+            cumulativeHistogram.reset();
+        }
+    }
+
+    private void mergeThreadRecorders() {
+
+        for (int i = 0; i < STRIPE_COUNT; i++) {
+
+            final ThreadRecorder threadRecorder = threadRecorders.get(i);
+
+            if (threadRecorder != null) {
+                threadRecorder.mergeInto(cumulativeHistograms);
+            }
+        }
+    }
+
+    private static final class ThreadRecorder {
+
+        private final WriterReaderPhaser phaser = new WriterReaderPhaser();
+        private volatile MetricsHistogram[] activeHistograms = ResponseMetricsRecorder.newHistograms();
+
+        // Guarded by the phaser's reader lock.
+        private MetricsHistogram[] inactiveHistograms = ResponseMetricsRecorder.newHistograms();
+
+        void record(List<Long> metrics, long expectedResponseTimeInterval) {
+
+            final long criticalValueAtEnter = phaser.writerCriticalSectionEnter();
+
+            try {
+                ResponseMetricsRecorder.record(activeHistograms, metrics, expectedResponseTimeInterval);
+            } finally {
+                phaser.writerCriticalSectionExit(criticalValueAtEnter);
+            }
+        }
+
+        /**
+         * Swaps the active histograms for the (empty) inactive histograms, waits for in-flight recordings to finish,
+         * and then adds the previously active histograms to the cumulative histograms and resets them.
+         */
+        void mergeInto(MetricsHistogram[] cumulativeHistograms) {
+
+            phaser.readerLock();
+
+            try {
+
+                final MetricsHistogram[] retiredHistograms = activeHistograms;
+                activeHistograms = inactiveHistograms;
+                phaser.flipPhase();
+
+                for (int i = 0; i < retiredHistograms.length; i++) {
+                    cumulativeHistograms[i].add(retiredHistograms[i]);
+                    retiredHistograms[i].reset();
+                }
+
+                inactiveHistograms = retiredHistograms;
+            } finally {
+                phaser.readerUnlock();
+            }
+        }
+    }
+}
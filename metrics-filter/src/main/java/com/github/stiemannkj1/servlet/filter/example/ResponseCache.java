@@ -0,0 +1,737 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2019 Kyle Stiemann.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.github.stiemannkj1.servlet.filter.example;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * <p>
+ * Caches the responses of {@code GET} requests for configured paths in memory. The body of a response is captured while
+ * it is written to the client by {@link ResponseSizeServletOutputStreamWrapper} (before any compression), so the
+ * request that populates the cache is not delayed. When a response is not cached yet, concurrent requests for the
+ * same path and query string wait for and share the single request that populates the cache. The response is cached
+ * as soon as its body is complete (before any held back or compressed data is written to the client), so waiting
+ * requests never wait for the network write of the populating request. Requests wait for at most the configured
+ * maximum wait time and then run the filter chain independently, so a slow or stuck request that populates the cache
+ * cannot stall the requests queued behind it. Cached responses are
+ * written directly from their body array without running the filter chain, and their latency is recorded in a separate
+ * {@link #getHitTimes() histogram} instead of the response metrics.</p>
+ *
+ * <p>
+ * {@code Cache-Control} is honored as it would be by a shared cache. Requests with {@code no-cache} or {@code no-store}
+ * (or an {@code Authorization} header) bypass the cache. Responses with {@code no-store}, {@code no-cache}, or {@code
+ * private}, a {@code Set-Cookie} header, a {@code Vary} header other than {@code Accept-Encoding}, or a status other
+ * than {@code 200 OK} are not cached. {@code s-maxage} or {@code max-age} determines how long a response is cached;
+ * otherwise the default time-to-live is used. Hits carry an {@code Age} header and are answered with {@code 304 Not
+ * Modified} when the cached {@code ETag} matches {@code If-None-Match}.</p>
+ *
+ * <p>
+ * The total size of the cached bodies (and their headers) is bounded. When a new response would exceed the bound, the
+ * least recently used responses are evicted. Recency is updated on a best-effort basis so that hits never wait for the
+ * eviction lock. Responses larger than 1/8th of the bound are never cached. Bodies are captured into pooled chunks
+ * which are copied into a single array once the response is known to be cacheable. This class is thread-safe.</p>
+ *
+ * @author Kyle Stiemann
+ */
+final class ResponseCache {
+
+    static final long DEFAULT_MAXIMUM_SIZE = 16 * 1024 * 1024;
+    static final long DEFAULT_TIME_TO_LIVE_MILLIS = 60000;
+    static final long DEFAULT_MAXIMUM_WAIT_MILLIS = 1000;
+
+    private static final int CHUNK_SIZE_BITS = 12;
+    private static final int CHUNK_SIZE = 1 << CHUNK_SIZE_BITS;
+    private static final int MAXIMUM_POOLED_CHUNKS = 256;
+    private static final Set<String> UNCACHED_HEADERS = new HashSet<>(Arrays.asList("age", "connection",
+            "content-encoding", "content-length", "content-type", "date", "set-cookie", "transfer-encoding", "vary",
+            MetricsFilter.UNIQUE_RESPONSE_ID.toLowerCase(Locale.ENGLISH)));
+
+    private final PathMatcher cachedPaths;
+    private final long maximumSize;
+    private final long maximumEntrySize;
+    private final long defaultTimeToLiveNanos;
+    private final long maximumWaitNanos;
+    private final ConcurrentMap<String, CompletableFuture<CachedResponse>> cachedResponses =
+            new ConcurrentHashMap<>();
+    private final ReentrantLock evictionLock = new ReentrantLock();
+    private final ConcurrentLinkedQueue<byte[]> pooledChunks = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger pooledChunkCount = new AtomicInteger();
+    private final MetricsHistogram hitTimes = new MetricsHistogram();
+    private final LongAdder hitCount = new LongAdder();
+    private final LongAdder missCount = new LongAdder();
+    private final LongAdder evictionCount = new LongAdder();
+
+    // Guarded by evictionLock.
+    private final LinkedHashMap<String, CachedResponse> leastRecentlyUsed = new LinkedHashMap<>(16, 0.75f, true);
+    private long size;
+
+    /**
+     * @param cachedPaths the paths whose responses may be cached.
+     * @param maximumSize the maximum total size in bytes of the cached responses.
+     * @param defaultTimeToLiveMillis the time in milliseconds that a response without {@code max-age} is cached.
+     * @param maximumWaitMillis the maximum time in milliseconds that a request waits for a concurrent request to
+     * populate the cache before running the filter chain itself.
+     */
+    ResponseCache(PathMatcher cachedPaths, long maximumSize, long defaultTimeToLiveMillis, long maximumWaitMillis) {
+        this.cachedPaths = cachedPaths;
+        this.maximumSize = maximumSize;
+        this.maximumEntrySize = Math.min(maximumSize / 8, Integer.MAX_VALUE - 8);
+        this.defaultTimeToLiveNanos = TimeUnit.MILLISECONDS.toNanos(defaultTimeToLiveMillis);
+        this.maximumWaitNanos = TimeUnit.MILLISECONDS.toNanos(maximumWaitMillis);
+    }
+
+    /**
+     * @param path the path of the request relative to the context path.
+     * @return true if the request is a {@code GET} request for a cached path which allows a cached response.
+     */
+    boolean isCacheable(HttpServletRequest request, String path) {
+
+        if (!"GET".equals(request.getMethod()) || !cachedPaths.matches(path) ||
+                request.getHeader("Authorization") != null) {
+            return false;
+        }
+
+        final String cacheControl = request.getHeader("Cache-Control");
+
+        if (cacheControl != null) {
+
+            final String lowerCaseCacheControl = cacheControl.toLowerCase(Locale.ENGLISH);
+
+            if (lowerCaseCacheControl.contains("no-cache") || lowerCaseCacheControl.contains("no-store")) {
+                return false;
+            }
+        }
+
+        final String pragma = request.getHeader("Pragma");
+
+        return pragma == null || !pragma.toLowerCase(Locale.ENGLISH).contains("no-cache");
+    }
+
+    /**
+     * Writes the cached response (waiting for a concurrent request to populate the cache if necessary) or determines
+     * that this request must run the filter chain.
+     *
+     * @param path the path of the request relative to the context path.
+     * @return null if the response was written from the cache, otherwise a capture which must be {@link
+     * ResponseCapture#complete(ResponseSizeHttpServletResponseWrapper, boolean) completed} once the body is complete
+     * (see {@link ResponseSizeHttpServletResponseWrapper#captureResponseBody(ResponseCache.ResponseCapture)}) and
+     * {@link ResponseCapture#abandon() abandoned} once the response is done. The capture only populates the cache if this
+     * request was chosen to populate it.
+     */
+    ResponseCapture serve(HttpServletRequest request, HttpServletResponse response, String path)
+            throws IOException, ServletException {
+
+        final long startTime = System.nanoTime();
+        final String queryString = request.getQueryString();
+        final String key = (queryString == null) ? path : (path + "?" + queryString);
+
+        while (true) {
+
+            final CompletableFuture<CachedResponse> cachedResponseFuture = cachedResponses.get(key);
+
+            if (cachedResponseFuture == null) {
+
+                final CompletableFuture<CachedResponse> captureFuture = new CompletableFuture<>();
+
+                if (cachedResponses.putIfAbsent(key, captureFuture) == null) {
+                    missCount.increment();
+                    return new ResponseCapture(this, key, captureFuture);
+                }
+
+                continue;
+            }
+
+            final CachedResponse cachedResponse = await(cachedResponseFuture);
+
+            if (cachedResponse == null) {
+
+                // The response could not be cached or the populating request is taking too long, so run the filter
+                // chain independently.
+                missCount.increment();
+                return new ResponseCapture(this, key, null);
+            }
+
+            final long nowNanos = System.nanoTime();
+
+            if (nowNanos - cachedResponse.expirationNanos >= 0) {
+                invalidate(key, cachedResponseFuture, cachedResponse);
+                continue;
+            }
+
+            write(cachedResponse, request, response, nowNanos);
+            touch(key);
+            hitCount.increment();
+            hitTimes.record(System.nanoTime() - startTime);
+
+            return null;
+        }
+    }
+
+    /**
+     * Removes all cached responses (responses that are being captured are still cached once they complete).
+     */
+    void clear() {
+
+        evictionLock.lock();
+
+        try {
+
+            cachedResponses.values().removeIf(CompletableFuture::isDone);
+            leastRecentlyUsed.clear();
+            size = 0;
+        } finally {
+            evictionLock.unlock();
+        }
+    }
+
+    /**
+     * Resets the hit time histogram and the hit, miss, and eviction counts.
+     */
+    void resetStatistics() {
+        hitTimes.reset();
+        hitCount.reset();
+        missCount.reset();
+        evictionCount.reset();
+    }
+
+    /**
+     * @return the histogram of the time in nanoseconds taken to write cached responses (including any time spent
+     * waiting for a concurrent request to populate the cache).
+     */
+    MetricsHistogram getHitTimes() {
+        return hitTimes;
+    }
+
+    long getHitCount() {
+        return hitCount.sum();
+    }
+
+    long getMissCount() {
+        return missCount.sum();
+    }
+
+    long getEvictionCount() {
+        return evictionCount.sum();
+    }
+
+    int getCachedResponseCount() {
+
+        evictionLock.lock();
+
+        try {
+            return leastRecentlyUsed.size();
+        } finally {
+            evictionLock.unlock();
+        }
+    }
+
+    /**
+     * @return the total size in bytes of the cached responses.
+     */
+    long getSize() {
+
+        evictionLock.lock();
+
+        try {
+            return size;
+        } finally {
+            evictionLock.unlock();
+        }
+    }
+
+    /**
+     * @return the current statistics of the cache (with a copy of the hit time histogram).
+     */
+    Summary summarize() {
+
+        final int cachedResponseCount;
+        final long currentSize;
+        evictionLock.lock();
+
+        try {
+            cachedResponseCount = leastRecentlyUsed.size();
+            currentSize = size;
+        } finally {
+            evictionLock.unlock();
+        }
+
+        return new Summary(hitCount.sum(), missCount.sum(), evictionCount.sum(), cachedResponseCount, currentSize,
+                hitTimes.copy());
+    }
+
+    private void store(String key, CompletableFuture<CachedResponse> captureFuture, CachedResponse cachedResponse) {
+
+        evictionLock.lock();
+
+        try {
+
+            final CachedResponse previousCachedResponse = leastRecentlyUsed.put(key, cachedResponse);
+
+            if (previousCachedResponse != null) {
+                size -= previousCachedResponse.size;
+            }
+
+            size += cachedResponse.size;
+
+            final Iterator<Map.Entry<String, CachedResponse>> iterator = leastRecentlyUsed.entrySet().iterator();
+
+            while (size > maximumSize && iterator.hasNext()) {
+
+                final Map.Entry<String, CachedResponse> eldestEntry = iterator.next();
+                final CachedResponse evictedCachedResponse = eldestEntry.getValue();
+                iterator.remove();
+                size -= evictedCachedResponse.size;
+                cachedResponses.computeIfPresent(eldestEntry.getKey(), (evictedKey, evictedFuture) -> {
+                    return (evictedFuture.getNow(null) == evictedCachedResponse) ? null : evictedFuture;
+                });
+                evictionCount.increment();
+            }
+        } finally {
+            evictionLock.unlock();
+        }
+
+        captureFuture.complete(cachedResponse);
+    }
+
+    private void invalidate(String key, CompletableFuture<CachedResponse> cachedResponseFuture,
+            CachedResponse cachedResponse) {
+
+        if (cachedResponses.remove(key, cachedResponseFuture)) {
+
+            evictionLock.lock();
+
+            try {
+
+                if (leastRecentlyUsed.remove(key, cachedResponse)) {
+                    size -= cachedResponse.size;
+                }
+            } finally {
+                evictionLock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Marks the response as recently used unless another thread holds the eviction lock (in which case a hit is
+     * simply not counted towards the recency of the response).
+     */
+    private void touch(String key) {
+
+        if (evictionLock.tryLock()) {
+
+            try {
+                leastRecentlyUsed.get(key);
+            } finally {
+                evictionLock.unlock();
+            }
+        }
+    }
+
+    private byte[] borrowChunk() {
+
+        final byte[] chunk = pooledChunks.poll();
+
+        if (chunk == null) {
+            return new byte[CHUNK_SIZE];
+        }
+
+        pooledChunkCount.decrementAndGet();
+        return chunk;
+    }
+
+    private void releaseChunks(List<byte[]> chunks) {
+
+        for (byte[] chunk : chunks) {
+
+            if (pooledChunkCount.incrementAndGet() <= MAXIMUM_POOLED_CHUNKS) {
+                pooledChunks.offer(chunk);
+            } else {
+                pooledChunkCount.decrementAndGet();
+            }
+        }
+
+        chunks.clear();
+    }
+
+    private static void write(CachedResponse cachedResponse, HttpServletRequest request, HttpServletResponse response,
+            long nowNanos) throws IOException {
+
+        for (int i = 0; i < cachedResponse.headers.length; i += 2) {
+            response.addHeader(cachedResponse.headers[i], cachedResponse.headers[i + 1]);
+        }
+
+        response.setHeader("Age", Long.toString(TimeUnit.NANOSECONDS.toSeconds(nowNanos -
+                cachedResponse.storedNanos)));
+
+        if (cachedResponse.eTag != null &&
+                MetricsPageCache.matchesIfNoneMatch(request.getHeader("If-None-Match"), cachedResponse.eTag)) {
+            response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+            return;
+        }
+
+        if (cachedResponse.contentType != null) {
+            response.setContentType(cachedResponse.contentType);
+        }
+
+        response.setContentLength(cachedResponse.body.length);
+        response.getOutputStream().write(cachedResponse.body);
+    }
+
+    /**
+     * @return the cached response or null if the response could not be cached or was not cached within the maximum
+     * wait time.
+     */
+    private CachedResponse await(CompletableFuture<CachedResponse> cachedResponseFuture) throws ServletException {
+
+        try {
+            return cachedResponseFuture.get(maximumWaitNanos, TimeUnit.NANOSECONDS);
+        } catch (TimeoutException e) {
+            return null;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ServletException("Interrupted while waiting for the response cache to be populated.", e);
+        } catch (ExecutionException e) {
+
+            // Captures never complete exceptionally.
+            throw new ServletException("Failed to populate the response cache.", e.getCause());
+        }
+    }
+
+    /**
+     * @return the time in nanoseconds that the response may be cached or a non-positive number if it must not be
+     * cached.
+     */
+    private long getTimeToLiveNanos(String cacheControl) {
+
+        if (cacheControl == null) {
+            return defaultTimeToLiveNanos;
+        }
+
+        long maxAgeSeconds = -1;
+
+        for (String directive : cacheControl.toLowerCase(Locale.ENGLISH).split(",")) {
+
+            directive = directive.trim();
+
+            if (directive.equals("no-store") || directive.startsWith("no-cache") || directive.startsWith("private")) {
+                return 0;
+            }
+
+            final boolean sharedMaxAge = directive.startsWith("s-maxage=");
+
+            if (sharedMaxAge || (directive.startsWith("max-age=") && maxAgeSeconds < 0)) {
+
+                try {
+                    maxAgeSeconds = Long.parseLong(directive.substring(directive.indexOf('=') + 1).trim());
+                } catch (NumberFormatException e) {
+                    return 0;
+                }
+            }
+        }
+
+        if (maxAgeSeconds < 0) {
+            return defaultTimeToLiveNanos;
+        }
+
+        return TimeUnit.SECONDS.toNanos(maxAgeSeconds);
+    }
+
+    /**
+     * Captures the body of a response into pooled chunks as it is written and caches the response once its body is
+     * complete (if it is cacheable). A capture is only used by the thread processing its request.
+     */
+    static final class ResponseCapture {
+
+        private final ResponseCache responseCache;
+        private final String key;
+        private final CompletableFuture<CachedResponse> captureFuture;
+        private final List<byte[]> chunks = new ArrayList<>();
+
+        private int size;
+        private boolean capturing;
+
+        private ResponseCapture(ResponseCache responseCache, String key,
+                CompletableFuture<CachedResponse> captureFuture) {
+            this.responseCache = responseCache;
+            this.key = key;
+            this.captureFuture = captureFuture;
+            this.capturing = (captureFuture != null);
+        }
+
+        void write(int b) {
+
+            if (!capturing) {
+                return;
+            }
+
+            if (size >= responseCache.maximumEntrySize) {
+                stopCapturing();
+                return;
+            }
+
+            final int chunkIndex = size >>> CHUNK_SIZE_BITS;
+
+            if (chunkIndex == chunks.size()) {
+                chunks.add(responseCache.borrowChunk());
+            }
+
+            chunks.get(chunkIndex)[size & (CHUNK_SIZE - 1)] = (byte) b;
+            size++;
+        }
+
+        void write(byte[] b, int off, int len) {
+
+            if (!capturing) {
+                return;
+            }
+
+            if (len > responseCache.maximumEntrySize - size) {
+                stopCapturing();
+                return;
+            }
+
+            while (len > 0) {
+
+                final int chunkIndex = size >>> CHUNK_SIZE_BITS;
+
+                if (chunkIndex == chunks.size()) {
+                    chunks.add(responseCache.borrowChunk());
+                }
+
+                final int chunkOffset = size & (CHUNK_SIZE - 1);
+                final int copied = Math.min(len, CHUNK_SIZE - chunkOffset);
+                System.arraycopy(b, off, chunks.get(chunkIndex), chunkOffset, copied);
+                size += copied;
+                off += copied;
+                len -= copied;
+            }
+        }
+
+        /**
+         * Discards the captured body (for example because the response buffer was reset).
+         */
+        void reset() {
+            size = 0;
+        }
+
+        /**
+         * Caches the response if it is cacheable and allows requests waiting for it to proceed. This method must be
+         * called once the body has been written by the application but before any held back data is written to the
+         * client, so that waiting requests do not wait for the network. Calling this method after the capture has been
+         * completed or abandoned has no effect.
+         *
+         * @param compressed true if the response was compressed by the filter (in which case the captured body is
+         * uncompressed and the encoding headers are not cached).
+         */
+        void complete(ResponseSizeHttpServletResponseWrapper response, boolean compressed) {
+
+            if (!capturing) {
+                abandon();
+                return;
+            }
+
+            final long timeToLiveNanos = responseCache.getTimeToLiveNanos(response.getHeader("Cache-Control"));
+            final String vary = response.getHeader("Vary");
+
+            if (response.getStatus() != HttpServletResponse.SC_OK || timeToLiveNanos <= 0 ||
+                    response.getHeader("Set-Cookie") != null ||
+                    (vary != null && !"accept-encoding".equalsIgnoreCase(vary.trim())) ||
+                    (!compressed && response.getHeader("Content-Encoding") != null)) {
+                abandon();
+                return;
+            }
+
+            final byte[] body = new byte[size];
+
+            for (int i = 0, offset = 0; offset < size; i++, offset += CHUNK_SIZE) {
+                System.arraycopy(chunks.get(i), 0, body, offset, Math.min(CHUNK_SIZE, size - offset));
+            }
+
+            final List<String> headers = new ArrayList<>();
+            long headersSize = key.length();
+            final Collection<String> headerNames = response.getHeaderNames();
+
+            if (headerNames != null) {
+
+                for (String headerName : new HashSet<>(headerNames)) {
+
+                    if (UNCACHED_HEADERS.contains(headerName.toLowerCase(Locale.ENGLISH))) {
+                        continue;
+                    }
+
+                    for (String headerValue : response.getHeaders(headerName)) {
+                        headers.add(headerName);
+                        headers.add(headerValue);
+                        headersSize += headerName.length() + headerValue.length();
+                    }
+                }
+            }
+
+            final long nowNanos = System.nanoTime();
+            final CachedResponse cachedResponse = new CachedResponse(body, response.getContentType(),
+                    response.getHeader("ETag"), headers.toArray(new String[headers.size()]), body.length + headersSize,
+                    nowNanos, nowNanos + timeToLiveNanos);
+            capturing = false;
+            responseCache.releaseChunks(chunks);
+            responseCache.store(key, captureFuture, cachedResponse);
+        }
+
+        /**
+         * Allows requests waiting for this response to proceed without caching it. This method may be called more than
+         * once and after {@link #complete(ResponseSizeHttpServletResponseWrapper, boolean)}.
+         */
+        void abandon() {
+
+            if (captureFuture != null && !captureFuture.isDone()) {
+                stopCapturing();
+                responseCache.cachedResponses.remove(key, captureFuture);
+                captureFuture.complete(null);
+            }
+        }
+
+        private void stopCapturing() {
+            capturing = false;
+            size = 0;
+            responseCache.releaseChunks(chunks);
+        }
+    }
+
+    private static final class CachedResponse {
+
+        private final byte[] body;
+        private final String contentType;
+        private final String eTag;
+
+        // Alternating header names and values.
+        private final String[] headers;
+        private final long size;
+        private final long storedNanos;
+        private final long expirationNanos;
+
+        private CachedResponse(byte[] body, String contentType, String eTag, String[] headers, long size,
+                long storedNanos, long expirationNanos) {
+            this.body = body;
+            this.contentType = contentType;
+            this.eTag = eTag;
+            this.headers = headers;
+            this.size = size;
+            this.storedNanos = storedNanos;
+            this.expirationNanos = expirationNanos;
+        }
+    }
+
+    /**
+     * An immutable summary of the cache's statistics. Summaries are equal if their counts, sizes, and hit time totals
+     * are equal (the hit times only change when hits are recorded, so their buckets aren't compared).
+     */
+    static final class Summary {
+
+        private final long hitCount;
+        private final long missCount;
+        private final long evictionCount;
+        private final int cachedResponseCount;
+        private final long size;
+        private final MetricsHistogram hitTimes;
+
+        private Summary(long hitCount, long missCount, long evictionCount, int cachedResponseCount, long size,
+                MetricsHistogram hitTimes) {
+            this.hitCount = hitCount;
+            this.missCount = missCount;
+            this.evictionCount = evictionCount;
+            this.cachedResponseCount = cachedResponseCount;
+            this.size = size;
+            this.hitTimes = hitTimes;
+        }
+
+        long getHitCount() {
+            return hitCount;
+        }
+
+        long getMissCount() {
+            return missCount;
+        }
+
+        long getEvictionCount() {
+            return evictionCount;
+        }
+
+        int getCachedResponseCount() {
+            return cachedResponseCount;
+        }
+
+        long getSize() {
+            return size;
+        }
+
+        /**
+         * @return the histogram of the hit times which must not be mutated.
+         */
+        MetricsHistogram getHitTimes() {
+            return hitTimes;
+        }
+
+        @Override
+        public boolean equals(Object object) {
+
+            if (!(object instanceof Summary)) {
+                return false;
+            }
+
+            final Summary summary = (Summary) object;
+
+            return hitCount == summary.hitCount && missCount == summary.missCount &&
+                    evictionCount == summary.evictionCount && cachedResponseCount == summary.cachedResponseCount &&
+                    size == summary.size && hitTimes.getCount() == summary.hitTimes.getCount() &&
+                    hitTimes.getSum() == summary.hitTimes.getSum();
+        }
+
+        @Override
+        public int hashCode() {
+            return Long.hashCode(hitCount + (31 * missCount) + (961 * evictionCount) + size);
+        }
+    }
+}
@@ -0,0 +1,351 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2019 Kyle Stiemann.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.github.stiemannkj1.servlet.filter.example;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * <p>
+ * The configuration for compressing responses on the fly along with pools of {@link Deflater}s (and their buffers) so
+ * that compressing a response does not allocate a new {@link Deflater} or native zlib stream. {@link #close()} must be
+ * called once responses are no longer compressed to free the native zlib streams of the pooled {@link Deflater}s.</p>
+ *
+ * <p>
+ * The response and transferred sizes are also totaled per path (for the first {@value #MAXIMUM_TRACKED_PATHS} distinct
+ * paths, so memory doesn't grow with the number of paths) so that the compression ratio of each path can be compared.
+ * This class is thread-safe.</p>
+ *
+ * @author Kyle Stiemann
+ */
+final class ResponseCompression {
+
+    static final String GZIP = "gzip";
+    static final String DEFLATE = "deflate";
+    static final int DEFAULT_MINIMUM_SIZE = 1024;
+    static final int MAXIMUM_TRACKED_PATHS = 256;
+    static final String DEFAULT_COMPRESSIBLE_CONTENT_TYPES = "text/html, text/plain, text/css, text/xml, " +
+            "text/javascript, application/javascript, application/json, application/xml, image/svg+xml";
+
+    private static final int MINIMUM_BUFFER_SIZE = 8192;
+    private static final int MAXIMUM_POOLED_DEFLATERS = Runtime.getRuntime().availableProcessors() * 4;
+
+    private final int minimumSize;
+    private final int bufferSize;
+    private final Set<String> compressibleContentTypes;
+    private final DeflaterPool gzipDeflaterPool = new DeflaterPool(true);
+    private final DeflaterPool deflateDeflaterPool = new DeflaterPool(false);
+    private final ConcurrentMap<String, PathSizes> pathSizes = new ConcurrentHashMap<>();
+
+    private volatile boolean closed = false;
+
+    /**
+     * @param minimumSize the minimum response size in bytes that will be compressed.
+     * @param compressibleContentTypes a comma and/or whitespace separated list of content types (without parameters)
+     * that will be compressed.
+     */
+    ResponseCompression(int minimumSize, String compressibleContentTypes) {
+
+        this.minimumSize = minimumSize;
+        this.bufferSize = Math.max(minimumSize, MINIMUM_BUFFER_SIZE);
+        this.compressibleContentTypes = new HashSet<>();
+
+        for (String contentType : compressibleContentTypes.trim().split("[,\\s]+")) {
+
+            if (!contentType.isEmpty()) {
+                this.compressibleContentTypes.add(contentType.toLowerCase(Locale.ENGLISH));
+            }
+        }
+    }
+
+    /**
+     * @return the minimum response size in bytes that will be compressed.
+     */
+    int getMinimumSize() {
+        return minimumSize;
+    }
+
+    /**
+     * @param acceptEncoding the value of the request's {@code Accept-Encoding} header.
+     * @return {@link #GZIP}, {@link #DEFLATE}, or null if the client does not accept either encoding.
+     */
+    static String selectEncoding(String acceptEncoding) {
+
+        if (acceptEncoding == null) {
+            return null;
+        }
+
+        double gzipQuality = -1;
+        double deflateQuality = -1;
+        double anyQuality = -1;
+
+        for (String encoding : acceptEncoding.split(",")) {
+
+            final int parametersIndex = encoding.indexOf(';');
+            final String coding = ((parametersIndex < 0) ? encoding : encoding.substring(0, parametersIndex)).trim();
+            final double quality = (parametersIndex < 0) ? 1.0 : getQuality(encoding.substring(parametersIndex + 1));
+
+            if (GZIP.equalsIgnoreCase(coding) || "x-gzip".equalsIgnoreCase(coding)) {
+                gzipQuality = quality;
+            } else if (DEFLATE.equalsIgnoreCase(coding)) {
+                deflateQuality = quality;
+            } else if ("*".equals(coding)) {
+                anyQuality = quality;
+            }
+        }
+
+        if (gzipQuality < 0) {
+            gzipQuality = anyQuality;
+        }
+
+        if (deflateQuality < 0) {
+            deflateQuality = anyQuality;
+        }
+
+        if (gzipQuality > 0 && gzipQuality >= deflateQuality) {
+            return GZIP;
+        } else if (deflateQuality > 0) {
+            return DEFLATE;
+        }
+
+        return null;
+    }
+
+    /**
+     * @return true if the content type (ignoring parameters such as {@code charset}) is compressible.
+     */
+    boolean isCompressible(String contentType) {
+
+        if (contentType == null) {
+            return false;
+        }
+
+        final int parametersIndex = contentType.indexOf(';');
+        final String mimeType = (parametersIndex < 0) ? contentType : contentType.substring(0, parametersIndex);
+
+        return compressibleContentTypes.contains(mimeType.trim().toLowerCase(Locale.ENGLISH));
+    }
+
+    /**
+     * @return a reset {@link PooledDeflater} for the encoding which must be returned via {@link
+     * #release(ResponseCompression.PooledDeflater)}.
+     */
+    PooledDeflater borrow(String encoding) {
+        return (GZIP.equals(encoding) ? gzipDeflaterPool : deflateDeflaterPool).borrow();
+    }
+
+    void release(PooledDeflater pooledDeflater) {
+        (pooledDeflater.gzip ? gzipDeflaterPool : deflateDeflaterPool).release(pooledDeflater);
+    }
+
+    /**
+     * @return the number of idle {@link Deflater}s in the pools.
+     */
+    int getPooledDeflaterCount() {
+        return gzipDeflaterPool.size.get() + deflateDeflaterPool.size.get();
+    }
+
+    /**
+     * Frees the native zlib streams of the pooled {@link Deflater}s. {@link Deflater}s that are released afterwards
+     * (by responses that were still in progress) are freed instead of being pooled.
+     */
+    void close() {
+        closed = true;
+        gzipDeflaterPool.close();
+        deflateDeflaterPool.close();
+    }
+
+    /**
+     * Adds the sizes of a completed response to the totals of its path. Responses of paths beyond the first {@value
+     * #MAXIMUM_TRACKED_PATHS} are not tracked.
+     *
+     * @param path the servlet path and path info of the request.
+     * @param responseSize the uncompressed size of the response body in bytes.
+     * @param transferredResponseSize the size of the response body in bytes after compression.
+     */
+    void record(String path, long responseSize, long transferredResponseSize) {
+
+        PathSizes sizes = pathSizes.get(path);
+
+        if (sizes == null) {
+
+            // The limit may be exceeded slightly by concurrent requests for new paths.
+            if (pathSizes.size() >= MAXIMUM_TRACKED_PATHS) {
+                return;
+            }
+
+            final PathSizes newSizes = new PathSizes();
+            sizes = pathSizes.putIfAbsent(path, newSizes);
+
+            if (sizes == null) {
+                sizes = newSizes;
+            }
+        }
+
+        sizes.responseSize.add(responseSize);
+        sizes.transferredResponseSize.add(transferredResponseSize);
+    }
+
+    /**
+     * @return an unmodifiable list of the tracked paths' totals ordered by response size (largest first).
+     */
+    List<MetricsFilterMXBean.PathCompression> summarize() {
+
+        final List<MetricsFilterMXBean.PathCompression> pathCompressions = new ArrayList<>(pathSizes.size());
+
+        for (Map.Entry<String, PathSizes> entry : pathSizes.entrySet()) {
+
+            final long responseSize = entry.getValue().responseSize.sum();
+            final long transferredResponseSize = entry.getValue().transferredResponseSize.sum();
+            pathCompressions.add(new MetricsFilterMXBean.PathCompression(entry.getKey(), responseSize,
+                    transferredResponseSize,
+                    (transferredResponseSize == 0) ? 1.0 : ((double) responseSize) / transferredResponseSize));
+        }
+
+        pathCompressions.sort((pathCompression1, pathCompression2) ->
+                Long.compare(pathCompression2.getResponseSize(), pathCompression1.getResponseSize()));
+
+        return Collections.unmodifiableList(pathCompressions);
+    }
+
+    /**
+     * Removes the totals of all paths.
+     */
+    void reset() {
+        pathSizes.clear();
+    }
+
+    private static double getQuality(String parameters) {
+
+        for (String parameter : parameters.split(";")) {
+
+            final String trimmedParameter = parameter.trim();
+
+            if (trimmedParameter.startsWith("q=") || trimmedParameter.startsWith("Q=")) {
+
+                try {
+                    return Double.parseDouble(trimmedParameter.substring(2).trim());
+                } catch (NumberFormatException e) {
+                    return 0.0;
+                }
+            }
+        }
+
+        return 1.0;
+    }
+
+    /**
+     * A {@link Deflater} along with the buffers and checksum needed to stream a compressed response.
+     */
+    static final class PooledDeflater {
+
+        final boolean gzip;
+        final Deflater deflater;
+        final CRC32 crc32 = new CRC32();
+        final byte[] inputBuffer;
+        final byte[] outputBuffer;
+
+        private PooledDeflater(boolean gzip, int bufferSize) {
+            this.gzip = gzip;
+
+            // gzip uses raw deflate data surrounded by a gzip header and trailer while the HTTP deflate encoding uses
+            // the zlib format.
+            this.deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, gzip);
+            this.inputBuffer = new byte[bufferSize];
+            this.outputBuffer = new byte[MINIMUM_BUFFER_SIZE];
+        }
+    }
+
+    private static final class PathSizes {
+
+        private final LongAdder responseSize = new LongAdder();
+        private final LongAdder transferredResponseSize = new LongAdder();
+    }
+
+    private final class DeflaterPool {
+
+        private final boolean gzip;
+        private final ConcurrentLinkedQueue<PooledDeflater> pooledDeflaters = new ConcurrentLinkedQueue<>();
+        private final AtomicInteger size = new AtomicInteger();
+
+        private DeflaterPool(boolean gzip) {
+            this.gzip = gzip;
+        }
+
+        private PooledDeflater borrow() {
+
+            final PooledDeflater pooledDeflater = pooledDeflaters.poll();
+
+            if (pooledDeflater == null) {
+                return new PooledDeflater(gzip, bufferSize);
+            }
+
+            size.decrementAndGet();
+            return pooledDeflater;
+        }
+
+        private void release(PooledDeflater pooledDeflater) {
+
+            pooledDeflater.deflater.reset();
+            pooledDeflater.crc32.reset();
+
+            if (closed) {
+                pooledDeflater.deflater.end();
+            } else if (size.incrementAndGet() > MAXIMUM_POOLED_DEFLATERS) {
+                size.decrementAndGet();
+                pooledDeflater.deflater.end();
+            } else {
+
+                pooledDeflaters.offer(pooledDeflater);
+
+                // Free the Deflater if the pool was closed while it was being returned.
+                if (closed) {
+                    close();
+                }
+            }
+        }
+
+        private void close() {
+
+            PooledDeflater pooledDeflater;
+
+            while ((pooledDeflater = pooledDeflaters.poll()) != null) {
+                size.decrementAndGet();
+                pooledDeflater.deflater.end();
+            }
+        }
+    }
+}
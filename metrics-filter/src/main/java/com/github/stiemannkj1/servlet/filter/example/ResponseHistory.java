@@ -0,0 +1,179 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2019 Kyle Stiemann.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.github.stiemannkj1.servlet.filter.example;
+
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * <p>
+ * A fixed-size ring of the most recently completed responses. Each completed response replaces the oldest entry once
+ * the ring is full, so the memory used by the history (and the cost of copying it into a {@link MetricsSnapshot}) is
+ * bounded by the capacity no matter how long the filter runs. Older responses are only represented by the
+ * histograms (and the rollups, see {@link MetricsRollups}).</p>
+ *
+ * <p>
+ * Request threads claim a slot by incrementing a counter and never lock. The ring may be split into stripes (selected
+ * like the recorders of {@link PerThreadResponseMetricsRecorder}) which each have their own slots and their own counter
+ * padded onto its own cache line, so that request threads on different stripes never contend. In that case each
+ * stripe keeps its share of the capacity, so the history holds approximately (rather than exactly) the most recent
+ * responses, and copies are ordered by the time that the responses were added. A copy taken while responses are being
+ * added may miss the responses whose slots were claimed but not yet written. This class is thread-safe.</p>
+ *
+ * @author Kyle Stiemann
+ */
+final class ResponseHistory {
+
+    static final int DEFAULT_CAPACITY = 1000;
+
+    private static final int COUNTER_STRIDE = 8;
+
+    private final int capacity;
+    private final List<AtomicReferenceArray<HistoryEntry>> stripes;
+    private final AtomicLongArray addedCounts;
+
+    /**
+     * @param capacity the maximum number of responses kept (zero keeps no history).
+     */
+    ResponseHistory(int capacity) {
+        this(capacity, 1);
+    }
+
+    /**
+     * @param capacity the maximum number of responses kept (zero keeps no history).
+     * @param stripeCount the number of stripes to split the ring into (the ring is never split into more stripes than
+     * its capacity).
+     */
+    ResponseHistory(int capacity, int stripeCount) {
+
+        this.capacity = capacity;
+
+        final int actualStripeCount = Math.max(1, Math.min(stripeCount, capacity));
+        this.stripes = new ArrayList<>(actualStripeCount);
+
+        for (int i = 0; i < actualStripeCount; i++) {
+            stripes.add(new AtomicReferenceArray<>(
+                    (capacity / actualStripeCount) + ((i < (capacity % actualStripeCount)) ? 1 : 0)));
+        }
+
+        this.addedCounts = new AtomicLongArray((actualStripeCount + 1) * COUNTER_STRIDE);
+    }
+
+    /**
+     * @param specificResponseMetrics the metrics of the completed response.
+     * @return the entry of the oldest response (of the current thread's stripe) which was removed to make room (or
+     * null if the ring was not full).
+     */
+    Map.Entry<String, SpecificResponseMetrics> add(String uniqueResponseId,
+            SpecificResponseMetrics specificResponseMetrics) {
+
+        final int stripeCount = stripes.size();
+        final HistoryEntry entry = new HistoryEntry(uniqueResponseId, specificResponseMetrics,
+                (stripeCount > 1) ? System.nanoTime() : 0);
+
+        if (capacity == 0) {
+            return entry;
+        }
+
+        final int stripe = (stripeCount > 1) ? (PerThreadResponseMetricsRecorder.getCurrentThreadStripe() % stripeCount)
+                : 0;
+        final AtomicReferenceArray<HistoryEntry> entries = stripes.get(stripe);
+        final long addedCount = addedCounts.getAndIncrement((stripe + 1) * COUNTER_STRIDE);
+
+        return entries.getAndSet((int) (addedCount % entries.length()), entry);
+    }
+
+    /**
+     * @return a new map of the response ids to the metrics of the responses in the ring from oldest to newest.
+     */
+    Map<String, SpecificResponseMetrics> copy() {
+
+        final List<HistoryEntry> historyEntries = new ArrayList<>(capacity);
+
+        for (int stripe = 0; stripe < stripes.size(); stripe++) {
+
+            final AtomicReferenceArray<HistoryEntry> entries = stripes.get(stripe);
+            final int stripeCapacity = entries.length();
+            final long currentAddedCount = addedCounts.get((stripe + 1) * COUNTER_STRIDE);
+
+            for (long i = Math.max(0, currentAddedCount - stripeCapacity); i < currentAddedCount; i++) {
+
+                final HistoryEntry entry = entries.get((int) (i % stripeCapacity));
+
+                if (entry != null) {
+                    historyEntries.add(entry);
+                }
+            }
+        }
+
+        if (stripes.size() > 1) {
+            historyEntries.sort((entry1, entry2) -> Long.compare(entry1.addedNanos, entry2.addedNanos));
+        }
+
+        final Map<String, SpecificResponseMetrics> responseMetrics =
+                new LinkedHashMap<>((int) (historyEntries.size() / 0.75f) + 1);
+
+        for (HistoryEntry entry : historyEntries) {
+            responseMetrics.put(entry.getKey(), entry.getValue());
+        }
+
+        return responseMetrics;
+    }
+
+    /**
+     * @return the maximum number of responses kept.
+     */
+    int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * Removes all responses.
+     */
+    void clear() {
+
+        for (AtomicReferenceArray<HistoryEntry> entries : stripes) {
+
+            for (int i = 0; i < entries.length(); i++) {
+                entries.set(i, null);
+            }
+        }
+    }
+
+    private static final class HistoryEntry extends AbstractMap.SimpleImmutableEntry<String, SpecificResponseMetrics> {
+
+        private final long addedNanos;
+
+        private HistoryEntry(String uniqueResponseId, SpecificResponseMetrics specificResponseMetrics,
+                long addedNanos) {
+            super(uniqueResponseId, specificResponseMetrics);
+            this.addedNanos = addedNanos;
+        }
+    }
+}
@@ -0,0 +1,557 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2019 Kyle Stiemann.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.github.stiemannkj1.servlet.filter.example;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * <p>
+ * Indexes the completed responses of the response history so that they can be queried without scanning or copying the
+ * whole history. Entries are stored in the order that they complete in fixed size chunks, each with an array of
+ * completion timestamps, so a time range is found with two binary searches. Each chunk also tracks the maximum
+ * response time and size of its entries so that chunks without any matching entries are skipped. Secondary indexes map
+ * the unique response id to its entry (for O(1) lookups) and each path to the sequences of its entries.</p>
+ *
+ * <p>
+ * The chunks form a fixed-size ring. When a new chunk is needed and the ring is full, the oldest chunk is retired and
+ * its entries are removed from the secondary indexes, so the index keeps at least the configured number of most recent
+ * entries (rounded up to whole chunks) and its memory use doesn't grow with the number of responses. Queries that
+ * reach a retired chunk stop there since every older entry has been retired as well.</p>
+ *
+ * <p>
+ * Request threads add entries to a lock-free queue and then index the queued entries if no other thread is already
+ * doing so (so the indexes are maintained incrementally without a background thread). Only the thread holding the
+ * index lock writes to the store, and it publishes each entry by incrementing the store's volatile end sequence, so
+ * queries never lock. This class is thread-safe.</p>
+ *
+ * @author Kyle Stiemann
+ */
+final class ResponseHistoryIndex {
+
+    static final int CHUNK_SIZE = 1024;
+    static final int DEFAULT_CAPACITY = 100_000;
+
+    private final ConcurrentLinkedQueue<Entry> pendingEntries = new ConcurrentLinkedQueue<>();
+    private final ReentrantLock indexLock = new ReentrantLock();
+    private final int chunkCount;
+    private volatile Store store;
+
+    /**
+     * @param capacity the minimum number of most recent entries to keep.
+     */
+    ResponseHistoryIndex(int capacity) {
+
+        // The chunk that is being filled doesn't count towards the capacity.
+        this.chunkCount = ((int) ((((long) capacity) + CHUNK_SIZE - 1) / CHUNK_SIZE)) + 1;
+        this.store = new Store(chunkCount);
+    }
+
+    /**
+     * @param path the servlet path and path info of the request.
+     * @param specificResponseMetrics the metrics of the completed response.
+     * @param timestampMillis the time that the response completed in milliseconds since the epoch.
+     */
+    void add(String uniqueResponseId, String path, SpecificResponseMetrics specificResponseMetrics,
+            long timestampMillis) {
+
+        final List<Long> metrics = specificResponseMetrics.getMetrics();
+
+        if (metrics == null) {
+            throw new IllegalArgumentException("Only completed responses may be indexed.");
+        }
+
+        pendingEntries.add(new Entry(uniqueResponseId, path, specificResponseMetrics,
+                metrics.get(SpecificResponseMetrics.Metric.RESPONSE_TIME.getIndex()),
+                metrics.get(SpecificResponseMetrics.Metric.RESPONSE_SIZE.getIndex()), timestampMillis));
+        indexPendingEntries();
+    }
+
+    /**
+     * @return the entry of the response or null if the response is not indexed.
+     */
+    Entry get(String uniqueResponseId) {
+
+        indexPendingEntries();
+
+        return store.entriesById.get(uniqueResponseId);
+    }
+
+    /**
+     * Visits the entries that match the query from newest to oldest until the query's limit is reached.
+     *
+     * @return the sequence to query before to get the next (older) matching entries or -1 if there are no more matching
+     * entries.
+     */
+    long find(Query query, EntryVisitor entryVisitor) throws IOException {
+
+        indexPendingEntries();
+
+        final Store currentStore = store;
+        final long endSequence = currentStore.endSequence;
+        final long lowSequence = currentStore.findFirstSequence(query.fromMillis, endSequence);
+        final long highSequence =
+                Math.min(query.beforeSequence, currentStore.findFirstSequence(query.toMillis, endSequence));
+        int visitedCount = 0;
+        long lastVisitedSequence = -1;
+
+        if (query.path != null) {
+
+            final Postings postings = currentStore.sequencesByPath.get(query.path);
+
+            if (postings == null) {
+                return -1;
+            }
+
+            // The count must be read before the sequences since the sequences array is replaced before the count is
+            // incremented.
+            final int count = postings.count;
+            final long[] sequences = postings.sequences;
+
+            for (int i = lowerBound(sequences, count, highSequence) - 1; i >= 0 && sequences[i] >= lowSequence; i--) {
+
+                final Entry entry = currentStore.getEntry(sequences[i]);
+
+                // Every older entry has been retired as well.
+                if (entry == null) {
+                    break;
+                }
+
+                if (query.matches(entry)) {
+
+                    if (visitedCount == query.limit) {
+                        return lastVisitedSequence;
+                    }
+
+                    entryVisitor.visit(entry);
+                    visitedCount++;
+                    lastVisitedSequence = entry.sequence;
+                }
+            }
+
+            return -1;
+        }
+
+        long sequence = highSequence - 1;
+
+        while (sequence >= lowSequence) {
+
+            final Chunk chunk = currentStore.getChunk(sequence);
+
+            // Every older entry has been retired as well.
+            if (chunk == null) {
+                break;
+            }
+
+            if (chunk.maximumResponseTime < query.minimumResponseTime ||
+                    chunk.maximumResponseSize < query.minimumResponseSize) {
+
+                sequence = chunk.firstSequence - 1;
+                continue;
+            }
+
+            final Entry entry = chunk.entries[(int) (sequence % CHUNK_SIZE)];
+
+            if (query.matches(entry)) {
+
+                if (visitedCount == query.limit) {
+                    return lastVisitedSequence;
+                }
+
+                entryVisitor.visit(entry);
+                visitedCount++;
+                lastVisitedSequence = entry.sequence;
+            }
+
+            sequence--;
+        }
+
+        return -1;
+    }
+
+    /**
+     * @return the number of indexed entries.
+     */
+    int size() {
+
+        indexPendingEntries();
+
+        final Store currentStore = store;
+
+        // The first sequence is read first so that it is never greater than the end sequence.
+        final long firstSequence = currentStore.firstSequence;
+
+        return (int) (currentStore.endSequence - firstSequence);
+    }
+
+    /**
+     * Removes all entries. Entries that are added concurrently may be kept.
+     */
+    void reset() {
+
+        indexLock.lock();
+
+        try {
+            pendingEntries.clear();
+            store = new Store(chunkCount);
+        } finally {
+            indexLock.unlock();
+        }
+    }
+
+    private void indexPendingEntries() {
+
+        // A thread that fails to acquire the lock leaves its entries to the thread holding the lock, which checks the
+        // queue again after releasing the lock.
+        while (!pendingEntries.isEmpty() && indexLock.tryLock()) {
+
+            try {
+
+                final Store currentStore = store;
+                Entry entry;
+
+                while ((entry = pendingEntries.poll()) != null) {
+                    currentStore.append(entry);
+                }
+            } finally {
+                indexLock.unlock();
+            }
+        }
+    }
+
+    /**
+     * @return the index of the first value that is not less than the key or the count if all values are less.
+     */
+    private static int lowerBound(long[] values, int count, long key) {
+
+        int low = 0;
+        int high = count;
+
+        while (low < high) {
+
+            final int middle = (low + high) >>> 1;
+
+            if (values[middle] < key) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+
+        return low;
+    }
+
+    /**
+     * Receives the entries found by a query.
+     */
+    interface EntryVisitor {
+        void visit(Entry entry) throws IOException;
+    }
+
+    /**
+     * An immutable query of the indexed entries. Each criterion is optional.
+     */
+    static final class Query {
+
+        private final long fromMillis;
+        private final long toMillis;
+        private final long minimumResponseTime;
+        private final long minimumResponseSize;
+        private final String path;
+        private final long beforeSequence;
+        private final int limit;
+
+        /**
+         * @param fromMillis the inclusive start of the time range in milliseconds since the epoch or {@link
+         * Long#MIN_VALUE}.
+         * @param toMillis the exclusive end of the time range in milliseconds since the epoch or {@link
+         * Long#MAX_VALUE}.
+         * @param minimumResponseTime the minimum response time in nanoseconds or zero.
+         * @param minimumResponseSize the minimum response size in bytes or zero.
+         * @param path the exact path of the responses or null for any path.
+         * @param beforeSequence the exclusive upper bound of the sequences to visit (used to page through the results)
+         * or {@link Long#MAX_VALUE}.
+         * @param limit the maximum number of entries to visit.
+         */
+        Query(long fromMillis, long toMillis, long minimumResponseTime, long minimumResponseSize, String path,
+                long beforeSequence, int limit) {
+
+            if (limit < 1) {
+                throw new IllegalArgumentException("The limit must be greater than zero.");
+            }
+
+            this.fromMillis = fromMillis;
+            this.toMillis = toMillis;
+            this.minimumResponseTime = minimumResponseTime;
+            this.minimumResponseSize = minimumResponseSize;
+            this.path = path;
+            this.beforeSequence = beforeSequence;
+            this.limit = limit;
+        }
+
+        boolean matches(Entry entry) {
+            return entry.timestampMillis >= fromMillis && entry.timestampMillis < toMillis &&
+                    entry.responseTime >= minimumResponseTime && entry.responseSize >= minimumResponseSize &&
+                    entry.sequence < beforeSequence && (path == null || path.equals(entry.path));
+        }
+    }
+
+    /**
+     * An indexed response. The sequence and timestamp are assigned by the thread that indexes the entry before the
+     * entry is published.
+     */
+    static final class Entry {
+
+        private final String uniqueResponseId;
+        private final String path;
+        private final SpecificResponseMetrics specificResponseMetrics;
+        private final long responseTime;
+        private final long responseSize;
+        private long timestampMillis;
+        private long sequence;
+
+        private Entry(String uniqueResponseId, String path, SpecificResponseMetrics specificResponseMetrics,
+                long responseTime, long responseSize, long timestampMillis) {
+            this.uniqueResponseId = uniqueResponseId;
+            this.path = path;
+            this.specificResponseMetrics = specificResponseMetrics;
+            this.responseTime = responseTime;
+            this.responseSize = responseSize;
+            this.timestampMillis = timestampMillis;
+        }
+
+        String getUniqueResponseId() {
+            return uniqueResponseId;
+        }
+
+        String getPath() {
+            return path;
+        }
+
+        List<Long> getMetrics() {
+            return specificResponseMetrics.getMetrics();
+        }
+
+        /**
+         * @return the time that the response was indexed in milliseconds since the epoch (which is never before the
+         * timestamp of the previous entry).
+         */
+        long getTimestampMillis() {
+            return timestampMillis;
+        }
+
+        /**
+         * @return the position of the entry in the order that entries were indexed.
+         */
+        long getSequence() {
+            return sequence;
+        }
+    }
+
+    private static final class Store {
+
+        private final ConcurrentMap<String, Entry> entriesById = new ConcurrentHashMap<>();
+        private final ConcurrentMap<String, Postings> sequencesByPath = new ConcurrentHashMap<>();
+        private final AtomicReferenceArray<Chunk> chunks;
+
+        // The sequence of the oldest entry that has not been retired.
+        private volatile long firstSequence;
+
+        // The sequence of the next entry, which publishes every entry before it.
+        private volatile long endSequence;
+        private long lastTimestampMillis = Long.MIN_VALUE;
+
+        private Store(int chunkCount) {
+            this.chunks = new AtomicReferenceArray<>(chunkCount);
+        }
+
+        /**
+         * Must only be called by the thread holding the index lock.
+         */
+        private void append(Entry entry) {
+
+            final long sequence = endSequence;
+            final int offset = (int) (sequence % CHUNK_SIZE);
+            final int chunkIndex = (int) ((sequence / CHUNK_SIZE) % chunks.length());
+            Chunk chunk = chunks.get(chunkIndex);
+
+            if (offset == 0) {
+
+                if (chunk != null) {
+                    retire(chunk);
+                }
+
+                // Retired chunks are replaced rather than reused since queries may still be reading them.
+                chunk = new Chunk(sequence);
+                chunks.set(chunkIndex, chunk);
+            }
+
+            // Entries are indexed in roughly the order that they complete, so the timestamps are kept sorted by never
+            // letting them go backwards.
+            lastTimestampMillis = Math.max(lastTimestampMillis, entry.timestampMillis);
+            entry.timestampMillis = lastTimestampMillis;
+            entry.sequence = sequence;
+
+            chunk.timestamps[offset] = lastTimestampMillis;
+            chunk.entries[offset] = entry;
+            chunk.maximumResponseTime = Math.max(chunk.maximumResponseTime, entry.responseTime);
+            chunk.maximumResponseSize = Math.max(chunk.maximumResponseSize, entry.responseSize);
+            sequencesByPath.computeIfAbsent(entry.path, (path) -> {
+                return new Postings(new long[4], 0);
+            }).add(sequence);
+
+            // Publish the entry to queries.
+            endSequence = sequence + 1;
+            entriesById.put(entry.uniqueResponseId, entry);
+        }
+
+        /**
+         * Removes the entries of the full chunk from the secondary indexes. Must only be called by the thread holding
+         * the index lock.
+         */
+        private void retire(Chunk chunk) {
+
+            // Queries stop at retired entries, so they are excluded before they are removed.
+            firstSequence = chunk.firstSequence + CHUNK_SIZE;
+
+            for (Entry entry : chunk.entries) {
+
+                entriesById.remove(entry.uniqueResponseId, entry);
+
+                final Postings postings = sequencesByPath.get(entry.path);
+                postings.retiredCount++;
+
+                if (postings.retiredCount == postings.count) {
+                    sequencesByPath.remove(entry.path);
+                } else if (postings.retiredCount >= postings.count / 2) {
+
+                    // Queries may still be reading the postings, so the remaining sequences are copied to new postings
+                    // (the copying is amortized over the retired sequences).
+                    final int remainingCount = postings.count - postings.retiredCount;
+                    sequencesByPath.put(entry.path, new Postings(Arrays.copyOfRange(postings.sequences,
+                            postings.retiredCount, postings.retiredCount + Math.max(4, remainingCount)),
+                            remainingCount));
+                }
+            }
+        }
+
+        /**
+         * @return the chunk of the published entry or null if the entry has been retired.
+         */
+        private Chunk getChunk(long sequence) {
+
+            final Chunk chunk = chunks.get((int) ((sequence / CHUNK_SIZE) % chunks.length()));
+
+            if (chunk == null || chunk.firstSequence != sequence - (sequence % CHUNK_SIZE)) {
+                return null;
+            }
+
+            return chunk;
+        }
+
+        /**
+         * @return the published entry or null if the entry has been retired.
+         */
+        private Entry getEntry(long sequence) {
+
+            final Chunk chunk = getChunk(sequence);
+
+            return (chunk == null) ? null : chunk.entries[(int) (sequence % CHUNK_SIZE)];
+        }
+
+        /**
+         * @return the sequence of the first of the entries before the end sequence with a timestamp that is not before
+         * the given timestamp or the end sequence if there is no such entry.
+         */
+        private long findFirstSequence(long timestampMillis, long endSequence) {
+
+            long low = firstSequence;
+            long high = endSequence;
+
+            while (low < high) {
+
+                final long middle = (low + high) >>> 1;
+                final Chunk chunk = getChunk(middle);
+
+                // Retired entries are older than every entry that has not been retired.
+                if (chunk == null || chunk.timestamps[(int) (middle % CHUNK_SIZE)] < timestampMillis) {
+                    low = middle + 1;
+                } else {
+                    high = middle;
+                }
+            }
+
+            return low;
+        }
+    }
+
+    private static final class Chunk {
+
+        private final long firstSequence;
+        private final long[] timestamps = new long[CHUNK_SIZE];
+        private final Entry[] entries = new Entry[CHUNK_SIZE];
+
+        // Written before the end sequence of the store is published, so the maximums always include every published
+        // entry.
+        private long maximumResponseTime = Long.MIN_VALUE;
+        private long maximumResponseSize = Long.MIN_VALUE;
+
+        private Chunk(long firstSequence) {
+            this.firstSequence = firstSequence;
+        }
+    }
+
+    /**
+     * The ascending sequences of the entries of a path.
+     */
+    private static final class Postings {
+
+        private volatile long[] sequences;
+        private volatile int count;
+
+        // The number of sequences at the start that have been retired. Only used by the thread holding the index lock.
+        private int retiredCount;
+
+        private Postings(long[] sequences, int count) {
+            this.sequences = sequences;
+            this.count = count;
+        }
+
+        private void add(long sequence) {
+
+            if (count == sequences.length) {
+                sequences = Arrays.copyOf(sequences, sequences.length * 2);
+            }
+
+            sequences[count] = sequence;
+            count++;
+        }
+    }
+}
@@ -0,0 +1,204 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2019 Kyle Stiemann.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.github.stiemannkj1.servlet.filter.example;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.List;
+import java.util.Locale;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * <p>
+ * Serves queries of the {@link ResponseHistoryIndex} as JSON. The response is written while the index is searched, so
+ * neither the history nor the results are copied. The optional request parameters are:</p>
+ *
+ * <ul>
+ * <li>{@code id}: the unique response id of the only response to return.</li>
+ * <li>{@code from} and {@code to}: the inclusive start and exclusive end of the time range in milliseconds since the
+ * epoch.</li>
+ * <li>{@code minimumResponseTime}: the minimum response time in nanoseconds.</li>
+ * <li>{@code minimumResponseSize}: the minimum response size in bytes.</li>
+ * <li>{@code path}: the exact servlet path and path info of the responses.</li>
+ * <li>{@code before}: the {@code "next"} value of the previous page of results.</li>
+ * <li>{@code limit}: the maximum number of responses to return (default {@value #DEFAULT_LIMIT}, maximum {@value
+ * #MAXIMUM_LIMIT}).</li>
+ * </ul>
+ *
+ * <p>
+ * Responses are returned from newest to oldest as {@code {"responses":[...],"next":...}} where {@code "next"} is null
+ * unless more responses match the query.</p>
+ *
+ * @author Kyle Stiemann
+ */
+final class ResponseHistoryJson {
+
+    static final int DEFAULT_LIMIT = 100;
+    static final int MAXIMUM_LIMIT = 1000;
+    private static final String[] METRIC_NAMES = newMetricNames();
+
+    private ResponseHistoryJson() {
+        // Only static methods.
+    }
+
+    static void serve(ResponseHistoryIndex responseHistoryIndex, HttpServletRequest httpServletRequest,
+            HttpServletResponse httpServletResponse) throws IOException {
+
+        final ResponseHistoryIndex.Query query;
+
+        try {
+            query = new ResponseHistoryIndex.Query(
+                    getLongParameter(httpServletRequest, "from", Long.MIN_VALUE),
+                    getLongParameter(httpServletRequest, "to", Long.MAX_VALUE),
+                    getLongParameter(httpServletRequest, "minimumResponseTime", 0),
+                    getLongParameter(httpServletRequest, "minimumResponseSize", 0),
+                    httpServletRequest.getParameter("path"),
+                    getLongParameter(httpServletRequest, "before", Long.MAX_VALUE),
+                    (int) Math.min(getLongParameter(httpServletRequest, "limit", DEFAULT_LIMIT), MAXIMUM_LIMIT));
+        } catch (IllegalArgumentException e) {
+            httpServletResponse.sendError(HttpServletResponse.SC_BAD_REQUEST, e.getMessage());
+            return;
+        }
+
+        httpServletResponse.setContentType("application/json");
+        httpServletResponse.setCharacterEncoding("UTF-8");
+        httpServletResponse.setHeader("Cache-Control", "no-store");
+
+        final PrintWriter writer = httpServletResponse.getWriter();
+        final String uniqueResponseId = httpServletRequest.getParameter("id");
+        final boolean[] first = { true };
+        final ResponseHistoryIndex.EntryVisitor entryVisitor = (entry) -> {
+
+            if (!first[0]) {
+                writer.write(',');
+            }
+
+            first[0] = false;
+            writeEntry(writer, entry);
+        };
+        long nextSequence = -1;
+        writer.write("{\"responses\":[");
+
+        if (uniqueResponseId != null) {
+
+            final ResponseHistoryIndex.Entry entry = responseHistoryIndex.get(uniqueResponseId);
+
+            if (entry != null && query.matches(entry)) {
+                entryVisitor.visit(entry);
+            }
+        } else {
+            nextSequence = responseHistoryIndex.find(query, entryVisitor);
+        }
+
+        writer.write("],\"next\":");
+        writer.write((nextSequence < 0) ? "null" : Long.toString(nextSequence));
+        writer.write('}');
+    }
+
+    private static void writeEntry(PrintWriter writer, ResponseHistoryIndex.Entry entry) {
+
+        writer.write("{\"id\":");
+        writeString(writer, entry.getUniqueResponseId());
+        writer.write(",\"sequence\":");
+        writer.write(Long.toString(entry.getSequence()));
+        writer.write(",\"path\":");
+        writeString(writer, entry.getPath());
+        writer.write(",\"timestampMillis\":");
+        writer.write(Long.toString(entry.getTimestampMillis()));
+
+        final List<Long> metrics = entry.getMetrics();
+
+        for (int i = 0; i < METRIC_NAMES.length; i++) {
+
+            writer.write(",\"");
+            writer.write(METRIC_NAMES[i]);
+            writer.write("\":");
+            writer.write(Long.toString(metrics.get(i)));
+        }
+
+        writer.write('}');
+    }
+
+    static void writeString(PrintWriter writer, String value) {
+
+        writer.write('"');
+
+        for (int i = 0; i < value.length(); i++) {
+
+            final char c = value.charAt(i);
+
+            if (c == '"' || c == '\\') {
+                writer.write('\\');
+                writer.write(c);
+            } else if (c < 0x20) {
+                writer.write(String.format(Locale.ENGLISH, "\\u%04x", (int) c));
+            } else {
+                writer.write(c);
+            }
+        }
+
+        writer.write('"');
+    }
+
+    private static long getLongParameter(HttpServletRequest httpServletRequest, String name, long defaultValue) {
+
+        final String value = httpServletRequest.getParameter(name);
+
+        if (value == null || value.trim().isEmpty()) {
+            return defaultValue;
+        }
+
+        final long longValue;
+
+        try {
+            longValue = Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid value \"" + value + "\" for parameter " + name +
+                    ". The value must be an integer.", e);
+        }
+
+        if (longValue < 0) {
+            throw new IllegalArgumentException("Invalid value \"" + value + "\" for parameter " + name +
+                    ". The value must not be negative.");
+        }
+
+        return longValue;
+    }
+
+    /**
+     * @return the JSON names of the metrics in the order of their indexes (for example "responseTime").
+     */
+    private static String[] newMetricNames() {
+
+        final SpecificResponseMetrics.Metric[] metrics = SpecificResponseMetrics.Metric.values();
+        final String[] metricNames = new String[metrics.length];
+
+        for (SpecificResponseMetrics.Metric metric : metrics) {
+            metricNames[metric.getIndex()] = metric.getName();
+        }
+
+        return metricNames;
+    }
+}
@@ -0,0 +1,108 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2019 Kyle Stiemann.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.github.stiemannkj1.servlet.filter.example;
+
+import java.util.List;
+
+/**
+ * Records the {@link SpecificResponseMetrics.Metric metrics} of each completed response into one {@link
+ * MetricsHistogram} per metric. Implementations must be thread-safe.
+ *
+ * @author Kyle Stiemann
+ */
+interface ResponseMetricsRecorder {
+
+    /**
+     * Records the metrics of a single response.
+     *
+     * @param metrics the metrics indexed by {@link SpecificResponseMetrics.Metric#getIndex()}. Metrics which were not
+     * measured (because measuring them is disabled or unsupported) are null and are not recorded.
+     */
+    void record(List<Long> metrics);
+
+    /**
+     * @return a copy of the histograms indexed by {@link SpecificResponseMetrics.Metric#getIndex()} which includes the
+     * values of every {@link #record(List)} call that completed before this method was called.
+     */
+    MetricsHistogram[] copyHistograms();
+
+    /**
+     * Removes all recorded values.
+     */
+    void reset();
+
+    /**
+     * @return a new empty histogram for each {@link SpecificResponseMetrics.Metric} indexed by {@link
+     * SpecificResponseMetrics.Metric#getIndex()}.
+     */
+    static MetricsHistogram[] newHistograms() {
+
+        final SpecificResponseMetrics.Metric[] metrics = SpecificResponseMetrics.Metric.values();
+        final MetricsHistogram[] histograms = new MetricsHistogram[metrics.length];
+
+        for (SpecificResponseMetrics.Metric metric : metrics) {
+            histograms[metric.getIndex()] = new MetricsHistogram();
+        }
+
+        return histograms;
+    }
+
+    /**
+     * Records the metrics of a single response into the histograms indexed by {@link
+     * SpecificResponseMetrics.Metric#getIndex()}. Null metrics are skipped, so histograms of metrics which are not
+     * measured stay empty instead of being skewed by zeros (and cost nothing to record).
+     *
+     * @param expectedResponseTimeInterval the expected interval between responses in nanoseconds used to correct the
+     * response times for coordinated omission (see {@link MetricsHistogram#recordWithExpectedInterval(long, long)}) or
+     * zero to record the response times as measured.
+     */
+    static void record(MetricsHistogram[] histograms, List<Long> metrics, long expectedResponseTimeInterval) {
+
+        for (int i = 0; i < histograms.length; i++) {
+
+            final Long value = metrics.get(i);
+
+            if (value == null) {
+                continue;
+            }
+
+            if (i == SpecificResponseMetrics.Metric.RESPONSE_TIME.getIndex()) {
+                histograms[i].recordWithExpectedInterval(value, expectedResponseTimeInterval);
+            } else {
+                histograms[i].record(value);
+            }
+        }
+    }
+
+    static MetricsHistogram[] copyOf(MetricsHistogram[] histograms) {
+
+        final MetricsHistogram[] copies = new MetricsHistogram[histograms.length];
+
+        for (int i = 0; i < histograms.length; i++) {
+            copies[i] = histograms[i].copy();
+        }
+
+        return copies;
+    }
+}
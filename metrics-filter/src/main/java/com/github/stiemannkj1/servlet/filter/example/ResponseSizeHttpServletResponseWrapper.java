@@ -24,30 +24,99 @@
 package com.github.stiemannkj1.servlet.filter.example;
 
 import java.io.IOException;
+import java.io.OutputStream;
 import java.io.OutputStreamWriter;
 import java.io.PrintWriter;
 import java.io.UnsupportedEncodingException;
 import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
 import javax.servlet.ServletOutputStream;
+import javax.servlet.http.Cookie;
 import javax.servlet.http.HttpServletResponse;
 import javax.servlet.http.HttpServletResponseWrapper;
 
 /**
+ * <p>
  * Allows access to the current response size in bytes via {@link #getResponseSize()}. This class returns a
  * {@link ResponseSizeServletOutputStreamWrapper} to calculate the response size when either {@link #getOutputStream()}
  * or {@link #getWriter()} is called. If {@link #getWriter()} is called, the {@link
- * ResponseSizeServletOutputStreamWrapper} is wrapped with an {@link AutoFlushingPrintWriter}.
+ * ResponseSizeServletOutputStreamWrapper} is wrapped with an {@link AutoFlushingPrintWriter}.</p>
+ *
+ * <p>
+ * If a content encoding is provided, the response is compressed on the fly by a {@link CompressingServletOutputStream}
+ * placed between the {@link ResponseSizeServletOutputStreamWrapper} and the wrapped response's stream. In that case
+ * {@link #getResponseSize()} returns the uncompressed size and {@link #getTransferredResponseSize()} returns the
+ * compressed size. Any content length set by the application is held back until it is known whether the response will
+ * be compressed. {@link #finishResponse()} must be called once the response is complete.</p>
+ *
+ * <p>
+ * If automatic {@code ETag}s are enabled via {@link #enableETag(java.lang.String)}, an {@link ETagServletOutputStream}
+ * is placed in front of the compressing stream so that the {@code ETag} is derived from the uncompressed body.</p>
+ *
+ * <p>
+ * If network blocking is measured via {@link #measureNetworkBlocking(int)}, a {@link
+ * NetworkTimingServletOutputStream} is placed directly in front of the wrapped response's stream so that only the
+ * bytes sent to the client are timed (including those written by {@link #finishResponse()}).</p>
+ *
+ * <p>
+ * {@link #getHeaderSize()} returns the on-the-wire size of the status line and of the headers set through this wrapper.
+ * The size is updated incrementally as headers are set, added, or replaced (headers are never re-serialized) and
+ * headers that the container adds itself (such as {@code Date} or {@code Transfer-Encoding}) are not included.</p>
  *
  * @author Kyle Stiemann
  */
 final class ResponseSizeHttpServletResponseWrapper extends HttpServletResponseWrapper {
 
+    private static final String CONTENT_LENGTH = "Content-Length";
+    private static final int DEFAULT_ETAG_BUFFER_SIZE = 8192;
+    private static final String CONTENT_TYPE = "Content-Type";
+
+    // "HTTP/1.1 200 \r\n" (the reason phrase is optional and omitted by modern containers) followed by the "\r\n"
+    // that ends the headers.
+    private static final int STATUS_LINE_AND_HEADERS_END_SIZE = "HTTP/1.1 200 \r\n\r\n".length();
+
+    // ": " and "\r\n"
+    private static final int HEADER_LINE_OVERHEAD = 4;
+
+    // The length of an RFC 1123 date such as "Sun, 06 Nov 1994 08:49:37 GMT" (Set-Cookie uses dashes instead of spaces
+    // but has the same length).
+    private static final int HTTP_DATE_LENGTH = 29;
+
+    private final ResponseCompression responseCompression;
+    private final String contentEncoding;
+
     private boolean getOutputStreamCalled = false;
-    private PrintWriter responseSizePrintWriter;
+    private AutoFlushingPrintWriter responseSizePrintWriter;
     private ResponseSizeServletOutputStreamWrapper responseSizeServletOutputStreamWrapper;
+    private CompressingServletOutputStream compressingServletOutputStream;
+    private NetworkTimingServletOutputStream networkTimingServletOutputStream;
+    private long deferredContentLength = -1;
+    private boolean compressed = false;
+    private ResponseCache.ResponseCapture responseCapture;
+    private boolean eTagEnabled = false;
+    private String ifNoneMatch;
+    private ETagServletOutputStream eTagServletOutputStream;
+    private boolean notModified = false;
+    private long headerSize = 0;
+    private Map<String, Long> headerSizes;
+    private int minimumTimedWriteSize = -1;
 
     public ResponseSizeHttpServletResponseWrapper(HttpServletResponse response) {
+        this(response, null, null);
+    }
+
+    /**
+     * @param responseCompression the compression configuration or null if the response should not be compressed.
+     * @param contentEncoding the content encoding accepted by the client ({@link ResponseCompression#GZIP} or {@link
+     * ResponseCompression#DEFLATE}) or null if the response should not be compressed.
+     */
+    public ResponseSizeHttpServletResponseWrapper(HttpServletResponse response,
+            ResponseCompression responseCompression, String contentEncoding) {
         super(response);
+        this.responseCompression = responseCompression;
+        this.contentEncoding = (responseCompression == null) ? null : contentEncoding;
     }
 
     @Override
@@ -68,8 +137,8 @@ final class ResponseSizeHttpServletResponseWrapper extends HttpServletResponseWr
         }
 
         if (responseSizeServletOutputStreamWrapper == null) {
-            responseSizeServletOutputStreamWrapper =
-                    new ResponseSizeServletOutputStreamWrapper(super.getOutputStream());
+            responseSizeServletOutputStreamWrapper = new ResponseSizeServletOutputStreamWrapper(
+                    newWrappedServletOutputStream(), responseCapture);
             getOutputStreamCalled = true;
         }
 
@@ -84,8 +153,8 @@ final class ResponseSizeHttpServletResponseWrapper extends HttpServletResponseWr
         }
 
         if (responseSizePrintWriter == null) {
-            responseSizeServletOutputStreamWrapper =
-                    new ResponseSizeServletOutputStreamWrapper(super.getOutputStream());
+            responseSizeServletOutputStreamWrapper = new ResponseSizeServletOutputStreamWrapper(
+                    newWrappedServletOutputStream(), responseCapture);
             String characterEncoding = getResponse().getCharacterEncoding();
 
             if (characterEncoding == null) {
@@ -111,10 +180,250 @@ final class ResponseSizeHttpServletResponseWrapper extends HttpServletResponseWr
         return 0;
     }
 
+    /**
+     * @return the number of response body bytes written to the wrapped response (after compression if the response is
+     * compressed).
+     */
+    long getTransferredResponseSize() {
+
+        if (compressingServletOutputStream != null) {
+            return compressingServletOutputStream.getTransferredSize();
+        }
+
+        if (notModified) {
+            return 0;
+        }
+
+        return getResponseSize();
+    }
+
+    /**
+     * @return true if network blocking is measured and any bytes of the response body were sent by timed writes or
+     * flushes (otherwise the network blocked time and the client throughput are meaningless zeros).
+     *
+     * @see #measureNetworkBlocking(int)
+     */
+    boolean isNetworkBlockingTimed() {
+        return networkTimingServletOutputStream != null &&
+                networkTimingServletOutputStream.isNetworkBlockingTimed();
+    }
+
+    /**
+     * @return the time in nanoseconds that writes and flushes of the response body were blocked (or zero if network
+     * blocking is not measured).
+     *
+     * @see #measureNetworkBlocking(int)
+     */
+    long getNetworkBlockedTime() {
+
+        if (networkTimingServletOutputStream != null) {
+            return networkTimingServletOutputStream.getNetworkBlockedTime();
+        }
+
+        return 0;
+    }
+
+    /**
+     * @return the number of bytes per second that the client received the response body at while writes were blocked
+     * (or zero if network blocking is not measured or no write was blocked).
+     *
+     * @see #measureNetworkBlocking(int)
+     */
+    long getClientThroughput() {
+
+        if (networkTimingServletOutputStream != null) {
+            return networkTimingServletOutputStream.getClientThroughput();
+        }
+
+        return 0;
+    }
+
+    /**
+     * @return the size in bytes of the status line and of the headers set through this wrapper.
+     */
+    long getHeaderSize() {
+        return STATUS_LINE_AND_HEADERS_END_SIZE + headerSize;
+    }
+
+    /**
+     * Copies the response body to the capture as it is written (before it is compressed) and completes the capture in
+     * {@link #finishResponse()} before any held back data is written to the client. This method must be called before
+     * the response body is obtained.
+     */
+    void captureResponseBody(ResponseCache.ResponseCapture responseCapture) {
+        this.responseCapture = responseCapture;
+    }
+
+    /**
+     * Times writes of at least the given size and flushes of the response body to the wrapped response (see {@link
+     * NetworkTimingServletOutputStream}). This method must be called before the response body is obtained.
+     */
+    void measureNetworkBlocking(int minimumTimedWriteSize) {
+        this.minimumTimedWriteSize = minimumTimedWriteSize;
+    }
+
+    /**
+     * Derives a strong {@code ETag} from the response body (if the body fits in the response buffer) and sends {@code
+     * 304 Not Modified} instead of the body if it matches the request's {@code If-None-Match} header. This method must
+     * be called before the response body is obtained.
+     *
+     * @param ifNoneMatch the value of the request's {@code If-None-Match} header or null.
+     */
+    void enableETag(String ifNoneMatch) {
+        this.eTagEnabled = true;
+        this.ifNoneMatch = ifNoneMatch;
+    }
+
+    /**
+     * Called by {@link ETagServletOutputStream} once the complete body has been held back.
+     *
+     * @param eTag the strong {@code ETag} derived from the body.
+     * @param bodySize the size of the body in bytes.
+     * @return true if the {@code ETag} matched the {@code If-None-Match} header, in which case the status has been set
+     * to {@code 304 Not Modified} and the body must be discarded.
+     */
+    boolean applyETag(String eTag, int bodySize) {
+
+        final HttpServletResponse httpServletResponse = (HttpServletResponse) getResponse();
+
+        // Leave responses alone that already have a validator or that are not a complete representation.
+        if (httpServletResponse.isCommitted() || httpServletResponse.getStatus() != SC_OK ||
+                httpServletResponse.getHeader("ETag") != null) {
+            return false;
+        }
+
+        // A compressed representation is not byte-for-byte identical to the hashed body, so only a weak ETag is valid
+        // for it (If-None-Match uses weak comparison, so it still matches).
+        if (contentEncoding != null && bodySize >= responseCompression.getMinimumSize() &&
+                httpServletResponse.getHeader("Content-Encoding") == null &&
+                responseCompression.isCompressible(httpServletResponse.getContentType())) {
+            eTag = "W/" + eTag;
+        }
+
+        setHeader("ETag", eTag);
+
+        if (MetricsPageCache.matchesIfNoneMatch(ifNoneMatch, eTag)) {
+            setStatus(SC_NOT_MODIFIED);
+            notModified = true;
+        }
+
+        return notModified;
+    }
+
+    /**
+     * @return true if the response was turned into a {@code 304 Not Modified} response by its automatic {@code ETag}.
+     */
+    boolean isNotModified() {
+        return notModified;
+    }
+
+    /**
+     * @return true if the response is being compressed by this wrapper.
+     */
+    boolean isCompressed() {
+        return compressed;
+    }
+
+    /**
+     * Completes the response capture (if any), writes any data that is still buffered for compression, and sets any
+     * content length that was held back. This method must be called once the response is complete and may be called
+     * more than once.
+     */
+    void finishResponse() throws IOException {
+
+        if (responseSizePrintWriter != null) {
+            responseSizePrintWriter.flushEncodedCharacters();
+        }
+
+        if (eTagServletOutputStream != null) {
+            eTagServletOutputStream.applyETag();
+        }
+
+        // The whole body has been captured, so requests waiting for the cache do not need to wait until it is written
+        // to the client.
+        if (responseCapture != null) {
+            responseCapture.complete(this, compressed);
+        }
+
+        if (eTagServletOutputStream != null) {
+            eTagServletOutputStream.finish();
+        }
+
+        if (compressingServletOutputStream != null) {
+            compressingServletOutputStream.finish();
+        } else {
+            applyDeferredContentLength();
+        }
+    }
+
+    /**
+     * Releases any pooled resources without writing buffered data. This method may be called more than once and after
+     * {@link #finishResponse()}.
+     */
+    void releaseResources() {
+
+        if (compressingServletOutputStream != null) {
+            compressingServletOutputStream.release();
+        }
+    }
+
+    /**
+     * Called by {@link CompressingServletOutputStream} once the minimum compressible size has been written.
+     *
+     * @return true if the response headers allow the response to be compressed, in which case the {@code
+     * Content-Encoding} and {@code Vary} headers are set and any held back content length is discarded.
+     */
+    boolean startCompression(String encoding) {
+
+        final HttpServletResponse httpServletResponse = (HttpServletResponse) getResponse();
+        final int status = httpServletResponse.getStatus();
+
+        if (httpServletResponse.isCommitted() || httpServletResponse.getHeader("Content-Encoding") != null ||
+                status == SC_NO_CONTENT || status == SC_PARTIAL_CONTENT || status == SC_NOT_MODIFIED ||
+                !responseCompression.isCompressible(httpServletResponse.getContentType())) {
+            return false;
+        }
+
+        setHeader("Content-Encoding", encoding);
+        addHeader("Vary", "Accept-Encoding");
+        deferredContentLength = -1;
+        compressed = true;
+
+        final String eTag = httpServletResponse.getHeader("ETag");
+
+        if (eTag != null && !eTag.startsWith("W/")) {
+            setHeader("ETag", "W/" + eTag);
+        }
+
+        return true;
+    }
+
+    /**
+     * Sets any content length that was held back while it was unknown whether the response would be compressed.
+     */
+    void applyDeferredContentLength() {
+
+        if (deferredContentLength >= 0) {
+
+            final long contentLength = deferredContentLength;
+            deferredContentLength = -1;
+
+            if (contentLength <= Integer.MAX_VALUE) {
+                super.setContentLength((int) contentLength);
+            } else {
+                super.setContentLengthLong(contentLength);
+            }
+
+            updateHeaderSize(CONTENT_LENGTH, getHeaderLineSize(CONTENT_LENGTH, Long.toString(contentLength)), false);
+        }
+    }
+
     @Override
     public void reset() {
         resetResponseSizeBuffers();
         super.reset();
+        headerSize = 0;
+        headerSizes = null;
     }
 
     @Override
@@ -123,17 +432,323 @@ final class ResponseSizeHttpServletResponseWrapper extends HttpServletResponseWr
         super.resetBuffer();
     }
 
+    @Override
+    public void setContentLength(int len) {
+
+        if (isContentLengthDeferred()) {
+            deferredContentLength = len;
+        } else {
+            updateHeaderSize(CONTENT_LENGTH, getHeaderLineSize(CONTENT_LENGTH, Integer.toString(len)), false);
+            super.setContentLength(len);
+        }
+    }
+
+    @Override
+    public void setContentLengthLong(long len) {
+
+        if (isContentLengthDeferred()) {
+            deferredContentLength = len;
+        } else {
+            updateHeaderSize(CONTENT_LENGTH, getHeaderLineSize(CONTENT_LENGTH, Long.toString(len)), false);
+            super.setContentLengthLong(len);
+        }
+    }
+
+    @Override
+    public void setContentType(String type) {
+        super.setContentType(type);
+        updateContentTypeHeaderSize();
+    }
+
+    @Override
+    public void setCharacterEncoding(String charset) {
+        super.setCharacterEncoding(charset);
+        updateContentTypeHeaderSize();
+    }
+
+    @Override
+    public void setLocale(Locale loc) {
+        super.setLocale(loc);
+        updateContentTypeHeaderSize();
+    }
+
+    @Override
+    public void addCookie(Cookie cookie) {
+        updateHeaderSize("Set-Cookie", getCookieHeaderLineSize(cookie), true);
+        super.addCookie(cookie);
+    }
+
+    @Override
+    public void sendRedirect(String location) throws IOException {
+        updateHeaderSize("Location", getHeaderLineSize("Location", location), false);
+        super.sendRedirect(location);
+    }
+
+    @Override
+    public void setHeader(String name, String value) {
+
+        if (CONTENT_LENGTH.equalsIgnoreCase(name) && isContentLengthDeferred() && deferContentLength(value)) {
+            return;
+        }
+
+        if (CONTENT_TYPE.equalsIgnoreCase(name)) {
+            super.setHeader(name, value);
+            updateContentTypeHeaderSize();
+        } else {
+            updateHeaderSize(name, getHeaderLineSize(name, value), false);
+            super.setHeader(name, value);
+        }
+    }
+
+    /**
+     * @return true if the content length was held back or cleared, false if the value is not a valid content length (in
+     * which case the header must be passed through unchanged just as it would be if the content length was not held
+     * back).
+     */
+    private boolean deferContentLength(String value) {
+
+        deferredContentLength = -1;
+
+        if (value == null) {
+            return true;
+        }
+
+        try {
+
+            final long contentLength = Long.parseLong(value.trim());
+
+            if (contentLength >= 0) {
+                deferredContentLength = contentLength;
+                return true;
+            }
+        } catch (NumberFormatException e) {
+            // Pass the malformed header through.
+        }
+
+        return false;
+    }
+
+    @Override
+    public void addHeader(String name, String value) {
+
+        if (CONTENT_TYPE.equalsIgnoreCase(name)) {
+            super.addHeader(name, value);
+            updateContentTypeHeaderSize();
+        } else {
+            updateHeaderSize(name, getHeaderLineSize(name, value), !CONTENT_LENGTH.equalsIgnoreCase(name));
+            super.addHeader(name, value);
+        }
+    }
+
+    @Override
+    public void setIntHeader(String name, int value) {
+
+        if (CONTENT_LENGTH.equalsIgnoreCase(name) && isContentLengthDeferred()) {
+            deferredContentLength = value;
+        } else {
+            updateHeaderSize(name, getHeaderLineSize(name, Integer.toString(value)), false);
+            super.setIntHeader(name, value);
+        }
+    }
+
+    @Override
+    public void addIntHeader(String name, int value) {
+        updateHeaderSize(name, getHeaderLineSize(name, Integer.toString(value)),
+                !CONTENT_LENGTH.equalsIgnoreCase(name));
+        super.addIntHeader(name, value);
+    }
+
+    @Override
+    public void setDateHeader(String name, long date) {
+        updateHeaderSize(name, getHeaderLineSize(name, HTTP_DATE_LENGTH), false);
+        super.setDateHeader(name, date);
+    }
+
+    @Override
+    public void addDateHeader(String name, long date) {
+        updateHeaderSize(name, getHeaderLineSize(name, HTTP_DATE_LENGTH), true);
+        super.addDateHeader(name, date);
+    }
+
+    /**
+     * Updates the header size for a header that was set, added, or removed. Headers set after the response has been
+     * committed are ignored by the container and are not counted.
+     *
+     * @param name the name of the header.
+     * @param lineSize the size of the new header line or zero if the header is being removed.
+     * @param add true if the line is added to any existing lines of the header, false if it replaces them.
+     */
+    private void updateHeaderSize(String name, long lineSize, boolean add) {
+
+        if (name == null || (add && lineSize == 0) || getResponse().isCommitted()) {
+            return;
+        }
+
+        if (headerSizes == null) {
+            headerSizes = new HashMap<>();
+        }
+
+        final String key = name.toLowerCase(Locale.ENGLISH);
+        final Long previousSize = headerSizes.get(key);
+        final long oldSize = (previousSize == null) ? 0 : previousSize;
+        final long newSize = add ? (oldSize + lineSize) : lineSize;
+        headerSize += newSize - oldSize;
+
+        if (newSize > 0) {
+            headerSizes.put(key, newSize);
+        } else {
+            headerSizes.remove(key);
+        }
+    }
+
+    /**
+     * The container derives the {@code Content-Type} header from the content type, character encoding, and locale, so
+     * the header is measured from the resulting content type rather than from the value that was set.
+     */
+    private void updateContentTypeHeaderSize() {
+        updateHeaderSize(CONTENT_TYPE, getHeaderLineSize(CONTENT_TYPE, getResponse().getContentType()), false);
+    }
+
+    /**
+     * @return the size of the header line in bytes or zero if the name or value is null. Header values are sent as
+     * ISO-8859-1, so every character is a single byte.
+     */
+    private static long getHeaderLineSize(String name, String value) {
+        return (value == null) ? 0 : getHeaderLineSize(name, value.length());
+    }
+
+    private static long getHeaderLineSize(String name, int valueLength) {
+        return (name == null) ? 0 : (name.length() + HEADER_LINE_OVERHEAD + valueLength);
+    }
+
+    /**
+     * @return the size of the {@code Set-Cookie} header line in bytes in the format written by the container ({@code
+     * name=value; Version=1; Comment=...; Domain=...; Max-Age=...; Expires=...; Path=...; Secure; HttpOnly}, where
+     * the version, comment, and maximum age are only written for version 1 cookies).
+     */
+    private static long getCookieHeaderLineSize(Cookie cookie) {
+
+        final String value = cookie.getValue();
+        long valueLength = cookie.getName().length() + 1 + ((value == null) ? 0 : value.length());
+        final boolean version1 = cookie.getVersion() > 0;
+
+        if (version1) {
+
+            valueLength += "; Version=1".length();
+
+            if (cookie.getComment() != null) {
+                valueLength += "; Comment=".length() + cookie.getComment().length();
+            }
+        }
+
+        if (cookie.getDomain() != null) {
+            valueLength += "; Domain=".length() + cookie.getDomain().length();
+        }
+
+        if (cookie.getMaxAge() >= 0) {
+
+            if (version1) {
+                valueLength += "; Max-Age=".length() + Integer.toString(cookie.getMaxAge()).length();
+            }
+
+            valueLength += "; Expires=".length() + HTTP_DATE_LENGTH;
+        }
+
+        if (cookie.getPath() != null) {
+            valueLength += "; Path=".length() + cookie.getPath().length();
+        }
+
+        if (cookie.getSecure()) {
+            valueLength += "; Secure".length();
+        }
+
+        if (cookie.isHttpOnly()) {
+            valueLength += "; HttpOnly".length();
+        }
+
+        return "Set-Cookie".length() + HEADER_LINE_OVERHEAD + valueLength;
+    }
+
+    private boolean isContentLengthDeferred() {
+        return contentEncoding != null &&
+                (compressingServletOutputStream == null || compressingServletOutputStream.isUndecided());
+    }
+
+    private ServletOutputStream newWrappedServletOutputStream() throws IOException {
+
+        ServletOutputStream wrappedServletOutputStream = super.getOutputStream();
+
+        if (minimumTimedWriteSize >= 0) {
+            networkTimingServletOutputStream =
+                    new NetworkTimingServletOutputStream(wrappedServletOutputStream, minimumTimedWriteSize);
+            wrappedServletOutputStream = networkTimingServletOutputStream;
+        }
+
+        if (contentEncoding != null) {
+            compressingServletOutputStream = new CompressingServletOutputStream(wrappedServletOutputStream, this,
+                    responseCompression, contentEncoding);
+            wrappedServletOutputStream = compressingServletOutputStream;
+        }
+
+        if (eTagEnabled) {
+
+            final int bufferSize = getResponse().getBufferSize();
+            eTagServletOutputStream = new ETagServletOutputStream(wrappedServletOutputStream, this,
+                    (bufferSize > 0) ? bufferSize : DEFAULT_ETAG_BUFFER_SIZE);
+            wrappedServletOutputStream = eTagServletOutputStream;
+        }
+
+        return wrappedServletOutputStream;
+    }
+
     private void resetResponseSizeBuffers() {
+
+        if (compressingServletOutputStream != null) {
+            compressingServletOutputStream.release();
+            compressingServletOutputStream = null;
+        }
+
+        if (responseCapture != null) {
+            responseCapture.reset();
+        }
+
+        compressed = false;
+        eTagServletOutputStream = null;
+        notModified = false;
         responseSizePrintWriter = null;
         responseSizeServletOutputStreamWrapper = null;
         getOutputStreamCalled = false;
     }
 
+    /**
+     * Encodes characters into the response stream after every write so that the response size is always accurate.
+     * Only explicit calls to {@link #flush()} flush the underlying response stream (which would otherwise send a small
+     * chunk, or force a compression flush, for every write).
+     */
     private static final class AutoFlushingPrintWriter extends PrintWriter {
 
+        private final FlushOnDemandOutputStream flushOnDemandOutputStream;
+
         public AutoFlushingPrintWriter(ServletOutputStream servletOutputStream, String characterEncoding)
                 throws UnsupportedEncodingException {
-            super(new OutputStreamWriter(servletOutputStream, characterEncoding), true);
+            this(new FlushOnDemandOutputStream(servletOutputStream), characterEncoding);
+        }
+
+        private AutoFlushingPrintWriter(FlushOnDemandOutputStream flushOnDemandOutputStream,
+                String characterEncoding) throws UnsupportedEncodingException {
+            super(new OutputStreamWriter(flushOnDemandOutputStream, characterEncoding), true);
+            this.flushOnDemandOutputStream = flushOnDemandOutputStream;
+        }
+
+        @Override
+        public void flush() {
+            flushOnDemandOutputStream.flushRequested = true;
+
+            try {
+                super.flush();
+            } finally {
+                flushOnDemandOutputStream.flushRequested = false;
+            }
         }
 
         @Override
@@ -141,5 +756,43 @@ final class ResponseSizeHttpServletResponseWrapper extends HttpServletResponseWr
             super.write(buf, off, len);
             super.flush();
         }
+
+        private void flushEncodedCharacters() {
+            super.flush();
+        }
+    }
+
+    private static final class FlushOnDemandOutputStream extends OutputStream {
+
+        private final ServletOutputStream wrappedServletOutputStream;
+
+        private boolean flushRequested = false;
+
+        private FlushOnDemandOutputStream(ServletOutputStream wrappedServletOutputStream) {
+            this.wrappedServletOutputStream = wrappedServletOutputStream;
+        }
+
+        @Override
+        public void close() throws IOException {
+            wrappedServletOutputStream.close();
+        }
+
+        @Override
+        public void flush() throws IOException {
+
+            if (flushRequested) {
+                wrappedServletOutputStream.flush();
+            }
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            wrappedServletOutputStream.write(b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            wrappedServletOutputStream.write(b, off, len);
+        }
     }
 }
@@ -28,18 +28,29 @@ import javax.servlet.ServletOutputStream;
 import javax.servlet.WriteListener;
 
 /**
- * Tracks the current response size which can be obtained via {@link #getResponseSize()}.
+ * Tracks the current response size which can be obtained via {@link #getResponseSize()}. If a {@link
+ * ResponseCache.ResponseCapture} is provided, every byte written is also copied to it.
  *
  * @author Kyle Stiemann
  */
 final class ResponseSizeServletOutputStreamWrapper extends ServletOutputStream {
 
     private final ServletOutputStream wrappedServletOutputStream;
+    private final ResponseCache.ResponseCapture responseCapture;
 
     private long responseSize = 0;
 
     public ResponseSizeServletOutputStreamWrapper(ServletOutputStream wrappedServletOutputStream) {
+        this(wrappedServletOutputStream, null);
+    }
+
+    /**
+     * @param responseCapture the capture that the response body is copied to or null.
+     */
+    public ResponseSizeServletOutputStreamWrapper(ServletOutputStream wrappedServletOutputStream,
+            ResponseCache.ResponseCapture responseCapture) {
         this.wrappedServletOutputStream = wrappedServletOutputStream;
+        this.responseCapture = responseCapture;
     }
 
     @Override
@@ -88,5 +99,19 @@ final class ResponseSizeServletOutputStreamWrapper extends ServletOutputStream {
     public void write(int b) throws IOException {
         responseSize++;
         wrappedServletOutputStream.write(b);
+
+        if (responseCapture != null) {
+            responseCapture.write(b);
+        }
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        responseSize += len;
+        wrappedServletOutputStream.write(b, off, len);
+
+        if (responseCapture != null) {
+            responseCapture.write(b, off, len);
+        }
     }
 }
@@ -0,0 +1,156 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2019 Kyle Stiemann.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.github.stiemannkj1.servlet.filter.example;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.function.ToDoubleFunction;
+
+/**
+ * Builds the line charts of a {@link MetricsRollups.Summary} that the metrics page renders as inline SVG. Each chart
+ * is a {@link Map} (so that the page can read it with EL) containing its {@code "id"}, {@code "title"}, {@code
+ * "maximum"}, {@code "from"}, {@code "to"}, and {@code "series"}. Each series is a map containing its {@code
+ * "name"}, {@code "color"}, and the {@code "points"} of an SVG polyline scaled to {@value #WIDTH}x{@value #HEIGHT}.
+ * The newest rollup is always at the right edge, so a tier's chart fills from the right until its ring is full.
+ *
+ * @author Kyle Stiemann
+ */
+final class RollupCharts {
+
+    static final int WIDTH = 600;
+    static final int HEIGHT = 100;
+
+    private RollupCharts() {
+        // Only static methods.
+    }
+
+    /**
+     * @return the response rate and response time charts of each tier (tiers without rollups are skipped).
+     */
+    static List<Map<String, Object>> build(MetricsRollups.Summary metricsRollups) {
+
+        final List<Map<String, Object>> charts = new ArrayList<>();
+
+        for (MetricsRollups.Tier tier : MetricsRollups.Tier.values()) {
+
+            final List<MetricsRollups.Rollup> rollups = metricsRollups.getRollups(tier);
+
+            if (rollups.isEmpty()) {
+                continue;
+            }
+
+            final String tierName = tier.name().toLowerCase(Locale.ENGLISH);
+            final String rollupsName = " (" + getUnit(tier) + " rollups)";
+            final int capacity = metricsRollups.getCapacity(tier);
+
+            // Response times may be back-filled, so the response size count is the number of responses.
+            charts.add(newChart(tierName + "ResponseRate", "Responses per Second" + rollupsName, rollups, capacity,
+                    Arrays.asList(new SeriesDefinition("responses per second", "black", (rollup) -> {
+                        return (rollup.get(SpecificResponseMetrics.Metric.RESPONSE_SIZE,
+                                MetricsRollups.Statistic.COUNT) * 1000.0) / rollup.getDurationMillis();
+                    }))));
+            charts.add(newChart(tierName + "ResponseTime", "Response Time in Milliseconds" + rollupsName, rollups,
+                    capacity, Arrays.asList(
+                            new SeriesDefinition("50th percentile", "blue", (rollup) -> {
+                                return toMillis(rollup, MetricsRollups.Statistic.PERCENTILE_50);
+                            }),
+                            new SeriesDefinition("99th percentile", "red", (rollup) -> {
+                                return toMillis(rollup, MetricsRollups.Statistic.PERCENTILE_99);
+                            }))));
+        }
+
+        return charts;
+    }
+
+    private static Map<String, Object> newChart(String id, String title, List<MetricsRollups.Rollup> rollups,
+            int capacity, List<SeriesDefinition> seriesDefinitions) {
+
+        double maximum = 0;
+
+        for (SeriesDefinition seriesDefinition : seriesDefinitions) {
+
+            for (MetricsRollups.Rollup rollup : rollups) {
+                maximum = Math.max(maximum, seriesDefinition.value.applyAsDouble(rollup));
+            }
+        }
+
+        final List<Map<String, Object>> series = new ArrayList<>(seriesDefinitions.size());
+
+        for (SeriesDefinition seriesDefinition : seriesDefinitions) {
+
+            final StringBuilder points = new StringBuilder();
+            final int offset = capacity - rollups.size();
+
+            for (int i = 0; i < rollups.size(); i++) {
+
+                final double x = (capacity == 1) ? WIDTH : ((double) (offset + i) * WIDTH) / (capacity - 1);
+                final double value = seriesDefinition.value.applyAsDouble(rollups.get(i));
+                final double y = (maximum == 0) ? HEIGHT : HEIGHT - ((value * HEIGHT) / maximum);
+                points.append(String.format(Locale.ROOT, "%.1f,%.1f ", x, y));
+            }
+
+            final Map<String, Object> seriesMap = new HashMap<>();
+            seriesMap.put("name", seriesDefinition.name);
+            seriesMap.put("color", seriesDefinition.color);
+            seriesMap.put("points", points.toString().trim());
+            series.add(seriesMap);
+        }
+
+        final Map<String, Object> chart = new HashMap<>();
+        chart.put("id", id);
+        chart.put("title", title);
+        chart.put("maximum", String.format(Locale.ROOT, "%.3f", maximum));
+        chart.put("from", Instant.ofEpochMilli(rollups.get(0).getStartMillis()).toString());
+        chart.put("to", Instant.ofEpochMilli(rollups.get(rollups.size() - 1).getStartMillis()).toString());
+        chart.put("series", series);
+
+        return chart;
+    }
+
+    private static double toMillis(MetricsRollups.Rollup rollup, MetricsRollups.Statistic statistic) {
+        return rollup.get(SpecificResponseMetrics.Metric.RESPONSE_TIME, statistic) / 1_000_000.0;
+    }
+
+    private static String getUnit(MetricsRollups.Tier tier) {
+        return tier.name().substring(0, tier.name().length() - 1).toLowerCase(Locale.ENGLISH);
+    }
+
+    private static final class SeriesDefinition {
+
+        private final String name;
+        private final String color;
+        private final ToDoubleFunction<MetricsRollups.Rollup> value;
+
+        private SeriesDefinition(String name, String color, ToDoubleFunction<MetricsRollups.Rollup> value) {
+            this.name = name;
+            this.color = color;
+            this.value = value;
+        }
+    }
+}
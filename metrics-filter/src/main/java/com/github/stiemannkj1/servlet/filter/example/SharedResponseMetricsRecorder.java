@@ -0,0 +1,70 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2019 Kyle Stiemann.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.github.stiemannkj1.servlet.filter.example;
+
+import java.util.List;
+
+/**
+ * A {@link ResponseMetricsRecorder} that records all responses into one shared {@link MetricsHistogram} per {@link
+ * SpecificResponseMetrics.Metric metric}. This class is thread-safe.
+ *
+ * @author Kyle Stiemann
+ */
+final class SharedResponseMetricsRecorder implements ResponseMetricsRecorder {
+
+    private final MetricsHistogram[] histograms;
+    private final long expectedResponseTimeInterval;
+
+    SharedResponseMetricsRecorder() {
+        this(0);
+    }
+
+    /**
+     * @param expectedResponseTimeInterval the expected interval between responses in nanoseconds used to correct the
+     * response times for coordinated omission or zero to record the response times as measured.
+     */
+    SharedResponseMetricsRecorder(long expectedResponseTimeInterval) {
+        this.histograms = ResponseMetricsRecorder.newHistograms();
+        this.expectedResponseTimeInterval = expectedResponseTimeInterval;
+    }
+
+    @Override
+    public void record(List<Long> metrics) {
+
+        ResponseMetricsRecorder.record(histograms, metrics, expectedResponseTimeInterval);
+    }
+
+    @Override
+    public MetricsHistogram[] copyHistograms() {
+        return ResponseMetricsRecorder.copyOf(histograms);
+    }
+
+    @Override
+    public void reset() {
+
+        for (MetricsHistogram histogram : histograms) {
+            histogram.reset();
+        }
+    }
+}
@@ -0,0 +1,265 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2019 Kyle Stiemann.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.github.stiemannkj1.servlet.filter.example;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * <p>
+ * A weighted Space-Saving summary which tracks the keys with the largest total weights in a fixed number of counters.
+ * When a new key arrives and all counters are in use, the counter with the smallest count is taken over by the new key
+ * and keeps its count as the new key's maximum error. A key's count is therefore an upper bound of its actual weight
+ * and its count minus its error is a lower bound. Every key whose actual weight exceeds {@code total / capacity} is
+ * guaranteed to be tracked. The counters are kept in a min-heap, so adding a weight takes {@code O(log capacity)}
+ * time.</p>
+ *
+ * <p>
+ * Summaries are {@link #merge(SpaceSavingSummary) merged} as described by Agarwal et al. in "Mergeable Summaries", so
+ * that the bounds still hold for the combined stream. This class is not thread-safe.</p>
+ *
+ * @author Kyle Stiemann
+ */
+final class SpaceSavingSummary {
+
+    private static final Comparator<Counter> BY_COUNT_DESCENDING = (counter1, counter2) -> {
+        return Long.compare(counter2.count, counter1.count);
+    };
+
+    private final int capacity;
+    private final Map<String, Counter> countersByKey;
+    private final Counter[] heap;
+    private int size = 0;
+
+    /**
+     * @param capacity the maximum number of keys to track.
+     */
+    SpaceSavingSummary(int capacity) {
+
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("Invalid Space-Saving capacity " + capacity +
+                    ". The capacity must be positive.");
+        }
+
+        this.capacity = capacity;
+        this.countersByKey = new HashMap<>(((capacity * 4) / 3) + 1);
+        this.heap = new Counter[capacity];
+    }
+
+    /**
+     * Adds the weight to the counter of the key.
+     */
+    void add(String key, long weight) {
+
+        Counter counter = countersByKey.get(key);
+
+        if (counter == null) {
+
+            if (size < capacity) {
+                counter = new Counter(key, 0, 0);
+                counter.heapIndex = size;
+                heap[size++] = counter;
+            } else {
+
+                // Take over the counter with the smallest count.
+                counter = heap[0];
+                countersByKey.remove(counter.key);
+                counter.key = key;
+                counter.error = counter.count;
+            }
+
+            countersByKey.put(key, counter);
+        }
+
+        counter.count += weight;
+        siftDown(counter.heapIndex);
+    }
+
+    /**
+     * @return the number of tracked keys.
+     */
+    int size() {
+        return size;
+    }
+
+    /**
+     * @return the capacity of this summary.
+     */
+    int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * @return the tracked keys with the largest counts (at most {@code limit}) in descending order of count. The
+     * returned counters are copies.
+     */
+    List<Counter> getTop(int limit) {
+
+        final List<Counter> counters = new ArrayList<>(size);
+
+        for (int i = 0; i < size; i++) {
+            counters.add(new Counter(heap[i].key, heap[i].count, heap[i].error));
+        }
+
+        Collections.sort(counters, BY_COUNT_DESCENDING);
+
+        return (counters.size() > limit) ? new ArrayList<>(counters.subList(0, limit)) : counters;
+    }
+
+    /**
+     * Merges the other summary into this summary. Keys tracked by only one of the summaries may have been dropped by
+     * the other one with up to its smallest count, so that count is added to both their count and their error. The keys
+     * with the largest combined counts are kept.
+     */
+    void merge(SpaceSavingSummary other) {
+
+        if (other.size == 0) {
+            return;
+        }
+
+        final long minimumCount = getMinimumCount();
+        final long otherMinimumCount = other.getMinimumCount();
+        final Map<String, Counter> mergedCounters = new HashMap<>(((size + other.size) * 4 / 3) + 1);
+
+        for (int i = 0; i < size; i++) {
+            final Counter counter = heap[i];
+            mergedCounters.put(counter.key, new Counter(counter.key, counter.count + otherMinimumCount,
+                    counter.error + otherMinimumCount));
+        }
+
+        for (int i = 0; i < other.size; i++) {
+
+            final Counter otherCounter = other.heap[i];
+            final Counter mergedCounter = mergedCounters.get(otherCounter.key);
+
+            if (mergedCounter == null) {
+                mergedCounters.put(otherCounter.key, new Counter(otherCounter.key, otherCounter.count + minimumCount,
+                        otherCounter.error + minimumCount));
+            } else {
+
+                // The key is tracked by both summaries, so the other summary's minimum was added needlessly.
+                mergedCounter.count += otherCounter.count - otherMinimumCount;
+                mergedCounter.error += otherCounter.error - otherMinimumCount;
+            }
+        }
+
+        final List<Counter> counters = new ArrayList<>(mergedCounters.values());
+        Collections.sort(counters, BY_COUNT_DESCENDING);
+        reset();
+
+        for (int i = 0; i < counters.size() && i < capacity; i++) {
+
+            final Counter counter = counters.get(i);
+            counter.heapIndex = size;
+            heap[size++] = counter;
+            countersByKey.put(counter.key, counter);
+        }
+
+        // The counters were added in descending order, so the heap must be rebuilt.
+        for (int i = (size / 2) - 1; i >= 0; i--) {
+            siftDown(i);
+        }
+    }
+
+    /**
+     * Removes all tracked keys.
+     */
+    void reset() {
+        countersByKey.clear();
+        Arrays.fill(heap, null);
+        size = 0;
+    }
+
+    /**
+     * @return the smallest count if all counters are in use (which is the largest weight that an untracked key may
+     * have) or zero otherwise.
+     */
+    private long getMinimumCount() {
+        return (size < capacity) ? 0 : heap[0].count;
+    }
+
+    private void siftDown(int index) {
+
+        final Counter counter = heap[index];
+
+        while (true) {
+
+            final int leftChild = (index * 2) + 1;
+
+            if (leftChild >= size) {
+                break;
+            }
+
+            final int rightChild = leftChild + 1;
+            final int smallerChild = (rightChild < size && heap[rightChild].count < heap[leftChild].count)
+                    ? rightChild : leftChild;
+
+            if (heap[smallerChild].count >= counter.count) {
+                break;
+            }
+
+            heap[index] = heap[smallerChild];
+            heap[index].heapIndex = index;
+            index = smallerChild;
+        }
+
+        heap[index] = counter;
+        counter.heapIndex = index;
+    }
+
+    /**
+     * A tracked key with its count (an upper bound of its actual weight) and the maximum amount by which the count may
+     * exceed the actual weight.
+     */
+    static final class Counter {
+
+        private String key;
+        private long count;
+        private long error;
+        private int heapIndex;
+
+        private Counter(String key, long count, long error) {
+            this.key = key;
+            this.count = count;
+            this.error = error;
+        }
+
+        String getKey() {
+            return key;
+        }
+
+        long getCount() {
+            return count;
+        }
+
+        long getError() {
+            return error;
+        }
+    }
+}
@@ -23,12 +23,14 @@
  */
 package com.github.stiemannkj1.servlet.filter.example;
 
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
 import java.util.ListIterator;
+import javax.servlet.DispatcherType;
 
 /**
  * The metrics for a specific response. The metrics can be set at most once. This class is package private and
@@ -39,23 +41,37 @@ import java.util.ListIterator;
  */
 final class SpecificResponseMetrics implements List<Long> {
 
+    static final int METRIC_COUNT = Metric.values().length;
+
     /**
      * The type of the metric to record or display.
      */
     enum Metric {
-        RESPONSE_TIME(0, "minimumResponseTime", "maximumResponseTime", "averageResponseTime"),
-        RESPONSE_SIZE(1, "minimumResponseSize", "maximumResponseSize", "averageResponseSize");
+        RESPONSE_TIME(0, "minimumResponseTime", "maximumResponseTime", "averageResponseTime", "ResponseTime"),
+        RESPONSE_SIZE(1, "minimumResponseSize", "maximumResponseSize", "averageResponseSize", "ResponseSize"),
+        TRANSFERRED_RESPONSE_SIZE(2, "minimumTransferredResponseSize", "maximumTransferredResponseSize",
+                "averageTransferredResponseSize", "TransferredResponseSize"),
+        CPU_TIME(3, "minimumCpuTime", "maximumCpuTime", "averageCpuTime", "CpuTime"),
+        ALLOCATED_BYTES(4, "minimumAllocatedBytes", "maximumAllocatedBytes", "averageAllocatedBytes",
+                "AllocatedBytes"),
+        HEADER_SIZE(5, "minimumHeaderSize", "maximumHeaderSize", "averageHeaderSize", "HeaderSize"),
+        NETWORK_BLOCKED_TIME(6, "minimumNetworkBlockedTime", "maximumNetworkBlockedTime", "averageNetworkBlockedTime",
+                "NetworkBlockedTime"),
+        CLIENT_THROUGHPUT(7, "minimumClientThroughput", "maximumClientThroughput", "averageClientThroughput",
+                "ClientThroughput");
 
         private final int index;
         private final String minId;
         private final String maxId;
         private final String averageId;
+        private final String percentileIdSuffix;
 
-        private Metric(int index, String minId, String maxId, String averageId) {
+        private Metric(int index, String minId, String maxId, String averageId, String percentileIdSuffix) {
             this.index = index;
             this.minId = minId;
             this.maxId = maxId;
             this.averageId = averageId;
+            this.percentileIdSuffix = percentileIdSuffix;
         }
 
         /**
@@ -64,7 +80,7 @@ final class SpecificResponseMetrics implements List<Long> {
          * @see SpecificResponseMetrics
          * @see MetricsFilter#setMetricsAttributes(
          * com.github.stiemannkj1.servlet.filter.example.SpecificResponseMetrics.Metric,
-         * javax.servlet.http.HttpServletRequest, java.util.Collection)
+         * javax.servlet.http.HttpServletRequest, com.github.stiemannkj1.servlet.filter.example.MetricsHistogram)
          */
         public int getIndex() {
             return index;
@@ -90,21 +106,140 @@ final class SpecificResponseMetrics implements List<Long> {
         public String getAverageId() {
             return averageId;
         }
+
+        /**
+         * @return the request attribute name and client id for the value at the given percentile for the metric (for
+         * example {@code "percentile99ResponseTime"}).
+         */
+        public String getPercentileId(int percentile) {
+            return "percentile" + percentile + percentileIdSuffix;
+        }
+
+        /**
+         * @return the name of the metric in JSON and JMX (for example {@code "responseTime"}).
+         */
+        public String getName() {
+            return Character.toLowerCase(percentileIdSuffix.charAt(0)) + percentileIdSuffix.substring(1);
+        }
+    }
+
+    /**
+     * The time spent in a FORWARD, INCLUDE, ERROR, or ASYNC dispatch of a measured request. This class is thread-safe.
+     */
+    static final class DispatchSegment {
+
+        private final DispatcherType dispatcherType;
+        private final String path;
+        private final int depth;
+        private volatile long elapsedTime = -1;
+
+        DispatchSegment(DispatcherType dispatcherType, String path, int depth) {
+            this.dispatcherType = dispatcherType;
+            this.path = path;
+            this.depth = depth;
+        }
+
+        DispatcherType getDispatcherType() {
+            return dispatcherType;
+        }
+
+        String getPath() {
+            return path;
+        }
+
+        /**
+         * @return the number of dispatch segments that enclose this one plus one.
+         */
+        int getDepth() {
+            return depth;
+        }
+
+        /**
+         * @return the time spent in the dispatch in nanoseconds or -1 if the dispatch has not finished.
+         */
+        long getElapsedTime() {
+            return elapsedTime;
+        }
+
+        void finish(long elapsedTime) {
+            this.elapsedTime = elapsedTime;
+        }
+
+        @Override
+        public String toString() {
+            return dispatcherType + " " + path + " (depth " + depth + "): " + elapsedTime;
+        }
     }
 
     private List<Long> wrappedList = null;
+    private List<DispatchSegment> dispatchSegments = null;
 
     synchronized List<Long> getMetrics() {
         return wrappedList;
     }
 
-    synchronized void setMetrics(long responseTime, long responseSize) {
+    /**
+     * Starts recording a dispatch segment. Segments are kept in the order that they were started.
+     *
+     * @return the started segment which must be {@link DispatchSegment#finish(long) finished} when the dispatch
+     * returns.
+     */
+    synchronized DispatchSegment startDispatchSegment(DispatcherType dispatcherType, String path) {
+
+        if (dispatchSegments == null) {
+            dispatchSegments = new ArrayList<>(2);
+        }
+
+        int depth = 1;
+
+        for (DispatchSegment dispatchSegment : dispatchSegments) {
+
+            if (dispatchSegment.getElapsedTime() < 0) {
+                depth++;
+            }
+        }
+
+        final DispatchSegment dispatchSegment = new DispatchSegment(dispatcherType, path, depth);
+        dispatchSegments.add(dispatchSegment);
+
+        return dispatchSegment;
+    }
+
+    /**
+     * @return a copy of the dispatch segments recorded so far.
+     */
+    synchronized List<DispatchSegment> getDispatchSegments() {
+
+        if (dispatchSegments == null) {
+            return Collections.emptyList();
+        }
+
+        return Collections.unmodifiableList(new ArrayList<>(dispatchSegments));
+    }
+
+    /**
+     * @param metrics the value of each {@link Metric} at its {@link Metric#getIndex() index}. Times are in nanoseconds
+     * and sizes are in bytes. Metrics which were not measured (such as the CPU time when it is not supported) are
+     * zero.
+     * @throws IllegalArgumentException if there isn't exactly one value per {@link Metric}.
+     */
+    synchronized void setMetrics(long[] metrics) {
+
+        if (metrics.length != METRIC_COUNT) {
+            throw new IllegalArgumentException("Expected " + METRIC_COUNT + " metrics but got " + metrics.length + ".");
+        }
 
         if (this.wrappedList != null) {
             throw new UnsupportedOperationException("Metrics may only be set once.");
         }
 
-        this.wrappedList = Collections.unmodifiableList(Arrays.asList(responseTime, responseSize));
+        final Long[] boxedMetrics = new Long[METRIC_COUNT];
+
+        for (int i = 0; i < METRIC_COUNT; i++) {
+            boxedMetrics[i] = metrics[i];
+        }
+
+        this.wrappedList = Collections.unmodifiableList(Arrays.asList(boxedMetrics));
     }
 
     @Override
@@ -0,0 +1,149 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2019 Kyle Stiemann.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.github.stiemannkj1.servlet.filter.example;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Samples the CPU time and the number of heap bytes allocated by the current thread. CPU time is sampled via {@link
+ * ThreadMXBean#getCurrentThreadCpuTime()} and allocated bytes are sampled via HotSpot's {@code
+ * com.sun.management.ThreadMXBean} extension. Each measurement is only sampled if the JVM supports it, otherwise it is
+ * reported as zero. This class is thread-safe.
+ *
+ * @author Kyle Stiemann
+ */
+final class ThreadResourceUsageSampler {
+
+    private static final Logger logger = Logger.getLogger(ThreadResourceUsageSampler.class.getName());
+
+    private final ThreadMXBean threadMXBean;
+    private final boolean cpuTimeSupported;
+    private final AllocatedBytesSampler allocatedBytesSampler;
+
+    ThreadResourceUsageSampler() {
+
+        threadMXBean = ManagementFactory.getThreadMXBean();
+        boolean cpuTimeSupported = false;
+
+        try {
+
+            if (threadMXBean.isCurrentThreadCpuTimeSupported()) {
+
+                if (!threadMXBean.isThreadCpuTimeEnabled()) {
+                    threadMXBean.setThreadCpuTimeEnabled(true);
+                }
+
+                cpuTimeSupported = true;
+            }
+        } catch (UnsupportedOperationException | SecurityException e) {
+            logger.log(Level.WARNING, "Per-thread CPU time cannot be measured in this JVM.", e);
+        }
+
+        this.cpuTimeSupported = cpuTimeSupported;
+        AllocatedBytesSampler allocatedBytesSampler = null;
+
+        try {
+            allocatedBytesSampler = AllocatedBytesSampler.newInstance(threadMXBean);
+        } catch (LinkageError | UnsupportedOperationException | SecurityException e) {
+            logger.log(Level.WARNING, "Per-thread allocated bytes cannot be measured in this JVM.", e);
+        }
+
+        this.allocatedBytesSampler = allocatedBytesSampler;
+    }
+
+    boolean isCpuTimeSupported() {
+        return cpuTimeSupported;
+    }
+
+    boolean isAllocatedBytesSupported() {
+        return allocatedBytesSampler != null;
+    }
+
+    /**
+     * @return the CPU time of the current thread in nanoseconds or zero if it cannot be measured.
+     */
+    long getCurrentThreadCpuTime() {
+
+        if (!cpuTimeSupported) {
+            return 0;
+        }
+
+        return Math.max(0, threadMXBean.getCurrentThreadCpuTime());
+    }
+
+    /**
+     * @return the total number of heap bytes allocated by the current thread or zero if it cannot be measured.
+     */
+    long getCurrentThreadAllocatedBytes() {
+
+        if (allocatedBytesSampler == null) {
+            return 0;
+        }
+
+        return allocatedBytesSampler.getCurrentThreadAllocatedBytes();
+    }
+
+    /**
+     * Isolates the references to {@code com.sun.management.ThreadMXBean} so that this class can still be loaded by JVMs
+     * that don't provide it.
+     */
+    private static final class AllocatedBytesSampler {
+
+        private final com.sun.management.ThreadMXBean threadMXBean;
+
+        private AllocatedBytesSampler(com.sun.management.ThreadMXBean threadMXBean) {
+            this.threadMXBean = threadMXBean;
+        }
+
+        /**
+         * @return a sampler or null if allocated bytes are not supported.
+         */
+        static AllocatedBytesSampler newInstance(ThreadMXBean threadMXBean) {
+
+            if (!(threadMXBean instanceof com.sun.management.ThreadMXBean)) {
+                return null;
+            }
+
+            final com.sun.management.ThreadMXBean hotSpotThreadMXBean =
+                    (com.sun.management.ThreadMXBean) threadMXBean;
+
+            if (!hotSpotThreadMXBean.isThreadAllocatedMemorySupported()) {
+                return null;
+            }
+
+            if (!hotSpotThreadMXBean.isThreadAllocatedMemoryEnabled()) {
+                hotSpotThreadMXBean.setThreadAllocatedMemoryEnabled(true);
+            }
+
+            return new AllocatedBytesSampler(hotSpotThreadMXBean);
+        }
+
+        long getCurrentThreadAllocatedBytes() {
+            return Math.max(0, threadMXBean.getThreadAllocatedBytes(Thread.currentThread().getId()));
+        }
+    }
+}
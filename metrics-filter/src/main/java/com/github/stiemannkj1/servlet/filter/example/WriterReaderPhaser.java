@@ -0,0 +1,124 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2019 Kyle Stiemann.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.github.stiemannkj1.servlet.filter.example;
+
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * <p>
+ * Coordinates wait-free writers with a reader that needs to swap the data structure that the writers record into (an
+ * interval swap). Writers wrap each recording in {@link #writerCriticalSectionEnter()} and {@link
+ * #writerCriticalSectionExit(long)}, which never block. A reader holding {@link #readerLock()} swaps the active data
+ * structure for an inactive one and then calls {@link #flipPhase()}, which waits until every writer that may have
+ * seen the previously active data structure has exited its critical section. After the flip, the previously active
+ * data structure is quiescent and can be read and reset without losing or double counting any recorded values.</p>
+ *
+ * <p>
+ * This is the writer-reader phaser design used by HdrHistogram's {@code Recorder}. The epoch counters are padded so
+ * that phasers allocated next to each other do not share cache lines.</p>
+ *
+ * @author Kyle Stiemann
+ */
+final class WriterReaderPhaser extends WriterReaderPhaserEpochs {
+
+    // Padding to keep the epochs of neighboring objects off of this object's cache lines.
+    long p10, p11, p12, p13, p14, p15, p16, p17;
+
+    private static final AtomicLongFieldUpdater<WriterReaderPhaserEpochs> START_EPOCH =
+            AtomicLongFieldUpdater.newUpdater(WriterReaderPhaserEpochs.class, "startEpoch");
+    private static final AtomicLongFieldUpdater<WriterReaderPhaserEpochs> EVEN_END_EPOCH =
+            AtomicLongFieldUpdater.newUpdater(WriterReaderPhaserEpochs.class, "evenEndEpoch");
+    private static final AtomicLongFieldUpdater<WriterReaderPhaserEpochs> ODD_END_EPOCH =
+            AtomicLongFieldUpdater.newUpdater(WriterReaderPhaserEpochs.class, "oddEndEpoch");
+
+    private final ReentrantLock readerLock = new ReentrantLock();
+
+    /**
+     * @return a value which must be passed to {@link #writerCriticalSectionExit(long)}.
+     */
+    long writerCriticalSectionEnter() {
+        return START_EPOCH.getAndIncrement(this);
+    }
+
+    void writerCriticalSectionExit(long criticalValueAtEnter) {
+        (criticalValueAtEnter < 0 ? ODD_END_EPOCH : EVEN_END_EPOCH).getAndIncrement(this);
+    }
+
+    void readerLock() {
+        readerLock.lock();
+    }
+
+    void readerUnlock() {
+        readerLock.unlock();
+    }
+
+    /**
+     * Waits until all writers that entered their critical section before this call have exited it. Must be called
+     * while holding {@link #readerLock()}.
+     */
+    void flipPhase() {
+
+        if (!readerLock.isHeldByCurrentThread()) {
+            throw new IllegalStateException("flipPhase() may only be called while holding the reader lock.");
+        }
+
+        final boolean nextPhaseIsEven = (startEpoch < 0);
+        final long initialStartValue = nextPhaseIsEven ? 0 : Long.MIN_VALUE;
+
+        if (nextPhaseIsEven) {
+            evenEndEpoch = initialStartValue;
+        } else {
+            oddEndEpoch = initialStartValue;
+        }
+
+        final long startValueAtFlip = START_EPOCH.getAndSet(this, initialStartValue);
+
+        while ((nextPhaseIsEven ? oddEndEpoch : evenEndEpoch) != startValueAtFlip) {
+            Thread.yield();
+        }
+    }
+}
+
+/**
+ * The padded epochs of a {@link WriterReaderPhaser}. Values less than zero indicate the odd phase.
+ *
+ * @author Kyle Stiemann
+ */
+abstract class WriterReaderPhaserEpochs extends WriterReaderPhaserPadding {
+
+    volatile long startEpoch = 0;
+    volatile long evenEndEpoch = 0;
+    volatile long oddEndEpoch = Long.MIN_VALUE;
+}
+
+/**
+ * Padding to keep the epochs of a {@link WriterReaderPhaser} off of the cache lines of preceding objects.
+ *
+ * @author Kyle Stiemann
+ */
+abstract class WriterReaderPhaserPadding {
+
+    long p00, p01, p02, p03, p04, p05, p06, p07;
+}
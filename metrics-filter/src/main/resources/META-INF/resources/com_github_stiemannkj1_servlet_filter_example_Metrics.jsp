@@ -40,16 +40,255 @@ THE SOFTWARE.
     </head>
     <body>
         <h1>Metrics</h1>
+        <ul>
+            <li><strong>Excluded Responses:</strong> <span id="excludedResponseCount">${excludedResponseCount}</span></li>
+        </ul>
+        <c:if test="${concurrencyLimit != null}">
+            <ul>
+                <li><strong>Adaptive Concurrency Limit:</strong> <span id="concurrencyLimit">${concurrencyLimit}</span></li>
+                <li><strong>In-Flight Requests:</strong> <span id="inFlightRequestCount">${inFlightRequestCount}</span></li>
+                <li><strong>Rejected Responses:</strong> <span id="rejectedResponseCount">${rejectedResponseCount}</span></li>
+            </ul>
+        </c:if>
+        <c:if test="${cacheHitCount != null}">
+            <ul>
+                <li><strong>Cache Hits:</strong> <span id="cacheHitCount">${cacheHitCount}</span></li>
+                <li><strong>Cache Misses:</strong> <span id="cacheMissCount">${cacheMissCount}</span></li>
+                <li><strong>Cache Evictions:</strong> <span id="cacheEvictionCount">${cacheEvictionCount}</span></li>
+                <li><strong>Cached Responses:</strong> <span id="cachedResponseCount">${cachedResponseCount}</span></li>
+                <li><strong>Cache Size (in bytes):</strong> <span id="cacheSize">${cacheSize}</span></li>
+            </ul>
+            <ul>
+                <li><strong>Minimum Cache Hit Time (in nanoseconds):</strong> <span id="minimumCacheHitTime">${minimumCacheHitTime}</span></li>
+                <li><strong>Maximum Cache Hit Time (in nanoseconds):</strong> <span id="maximumCacheHitTime">${maximumCacheHitTime}</span></li>
+                <li><strong>Average Cache Hit Time (in nanoseconds):</strong> <span id="averageCacheHitTime">${averageCacheHitTime}</span></li>
+                <li><strong>50th Percentile Cache Hit Time (in nanoseconds):</strong> <span id="percentile50CacheHitTime">${percentile50CacheHitTime}</span></li>
+                <li><strong>90th Percentile Cache Hit Time (in nanoseconds):</strong> <span id="percentile90CacheHitTime">${percentile90CacheHitTime}</span></li>
+                <li><strong>99th Percentile Cache Hit Time (in nanoseconds):</strong> <span id="percentile99CacheHitTime">${percentile99CacheHitTime}</span></li>
+            </ul>
+        </c:if>
         <ul>
             <li><strong>Minimum Servlet Response Size (in bytes):</strong> <span id="minimumResponseSize">${minimumResponseSize}</span></li>
             <li><strong>Maximum Servlet Response Size (in bytes):</strong> <span id="maximumResponseSize">${maximumResponseSize}</span></li>
             <li><strong>Average Servlet Response Size (in bytes):</strong> <span id="averageResponseSize">${averageResponseSize}</span></li>
+            <li><strong>50th Percentile Servlet Response Size (in bytes):</strong> <span id="percentile50ResponseSize">${percentile50ResponseSize}</span></li>
+            <li><strong>90th Percentile Servlet Response Size (in bytes):</strong> <span id="percentile90ResponseSize">${percentile90ResponseSize}</span></li>
+            <li><strong>99th Percentile Servlet Response Size (in bytes):</strong> <span id="percentile99ResponseSize">${percentile99ResponseSize}</span></li>
         </ul>
         <ul>
             <li><strong>Minimum Servlet Response Time (in nanoseconds):</strong> <span id="minimumResponseTime">${minimumResponseTime}</span></li>
             <li><strong>Maximum Servlet Response Time (in nanoseconds):</strong> <span id="maximumResponseTime">${maximumResponseTime}</span></li>
             <li><strong>Average Servlet Response Time (in nanoseconds):</strong> <span id="averageResponseTime">${averageResponseTime}</span></li>
+            <li><strong>50th Percentile Servlet Response Time (in nanoseconds):</strong> <span id="percentile50ResponseTime">${percentile50ResponseTime}</span></li>
+            <li><strong>90th Percentile Servlet Response Time (in nanoseconds):</strong> <span id="percentile90ResponseTime">${percentile90ResponseTime}</span></li>
+            <li><strong>99th Percentile Servlet Response Time (in nanoseconds):</strong> <span id="percentile99ResponseTime">${percentile99ResponseTime}</span></li>
+        </ul>
+        <ul>
+            <li><strong>Minimum Transferred Response Size (in bytes):</strong> <span id="minimumTransferredResponseSize">${minimumTransferredResponseSize}</span></li>
+            <li><strong>Maximum Transferred Response Size (in bytes):</strong> <span id="maximumTransferredResponseSize">${maximumTransferredResponseSize}</span></li>
+            <li><strong>Average Transferred Response Size (in bytes):</strong> <span id="averageTransferredResponseSize">${averageTransferredResponseSize}</span></li>
+            <li><strong>Compression Ratio (response size / transferred response size):</strong> <span id="compressionRatio">${compressionRatio}</span></li>
         </ul>
+        <ul>
+            <li><strong>Minimum Response Header Size (in bytes):</strong> <span id="minimumHeaderSize">${minimumHeaderSize}</span></li>
+            <li><strong>Maximum Response Header Size (in bytes):</strong> <span id="maximumHeaderSize">${maximumHeaderSize}</span></li>
+            <li><strong>Average Response Header Size (in bytes):</strong> <span id="averageHeaderSize">${averageHeaderSize}</span></li>
+            <li><strong>50th Percentile Response Header Size (in bytes):</strong> <span id="percentile50HeaderSize">${percentile50HeaderSize}</span></li>
+            <li><strong>90th Percentile Response Header Size (in bytes):</strong> <span id="percentile90HeaderSize">${percentile90HeaderSize}</span></li>
+            <li><strong>99th Percentile Response Header Size (in bytes):</strong> <span id="percentile99HeaderSize">${percentile99HeaderSize}</span></li>
+        </ul>
+        <c:if test="${resourceUsageMeasured}">
+            <ul>
+                <li><strong>Minimum Servlet CPU Time (in nanoseconds):</strong> <span id="minimumCpuTime">${minimumCpuTime}</span></li>
+                <li><strong>Maximum Servlet CPU Time (in nanoseconds):</strong> <span id="maximumCpuTime">${maximumCpuTime}</span></li>
+                <li><strong>Average Servlet CPU Time (in nanoseconds):</strong> <span id="averageCpuTime">${averageCpuTime}</span></li>
+                <li><strong>50th Percentile Servlet CPU Time (in nanoseconds):</strong> <span id="percentile50CpuTime">${percentile50CpuTime}</span></li>
+                <li><strong>90th Percentile Servlet CPU Time (in nanoseconds):</strong> <span id="percentile90CpuTime">${percentile90CpuTime}</span></li>
+                <li><strong>99th Percentile Servlet CPU Time (in nanoseconds):</strong> <span id="percentile99CpuTime">${percentile99CpuTime}</span></li>
+            </ul>
+            <ul>
+                <li><strong>Minimum Servlet Allocated Heap (in bytes):</strong> <span id="minimumAllocatedBytes">${minimumAllocatedBytes}</span></li>
+                <li><strong>Maximum Servlet Allocated Heap (in bytes):</strong> <span id="maximumAllocatedBytes">${maximumAllocatedBytes}</span></li>
+                <li><strong>Average Servlet Allocated Heap (in bytes):</strong> <span id="averageAllocatedBytes">${averageAllocatedBytes}</span></li>
+                <li><strong>50th Percentile Servlet Allocated Heap (in bytes):</strong> <span id="percentile50AllocatedBytes">${percentile50AllocatedBytes}</span></li>
+                <li><strong>90th Percentile Servlet Allocated Heap (in bytes):</strong> <span id="percentile90AllocatedBytes">${percentile90AllocatedBytes}</span></li>
+                <li><strong>99th Percentile Servlet Allocated Heap (in bytes):</strong> <span id="percentile99AllocatedBytes">${percentile99AllocatedBytes}</span></li>
+            </ul>
+        </c:if>
+        <c:if test="${networkBlockingMeasured}">
+            <ul>
+                <li><strong>Minimum Network Blocked Time (in nanoseconds):</strong> <span id="minimumNetworkBlockedTime">${minimumNetworkBlockedTime}</span></li>
+                <li><strong>Maximum Network Blocked Time (in nanoseconds):</strong> <span id="maximumNetworkBlockedTime">${maximumNetworkBlockedTime}</span></li>
+                <li><strong>Average Network Blocked Time (in nanoseconds):</strong> <span id="averageNetworkBlockedTime">${averageNetworkBlockedTime}</span></li>
+                <li><strong>50th Percentile Network Blocked Time (in nanoseconds):</strong> <span id="percentile50NetworkBlockedTime">${percentile50NetworkBlockedTime}</span></li>
+                <li><strong>90th Percentile Network Blocked Time (in nanoseconds):</strong> <span id="percentile90NetworkBlockedTime">${percentile90NetworkBlockedTime}</span></li>
+                <li><strong>99th Percentile Network Blocked Time (in nanoseconds):</strong> <span id="percentile99NetworkBlockedTime">${percentile99NetworkBlockedTime}</span></li>
+            </ul>
+            <ul>
+                <li><strong>Minimum Client Throughput (in bytes per second):</strong> <span id="minimumClientThroughput">${minimumClientThroughput}</span></li>
+                <li><strong>Maximum Client Throughput (in bytes per second):</strong> <span id="maximumClientThroughput">${maximumClientThroughput}</span></li>
+                <li><strong>Average Client Throughput (in bytes per second):</strong> <span id="averageClientThroughput">${averageClientThroughput}</span></li>
+                <li><strong>50th Percentile Client Throughput (in bytes per second):</strong> <span id="percentile50ClientThroughput">${percentile50ClientThroughput}</span></li>
+                <li><strong>90th Percentile Client Throughput (in bytes per second):</strong> <span id="percentile90ClientThroughput">${percentile90ClientThroughput}</span></li>
+                <li><strong>99th Percentile Client Throughput (in bytes per second):</strong> <span id="percentile99ClientThroughput">${percentile99ClientThroughput}</span></li>
+            </ul>
+        </c:if>
+        <c:if test="${distinctClients != null}">
+            <ul>
+                <li><strong>Distinct Clients (last hour):</strong> <span id="distinctClients">${distinctClients.estimate}</span></li>
+                <li><strong>Distinct Paths (last hour):</strong> <span id="distinctPaths">${distinctPaths.estimate}</span></li>
+                <li><strong>Distinct Sessions (last hour):</strong> <span id="distinctSessions">${distinctSessions.estimate}</span></li>
+                <li><strong>Distinct Count Standard Error (in percent):</strong> <span id="distinctCountStandardErrorPercent">${distinctClients.standardError * 100}</span></li>
+            </ul>
+        </c:if>
+        <c:if test="${topClientsByRequests != null}">
+            <p>
+                Estimates exceed the actual values by at most
+                <span id="heavyHittersErrorPercent">${heavyHittersErrorPercent}</span>% of the total (with a probability
+                of <span id="heavyHittersConfidencePercent">${heavyHittersConfidencePercent}</span>%). The actual values
+                are never less than the minimums.
+            </p>
+            <table id="topClientsByRequests">
+                <caption>Top Clients by Requests</caption>
+                <thead>
+                    <tr>
+                        <th>Client</th>
+                        <th>Estimated Requests</th>
+                        <th>Minimum Requests</th>
+                    </tr>
+                </thead>
+                <tbody>
+                    <c:forEach items="${topClientsByRequests}" var="heavyHitter">
+                        <tr>
+                            <th scope="row"><c:out value="${heavyHitter.client}"/></th>
+                            <td align="right">${heavyHitter.estimate}</td>
+                            <td align="right">${heavyHitter.minimum}</td>
+                        </tr>
+                    </c:forEach>
+                </tbody>
+            </table>
+            <table id="topClientsByBytes">
+                <caption>Top Clients by Transferred Bytes</caption>
+                <thead>
+                    <tr>
+                        <th>Client</th>
+                        <th>Estimated Bytes</th>
+                        <th>Minimum Bytes</th>
+                    </tr>
+                </thead>
+                <tbody>
+                    <c:forEach items="${topClientsByBytes}" var="heavyHitter">
+                        <tr>
+                            <th scope="row"><c:out value="${heavyHitter.client}"/></th>
+                            <td align="right">${heavyHitter.estimate}</td>
+                            <td align="right">${heavyHitter.minimum}</td>
+                        </tr>
+                    </c:forEach>
+                </tbody>
+            </table>
+            <table id="topClientsByServerTime">
+                <caption>Top Clients by Server Time</caption>
+                <thead>
+                    <tr>
+                        <th>Client</th>
+                        <th>Estimated Server Time (in nanoseconds)</th>
+                        <th>Minimum Server Time (in nanoseconds)</th>
+                    </tr>
+                </thead>
+                <tbody>
+                    <c:forEach items="${topClientsByServerTime}" var="heavyHitter">
+                        <tr>
+                            <th scope="row"><c:out value="${heavyHitter.client}"/></th>
+                            <td align="right">${heavyHitter.estimate}</td>
+                            <td align="right">${heavyHitter.minimum}</td>
+                        </tr>
+                    </c:forEach>
+                </tbody>
+            </table>
+        </c:if>
+        <c:if test="${compressionByPath != null}">
+            <table id="compressionByPath">
+                <caption>Compression Ratio by Path</caption>
+                <thead>
+                    <tr>
+                        <th>Path</th>
+                        <th>Response Size (in bytes)</th>
+                        <th>Transferred Response Size (in bytes)</th>
+                        <th>Compression Ratio</th>
+                    </tr>
+                </thead>
+                <tbody>
+                    <c:forEach items="${compressionByPath}" var="pathCompression">
+                        <tr>
+                            <th scope="row"><c:out value="${pathCompression.path}"/></th>
+                            <td align="right">${pathCompression.responseSize}</td>
+                            <td align="right">${pathCompression.transferredResponseSize}</td>
+                            <td align="right">${pathCompression.compressionRatio}</td>
+                        </tr>
+                    </c:forEach>
+                </tbody>
+            </table>
+        </c:if>
+        <c:forEach items="${rollupCharts}" var="chart">
+            <figure id="${chart.id}">
+                <figcaption>
+                    <strong>${chart.title}:</strong> maximum <span class="maximum">${chart.maximum}</span> from
+                    <time>${chart.from}</time> to <time>${chart.to}</time>
+                </figcaption>
+                <svg xmlns="http://www.w3.org/2000/svg" width="600" height="100" viewBox="0 0 600 100" style="border: 1px solid black;">
+                    <c:forEach items="${chart.series}" var="series">
+                        <polyline fill="none" stroke="${series.color}" points="${series.points}"><title>${series.name}</title></polyline>
+                    </c:forEach>
+                </svg>
+            </figure>
+        </c:forEach>
+        <c:if test="${liveMetrics}">
+            <ul id="liveMetrics">
+                <li><strong>Live Responses (last interval):</strong> <span id="liveResponseCount"></span></li>
+                <li><strong>Live Excluded Responses (last interval):</strong> <span id="liveExcludedResponseCount"></span></li>
+                <li><strong>Live Response Size (in bytes, last interval):</strong> <span id="liveResponseSize"></span></li>
+                <li><strong>Live 50th Percentile Servlet Response Time (in nanoseconds):</strong> <span id="livePercentile50ResponseTime"></span></li>
+                <li><strong>Live 90th Percentile Servlet Response Time (in nanoseconds):</strong> <span id="livePercentile90ResponseTime"></span></li>
+                <li><strong>Live 99th Percentile Servlet Response Time (in nanoseconds):</strong> <span id="livePercentile99ResponseTime"></span></li>
+                <li><strong>Live Maximum Servlet Response Time (in nanoseconds):</strong> <span id="liveMaximumResponseTime"></span></li>
+            </ul>
+            <ol id="liveTopClients"></ol>
+            <script>
+                (function () {
+                    if (!window.EventSource) {
+                        return;
+                    }
+                    var topClients = {};
+                    var events = new EventSource("com_github_stiemannkj1_servlet_filter_example_Metrics.events");
+                    events.onmessage = function (event) {
+                        var data = JSON.parse(event.data);
+                        for (var key in data) {
+                            var element = document.getElementById("live" + key.charAt(0).toUpperCase() + key.substring(1));
+                            if (element !== null) {
+                                element.textContent = data[key];
+                            }
+                        }
+                        (data.removedTopClients || []).forEach(function (client) {
+                            delete topClients[client];
+                        });
+                        for (var client in data.topClients) {
+                            topClients[client] = data.topClients[client];
+                        }
+                        var list = document.getElementById("liveTopClients");
+                        while (list.firstChild !== null) {
+                            list.removeChild(list.firstChild);
+                        }
+                        Object.keys(topClients).sort(function (a, b) {
+                            return topClients[b] - topClients[a];
+                        }).forEach(function (client) {
+                            var item = document.createElement("li");
+                            item.textContent = client + ": " + topClients[client];
+                            list.appendChild(item);
+                        });
+                    };
+                }());
+            </script>
+        </c:if>
         <table>
             <caption>Historical Response Data</caption>
             <thead>
@@ -57,6 +296,19 @@ THE SOFTWARE.
                     <th>Response Id</th>
                     <th>Servlet Response Time (in nanoseconds)</th>
                     <th>Response Size (in bytes)</th>
+                    <th>Transferred Response Size (in bytes)</th>
+                    <th>Response Header Size (in bytes)</th>
+                    <c:if test="${resourceUsageMeasured}">
+                        <th>Servlet CPU Time (in nanoseconds)</th>
+                        <th>Servlet Allocated Heap (in bytes)</th>
+                    </c:if>
+                    <c:if test="${networkBlockingMeasured}">
+                        <th>Network Blocked Time (in nanoseconds)</th>
+                        <th>Client Throughput (in bytes per second)</th>
+                    </c:if>
+                    <c:if test="${dispatchSegments != null}">
+                        <th>Dispatch Segments (in nanoseconds)</th>
+                    </c:if>
                 </tr>
             </thead>
             <tbody>
@@ -65,6 +317,23 @@ THE SOFTWARE.
                         <td align="right">${responseInfo.key}</td>
                         <td align="right">${responseInfo.value.get(0)}</td>
                         <td align="right">${responseInfo.value.get(1)}</td>
+                        <td align="right">${responseInfo.value.get(2)}</td>
+                        <td align="right">${responseInfo.value.get(5)}</td>
+                        <c:if test="${resourceUsageMeasured}">
+                            <td align="right">${responseInfo.value.get(3)}</td>
+                            <td align="right">${responseInfo.value.get(4)}</td>
+                        </c:if>
+                        <c:if test="${networkBlockingMeasured}">
+                            <td align="right">${responseInfo.value.get(6)}</td>
+                            <td align="right">${responseInfo.value.get(7)}</td>
+                        </c:if>
+                        <c:if test="${dispatchSegments != null}">
+                            <td>
+                                <c:forEach items="${dispatchSegments[responseInfo.key]}" var="dispatchSegment">
+                                    <div><c:out value="${dispatchSegment}"/></div>
+                                </c:forEach>
+                            </td>
+                        </c:if>
                     </tr>
                 </c:forEach>
             </tbody>
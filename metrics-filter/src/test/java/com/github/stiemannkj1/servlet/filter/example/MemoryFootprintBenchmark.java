@@ -0,0 +1,536 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2019 Kyle Stiemann.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.github.stiemannkj1.servlet.filter.example;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.MemoryUsage;
+import java.lang.reflect.Array;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.lang.reflect.Proxy;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.function.Supplier;
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
+import org.junit.Assert;
+import org.junit.Test;
+import static org.mockito.Mockito.*;
+
+/**
+ * <p>
+ * Measures how much heap each response tracked in {@link MetricsFilter}'s response history retains for each
+ * {@link ResponseMetricsRecorder} implementation and unique response id mode, and writes the results to a plain text
+ * report. This benchmark is not run with the unit tests. Run it with the {@code memory-footprint} profile:</p>
+ *
+ * <pre>mvn test -pl metrics-filter -P memory-footprint [-Dmemory.footprint.requests=1000000]</pre>
+ *
+ * <p>
+ * Two independent measurements are reported:</p>
+ * <ul>
+ * <li>The estimated layout of one history entry (the id {@link String}, the {@link SpecificResponseMetrics}, its
+ * unmodifiable list, the boxed {@link Long}s, the {@link java.util.concurrent.ConcurrentHashMap} node, and the node's
+ * share of the map's table) which is calculated from the fields of each object using HotSpot's layout rules for the
+ * running JVM's pointer compression and object alignment. Shared objects (such as cached small {@link Long}s) are not
+ * counted.</li>
+ * <li>The measured heap growth (after garbage collection) after sending the configured number of simulated requests
+ * through {@link MetricsFilter#doFilter(javax.servlet.ServletRequest, javax.servlet.ServletResponse, FilterChain)}.
+ * </li>
+ * </ul>
+ *
+ * @author Kyle Stiemann
+ */
+public final class MemoryFootprintBenchmark {
+
+    private static final String REQUESTS_PROPERTY = "memory.footprint.requests";
+    private static final String REPORT_PROPERTY = "memory.footprint.report";
+    private static final int DEFAULT_REQUESTS = 1_000_000;
+
+    @Test
+    public final void benchmarkMemoryFootprint() throws Exception {
+
+        final int requests = Integer.getInteger(REQUESTS_PROPERTY, DEFAULT_REQUESTS);
+        final ObjectLayout objectLayout = new ObjectLayout();
+        final StringWriter stringWriter = new StringWriter();
+        final PrintWriter report = new PrintWriter(stringWriter);
+
+        report.println("MetricsFilter memory footprint");
+        report.println();
+        report.printf(Locale.ENGLISH, "JVM: %s %s%n", System.getProperty("java.vm.name"),
+                System.getProperty("java.version"));
+        report.printf(Locale.ENGLISH,
+                "Compressed oops: %s, compressed class pointers: %s, object alignment: %d bytes%n",
+                objectLayout.compressedOops, objectLayout.compressedClassPointers, objectLayout.objectAlignment);
+        report.printf(Locale.ENGLISH, "Simulated requests: %,d%n", requests);
+        report.println();
+        report.println("Estimated layout of one response history entry for a 2 KiB response (bytes):");
+        report.println();
+        report.println("| Id mode | Key | SpecificResponseMetrics | Map node | Map table | Total |");
+        report.println("| --- | ---: | ---: | ---: | ---: | ---: |");
+
+        for (IdMode idMode : IdMode.values()) {
+
+            final String key = idMode.getNthId(requests);
+            final SpecificResponseMetrics specificResponseMetrics = new SpecificResponseMetrics();
+            final long[] metrics = new long[SpecificResponseMetrics.METRIC_COUNT];
+            metrics[SpecificResponseMetrics.Metric.RESPONSE_TIME.getIndex()] = 1_500_000;
+            metrics[SpecificResponseMetrics.Metric.RESPONSE_SIZE.getIndex()] = 2048;
+            metrics[SpecificResponseMetrics.Metric.TRANSFERRED_RESPONSE_SIZE.getIndex()] = 2048;
+            metrics[SpecificResponseMetrics.Metric.HEADER_SIZE.getIndex()] = 160;
+            specificResponseMetrics.setMetrics(metrics);
+
+            final long keySize = objectLayout.getRetainedSize(key);
+            final long specificResponseMetricsSize = objectLayout.getRetainedSize(specificResponseMetrics);
+            final long nodeSize = objectLayout.getInstanceSize(
+                    Class.forName("java.util.concurrent.ConcurrentHashMap$Node"));
+            final double tableSize = objectLayout.getAmortizedTableSlotSize(requests);
+            report.printf(Locale.ENGLISH, "| %s | %d | %d | %d | %.1f | %.1f |%n", idMode, keySize,
+                    specificResponseMetricsSize, nodeSize, tableSize,
+                    keySize + specificResponseMetricsSize + nodeSize + tableSize);
+        }
+
+        report.println();
+        report.println("Fixed size of each recorder implementation after recording from one thread (bytes):");
+        report.println();
+        report.println("| Recorder | Retained size |");
+        report.println("| --- | ---: |");
+
+        for (RecorderMode recorderMode : RecorderMode.values()) {
+
+            final ResponseMetricsRecorder responseMetricsRecorder = recorderMode.newRecorder();
+            responseMetricsRecorder.record(Collections.nCopies(SpecificResponseMetrics.Metric.values().length, 1L));
+            report.printf(Locale.ENGLISH, "| %s | %d |%n", recorderMode,
+                    objectLayout.getRetainedSize(responseMetricsRecorder));
+        }
+
+        report.println();
+        report.printf(Locale.ENGLISH, "Measured heap growth after %,d simulated requests:%n", requests);
+        report.println();
+        report.println("The simulated requests write empty bodies, so their boxed response sizes are shared cached " +
+                "values, and the growth includes a small amount of unrelated allocation.");
+        report.println();
+        report.println("| Recorder | Id mode | Heap growth (MiB) | Bytes per request |");
+        report.println("| --- | --- | ---: | ---: |");
+
+        for (RecorderMode recorderMode : RecorderMode.values()) {
+
+            for (IdMode idMode : IdMode.values()) {
+
+                if (!idMode.isUsedWith(recorderMode)) {
+                    continue;
+                }
+
+                final long heapGrowth = measureHeapGrowth(recorderMode, idMode, requests);
+                report.printf(Locale.ENGLISH, "| %s | %s | %.1f | %.1f |%n", recorderMode, idMode,
+                        heapGrowth / (1024.0 * 1024.0), ((double) heapGrowth) / requests);
+            }
+        }
+
+        if (!objectLayout.inaccessibleFields.isEmpty()) {
+
+            report.println();
+            report.println("The following fields could not be read, so the objects that they reference were not " +
+                    "counted (run with the memory-footprint profile to open them): " +
+                    objectLayout.inaccessibleFields);
+        }
+
+        report.flush();
+
+        final String reportText = stringWriter.toString();
+        System.out.println(reportText);
+
+        final String reportPath = System.getProperty(REPORT_PROPERTY);
+
+        if (reportPath != null) {
+
+            final Path path = Paths.get(reportPath);
+            Files.createDirectories(path.toAbsolutePath().getParent());
+            Files.write(path, reportText.getBytes(StandardCharsets.UTF_8));
+        }
+    }
+
+    private static long measureHeapGrowth(RecorderMode recorderMode, IdMode idMode, int requests)
+            throws Exception {
+
+        final MetricsFilter metricsFilter = new MetricsFilter();
+        final Map<String, String> initParameters = new HashMap<>();
+        initParameters.put(MetricsFilter.SNAPSHOT_REFRESH_INTERVAL_MILLIS_KEY, "0");
+
+        // The history must keep every simulated response so that the growth per response can be measured.
+        initParameters.put(MetricsFilter.RESPONSE_HISTORY_SIZE_KEY, Integer.toString(requests));
+        initParameters.put(MetricsFilter.USE_PER_THREAD_RECORDERS_KEY,
+                Boolean.toString(recorderMode == RecorderMode.PER_THREAD));
+        initParameters.put(MetricsFilter.USE_UUID_UNIQUE_RESPONSE_ID_KEY, Boolean.toString(idMode == IdMode.UUID));
+
+        final FilterConfig filterConfig = newStub(FilterConfig.class, initParameters);
+        final HttpServletRequest request = newStub(HttpServletRequest.class, Collections.emptyMap());
+
+        // The response can't be a proxy since creating a proxy of HttpServletResponse initializes Cookie which fails
+        // with the API-only javaee-web-api jar, so the methods called for every request are overridden instead.
+        final HttpServletResponse response = new HttpServletResponseWrapper(
+                mock(HttpServletResponse.class, withSettings().stubOnly())) {
+
+            @Override
+            public void addHeader(String name, String value) {
+                // Do nothing.
+            }
+
+            @Override
+            public void setHeader(String name, String value) {
+                // Do nothing.
+            }
+
+            @Override
+            public String getHeader(String name) {
+                return null;
+            }
+
+            @Override
+            public int getStatus() {
+                return HttpServletResponse.SC_OK;
+            }
+
+            @Override
+            public boolean isCommitted() {
+                return false;
+            }
+        };
+        final FilterChain filterChain = newStub(FilterChain.class, Collections.emptyMap());
+
+        metricsFilter.init(filterConfig);
+
+        try {
+
+            // Warm up the filter so that lazily allocated state isn't counted.
+            metricsFilter.doFilter(request, response, filterChain);
+
+            final long usedHeapBefore = getUsedHeapAfterGC();
+
+            for (int i = 0; i < requests; i++) {
+                metricsFilter.doFilter(request, response, filterChain);
+            }
+
+            final long heapGrowth = getUsedHeapAfterGC() - usedHeapBefore;
+            Assert.assertEquals(requests + 1, metricsFilter.getMetricsSnapshot().getResponseCount());
+
+            return heapGrowth;
+        } finally {
+            metricsFilter.destroy();
+        }
+    }
+
+    /**
+     * @return a stub which returns the given init parameters from {@code getInitParameter()} and zero, false, or null
+     * from every other method. Stubs are used instead of Mockito mocks since Mockito's per-invocation overhead would
+     * dominate the time needed to send millions of requests.
+     */
+    private static <T> T newStub(Class<T> type, Map<String, String> initParameters) {
+        return type.cast(Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[] { type },
+                (proxy, method, args) -> {
+
+                    final Class<?> returnType = method.getReturnType();
+
+                    if ("getInitParameter".equals(method.getName())) {
+                        return initParameters.get((String) args[0]);
+                    } else if ("hashCode".equals(method.getName())) {
+                        return System.identityHashCode(proxy);
+                    } else if ("equals".equals(method.getName())) {
+                        return proxy == args[0];
+                    } else if ("toString".equals(method.getName())) {
+                        return type.getSimpleName() + " stub";
+                    } else if (returnType == boolean.class) {
+                        return false;
+                    } else if (returnType == int.class) {
+                        return 0;
+                    } else if (returnType == long.class) {
+                        return 0L;
+                    }
+
+                    return null;
+                }));
+    }
+
+    /**
+     * @return the heap that was in use after the most recent garbage collection. The current usage of each pool is not
+     * used since it may include objects allocated after the collection.
+     */
+    private static long getUsedHeapAfterGC() throws InterruptedException {
+
+        long usedHeap = Long.MAX_VALUE;
+
+        // A single collection may report the heap before unreachable objects were reclaimed (for example if the
+        // collection was a young collection that promoted them), so collect several times and use the minimum.
+        for (int i = 0; i < 5; i++) {
+
+            System.gc();
+            Thread.sleep(50);
+
+            long currentUsedHeap = 0;
+
+            for (MemoryPoolMXBean memoryPoolMXBean : ManagementFactory.getMemoryPoolMXBeans()) {
+
+                final MemoryUsage collectionUsage = memoryPoolMXBean.getCollectionUsage();
+
+                if (memoryPoolMXBean.getType() == MemoryType.HEAP && collectionUsage != null) {
+                    currentUsedHeap += collectionUsage.getUsed();
+                }
+            }
+
+            usedHeap = Math.min(usedHeap, currentUsedHeap);
+        }
+
+        return usedHeap;
+    }
+
+    private enum RecorderMode {
+
+        SHARED, PER_THREAD;
+
+        ResponseMetricsRecorder newRecorder() {
+            return (this == SHARED) ? new SharedResponseMetricsRecorder() : new PerThreadResponseMetricsRecorder();
+        }
+    }
+
+    private enum IdMode {
+
+        ATOMIC_LONG, PER_THREAD, UUID;
+
+        /**
+         * @return true if {@link MetricsFilter} generates this kind of id when it uses the recorder (per-thread ids
+         * are generated with per-thread recorders and {@link java.util.concurrent.atomic.AtomicLong} ids are
+         * generated with shared recorders).
+         */
+        boolean isUsedWith(RecorderMode recorderMode) {
+            return (this == UUID) || ((this == PER_THREAD) == (recorderMode == RecorderMode.PER_THREAD));
+        }
+
+        /**
+         * @return the nth id generated from a single thread which has the typical length of the ids in a history of
+         * n responses.
+         */
+        String getNthId(int n) {
+
+            final Supplier<String> uniqueResponseIdFactory =
+                    MetricsFilter.newUniqueResponseIdFactory(this == UUID, this == PER_THREAD);
+            String id = null;
+
+            for (int i = 0; i < n; i++) {
+                id = uniqueResponseIdFactory.get();
+            }
+
+            // Copy the id so that it doesn't share any state with the factory.
+            return new String(id.toCharArray());
+        }
+    }
+
+    /**
+     * Estimates object sizes from their fields using HotSpot's layout rules: an object header (a mark word and a
+     * possibly compressed class pointer), an array length for arrays, field sizes, and padding to the object alignment.
+     * Field packing gaps are ignored, so the estimate may be slightly smaller than the actual layout.
+     */
+    private static final class ObjectLayout {
+
+        private final boolean compressedOops;
+        private final boolean compressedClassPointers;
+        private final int objectAlignment;
+        private final int referenceSize;
+        private final int headerSize;
+        private final Set<String> inaccessibleFields = new TreeSet<>();
+
+        ObjectLayout() {
+            compressedOops = Boolean.parseBoolean(getVMOption("UseCompressedOops", "true"));
+            compressedClassPointers = Boolean.parseBoolean(getVMOption("UseCompressedClassPointers", "true"));
+            objectAlignment = Integer.parseInt(getVMOption("ObjectAlignmentInBytes", "8"));
+            referenceSize = compressedOops ? 4 : 8;
+            headerSize = compressedClassPointers ? 12 : 16;
+        }
+
+        long getInstanceSize(Class<?> clazz) {
+
+            long size = headerSize;
+
+            for (Class<?> currentClass = clazz; currentClass != null; currentClass = currentClass.getSuperclass()) {
+
+                for (Field field : currentClass.getDeclaredFields()) {
+
+                    if (!Modifier.isStatic(field.getModifiers())) {
+                        size += getFieldSize(field.getType());
+                    }
+                }
+            }
+
+            return align(size);
+        }
+
+        /**
+         * @return the amortized size of the table slot of each entry in a {@link
+         * java.util.concurrent.ConcurrentHashMap} with the given number of entries.
+         */
+        double getAmortizedTableSlotSize(int entries) {
+
+            // The table doubles when it becomes 3/4 full.
+            int tableLength = 16;
+
+            while (entries > (tableLength - (tableLength >>> 2))) {
+                tableLength <<= 1;
+            }
+
+            return ((double) align(headerSize + 4 + ((long) tableLength * referenceSize))) / entries;
+        }
+
+        /**
+         * @return the total size of the object and every object reachable from it excluding classes, enum constants,
+         * and cached boxed values which are shared.
+         */
+        long getRetainedSize(Object root) throws IllegalAccessException {
+
+            final Set<Object> visited = Collections.newSetFromMap(new IdentityHashMap<>());
+            final Deque<Object> unvisited = new ArrayDeque<>();
+            unvisited.push(root);
+            long size = 0;
+
+            while (!unvisited.isEmpty()) {
+
+                final Object object = unvisited.pop();
+
+                if (isShared(object) || !visited.add(object)) {
+                    continue;
+                }
+
+                final Class<?> clazz = object.getClass();
+
+                if (clazz.isArray()) {
+
+                    final int length = Array.getLength(object);
+                    final Class<?> componentType = clazz.getComponentType();
+                    size += align(headerSize + 4 + ((long) length * getFieldSize(componentType)));
+
+                    if (!componentType.isPrimitive()) {
+
+                        for (int i = 0; i < length; i++) {
+                            pushIfNotNull(unvisited, Array.get(object, i));
+                        }
+                    }
+
+                    continue;
+                }
+
+                size += getInstanceSize(clazz);
+
+                for (Class<?> currentClass = clazz; currentClass != null;
+                        currentClass = currentClass.getSuperclass()) {
+
+                    for (Field field : currentClass.getDeclaredFields()) {
+
+                        if (Modifier.isStatic(field.getModifiers()) || field.getType().isPrimitive()) {
+                            continue;
+                        }
+
+                        try {
+                            field.setAccessible(true);
+                        } catch (RuntimeException e) {
+                            inaccessibleFields.add(currentClass.getName() + "." + field.getName());
+                            continue;
+                        }
+
+                        pushIfNotNull(unvisited, field.get(object));
+                    }
+                }
+            }
+
+            return size;
+        }
+
+        private long align(long size) {
+            return ((size + objectAlignment - 1) / objectAlignment) * objectAlignment;
+        }
+
+        private int getFieldSize(Class<?> type) {
+
+            if (type == long.class || type == double.class) {
+                return 8;
+            } else if (type == int.class || type == float.class) {
+                return 4;
+            } else if (type == short.class || type == char.class) {
+                return 2;
+            } else if (type == byte.class || type == boolean.class) {
+                return 1;
+            }
+
+            return referenceSize;
+        }
+
+        private static boolean isShared(Object object) {
+
+            if (object instanceof Class || object instanceof Enum || object instanceof Thread) {
+                return true;
+            }
+
+            if (object instanceof Long) {
+                return object == Long.valueOf((Long) object);
+            }
+
+            if (object instanceof Integer) {
+                return object == Integer.valueOf((Integer) object);
+            }
+
+            return object instanceof Boolean;
+        }
+
+        private static void pushIfNotNull(Deque<Object> unvisited, Object object) {
+
+            if (object != null) {
+                unvisited.push(object);
+            }
+        }
+
+        private static String getVMOption(String name, String defaultValue) {
+
+            try {
+                return ManagementFactory.getPlatformMXBean(com.sun.management.HotSpotDiagnosticMXBean.class)
+                        .getVMOption(name).getValue();
+            } catch (RuntimeException | LinkageError e) {
+                return defaultValue;
+            }
+        }
+    }
+}
@@ -0,0 +1,218 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2019 Kyle Stiemann.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.github.stiemannkj1.servlet.filter.example;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * @author Kyle Stiemann
+ */
+public final class TestAdaptiveConcurrencyLimiter {
+
+    private static final long WINDOW_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+    private static final long STEADY_LATENCY_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+
+    @Test
+    public final void testLimitGrowsWhileLatencyIsSteady() {
+
+        final AtomicLong nanoTime = new AtomicLong();
+        final AdaptiveConcurrencyLimiter concurrencyLimiter =
+                new AdaptiveConcurrencyLimiter(10, 1, 100, WINDOW_NANOS, nanoTime::get);
+
+        for (int i = 0; i < 200; i++) {
+            runWindow(concurrencyLimiter, nanoTime, STEADY_LATENCY_NANOS);
+        }
+
+        Assert.assertEquals("Concurrency limit did not grow to the maximum while latency was steady.", 100,
+                concurrencyLimiter.getLimit());
+        Assert.assertEquals(0, concurrencyLimiter.getInFlightCount());
+    }
+
+    @Test
+    public final void testLimitShrinksWhenLatencyRises() {
+
+        final AtomicLong nanoTime = new AtomicLong();
+        final AdaptiveConcurrencyLimiter concurrencyLimiter =
+                new AdaptiveConcurrencyLimiter(50, 5, 100, WINDOW_NANOS, nanoTime::get);
+
+        for (int i = 0; i < 10; i++) {
+            runWindow(concurrencyLimiter, nanoTime, STEADY_LATENCY_NANOS);
+        }
+
+        final int steadyLimit = concurrencyLimiter.getLimit();
+
+        for (int i = 0; i < 10; i++) {
+            runWindow(concurrencyLimiter, nanoTime, STEADY_LATENCY_NANOS * 10);
+        }
+
+        final int degradedLimit = concurrencyLimiter.getLimit();
+        Assert.assertTrue("Concurrency limit (" + degradedLimit + ") did not shrink below " + steadyLimit +
+                " when latency rose.", degradedLimit < steadyLimit);
+
+        // A sustained (but stable) latency eventually becomes the new long-term latency, so keep latency rising.
+        long latencyNanos = STEADY_LATENCY_NANOS * 10;
+
+        for (int i = 0; i < 60; i++) {
+
+            latencyNanos = (latencyNanos * 13) / 10;
+            runWindow(concurrencyLimiter, nanoTime, latencyNanos);
+        }
+
+        Assert.assertEquals("Concurrency limit did not shrink to the minimum while latency kept rising.", 5,
+                concurrencyLimiter.getLimit());
+    }
+
+    @Test
+    public final void testFailedRequestsDoNotChangeLimit() {
+
+        final AtomicLong nanoTime = new AtomicLong();
+        final AdaptiveConcurrencyLimiter concurrencyLimiter =
+                new AdaptiveConcurrencyLimiter(10, 1, 100, WINDOW_NANOS, nanoTime::get);
+
+        for (int i = 0; i < 100; i++) {
+
+            Assert.assertTrue(concurrencyLimiter.tryAcquire());
+            nanoTime.addAndGet(WINDOW_NANOS);
+            concurrencyLimiter.release(-1);
+        }
+
+        Assert.assertEquals(10, concurrencyLimiter.getLimit());
+    }
+
+    @Test
+    public final void testTryAcquireRejectsAtLimit() {
+
+        final AdaptiveConcurrencyLimiter concurrencyLimiter = new AdaptiveConcurrencyLimiter(3, 1, 10);
+
+        for (int i = 0; i < 3; i++) {
+            Assert.assertTrue(concurrencyLimiter.tryAcquire());
+        }
+
+        Assert.assertFalse("Request was permitted beyond the concurrency limit.", concurrencyLimiter.tryAcquire());
+        Assert.assertFalse(concurrencyLimiter.tryAcquire());
+        Assert.assertEquals(3, concurrencyLimiter.getInFlightCount());
+        Assert.assertEquals(2, concurrencyLimiter.getRejectedCount());
+
+        concurrencyLimiter.release(STEADY_LATENCY_NANOS);
+        Assert.assertTrue("Released permit was not reusable.", concurrencyLimiter.tryAcquire());
+    }
+
+    @Test
+    public final void testInvalidLimits() {
+
+        for (int[] limits : new int[][] { { 0, 0, 10 }, { 5, 6, 10 }, { 11, 1, 10 }, { 5, 10, 9 } }) {
+
+            try {
+                new AdaptiveConcurrencyLimiter(limits[0], limits[1], limits[2]);
+                Assert.fail("AdaptiveConcurrencyLimiter failed to throw IllegalArgumentException for invalid limits.");
+            } catch (IllegalArgumentException e) {
+                // Test passed.
+            }
+        }
+    }
+
+    @Test
+    public final void testConcurrentRequestsNeverExceedLimit() throws Exception {
+
+        final int threads = 8;
+        final int limit = 3;
+        final AdaptiveConcurrencyLimiter concurrencyLimiter = new AdaptiveConcurrencyLimiter(limit, limit, limit);
+        final AtomicInteger inFlightCount = new AtomicInteger();
+        final AtomicInteger maximumInFlightCount = new AtomicInteger();
+        final CountDownLatch startLatch = new CountDownLatch(1);
+        final ExecutorService executorService = Executors.newFixedThreadPool(threads);
+        final Future<?>[] futures = new Future<?>[threads];
+
+        try {
+
+            for (int i = 0; i < threads; i++) {
+                futures[i] = executorService.submit(() -> {
+
+                    startLatch.await();
+
+                    for (int j = 0; j < 10000; j++) {
+
+                        if (concurrencyLimiter.tryAcquire()) {
+
+                            maximumInFlightCount.accumulateAndGet(inFlightCount.incrementAndGet(), Math::max);
+                            inFlightCount.decrementAndGet();
+                            concurrencyLimiter.release(STEADY_LATENCY_NANOS);
+                        }
+                    }
+
+                    return null;
+                });
+            }
+
+            startLatch.countDown();
+
+            for (Future<?> future : futures) {
+                future.get(30, TimeUnit.SECONDS);
+            }
+        } finally {
+            executorService.shutdownNow();
+        }
+
+        Assert.assertTrue("In-flight requests (" + maximumInFlightCount.get() + ") exceeded the concurrency limit.",
+                maximumInFlightCount.get() <= limit);
+        Assert.assertEquals(0, concurrencyLimiter.getInFlightCount());
+    }
+
+    /**
+     * Sends enough requests with the given latency to fill the current window (using the full limit) and then
+     * advances the clock past the end of the window.
+     */
+    private static void runWindow(AdaptiveConcurrencyLimiter concurrencyLimiter, AtomicLong nanoTime,
+            long latencyNanos) {
+
+        final int limit = concurrencyLimiter.getLimit();
+        final int requests = Math.max(limit, 10);
+        int acquired = 0;
+
+        for (int i = 0; i < requests; i++) {
+
+            if (acquired == limit) {
+                concurrencyLimiter.release(latencyNanos);
+                acquired--;
+            }
+
+            Assert.assertTrue(concurrencyLimiter.tryAcquire());
+            acquired++;
+        }
+
+        nanoTime.addAndGet(WINDOW_NANOS);
+
+        for (; acquired > 0; acquired--) {
+            concurrencyLimiter.release(latencyNanos);
+        }
+    }
+}
@@ -0,0 +1,340 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2019 Kyle Stiemann.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.github.stiemannkj1.servlet.filter.example;
+
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.Supplier;
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import org.junit.Assert;
+import org.junit.Test;
+import static org.mockito.Mockito.*;
+
+/**
+ * Stress tests which race the structures shared by request threads against each other. Each test starts all of its
+ * threads at once and repeats the racing operations many times so that interleavings which are rare in a single run
+ * are likely to occur. Mocks are created with {@code stubOnly()} so that Mockito does not record (and synchronize on)
+ * every invocation.
+ *
+ * @author Kyle Stiemann
+ */
+public final class TestConcurrentRecording {
+
+    private static final int THREADS = Math.max(4, Runtime.getRuntime().availableProcessors());
+    private static final int SPECIFIC_RESPONSE_METRICS_COUNT = 2000;
+    private static final int IDS_PER_THREAD = 20000;
+    private static final int REQUESTS_PER_THREAD = 2500;
+
+    // Resource usage and network blocking are not measured by these tests, so their histograms must stay empty.
+    private static final Set<SpecificResponseMetrics.Metric> RECORDED_METRICS = EnumSet.complementOf(
+            EnumSet.of(SpecificResponseMetrics.Metric.CPU_TIME, SpecificResponseMetrics.Metric.ALLOCATED_BYTES,
+                    SpecificResponseMetrics.Metric.NETWORK_BLOCKED_TIME,
+                    SpecificResponseMetrics.Metric.CLIENT_THROUGHPUT));
+
+    @Test
+    public final void testConcurrentSetMetricsAndReads() throws Exception {
+
+        final int metricCount = SpecificResponseMetrics.Metric.values().length;
+        final AtomicReferenceArray<SpecificResponseMetrics> specificResponseMetrics =
+                new AtomicReferenceArray<>(SPECIFIC_RESPONSE_METRICS_COUNT);
+
+        for (int i = 0; i < SPECIFIC_RESPONSE_METRICS_COUNT; i++) {
+            specificResponseMetrics.set(i, new SpecificResponseMetrics());
+        }
+
+        final AtomicLong successfulSets = new AtomicLong();
+        final AtomicLong rejectedSets = new AtomicLong();
+        final List<Callable<Void>> tasks = new ArrayList<>();
+
+        // Every writer tries to set the metrics of every instance. Exactly one writer may succeed per instance.
+        for (int i = 0; i < THREADS; i++) {
+
+            final long[] metrics = new long[SpecificResponseMetrics.METRIC_COUNT];
+
+            for (int k = 0; k < metrics.length; k++) {
+                metrics[k] = (i + 1) * (k + 1);
+            }
+
+            tasks.add(() -> {
+
+                for (int j = 0; j < SPECIFIC_RESPONSE_METRICS_COUNT; j++) {
+
+                    try {
+                        specificResponseMetrics.get(j).setMetrics(metrics);
+                        successfulSets.incrementAndGet();
+                    } catch (UnsupportedOperationException e) {
+                        rejectedSets.incrementAndGet();
+                    }
+                }
+
+                return null;
+            });
+        }
+
+        // Readers must only ever see no metrics or all of the metrics of a single writer, and once the metrics are
+        // visible they must never change.
+        for (int i = 0; i < THREADS; i++) {
+            tasks.add(() -> {
+
+                final Long[] firstSeenValues = new Long[SPECIFIC_RESPONSE_METRICS_COUNT];
+
+                for (int pass = 0; pass < 10; pass++) {
+
+                    for (int j = 0; j < SPECIFIC_RESPONSE_METRICS_COUNT; j++) {
+
+                        final List<Long> metrics = specificResponseMetrics.get(j).getMetrics();
+
+                        if (metrics == null) {
+
+                            Assert.assertNull("Metrics disappeared after being set.", firstSeenValues[j]);
+                            continue;
+                        }
+
+                        Assert.assertEquals(metricCount, metrics.size());
+                        final long value = metrics.get(0);
+
+                        for (int k = 0; k < metricCount; k++) {
+                            Assert.assertEquals("Metrics from different writers were mixed.", value * (k + 1),
+                                    (long) metrics.get(k));
+                        }
+
+                        if (firstSeenValues[j] == null) {
+                            firstSeenValues[j] = value;
+                        } else {
+                            Assert.assertEquals("Metrics changed after being set.", firstSeenValues[j],
+                                    Long.valueOf(value));
+                        }
+                    }
+                }
+
+                return null;
+            });
+        }
+
+        runConcurrently(tasks);
+
+        Assert.assertEquals("Metrics were not set exactly once per instance.", SPECIFIC_RESPONSE_METRICS_COUNT,
+                successfulSets.get());
+        Assert.assertEquals((long) SPECIFIC_RESPONSE_METRICS_COUNT * (THREADS - 1), rejectedSets.get());
+    }
+
+    @Test
+    public final void testConcurrentAtomicLongIdsAreUnique() throws Exception {
+        testConcurrentUniqueResponseIds(false, false);
+    }
+
+    @Test
+    public final void testConcurrentPerThreadIdsAreUnique() throws Exception {
+        testConcurrentUniqueResponseIds(false, true);
+    }
+
+    @Test
+    public final void testConcurrentUUIDsAreUnique() throws Exception {
+        testConcurrentUniqueResponseIds(true, false);
+    }
+
+    @Test
+    public final void testConcurrentSharedRecordingAndSnapshots() throws Exception {
+        testConcurrentRecordingAndSnapshots(false);
+    }
+
+    @Test
+    public final void testConcurrentPerThreadRecordingAndSnapshots() throws Exception {
+        testConcurrentRecordingAndSnapshots(true);
+    }
+
+    private void testConcurrentUniqueResponseIds(boolean useUUID, boolean usePerThreadIds) throws Exception {
+
+        final Supplier<String> uniqueResponseIdFactory =
+                MetricsFilter.newUniqueResponseIdFactory(useUUID, usePerThreadIds);
+        final Set<String> responseIds = ConcurrentHashMap.newKeySet();
+        final List<Callable<Void>> tasks = new ArrayList<>();
+
+        // Use more threads than stripes so that at least two threads share a per-thread id stripe.
+        final int threads = Math.max(THREADS, PerThreadResponseMetricsRecorder.STRIPE_COUNT + 1);
+
+        for (int i = 0; i < threads; i++) {
+            tasks.add(() -> {
+
+                for (int j = 0; j < IDS_PER_THREAD; j++) {
+
+                    final String responseId = uniqueResponseIdFactory.get();
+                    Assert.assertTrue("Duplicate response id generated: " + responseId, responseIds.add(responseId));
+                }
+
+                return null;
+            });
+        }
+
+        runConcurrently(tasks);
+        Assert.assertEquals((long) threads * IDS_PER_THREAD, responseIds.size());
+    }
+
+    private void testConcurrentRecordingAndSnapshots(boolean usePerThreadRecorders) throws Exception {
+
+        final MetricsFilter metricsFilter = new MetricsFilter();
+        final FilterConfig filterConfig = mock(FilterConfig.class, withSettings().stubOnly());
+        when(filterConfig.getInitParameter(MetricsFilter.SNAPSHOT_REFRESH_INTERVAL_MILLIS_KEY)).thenReturn("0");
+        when(filterConfig.getInitParameter(MetricsFilter.RESPONSE_HISTORY_SIZE_KEY))
+                .thenReturn(Integer.toString(THREADS * REQUESTS_PER_THREAD));
+        when(filterConfig.getInitParameter(MetricsFilter.USE_PER_THREAD_RECORDERS_KEY))
+                .thenReturn(Boolean.toString(usePerThreadRecorders));
+        metricsFilter.init(filterConfig);
+
+        try {
+
+            final HttpServletRequest request = mock(HttpServletRequest.class, withSettings().stubOnly());
+            final HttpServletResponse response = mock(HttpServletResponse.class, withSettings().stubOnly());
+            final FilterChain filterChain = mock(FilterChain.class, withSettings().stubOnly());
+            final CountDownLatch requestThreadsFinished = new CountDownLatch(THREADS);
+            final List<Callable<Void>> tasks = new ArrayList<>();
+
+            for (int i = 0; i < THREADS; i++) {
+                tasks.add(() -> {
+
+                    try {
+
+                        for (int j = 0; j < REQUESTS_PER_THREAD; j++) {
+                            metricsFilter.doFilter(request, response, filterChain);
+                        }
+                    } finally {
+                        requestThreadsFinished.countDown();
+                    }
+
+                    return null;
+                });
+            }
+
+            // Each snapshot must be a consistent superset of the previous one while responses are being recorded.
+            tasks.add(() -> {
+
+                MetricsSnapshot previousMetricsSnapshot = null;
+
+                do {
+
+                    final MetricsSnapshot metricsSnapshot = metricsFilter.getMetricsSnapshot();
+                    final Map<String, SpecificResponseMetrics> responseMetrics = metricsSnapshot.getResponseMetrics();
+
+                    for (SpecificResponseMetrics specificResponseMetrics : responseMetrics.values()) {
+                        Assert.assertNotNull("Snapshot history contains an incomplete response.",
+                                specificResponseMetrics.getMetrics());
+                    }
+
+                    for (SpecificResponseMetrics.Metric metric : RECORDED_METRICS) {
+                        Assert.assertTrue("Snapshot history contains responses missing from the histograms.",
+                                responseMetrics.size() <= metricsSnapshot.getHistogram(metric).getCount());
+                    }
+
+                    if (previousMetricsSnapshot != null) {
+
+                        Assert.assertTrue("Snapshot sequence did not increase.",
+                                previousMetricsSnapshot.getSequence() < metricsSnapshot.getSequence());
+                        Assert.assertTrue("Snapshot response count decreased.",
+                                previousMetricsSnapshot.getResponseCount() <= metricsSnapshot.getResponseCount());
+                        Assert.assertTrue("Snapshot history lost responses.", responseMetrics.keySet()
+                                .containsAll(previousMetricsSnapshot.getResponseMetrics().keySet()));
+                    }
+
+                    previousMetricsSnapshot = metricsSnapshot;
+                } while (!requestThreadsFinished.await(1, TimeUnit.MILLISECONDS));
+
+                return null;
+            });
+
+            runConcurrently(tasks);
+
+            final MetricsSnapshot metricsSnapshot = metricsFilter.getMetricsSnapshot();
+            final long totalRequests = (long) THREADS * REQUESTS_PER_THREAD;
+            Assert.assertEquals("Recorded responses were lost.", totalRequests, metricsSnapshot.getResponseCount());
+            Assert.assertEquals("Response history entries were lost.", totalRequests,
+                    metricsSnapshot.getResponseMetrics().size());
+
+            for (SpecificResponseMetrics.Metric metric : SpecificResponseMetrics.Metric.values()) {
+                Assert.assertEquals("Recorded values were lost.",
+                        RECORDED_METRICS.contains(metric) ? totalRequests : 0,
+                        metricsSnapshot.getHistogram(metric).getCount());
+            }
+        } finally {
+            metricsFilter.destroy();
+        }
+    }
+
+    /**
+     * Starts all of the tasks at the same time on their own threads and waits for them to finish. The first failure
+     * of any task is rethrown.
+     */
+    private static void runConcurrently(List<Callable<Void>> tasks) throws Exception {
+
+        final ExecutorService executorService = Executors.newFixedThreadPool(tasks.size());
+        final CountDownLatch startLatch = new CountDownLatch(1);
+        final List<Future<Void>> futures = new ArrayList<>();
+
+        try {
+
+            for (Callable<Void> task : tasks) {
+                futures.add(executorService.submit(() -> {
+
+                    startLatch.await();
+
+                    return task.call();
+                }));
+            }
+
+            startLatch.countDown();
+
+            for (Future<Void> future : futures) {
+
+                try {
+                    future.get(60, TimeUnit.SECONDS);
+                } catch (ExecutionException e) {
+
+                    if (e.getCause() instanceof Error) {
+                        throw (Error) e.getCause();
+                    }
+
+                    throw e;
+                }
+            }
+        } finally {
+            executorService.shutdownNow();
+            Assert.assertTrue(executorService.awaitTermination(10, TimeUnit.SECONDS));
+        }
+    }
+}
@@ -0,0 +1,171 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2019 Kyle Stiemann.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.github.stiemannkj1.servlet.filter.example;
+
+import java.util.concurrent.TimeUnit;
+import java.util.stream.IntStream;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * @author Kyle Stiemann
+ */
+public final class TestDistinctCounts {
+
+    private static final long ONE_MINUTE = TimeUnit.MINUTES.toMillis(1);
+
+    @Test
+    public final void testHyperLogLogEstimate() {
+
+        for (int cardinality : new int[] { 0, 1, 100, 5_000, 20_000, 500_000 }) {
+
+            final HyperLogLog hyperLogLog = new HyperLogLog(HyperLogLog.DEFAULT_PRECISION);
+
+            // Every key is added twice since duplicates must not be counted.
+            for (int repeat = 0; repeat < 2; repeat++) {
+
+                for (int i = 0; i < cardinality; i++) {
+                    hyperLogLog.add(CountMinSketch.hash("key" + i));
+                }
+            }
+
+            assertEstimate(cardinality, hyperLogLog);
+        }
+    }
+
+    @Test
+    public final void testHyperLogLogConcurrentAdd() {
+
+        final int cardinality = 100_000;
+        final HyperLogLog concurrentHyperLogLog = new HyperLogLog(HyperLogLog.DEFAULT_PRECISION);
+        final HyperLogLog hyperLogLog = new HyperLogLog(HyperLogLog.DEFAULT_PRECISION);
+        IntStream.range(0, cardinality).parallel().forEach((i) -> {
+            concurrentHyperLogLog.add(CountMinSketch.hash("key" + i));
+        });
+
+        for (int i = 0; i < cardinality; i++) {
+            hyperLogLog.add(CountMinSketch.hash("key" + i));
+        }
+
+        // Registers only ever increase, so concurrent adds must produce exactly the same registers.
+        Assert.assertArrayEquals(hyperLogLog.toByteArray(), concurrentHyperLogLog.toByteArray());
+    }
+
+    @Test
+    public final void testHyperLogLogMerge() {
+
+        final HyperLogLog firstNode = new HyperLogLog(HyperLogLog.DEFAULT_PRECISION);
+        final HyperLogLog secondNode = new HyperLogLog(HyperLogLog.DEFAULT_PRECISION);
+        final HyperLogLog combined = new HyperLogLog(HyperLogLog.DEFAULT_PRECISION);
+
+        // The nodes see overlapping keys.
+        for (int i = 0; i < 30_000; i++) {
+
+            final long hash = CountMinSketch.hash("client" + i);
+            ((i < 20_000) ? firstNode : secondNode).add(hash);
+
+            if (i >= 10_000 && i < 20_000) {
+                secondNode.add(hash);
+            }
+
+            combined.add(hash);
+        }
+
+        // Merging the serialized sketches of each node gives exactly the sketch of the combined stream.
+        final HyperLogLog merged = HyperLogLog.fromByteArray(firstNode.toByteArray());
+        merged.merge(HyperLogLog.fromByteArray(secondNode.toByteArray()));
+        Assert.assertArrayEquals(combined.toByteArray(), merged.toByteArray());
+        assertEstimate(30_000, merged);
+
+        try {
+            merged.merge(new HyperLogLog(10));
+            Assert.fail("HyperLogLog sketches with different precisions were merged.");
+        } catch (IllegalArgumentException e) {
+            // Test passed.
+        }
+
+        try {
+            HyperLogLog.fromByteArray(new byte[] { 12, 0, 0 });
+            Assert.fail("Invalid bytes were deserialized.");
+        } catch (IllegalArgumentException e) {
+            // Test passed.
+        }
+    }
+
+    @Test
+    public final void testDistinctCountsWindow() {
+
+        final DistinctCounts distinctCounts = new DistinctCounts();
+        final long startMillis = TimeUnit.HOURS.toMillis(24 * 365 * 50);
+
+        // One minute of traffic from 1000 clients to 10 paths, half of which have sessions.
+        for (int i = 0; i < 10_000; i++) {
+            distinctCounts.record("192.0.2." + (i % 1000), "/path" + (i % 10), (i % 2 == 0) ? null : "session" + i,
+                    startMillis);
+        }
+
+        // Later in the hour, 1000 new clients visit the same paths.
+        for (int i = 0; i < 1000; i++) {
+            distinctCounts.record("198.51.100." + i, "/path" + (i % 10), null, startMillis + (30 * ONE_MINUTE));
+        }
+
+        DistinctCounts.Summary summary = distinctCounts.summarize(startMillis + (30 * ONE_MINUTE));
+        assertEstimate(2000, summary.getDistinctCount(DistinctCounts.Dimension.CLIENTS));
+        Assert.assertEquals(10, summary.getDistinctCount(DistinctCounts.Dimension.PATHS).getEstimate());
+        assertEstimate(5000, summary.getDistinctCount(DistinctCounts.Dimension.SESSIONS));
+
+        // After an hour, only the later clients remain in the window.
+        summary = distinctCounts.summarize(startMillis + (65 * ONE_MINUTE));
+        assertEstimate(1000, summary.getDistinctCount(DistinctCounts.Dimension.CLIENTS));
+        Assert.assertEquals(0, summary.getDistinctCount(DistinctCounts.Dimension.SESSIONS).getEstimate());
+
+        // A slice is cleared when it is reused an hour later.
+        distinctCounts.record("203.0.113.1", "/other", null, startMillis + (60 * ONE_MINUTE));
+        summary = distinctCounts.summarize(startMillis + (60 * ONE_MINUTE));
+        assertEstimate(1001, summary.getDistinctCount(DistinctCounts.Dimension.CLIENTS));
+        Assert.assertEquals(11, summary.getDistinctCount(DistinctCounts.Dimension.PATHS).getEstimate());
+
+        distinctCounts.reset();
+        summary = distinctCounts.summarize(startMillis + (60 * ONE_MINUTE));
+
+        for (DistinctCounts.Dimension dimension : DistinctCounts.Dimension.values()) {
+            Assert.assertEquals(0, summary.getDistinctCount(dimension).getEstimate());
+        }
+    }
+
+    private static void assertEstimate(long expected, HyperLogLog hyperLogLog) {
+        assertEstimate(expected, hyperLogLog.estimate(), hyperLogLog.getStandardError());
+    }
+
+    private static void assertEstimate(long expected, MetricsFilterMXBean.DistinctCount distinctCount) {
+        assertEstimate(expected, distinctCount.getEstimate(), distinctCount.getStandardError());
+    }
+
+    private static void assertEstimate(long expected, long estimate, double standardError) {
+
+        // Four standard errors (or one for very small cardinalities) make a spurious failure very unlikely.
+        Assert.assertEquals("Estimate of " + expected + " distinct keys is not within the error bound.", expected,
+                estimate, Math.max(1, expected * standardError * 4));
+    }
+}
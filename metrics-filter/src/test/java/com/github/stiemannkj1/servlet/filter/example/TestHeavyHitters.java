@@ -0,0 +1,286 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2019 Kyle Stiemann.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.github.stiemannkj1.servlet.filter.example;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * @author Kyle Stiemann
+ */
+public final class TestHeavyHitters {
+
+    private static final int STREAM_LENGTH = 100_000;
+    private static final int CAPACITY = 32;
+
+    @Test
+    public final void testCountMinSketchBounds() {
+
+        final CountMinSketch countMinSketch = new CountMinSketch(4, 1024);
+        final Map<String, Long> actualCounts = new HashMap<>();
+
+        for (String key : newSkewedStream(new Random(7))) {
+            countMinSketch.add(CountMinSketch.hash(key), 1);
+            actualCounts.merge(key, 1L, Long::sum);
+        }
+
+        Assert.assertEquals(STREAM_LENGTH, countMinSketch.getTotal());
+
+        final double maximumError = countMinSketch.getRelativeError() * countMinSketch.getTotal();
+        int boundViolations = 0;
+
+        for (Map.Entry<String, Long> entry : actualCounts.entrySet()) {
+
+            final long estimate = countMinSketch.estimate(CountMinSketch.hash(entry.getKey()));
+            Assert.assertTrue("Count-Min sketch underestimated " + entry.getKey() + ".",
+                    estimate >= entry.getValue());
+
+            if (estimate - entry.getValue() > maximumError) {
+                boundViolations++;
+            }
+        }
+
+        Assert.assertTrue("Too many estimates exceeded the error bound: " + boundViolations,
+                boundViolations <= (actualCounts.size() * countMinSketch.getFailureProbability() * 2));
+    }
+
+    @Test
+    public final void testCountMinSketchMerge() {
+
+        final List<String> stream = newSkewedStream(new Random(11));
+        final CountMinSketch combinedSketch = new CountMinSketch(4, 256);
+        final CountMinSketch firstHalfSketch = new CountMinSketch(4, 256);
+        final CountMinSketch secondHalfSketch = new CountMinSketch(4, 256);
+
+        for (int i = 0; i < stream.size(); i++) {
+
+            final long hash = CountMinSketch.hash(stream.get(i));
+            combinedSketch.add(hash, i);
+            ((i < stream.size() / 2) ? firstHalfSketch : secondHalfSketch).add(hash, i);
+        }
+
+        firstHalfSketch.merge(secondHalfSketch);
+        Assert.assertEquals(combinedSketch.getTotal(), firstHalfSketch.getTotal());
+
+        for (String key : stream) {
+            Assert.assertEquals(combinedSketch.estimate(CountMinSketch.hash(key)),
+                    firstHalfSketch.estimate(CountMinSketch.hash(key)));
+        }
+
+        try {
+            firstHalfSketch.merge(new CountMinSketch(4, 512));
+            Assert.fail("Count-Min sketches with different dimensions were merged.");
+        } catch (IllegalArgumentException e) {
+            // Test passed.
+        }
+    }
+
+    @Test
+    public final void testSpaceSavingBounds() {
+
+        final List<String> stream = newSkewedStream(new Random(13));
+        final SpaceSavingSummary spaceSavingSummary = new SpaceSavingSummary(CAPACITY);
+
+        for (String key : stream) {
+            spaceSavingSummary.add(key, 1);
+        }
+
+        Assert.assertEquals(CAPACITY, spaceSavingSummary.size());
+        assertSpaceSavingBounds(stream, spaceSavingSummary);
+    }
+
+    @Test
+    public final void testSpaceSavingMergeAcrossWindows() {
+
+        final List<String> stream = newSkewedStream(new Random(17));
+        final SpaceSavingSummary mergedSummary = new SpaceSavingSummary(CAPACITY);
+        final int windowLength = stream.size() / 10;
+
+        for (int start = 0; start < stream.size(); start += windowLength) {
+
+            // Each window is skewed differently so that keys move in and out of the summaries.
+            final SpaceSavingSummary windowSummary = new SpaceSavingSummary(CAPACITY);
+
+            for (String key : stream.subList(start, Math.min(start + windowLength, stream.size()))) {
+                windowSummary.add(key, 1);
+            }
+
+            mergedSummary.merge(windowSummary);
+        }
+
+        assertSpaceSavingBounds(stream, mergedSummary);
+    }
+
+    @Test
+    public final void testHeavyHitters() {
+
+        final HeavyHitters heavyHitters = new HeavyHitters(CAPACITY);
+        final List<String> stream = newSkewedStream(new Random(19));
+        final Map<String, Long> actualBytes = new HashMap<>();
+
+        for (int i = 0; i < stream.size(); i++) {
+
+            final String client = stream.get(i);
+            final long bytes = client.length() * 100L;
+            heavyHitters.record(client, bytes, 1000);
+            actualBytes.merge(client, bytes, Long::sum);
+
+            // Summarizing merges the current window into the cumulative window.
+            if (i % 10_000 == 0) {
+                heavyHitters.summarize(MetricsFilter.HEAVY_HITTERS_TOP_COUNT);
+            }
+        }
+
+        final HeavyHitters.Summary summary = heavyHitters.summarize(MetricsFilter.HEAVY_HITTERS_TOP_COUNT);
+        Assert.assertEquals(STREAM_LENGTH, summary.getTotal(HeavyHitters.Weight.REQUESTS));
+        Assert.assertEquals(STREAM_LENGTH * 1000L, summary.getTotal(HeavyHitters.Weight.SERVER_TIME));
+
+        final List<MetricsFilterMXBean.HeavyHitter> topClients =
+                summary.getTopClients(HeavyHitters.Weight.REQUESTS);
+        Assert.assertEquals(MetricsFilter.HEAVY_HITTERS_TOP_COUNT, topClients.size());
+        Assert.assertEquals("client0", topClients.get(0).getClient());
+
+        for (int i = 1; i < topClients.size(); i++) {
+            Assert.assertTrue(topClients.get(i - 1).getEstimate() >= topClients.get(i).getEstimate());
+        }
+
+        for (MetricsFilterMXBean.HeavyHitter heavyHitter : summary.getTopClients(HeavyHitters.Weight.BYTES)) {
+
+            final long actual = actualBytes.get(heavyHitter.getClient());
+            Assert.assertTrue(heavyHitter.getMinimum() <= actual);
+            Assert.assertTrue(actual <= heavyHitter.getEstimate());
+        }
+
+        // Long client keys are truncated so that the tracked keys stay small.
+        final StringBuilder longClient = new StringBuilder();
+
+        while (longClient.length() <= HeavyHitters.MAXIMUM_CLIENT_LENGTH) {
+            longClient.append("long-client");
+        }
+
+        heavyHitters.reset();
+        heavyHitters.record(longClient.toString(), 1, 1);
+
+        final List<MetricsFilterMXBean.HeavyHitter> truncatedClients =
+                heavyHitters.summarize(1).getTopClients(HeavyHitters.Weight.REQUESTS);
+        Assert.assertEquals(1, truncatedClients.size());
+        Assert.assertEquals(longClient.substring(0, HeavyHitters.MAXIMUM_CLIENT_LENGTH),
+                truncatedClients.get(0).getClient());
+        Assert.assertEquals(1, truncatedClients.get(0).getEstimate());
+    }
+
+    @Test
+    public final void testConcurrentRecording() throws Exception {
+
+        final HeavyHitters heavyHitters = new HeavyHitters(CAPACITY);
+        final List<String> stream = newSkewedStream(new Random(23));
+        final int threads = 4;
+        final ExecutorService executorService = Executors.newFixedThreadPool(threads);
+        final List<Future<?>> futures = new ArrayList<>();
+
+        try {
+
+            for (int i = 0; i < threads; i++) {
+                futures.add(executorService.submit(() -> {
+
+                    for (String client : stream) {
+                        heavyHitters.record(client, 1, 1);
+                    }
+                }));
+            }
+
+            // Summaries merge the windows of the recording threads while they record.
+            while (!futures.stream().allMatch(Future::isDone)) {
+                heavyHitters.summarize(MetricsFilter.HEAVY_HITTERS_TOP_COUNT);
+            }
+
+            for (Future<?> future : futures) {
+                future.get(10, TimeUnit.SECONDS);
+            }
+        } finally {
+            executorService.shutdownNow();
+        }
+
+        final HeavyHitters.Summary summary = heavyHitters.summarize(MetricsFilter.HEAVY_HITTERS_TOP_COUNT);
+        Assert.assertEquals(threads * (long) STREAM_LENGTH, summary.getTotal(HeavyHitters.Weight.REQUESTS));
+        Assert.assertEquals(threads * (long) STREAM_LENGTH, summary.getTotal(HeavyHitters.Weight.BYTES));
+        Assert.assertEquals("client0", summary.getTopClients(HeavyHitters.Weight.REQUESTS).get(0).getClient());
+    }
+
+    /**
+     * Asserts that the count of every tracked key bounds its actual count and that every key whose actual count exceeds
+     * {@code total / capacity} is tracked.
+     */
+    private static void assertSpaceSavingBounds(List<String> stream, SpaceSavingSummary spaceSavingSummary) {
+
+        final Map<String, Long> actualCounts = new HashMap<>();
+
+        for (String key : stream) {
+            actualCounts.merge(key, 1L, Long::sum);
+        }
+
+        final Map<String, SpaceSavingSummary.Counter> trackedCounters = new HashMap<>();
+
+        for (SpaceSavingSummary.Counter counter : spaceSavingSummary.getTop(Integer.MAX_VALUE)) {
+
+            final long actual = actualCounts.getOrDefault(counter.getKey(), 0L);
+            Assert.assertTrue("Count of " + counter.getKey() + " is less than its actual count.",
+                    actual <= counter.getCount());
+            Assert.assertTrue("Count minus error of " + counter.getKey() + " is greater than its actual count.",
+                    counter.getCount() - counter.getError() <= actual);
+            trackedCounters.put(counter.getKey(), counter);
+        }
+
+        for (Map.Entry<String, Long> entry : actualCounts.entrySet()) {
+
+            if (entry.getValue() > (stream.size() / spaceSavingSummary.getCapacity())) {
+                Assert.assertTrue("Heavy hitter " + entry.getKey() + " is not tracked.",
+                        trackedCounters.containsKey(entry.getKey()));
+            }
+        }
+    }
+
+    /**
+     * @return a stream of keys in which a few keys are very frequent and most keys are rare (roughly Zipfian).
+     */
+    private static List<String> newSkewedStream(Random random) {
+
+        final List<String> stream = new ArrayList<>(STREAM_LENGTH);
+
+        for (int i = 0; i < STREAM_LENGTH; i++) {
+            stream.add("client" + (int) Math.floor(Math.pow(10_000, random.nextDouble() * random.nextDouble()) - 1));
+        }
+
+        return stream;
+    }
+}
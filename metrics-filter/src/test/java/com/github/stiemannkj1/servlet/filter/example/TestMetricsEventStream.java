@@ -0,0 +1,230 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2019 Kyle Stiemann.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.github.stiemannkj1.servlet.filter.example;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.concurrent.atomic.AtomicReference;
+import javax.servlet.AsyncContext;
+import javax.servlet.ServletContext;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.xml.parsers.DocumentBuilderFactory;
+import org.junit.Assert;
+import org.junit.Test;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NodeList;
+import static org.mockito.Mockito.*;
+
+/**
+ * @author Kyle Stiemann
+ */
+public final class TestMetricsEventStream {
+
+    private static final long START_MILLIS = 1_000_000;
+
+    @Test
+    public final void testWebFragmentSupportsAsync() throws Exception {
+
+        final Document webFragment;
+
+        try (InputStream inputStream =
+                TestMetricsEventStream.class.getResourceAsStream("/META-INF/web-fragment.xml")) {
+            webFragment = DocumentBuilderFactory.newInstance().newDocumentBuilder().parse(inputStream);
+        }
+
+        // Streaming falls back to polling unless the filter supports asynchronous requests.
+        final NodeList filters = webFragment.getElementsByTagName("filter");
+        Assert.assertEquals(1, filters.getLength());
+
+        final NodeList asyncSupported = ((Element) filters.item(0)).getElementsByTagName("async-supported");
+        Assert.assertEquals(1, asyncSupported.getLength());
+        Assert.assertEquals("true", asyncSupported.item(0).getTextContent().trim());
+    }
+
+    @Test
+    public final void testMetricsEventStream() throws IOException {
+
+        final MetricsHistogram[] histograms = ResponseMetricsRecorder.newHistograms();
+        final HeavyHitters heavyHitters = new HeavyHitters(10);
+        final AtomicReference<MetricsSnapshot> metricsSnapshot =
+                new AtomicReference<>(newMetricsSnapshot(0, START_MILLIS, histograms, 0, heavyHitters));
+        final MetricsEventStream metricsEventStream = new MetricsEventStream(1000, metricsSnapshot::get);
+        final EventOutputStream eventOutputStream = new EventOutputStream();
+        final AsyncContext asyncContext = subscribe(metricsEventStream, eventOutputStream, 1);
+        Assert.assertEquals(1, metricsEventStream.getSubscriberCount());
+
+        // Nothing is written until the container reports that the response is ready.
+        Assert.assertEquals("", eventOutputStream.getEvents());
+        eventOutputStream.writeListener.onWritePossible();
+        Assert.assertEquals("retry: 1000\n\n:\n\n", eventOutputStream.getEvents());
+
+        for (int i = 1; i <= 4; i++) {
+
+            histograms[SpecificResponseMetrics.Metric.RESPONSE_TIME.getIndex()].record(i * 100);
+            histograms[SpecificResponseMetrics.Metric.RESPONSE_SIZE.getIndex()].record(10);
+        }
+
+        heavyHitters.record("client1", 10, 100);
+        heavyHitters.record("client1", 10, 100);
+        heavyHitters.record("client2\"", 10, 100);
+        metricsEventStream.broadcast(newMetricsSnapshot(1, START_MILLIS + 1000, histograms, 3, heavyHitters));
+
+        String events = eventOutputStream.getEvents();
+        Assert.assertTrue(events, events.startsWith("id: 1\ndata: {\"timestampMillis\":1001000," +
+                "\"intervalMillis\":1000,\"responseCount\":4,\"excludedResponseCount\":3,\"responseSize\":40,"));
+        Assert.assertTrue(events, events.contains("\"percentile50ResponseTime\":"));
+        Assert.assertTrue(events, events.contains("\"maximumResponseTime\":400"));
+        Assert.assertTrue(events, events.contains("\"topClients\":{"));
+        Assert.assertTrue(events, events.contains("\"client1\":2"));
+        Assert.assertTrue(events, events.contains("\"client2\\\"\":1"));
+        Assert.assertFalse(events, events.contains("removedTopClients"));
+        Assert.assertTrue(events, events.endsWith("}\n\n"));
+
+        // Only the changes since the previous event are sent.
+        histograms[SpecificResponseMetrics.Metric.RESPONSE_SIZE.getIndex()].record(20);
+        heavyHitters.reset();
+        heavyHitters.record("client1", 10, 100);
+        heavyHitters.record("client1", 10, 100);
+        metricsEventStream.broadcast(newMetricsSnapshot(2, START_MILLIS + 2000, histograms, 5, heavyHitters));
+        events = eventOutputStream.getEvents();
+        Assert.assertTrue(events, events.startsWith("id: 2\ndata: {\"timestampMillis\":1002000," +
+                "\"intervalMillis\":1000,\"responseCount\":1,\"excludedResponseCount\":2,\"responseSize\":20,"));
+        Assert.assertFalse(events, events.contains("\"topClients\""));
+        Assert.assertTrue(events, events.contains(",\"removedTopClients\":[\"client2\\\"\"]}"));
+
+        // Snapshots which aren't newer are sent as comments.
+        metricsEventStream.broadcast(metricsSnapshot.get());
+        Assert.assertEquals(":\n\n", eventOutputStream.getEvents());
+
+        // A subscriber which can't keep up is dropped.
+        eventOutputStream.ready = false;
+
+        for (int i = 0; i < MetricsEventStream.MAXIMUM_QUEUED_EVENTS; i++) {
+            metricsEventStream.broadcast(metricsSnapshot.get());
+            verify(asyncContext, never()).complete();
+        }
+
+        metricsEventStream.broadcast(metricsSnapshot.get());
+        verify(asyncContext, times(1)).complete();
+        Assert.assertEquals(0, metricsEventStream.getSubscriberCount());
+        Assert.assertEquals("", eventOutputStream.getEvents());
+    }
+
+    @Test
+    public final void testMetricsEventStreamWithoutNonBlockingIO() throws IOException {
+
+        final MetricsHistogram[] histograms = ResponseMetricsRecorder.newHistograms();
+        final MetricsEventStream metricsEventStream = new MetricsEventStream(500,
+                () -> newMetricsSnapshot(0, START_MILLIS, histograms, 0, null));
+        histograms[SpecificResponseMetrics.Metric.RESPONSE_SIZE.getIndex()].record(10);
+        metricsEventStream.broadcast(newMetricsSnapshot(1, START_MILLIS + 500, histograms, 0, null));
+
+        // Servlet 3.0 containers receive the most recent event and poll for the next one.
+        final EventOutputStream eventOutputStream = new EventOutputStream();
+        final AsyncContext asyncContext = subscribe(metricsEventStream, eventOutputStream, 0);
+        verifyZeroInteractions(asyncContext);
+        Assert.assertEquals(0, metricsEventStream.getSubscriberCount());
+
+        final String events = eventOutputStream.getEvents();
+        Assert.assertTrue(events, events.startsWith("retry: 500\n\nid: 1\ndata: {\"timestampMillis\":1000500,"));
+        Assert.assertTrue(events, events.contains("\"responseCount\":1,"));
+        Assert.assertTrue(events, events.endsWith("}\n\n"));
+
+        // Closing the stream completes every subscriber.
+        final AsyncContext streamingAsyncContext = subscribe(metricsEventStream, new EventOutputStream(), 1);
+        Assert.assertEquals(1, metricsEventStream.getSubscriberCount());
+        metricsEventStream.close();
+        verify(streamingAsyncContext, times(1)).complete();
+        Assert.assertEquals(0, metricsEventStream.getSubscriberCount());
+    }
+
+    private static AsyncContext subscribe(MetricsEventStream metricsEventStream, EventOutputStream eventOutputStream,
+            int servletMinorVersion) throws IOException {
+
+        final ServletContext servletContext = mock(ServletContext.class);
+        when(servletContext.getMajorVersion()).thenReturn(3);
+        when(servletContext.getMinorVersion()).thenReturn(servletMinorVersion);
+
+        final AsyncContext asyncContext = mock(AsyncContext.class);
+        final HttpServletRequest httpServletRequest = mock(HttpServletRequest.class);
+        when(httpServletRequest.isAsyncSupported()).thenReturn(true);
+        when(httpServletRequest.getServletContext()).thenReturn(servletContext);
+        when(httpServletRequest.startAsync()).thenReturn(asyncContext);
+
+        final HttpServletResponse httpServletResponse = mock(HttpServletResponse.class);
+        when(httpServletResponse.getOutputStream()).thenReturn(eventOutputStream);
+        metricsEventStream.subscribe(httpServletRequest, httpServletResponse);
+        verify(httpServletResponse, times(1)).setContentType("text/event-stream");
+
+        return asyncContext;
+    }
+
+    private static MetricsSnapshot newMetricsSnapshot(long sequence, long timestampMillis,
+            MetricsHistogram[] histograms, long excludedResponseCount, HeavyHitters heavyHitters) {
+        return new MetricsSnapshot(sequence, sequence, timestampMillis,
+                ResponseMetricsRecorder.copyOf(histograms), Collections.emptyMap(), excludedResponseCount,
+                (heavyHitters == null) ? null : heavyHitters.summarize(MetricsFilter.HEAVY_HITTERS_TOP_COUNT), null,
+                null, null, null, null, null);
+    }
+
+    private static final class EventOutputStream extends ServletOutputStream {
+
+        private final ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
+        private volatile boolean ready = true;
+        private WriteListener writeListener;
+
+        @Override
+        public boolean isReady() {
+            return ready;
+        }
+
+        @Override
+        public void setWriteListener(WriteListener writeListener) {
+            this.writeListener = writeListener;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            byteArrayOutputStream.write(b);
+        }
+
+        /**
+         * @return the events written since the previous call.
+         */
+        private String getEvents() {
+
+            final String events = new String(byteArrayOutputStream.toByteArray(), StandardCharsets.UTF_8);
+            byteArrayOutputStream.reset();
+
+            return events;
+        }
+    }
+}
@@ -0,0 +1,230 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2019 Kyle Stiemann.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.github.stiemannkj1.servlet.filter.example;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.stream.Collectors;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * @author Kyle Stiemann
+ */
+public final class TestMetricsExporter {
+
+    @Test
+    public final void testStatsDOverUdp() throws IOException {
+
+        try (DatagramSocket datagramSocket = new DatagramSocket(0, InetAddress.getLoopbackAddress())) {
+
+            datagramSocket.setSoTimeout(5000);
+
+            final MetricsHistogram[] histograms = ResponseMetricsRecorder.newHistograms();
+            final AtomicReference<MetricsSnapshot> metricsSnapshot =
+                    new AtomicReference<>(newMetricsSnapshot(histograms, 0));
+            final MetricsExporter metricsExporter = new MetricsExporter(getUdpDestination(datagramSocket),
+                    MetricsExporter.Format.STATSD, "test", MetricsExporter.DEFAULT_MAXIMUM_FILE_SIZE,
+                    metricsSnapshot::get);
+
+            try {
+
+                histograms[SpecificResponseMetrics.Metric.RESPONSE_SIZE.getIndex()].record(10);
+                histograms[SpecificResponseMetrics.Metric.RESPONSE_SIZE.getIndex()].record(20);
+                metricsSnapshot.set(newMetricsSnapshot(histograms, 3));
+                metricsExporter.export();
+
+                final List<String> lines = receiveLines(datagramSocket);
+                Assert.assertTrue(lines.toString(), lines.contains("test.response_size.count:2|c"));
+                Assert.assertTrue(lines.toString(), lines.contains("test.response_size.min:10|g"));
+                Assert.assertTrue(lines.toString(), lines.contains("test.response_size.max:20|g"));
+                Assert.assertTrue(lines.toString(), lines.contains("test.response_size.mean:15.000|g"));
+                Assert.assertTrue(lines.toString(), lines.contains("test.excluded_responses:3|c"));
+                Assert.assertFalse("Metrics without values in the interval were exported.",
+                        lines.stream().anyMatch((line) -> line.startsWith("test.response_time.")));
+
+                // Only the values recorded since the previous export are exported, and back-filled response times are
+                // not counted as responses.
+                histograms[SpecificResponseMetrics.Metric.RESPONSE_SIZE.getIndex()].record(30);
+                histograms[SpecificResponseMetrics.Metric.RESPONSE_TIME.getIndex()].recordWithExpectedInterval(100, 10);
+                metricsSnapshot.set(newMetricsSnapshot(histograms, 3));
+                metricsExporter.export();
+
+                final List<String> intervalLines = receiveLines(datagramSocket);
+                Assert.assertTrue(intervalLines.toString(),
+                        intervalLines.contains("test.response_size.count:1|c"));
+                Assert.assertTrue(intervalLines.toString(), intervalLines.contains("test.response_size.min:30|g"));
+                Assert.assertTrue(intervalLines.toString(), intervalLines.contains("test.response_time.count:1|c"));
+                Assert.assertTrue(intervalLines.toString(), intervalLines.contains("test.response_time.min:10|g"));
+                Assert.assertFalse("Excluded responses were exported without changing.",
+                        intervalLines.stream().anyMatch((line) -> line.startsWith("test.excluded_responses")));
+            } finally {
+                metricsExporter.close();
+            }
+        }
+    }
+
+    @Test
+    public final void testInfluxLinesArePackedIntoDatagrams() throws IOException {
+
+        try (DatagramSocket datagramSocket = new DatagramSocket(0, InetAddress.getLoopbackAddress())) {
+
+            datagramSocket.setSoTimeout(5000);
+
+            final MetricsHistogram[] histograms = ResponseMetricsRecorder.newHistograms();
+            final AtomicReference<MetricsSnapshot> metricsSnapshot =
+                    new AtomicReference<>(newMetricsSnapshot(histograms, 0));
+
+            // A long prefix forces the lines of a single export to be split across several datagrams.
+            final char[] longPrefix = new char[300];
+            Arrays.fill(longPrefix, 'p');
+            final MetricsExporter metricsExporter = new MetricsExporter(getUdpDestination(datagramSocket),
+                    MetricsExporter.Format.INFLUX, new String(longPrefix), MetricsExporter.DEFAULT_MAXIMUM_FILE_SIZE,
+                    metricsSnapshot::get);
+
+            try {
+
+                for (MetricsHistogram histogram : histograms) {
+                    histogram.record(7);
+                }
+
+                final MetricsSnapshot exportedMetricsSnapshot = newMetricsSnapshot(histograms, 0);
+                metricsSnapshot.set(exportedMetricsSnapshot);
+                metricsExporter.export();
+
+                final List<String> lines = new ArrayList<>();
+
+                while (lines.size() < histograms.length) {
+
+                    final List<String> datagramLines = receiveLines(datagramSocket);
+                    Assert.assertTrue("Datagram did not contain complete lines.",
+                            datagramLines.stream().allMatch((line) -> line.startsWith(new String(longPrefix))));
+                    Assert.assertTrue("Datagram contained too many lines to fit.", datagramLines.size() <= 4);
+                    lines.addAll(datagramLines);
+                }
+
+                Assert.assertEquals(histograms.length, lines.size());
+                Assert.assertEquals(new String(longPrefix) + ",metric=response_time count=1i,min=7i,max=7i," +
+                        "mean=7.000,p50=7i,p90=7i,p99=7i " + (exportedMetricsSnapshot.getTimestampMillis() * 1000000),
+                        lines.get(0));
+            } finally {
+                metricsExporter.close();
+            }
+        }
+    }
+
+    @Test
+    public final void testRollingFile() throws IOException {
+
+        final Path directory = Files.createTempDirectory(TestMetricsExporter.class.getSimpleName());
+        final Path path = directory.resolve("metrics.txt");
+        final MetricsHistogram[] histograms = ResponseMetricsRecorder.newHistograms();
+        final AtomicReference<MetricsSnapshot> metricsSnapshot =
+                new AtomicReference<>(newMetricsSnapshot(histograms, 0));
+        final long maximumFileSize = 1024;
+        final MetricsExporter metricsExporter = new MetricsExporter(path.toUri().toString(),
+                MetricsExporter.Format.STATSD, "test", maximumFileSize, metricsSnapshot::get);
+
+        try {
+
+            for (int i = 0; i < 20; i++) {
+                histograms[SpecificResponseMetrics.Metric.RESPONSE_TIME.getIndex()].record(i);
+                histograms[SpecificResponseMetrics.Metric.RESPONSE_SIZE.getIndex()].record(i);
+                metricsSnapshot.set(newMetricsSnapshot(histograms, 0));
+                metricsExporter.export();
+            }
+        } finally {
+            metricsExporter.close();
+        }
+
+        final Path backupPath = directory.resolve("metrics.txt.1");
+        Assert.assertTrue("Exported file was not rolled over.", Files.exists(backupPath));
+        Assert.assertTrue("Exported file exceeded its maximum size.", Files.size(path) <= maximumFileSize);
+        Assert.assertTrue("Rolled over file exceeded its maximum size.", Files.size(backupPath) <= maximumFileSize);
+        Assert.assertTrue(Files.readAllLines(path, StandardCharsets.US_ASCII).contains(
+                "test.response_time.count:1|c"));
+
+        Files.delete(path);
+        Files.delete(backupPath);
+        Files.delete(directory);
+    }
+
+    @Test
+    public final void testInvalidDestination() throws IOException {
+
+        for (String destination : new String[] { "tcp://localhost:8125", "udp://localhost" }) {
+
+            try {
+                new MetricsExporter(destination, MetricsExporter.Format.STATSD, "test",
+                        MetricsExporter.DEFAULT_MAXIMUM_FILE_SIZE,
+                        () -> newMetricsSnapshot(ResponseMetricsRecorder.newHistograms(), 0)).close();
+                Assert.fail("MetricsExporter failed to reject the invalid destination " + destination + ".");
+            } catch (IllegalArgumentException e) {
+                // Test passed.
+            }
+        }
+    }
+
+    private static MetricsSnapshot newMetricsSnapshot(MetricsHistogram[] histograms, long excludedResponseCount) {
+        return new MetricsSnapshot(0, 0, System.currentTimeMillis(), ResponseMetricsRecorder.copyOf(histograms),
+                Collections.emptyMap(), excludedResponseCount, null, null, null, null, null, null,
+                null);
+    }
+
+    private static String getUdpDestination(DatagramSocket datagramSocket) {
+        return "udp://" + datagramSocket.getLocalAddress().getHostAddress() + ":" + datagramSocket.getLocalPort();
+    }
+
+    private static List<String> receiveLines(DatagramSocket datagramSocket) throws IOException {
+
+        final DatagramPacket datagramPacket = new DatagramPacket(new byte[MetricsExporter.MAX_DATAGRAM_PAYLOAD * 2],
+                MetricsExporter.MAX_DATAGRAM_PAYLOAD * 2);
+
+        try {
+            datagramSocket.receive(datagramPacket);
+        } catch (SocketTimeoutException e) {
+            throw new AssertionError("No metrics datagram was received.", e);
+        }
+
+        Assert.assertTrue("Datagram exceeded the maximum payload.",
+                datagramPacket.getLength() <= MetricsExporter.MAX_DATAGRAM_PAYLOAD);
+
+        final String payload = new String(datagramPacket.getData(), 0, datagramPacket.getLength(),
+                StandardCharsets.US_ASCII);
+        Assert.assertTrue("Datagram did not end with a complete line.", payload.endsWith("\n"));
+
+        return Arrays.stream(payload.split("\n")).collect(Collectors.toList());
+    }
+}
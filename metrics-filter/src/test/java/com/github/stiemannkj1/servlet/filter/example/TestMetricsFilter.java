@@ -23,17 +23,32 @@
  */
 package com.github.stiemannkj1.servlet.filter.example;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.PrintWriter;
 import java.io.StringWriter;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.stream.LongStream;
+import javax.management.JMX;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.openmbean.CompositeData;
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.DispatcherType;
 import javax.servlet.Filter;
 import javax.servlet.FilterChain;
 import javax.servlet.FilterConfig;
@@ -41,10 +56,12 @@ import javax.servlet.ServletException;
 import javax.servlet.ServletOutputStream;
 import javax.servlet.ServletRequest;
 import javax.servlet.ServletResponse;
+import javax.servlet.WriteListener;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import org.junit.Assert;
 import org.junit.Test;
+import org.mockito.ArgumentCaptor;
 import static org.mockito.Mockito.*;
 
 /**
@@ -56,19 +73,24 @@ public final class TestMetricsFilter {
 
     @Test
     public final void testMetricsFilterUniqueAtomicLongId() throws ServletException, IOException {
-        testMetricsFilterUniqueId(false);
+        testMetricsFilterUniqueId(false, false);
+    }
+
+    @Test
+    public final void testMetricsFilterUniquePerThreadId() throws ServletException, IOException {
+        testMetricsFilterUniqueId(false, true);
     }
 
     @Test
     public final void testMetricsFilterUniqueUUID() throws ServletException, IOException {
-        testMetricsFilterUniqueId(true);
+        testMetricsFilterUniqueId(true, false);
     }
 
     @Test
     public final void testMetricsFilterGetResponseSize() throws ServletException, IOException {
 
         final Filter metricsFilter = new MetricsFilter();
-        metricsFilter.init(mock(FilterConfig.class));
+        metricsFilter.init(newMockFilterConfig());
         testMetricsWithNoRequests(metricsFilter, SpecificResponseMetrics.Metric.RESPONSE_SIZE);
         testMetricsFilterResponseSize(metricsFilter);
 
@@ -79,7 +101,7 @@ public final class TestMetricsFilter {
     public final void testMetricsFilterGetResponseTime() throws ServletException, IOException {
 
         final Filter metricsFilter = new MetricsFilter();
-        metricsFilter.init(mock(FilterConfig.class));
+        metricsFilter.init(newMockFilterConfig());
         testMetricsWithNoRequests(metricsFilter, SpecificResponseMetrics.Metric.RESPONSE_SIZE);
         testMetricsFilterResponseSize(metricsFilter);
 
@@ -105,6 +127,1209 @@ public final class TestMetricsFilter {
         metricsFilter.destroy();
     }
 
+    @Test
+    public final void testMetricsFilterHeaderSize() throws ServletException, IOException {
+
+        final Filter metricsFilter = new MetricsFilter();
+        metricsFilter.init(newMockFilterConfig());
+        testMetricsWithNoRequests(metricsFilter, SpecificResponseMetrics.Metric.HEADER_SIZE);
+
+        final HttpServletResponse servletResponse = mock(HttpServletResponse.class);
+        final List<String> responseIds = new ArrayList<>();
+
+        doAnswer((invocation) -> {
+            responseIds.add(invocation.getArgument(1, String.class));
+            return null;
+        }).when(servletResponse).addHeader(eq(MetricsFilter.UNIQUE_RESPONSE_ID), any(String.class));
+
+        final FilterChain filterChain = mock(FilterChain.class);
+
+        doAnswer((invocation) -> {
+            final HttpServletResponse testServletResponse = invocation.getArgument(1, HttpServletResponse.class);
+            testServletResponse.setHeader("X-Test", "replaced");
+            testServletResponse.setHeader("X-Test", "value");
+            return null;
+        }).when(filterChain).doFilter(any(ServletRequest.class), any(ServletResponse.class));
+
+        metricsFilter.doFilter(mock(HttpServletRequest.class), servletResponse, filterChain);
+
+        // The status line, the filter's own response id header, the application's header, and the final CRLF.
+        final long expectedHeaderSize = ("HTTP/1.1 200 \r\n" + MetricsFilter.UNIQUE_RESPONSE_ID + ": " +
+                responseIds.get(0) + "\r\nX-Test: value\r\n\r\n").length();
+        final HttpServletRequest request = newMockHttpServletRequestWithMutableAttributes();
+        requestMetricsPage(request, metricsFilter);
+        Assert.assertEquals(expectedHeaderSize,
+                request.getAttribute(SpecificResponseMetrics.Metric.HEADER_SIZE.getMaxId()));
+
+        metricsFilter.destroy();
+    }
+
+    @Test
+    public final void testMetricsFilterCoordinatedOmissionCorrection() throws ServletException, IOException {
+
+        for (boolean usePerThreadRecorders : new boolean[] { false, true }) {
+
+            final MetricsFilter metricsFilter = new MetricsFilter();
+            final FilterConfig filterConfig = newMockFilterConfig();
+            when(filterConfig.getInitParameter(MetricsFilter.USE_PER_THREAD_RECORDERS_KEY))
+                    .thenReturn(Boolean.toString(usePerThreadRecorders));
+            when(filterConfig.getInitParameter(MetricsFilter.EXPECTED_REQUEST_INTERVAL_MICROS_KEY)).thenReturn("1000");
+            when(filterConfig.getInitParameter(MetricsFilter.REQUEST_START_HEADER_KEY)).thenReturn("X-Request-Start");
+            metricsFilter.init(filterConfig);
+
+            // The request waited two seconds in front of the server before it reached the filter.
+            final HttpServletRequest servletRequest = mock(HttpServletRequest.class);
+            when(servletRequest.getHeader("X-Request-Start"))
+                    .thenReturn("t=" + TimeUnit.MILLISECONDS.toMicros(System.currentTimeMillis() - 2000));
+            metricsFilter.doFilter(servletRequest, mock(HttpServletResponse.class), mock(FilterChain.class));
+
+            final MetricsSnapshot metricsSnapshot = metricsFilter.getMetricsSnapshot();
+            final MetricsHistogram responseTimes =
+                    metricsSnapshot.getHistogram(SpecificResponseMetrics.Metric.RESPONSE_TIME);
+            Assert.assertEquals(1, metricsSnapshot.getResponseCount());
+            Assert.assertEquals(1, metricsSnapshot.getResponseMetrics().size());
+            Assert.assertTrue("The queue time was not included in the response time.",
+                    responseTimes.getMaximum() >= TimeUnit.SECONDS.toNanos(2));
+
+            // Requests expected every millisecond during the stall are back-filled.
+            Assert.assertTrue("The response times of delayed requests were not back-filled.",
+                    responseTimes.getCount() >= 2000);
+            Assert.assertTrue(responseTimes.getMinimum() >= TimeUnit.MILLISECONDS.toNanos(1));
+            Assert.assertTrue(responseTimes.getMinimum() < TimeUnit.MILLISECONDS.toNanos(2));
+
+            // Back-filled values are not counted as responses.
+            final MetricsFilterMXBean metricsFilterMXBean = JMX.newMXBeanProxy(
+                    ManagementFactory.getPlatformMBeanServer(), metricsFilter.getMXBeanObjectName(),
+                    MetricsFilterMXBean.class);
+            Assert.assertEquals(1, metricsFilterMXBean.getResponseTime().getCount());
+
+            metricsFilter.destroy();
+        }
+    }
+
+    @Test
+    public final void testGetQueueTime() {
+
+        final long nowMillis = 1_500_000_000_000L;
+        final long oneSecond = TimeUnit.SECONDS.toNanos(1);
+        final long maximumMillis = MetricsFilter.DEFAULT_MAXIMUM_QUEUE_TIME_MILLIS;
+        Assert.assertEquals(oneSecond, MetricsFilter.getQueueTime("t=1499999999000000", nowMillis, maximumMillis));
+        Assert.assertEquals(oneSecond, MetricsFilter.getQueueTime("1499999999000000", nowMillis, maximumMillis));
+        Assert.assertEquals(oneSecond, MetricsFilter.getQueueTime("t=1499999999000", nowMillis, maximumMillis));
+        Assert.assertEquals(oneSecond, MetricsFilter.getQueueTime("1499999999", nowMillis, maximumMillis));
+        Assert.assertEquals(oneSecond, MetricsFilter.getQueueTime("1499999999000000000", nowMillis, maximumMillis));
+        Assert.assertEquals(oneSecond / 2, MetricsFilter.getQueueTime("t=1499999999.5", nowMillis, maximumMillis));
+        Assert.assertEquals(oneSecond / 1000, MetricsFilter.getQueueTime(" 1499999999.999 ", nowMillis, maximumMillis));
+        Assert.assertEquals(0, MetricsFilter.getQueueTime("1500000001000", nowMillis, maximumMillis));
+        Assert.assertEquals(0, MetricsFilter.getQueueTime("invalid", nowMillis, maximumMillis));
+        Assert.assertEquals(0, MetricsFilter.getQueueTime(null, nowMillis, maximumMillis));
+
+        // Zero, negative, and stale timestamps must not poison the response times.
+        Assert.assertEquals(0, MetricsFilter.getQueueTime("0", nowMillis, maximumMillis));
+        Assert.assertEquals(0, MetricsFilter.getQueueTime("t=0.0", nowMillis, maximumMillis));
+        Assert.assertEquals(0, MetricsFilter.getQueueTime("-1", nowMillis, maximumMillis));
+        Assert.assertEquals(0, MetricsFilter.getQueueTime("1499999000", nowMillis, maximumMillis));
+        Assert.assertEquals(TimeUnit.MILLISECONDS.toNanos(maximumMillis),
+                MetricsFilter.getQueueTime(Long.toString(nowMillis - maximumMillis), nowMillis, maximumMillis));
+        Assert.assertEquals(0, MetricsFilter.getQueueTime("1499999999", nowMillis, 999));
+    }
+
+    @Test
+    public final void testMetricsFilterHeavyHitters() throws Exception {
+
+        final MetricsFilter metricsFilter = new MetricsFilter();
+        final FilterConfig filterConfig = newMockFilterConfig();
+        when(filterConfig.getFilterName()).thenReturn("testMetricsFilterHeavyHitters");
+        when(filterConfig.getInitParameter(MetricsFilter.TRACK_HEAVY_HITTERS_KEY)).thenReturn("true");
+        when(filterConfig.getInitParameter(MetricsFilter.HEAVY_HITTERS_CLIENT_HEADER_KEY)).thenReturn("X-Tenant");
+        when(filterConfig.getInitParameter(MetricsFilter.HEAVY_HITTERS_CAPACITY_KEY)).thenReturn("8");
+        metricsFilter.init(filterConfig);
+
+        // Tenant i sends i requests, and requests without the header are attributed to the remote address.
+        for (int i = 1; i <= 20; i++) {
+
+            final HttpServletRequest servletRequest = mock(HttpServletRequest.class);
+            when(servletRequest.getHeader("X-Tenant")).thenReturn("tenant" + i);
+
+            for (int j = 0; j < i; j++) {
+                metricsFilter.doFilter(servletRequest, mock(HttpServletResponse.class), mock(FilterChain.class));
+            }
+        }
+
+        final HttpServletRequest anonymousRequest = mock(HttpServletRequest.class);
+        when(anonymousRequest.getRemoteAddr()).thenReturn("192.0.2.1");
+
+        for (int i = 0; i < 50; i++) {
+            metricsFilter.doFilter(anonymousRequest, mock(HttpServletResponse.class), mock(FilterChain.class));
+        }
+
+        final HttpServletRequest request = newMockHttpServletRequestWithMutableAttributes();
+        requestMetricsPage(request, metricsFilter);
+
+        @SuppressWarnings("unchecked")
+        final List<MetricsFilterMXBean.HeavyHitter> topClients =
+                (List<MetricsFilterMXBean.HeavyHitter>) request.getAttribute(MetricsFilter.TOP_CLIENTS_BY_REQUESTS);
+        Assert.assertEquals(8, topClients.size());
+        Assert.assertEquals("192.0.2.1", topClients.get(0).getClient());
+        Assert.assertEquals(50, topClients.get(0).getEstimate());
+        Assert.assertEquals("tenant20", topClients.get(1).getClient());
+
+        for (MetricsFilterMXBean.HeavyHitter heavyHitter : topClients.subList(1, topClients.size())) {
+
+            final long actual = Long.parseLong(heavyHitter.getClient().substring("tenant".length()));
+            Assert.assertTrue(heavyHitter.getMinimum() <= actual);
+            Assert.assertTrue(actual <= heavyHitter.getEstimate());
+        }
+
+        Assert.assertNotNull(request.getAttribute(MetricsFilter.TOP_CLIENTS_BY_BYTES));
+        Assert.assertNotNull(request.getAttribute(MetricsFilter.TOP_CLIENTS_BY_SERVER_TIME));
+        Assert.assertEquals(100 * Math.E / 1024,
+                (Double) request.getAttribute(MetricsFilter.HEAVY_HITTERS_ERROR_PERCENT), 0.001);
+
+        final MetricsFilterMXBean metricsFilterMXBean = JMX.newMXBeanProxy(ManagementFactory.getPlatformMBeanServer(),
+                metricsFilter.getMXBeanObjectName(), MetricsFilterMXBean.class);
+        final MetricsFilterMXBean.HeavyHitter[] topClientsByRequests = metricsFilterMXBean.getTopClientsByRequests();
+        Assert.assertEquals(8, topClientsByRequests.length);
+        Assert.assertEquals("192.0.2.1", topClientsByRequests[0].getClient());
+
+        metricsFilterMXBean.reset();
+        Assert.assertEquals(0, metricsFilterMXBean.getTopClientsByRequests().length);
+
+        metricsFilter.destroy();
+    }
+
+    @Test
+    public final void testMetricsFilterIntervals() throws Exception {
+
+        final MetricsFilter metricsFilter = new MetricsFilter();
+        final FilterConfig filterConfig = newMockFilterConfig();
+        when(filterConfig.getFilterName()).thenReturn("testMetricsFilterIntervals");
+        when(filterConfig.getInitParameter(MetricsFilter.RECORD_INTERVALS_KEY)).thenReturn("true");
+        metricsFilter.init(filterConfig);
+
+        final MetricsFilterMXBean metricsFilterMXBean = JMX.newMXBeanProxy(ManagementFactory.getPlatformMBeanServer(),
+                metricsFilter.getMXBeanObjectName(), MetricsFilterMXBean.class);
+        Assert.assertEquals(0, metricsFilterMXBean.takeInterval("scraper").getResponseCount());
+
+        for (int i = 0; i < 10; i++) {
+            metricsFilter.doFilter(mock(HttpServletRequest.class), mock(HttpServletResponse.class),
+                    mock(FilterChain.class));
+        }
+
+        // Resetting the metrics does not affect the intervals of the consumers.
+        metricsFilterMXBean.reset();
+
+        final MetricsFilterMXBean.Interval interval = metricsFilterMXBean.takeInterval("scraper");
+        Assert.assertEquals(1, interval.getSequence());
+        Assert.assertEquals(10, interval.getResponseCount());
+        Assert.assertEquals(10, interval.getMetrics().get("responseTime").getCount());
+        Assert.assertEquals(SpecificResponseMetrics.Metric.values().length, interval.getMetrics().size());
+        Assert.assertEquals(0, metricsFilterMXBean.takeInterval("scraper").getResponseCount());
+
+        metricsFilterMXBean.closeInterval("scraper");
+        Assert.assertEquals(0, metricsFilterMXBean.takeInterval("scraper").getSequence());
+        metricsFilter.destroy();
+
+        final MetricsFilter metricsFilterWithoutIntervals = new MetricsFilter();
+        final FilterConfig filterConfigWithoutIntervals = newMockFilterConfig();
+        when(filterConfigWithoutIntervals.getFilterName()).thenReturn("testMetricsFilterWithoutIntervals");
+        metricsFilterWithoutIntervals.init(filterConfigWithoutIntervals);
+        Assert.assertNull(JMX.newMXBeanProxy(ManagementFactory.getPlatformMBeanServer(),
+                metricsFilterWithoutIntervals.getMXBeanObjectName(), MetricsFilterMXBean.class)
+                .takeInterval("scraper"));
+        metricsFilterWithoutIntervals.destroy();
+    }
+
+    @Test
+    public final void testMetricsFilterDistinctCounts() throws Exception {
+
+        final MetricsFilter metricsFilter = new MetricsFilter();
+        final FilterConfig filterConfig = newMockFilterConfig();
+        when(filterConfig.getFilterName()).thenReturn("testMetricsFilterDistinctCounts");
+        when(filterConfig.getInitParameter(MetricsFilter.TRACK_DISTINCT_COUNTS_KEY)).thenReturn("true");
+        metricsFilter.init(filterConfig);
+
+        // 20 clients each request 5 paths, and every other client has a valid session.
+        for (int i = 0; i < 100; i++) {
+
+            final HttpServletRequest servletRequest = mock(HttpServletRequest.class);
+            when(servletRequest.getRemoteAddr()).thenReturn("192.0.2." + (i % 20));
+            when(servletRequest.getRequestURI()).thenReturn("/path" + (i % 5));
+            when(servletRequest.isRequestedSessionIdValid()).thenReturn(i % 2 == 0);
+            when(servletRequest.getRequestedSessionId()).thenReturn("session" + (i % 20));
+            metricsFilter.doFilter(servletRequest, mock(HttpServletResponse.class), mock(FilterChain.class));
+        }
+
+        final HttpServletRequest request = newMockHttpServletRequestWithMutableAttributes();
+        requestMetricsPage(request, metricsFilter);
+
+        Assert.assertEquals(20, ((MetricsFilterMXBean.DistinctCount) request.getAttribute(
+                MetricsFilter.DISTINCT_CLIENTS)).getEstimate());
+        Assert.assertEquals(5, ((MetricsFilterMXBean.DistinctCount) request.getAttribute(
+                MetricsFilter.DISTINCT_PATHS)).getEstimate());
+        Assert.assertEquals(10, ((MetricsFilterMXBean.DistinctCount) request.getAttribute(
+                MetricsFilter.DISTINCT_SESSIONS)).getEstimate());
+
+        final MetricsFilterMXBean metricsFilterMXBean = JMX.newMXBeanProxy(ManagementFactory.getPlatformMBeanServer(),
+                metricsFilter.getMXBeanObjectName(), MetricsFilterMXBean.class);
+        final MetricsFilterMXBean.DistinctCount distinctClients = metricsFilterMXBean.getDistinctClients();
+        Assert.assertEquals(20, distinctClients.getEstimate());
+        Assert.assertEquals(20, HyperLogLog.fromByteArray(distinctClients.getSketch()).estimate());
+
+        metricsFilterMXBean.reset();
+        Assert.assertEquals(0, metricsFilterMXBean.getDistinctPaths().getEstimate());
+
+        metricsFilter.destroy();
+    }
+
+    @Test
+    public final void testMetricsFilterPerThreadRecorders() throws ServletException, IOException {
+
+        final MetricsFilter metricsFilter = new MetricsFilter();
+        final FilterConfig filterConfig = newMockFilterConfig();
+        when(filterConfig.getInitParameter(MetricsFilter.USE_PER_THREAD_RECORDERS_KEY)).thenReturn("true");
+        metricsFilter.init(filterConfig);
+        testMetricsWithNoRequests(metricsFilter, SpecificResponseMetrics.Metric.RESPONSE_SIZE);
+        testMetricsFilterResponseSize(metricsFilter);
+        Assert.assertEquals("Per-thread ids were reserved although they are unique by construction.", 0,
+                metricsFilter.getReservedResponseIdCount());
+
+        metricsFilter.destroy();
+    }
+
+    @Test
+    public final void testMetricsFilterResourceUsage() throws ServletException, IOException {
+
+        final MetricsFilter metricsFilter = new MetricsFilter();
+        final FilterConfig filterConfig = newMockFilterConfig();
+        when(filterConfig.getInitParameter(MetricsFilter.MEASURE_RESOURCE_USAGE_KEY)).thenReturn("true");
+        metricsFilter.init(filterConfig);
+
+        final int allocatedBytes = 1 << 20;
+        final List<byte[]> allocations = new ArrayList<>();
+        final FilterChain filterChain = mock(FilterChain.class);
+
+        doAnswer((invocation) -> {
+            allocations.add(new byte[allocatedBytes]);
+            return null;
+        }).when(filterChain).doFilter(any(ServletRequest.class), any(ServletResponse.class));
+
+        metricsFilter.doFilter(mock(HttpServletRequest.class), mock(HttpServletResponse.class), filterChain);
+
+        final HttpServletRequest request = newMockHttpServletRequestWithMutableAttributes();
+        requestMetricsPage(request, metricsFilter);
+        Assert.assertEquals(Boolean.TRUE, request.getAttribute(MetricsFilter.RESOURCE_USAGE_MEASURED));
+
+        final ThreadResourceUsageSampler threadResourceUsageSampler = new ThreadResourceUsageSampler();
+
+        if (threadResourceUsageSampler.isAllocatedBytesSupported()) {
+            Assert.assertTrue("Allocated bytes of the filter chain were not measured.", allocatedBytes <=
+                    (Long) request.getAttribute(SpecificResponseMetrics.Metric.ALLOCATED_BYTES.getMaxId()));
+        }
+
+        final MetricsSnapshot metricsSnapshot = metricsFilter.getMetricsSnapshot();
+        Assert.assertEquals(threadResourceUsageSampler.isAllocatedBytesSupported() ? 1 : 0,
+                metricsSnapshot.getHistogram(SpecificResponseMetrics.Metric.ALLOCATED_BYTES).getCount());
+
+        if (threadResourceUsageSampler.isCpuTimeSupported()) {
+            Assert.assertTrue("CPU time of the filter chain was not measured.",
+                    0 <= (Long) request.getAttribute(SpecificResponseMetrics.Metric.CPU_TIME.getMaxId()));
+            Assert.assertEquals(1, metricsSnapshot.getHistogram(SpecificResponseMetrics.Metric.CPU_TIME).getCount());
+        }
+
+        metricsFilter.destroy();
+
+        // Resource usage is not recorded at all (rather than recorded as zero) unless it is measured.
+        final MetricsFilter unmeasuredMetricsFilter = new MetricsFilter();
+        unmeasuredMetricsFilter.init(newMockFilterConfig());
+        unmeasuredMetricsFilter.doFilter(mock(HttpServletRequest.class), mock(HttpServletResponse.class), filterChain);
+
+        final MetricsSnapshot unmeasuredMetricsSnapshot = unmeasuredMetricsFilter.getMetricsSnapshot();
+        Assert.assertEquals(1, unmeasuredMetricsSnapshot.getResponseCount());
+        Assert.assertEquals(0,
+                unmeasuredMetricsSnapshot.getHistogram(SpecificResponseMetrics.Metric.CPU_TIME).getCount());
+        Assert.assertEquals(0,
+                unmeasuredMetricsSnapshot.getHistogram(SpecificResponseMetrics.Metric.ALLOCATED_BYTES).getCount());
+        unmeasuredMetricsFilter.destroy();
+    }
+
+    @Test
+    public final void testMetricsFilterNetworkBlocking() throws ServletException, IOException {
+
+        final MetricsFilter metricsFilter = new MetricsFilter();
+        final FilterConfig filterConfig = newMockFilterConfig();
+        when(filterConfig.getInitParameter(MetricsFilter.MEASURE_NETWORK_BLOCKING_KEY)).thenReturn("true");
+        when(filterConfig.getInitParameter(MetricsFilter.NETWORK_BLOCKING_MINIMUM_WRITE_SIZE_KEY)).thenReturn("4096");
+        metricsFilter.init(filterConfig);
+
+        // The container blocks the bulk write while it sends the body to a slow client. Only the bytes of the timed
+        // write count towards the throughput.
+        final ServletOutputStream servletOutputStream = mock(ServletOutputStream.class);
+        doAnswer((invocation) -> {
+            Thread.sleep(10);
+            return null;
+        }).when(servletOutputStream).write(any(byte[].class), any(Integer.class), any(Integer.class));
+
+        final HttpServletResponse servletResponse = mock(HttpServletResponse.class);
+        when(servletResponse.getOutputStream()).thenReturn(servletOutputStream);
+
+        final FilterChain filterChain = mock(FilterChain.class);
+        doAnswer((invocation) -> {
+            final ServletOutputStream outputStream = invocation.getArgument(1, ServletResponse.class).getOutputStream();
+            outputStream.write(new byte[100]);
+            outputStream.write(new byte[8192]);
+            return null;
+        }).when(filterChain).doFilter(any(ServletRequest.class), any(ServletResponse.class));
+
+        metricsFilter.doFilter(mock(HttpServletRequest.class), servletResponse, filterChain);
+
+        final HttpServletRequest request = newMockHttpServletRequestWithMutableAttributes();
+        final String html = requestMetricsPage(request, metricsFilter);
+        Assert.assertEquals(Boolean.TRUE, request.getAttribute(MetricsFilter.NETWORK_BLOCKING_MEASURED));
+        Assert.assertTrue(html, html.contains("<th>Network Blocked Time (in nanoseconds)</th>"));
+
+        final long networkBlockedTime =
+                (Long) request.getAttribute(SpecificResponseMetrics.Metric.NETWORK_BLOCKED_TIME.getMaxId());
+        Assert.assertTrue("The blocked write was not timed.", networkBlockedTime >= TimeUnit.MILLISECONDS.toNanos(10));
+        Assert.assertEquals((long) (8192 * 1_000_000_000.0 / networkBlockedTime),
+                request.getAttribute(SpecificResponseMetrics.Metric.CLIENT_THROUGHPUT.getMaxId()));
+
+        // Responses without timed writes are left out of the network blocking histograms.
+        metricsFilter.doFilter(mock(HttpServletRequest.class), servletResponse, mock(FilterChain.class));
+
+        final MetricsSnapshot metricsSnapshot = metricsFilter.getMetricsSnapshot();
+        Assert.assertEquals(2, metricsSnapshot.getResponseCount());
+        Assert.assertEquals(1,
+                metricsSnapshot.getHistogram(SpecificResponseMetrics.Metric.NETWORK_BLOCKED_TIME).getCount());
+        Assert.assertEquals(1,
+                metricsSnapshot.getHistogram(SpecificResponseMetrics.Metric.CLIENT_THROUGHPUT).getCount());
+        metricsFilter.destroy();
+
+        // Nothing is recorded when network blocking is not measured.
+        final MetricsFilter unmeasuredMetricsFilter = new MetricsFilter();
+        unmeasuredMetricsFilter.init(newMockFilterConfig());
+        unmeasuredMetricsFilter.doFilter(mock(HttpServletRequest.class), servletResponse, filterChain);
+
+        final MetricsSnapshot unmeasuredMetricsSnapshot = unmeasuredMetricsFilter.getMetricsSnapshot();
+        Assert.assertEquals(1, unmeasuredMetricsSnapshot.getResponseCount());
+        Assert.assertEquals(0,
+                unmeasuredMetricsSnapshot.getHistogram(SpecificResponseMetrics.Metric.NETWORK_BLOCKED_TIME).getCount());
+        Assert.assertEquals(0,
+                unmeasuredMetricsSnapshot.getHistogram(SpecificResponseMetrics.Metric.CLIENT_THROUGHPUT).getCount());
+        unmeasuredMetricsFilter.destroy();
+
+        final FilterConfig invalidFilterConfig = newMockFilterConfig();
+        when(invalidFilterConfig.getInitParameter(MetricsFilter.MEASURE_NETWORK_BLOCKING_KEY)).thenReturn("true");
+        when(invalidFilterConfig.getInitParameter(MetricsFilter.NETWORK_BLOCKING_MINIMUM_WRITE_SIZE_KEY))
+                .thenReturn("-1");
+
+        try {
+            new MetricsFilter().init(invalidFilterConfig);
+            Assert.fail("MetricsFilter failed to throw ServletException for a negative minimum write size.");
+        } catch (ServletException e) {
+            // Test passed.
+        }
+    }
+
+    @Test
+    public final void testMetricsFilterMXBean() throws Exception {
+
+        final MetricsFilter metricsFilter = new MetricsFilter();
+        final FilterConfig filterConfig = newMockFilterConfig();
+        when(filterConfig.getFilterName()).thenReturn("testMetricsFilterMXBean");
+        metricsFilter.init(filterConfig);
+
+        final ObjectName objectName = metricsFilter.getMXBeanObjectName();
+        Assert.assertNotNull("MetricsFilter did not register its MXBean.", objectName);
+
+        final MBeanServer mBeanServer = ManagementFactory.getPlatformMBeanServer();
+        Assert.assertTrue(mBeanServer.isRegistered(objectName));
+        testMetricsFilterResponseSize(metricsFilter);
+
+        final MetricsFilterMXBean metricsFilterMXBean =
+                JMX.newMXBeanProxy(mBeanServer, objectName, MetricsFilterMXBean.class);
+        Assert.assertEquals(TOTAL_REQUESTS_TO_SEND, metricsFilterMXBean.getResponseCount());
+        Assert.assertEquals(TOTAL_REQUESTS_TO_SEND, metricsFilterMXBean.getResponseSize().getMaximum());
+        Assert.assertEquals(1, metricsFilterMXBean.getResponseSize().getMinimum());
+        Assert.assertEquals(TOTAL_REQUESTS_TO_SEND, metricsFilterMXBean.getResponseSize().getCount());
+
+        final CompositeData responseSize = (CompositeData) mBeanServer.getAttribute(objectName, "ResponseSize");
+        Assert.assertEquals(TOTAL_REQUESTS_TO_SEND, responseSize.get("maximum"));
+
+        mBeanServer.invoke(objectName, "reset", new Object[0], new String[0]);
+        Assert.assertEquals("MXBean reset did not remove recorded metrics.", 0,
+                metricsFilterMXBean.getResponseCount());
+        Assert.assertTrue("MXBean reset did not remove the response history.",
+                metricsFilter.getMetricsSnapshot().getResponseMetrics().isEmpty());
+
+        metricsFilter.destroy();
+        Assert.assertFalse("MetricsFilter did not unregister its MXBean.", mBeanServer.isRegistered(objectName));
+    }
+
+    @Test
+    public final void testMetricsFilterPublishesSnapshotsInBackground() throws ServletException, IOException,
+            InterruptedException {
+
+        final MetricsFilter metricsFilter = new MetricsFilter();
+        final FilterConfig filterConfig = mock(FilterConfig.class);
+        when(filterConfig.getInitParameter(MetricsFilter.SNAPSHOT_REFRESH_INTERVAL_MILLIS_KEY)).thenReturn("10");
+        metricsFilter.init(filterConfig);
+
+        final MetricsSnapshot initialMetricsSnapshot = metricsFilter.getMetricsSnapshot();
+        Assert.assertSame("Metrics snapshot was rebuilt on read instead of being served from the published snapshot.",
+                initialMetricsSnapshot, metricsFilter.getMetricsSnapshot());
+
+        metricsFilter.doFilter(mock(HttpServletRequest.class), mock(HttpServletResponse.class),
+                mock(FilterChain.class));
+
+        final long timeoutMillis = System.currentTimeMillis() + 10000;
+        MetricsSnapshot metricsSnapshot = metricsFilter.getMetricsSnapshot();
+
+        while (metricsSnapshot.getResponseMetrics().isEmpty() && System.currentTimeMillis() < timeoutMillis) {
+            Thread.sleep(10);
+            metricsSnapshot = metricsFilter.getMetricsSnapshot();
+        }
+
+        Assert.assertEquals("Published metrics snapshot did not include the filtered response.", 1,
+                metricsSnapshot.getResponseMetrics().size());
+        Assert.assertEquals("Published metrics snapshot histograms did not include the filtered response.", 1,
+                metricsSnapshot.getHistogram(SpecificResponseMetrics.Metric.RESPONSE_TIME).getCount());
+        Assert.assertTrue("Published metrics snapshot sequence did not increase.",
+                initialMetricsSnapshot.getSequence() < metricsSnapshot.getSequence());
+
+        metricsFilter.destroy();
+    }
+
+    @Test
+    public final void testMetricsFilterResponseHistorySize() throws ServletException, IOException {
+
+        final MetricsFilter metricsFilter = new MetricsFilter();
+        final FilterConfig filterConfig = newMockFilterConfig();
+        when(filterConfig.getInitParameter(MetricsFilter.RESPONSE_HISTORY_SIZE_KEY)).thenReturn("10");
+
+        // Only random ids are reserved.
+        when(filterConfig.getInitParameter(MetricsFilter.USE_UUID_UNIQUE_RESPONSE_ID_KEY)).thenReturn("true");
+        metricsFilter.init(filterConfig);
+
+        final HttpServletResponse servletResponse = mock(HttpServletResponse.class);
+        final List<String> responseIds = new ArrayList<>();
+
+        doAnswer((invocation) -> {
+            responseIds.add(invocation.getArgument(1, String.class));
+            return null;
+        }).when(servletResponse).addHeader(eq(MetricsFilter.UNIQUE_RESPONSE_ID), any(String.class));
+
+        for (int i = 0; i < 25; i++) {
+            metricsFilter.doFilter(mock(HttpServletRequest.class), servletResponse, mock(FilterChain.class));
+        }
+
+        // Only the newest responses are kept in the history, but every response is included in the histograms.
+        final MetricsSnapshot metricsSnapshot = metricsFilter.getMetricsSnapshot();
+        Assert.assertEquals(25, metricsSnapshot.getResponseCount());
+        Assert.assertEquals(responseIds.subList(15, 25),
+                new ArrayList<>(metricsSnapshot.getResponseMetrics().keySet()));
+        Assert.assertEquals("Responses that left the history were not released.", 10,
+                metricsFilter.getReservedResponseIdCount());
+
+        // Failed responses are not recorded and don't stay in memory.
+        final FilterChain failingFilterChain = mock(FilterChain.class);
+        doThrow(new ServletException("Failure")).when(failingFilterChain).doFilter(any(ServletRequest.class),
+                any(ServletResponse.class));
+
+        try {
+
+            metricsFilter.doFilter(mock(HttpServletRequest.class), servletResponse, failingFilterChain);
+            Assert.fail("The failure of the filter chain was not propagated.");
+        } catch (ServletException e) {
+            // Expected.
+        }
+
+        Assert.assertEquals(10, metricsFilter.getReservedResponseIdCount());
+        responseIds.remove(responseIds.size() - 1);
+
+        // Snapshots of unchanged metrics share the metrics of the previous snapshot instead of copying them again.
+        final MetricsSnapshot unchangedMetricsSnapshot = metricsFilter.getMetricsSnapshot();
+        Assert.assertTrue(metricsSnapshot.getSequence() < unchangedMetricsSnapshot.getSequence());
+        Assert.assertSame(metricsSnapshot.getResponseMetrics(), unchangedMetricsSnapshot.getResponseMetrics());
+        Assert.assertSame(metricsSnapshot.getHistogram(SpecificResponseMetrics.Metric.RESPONSE_TIME),
+                unchangedMetricsSnapshot.getHistogram(SpecificResponseMetrics.Metric.RESPONSE_TIME));
+
+        metricsFilter.doFilter(mock(HttpServletRequest.class), servletResponse, mock(FilterChain.class));
+        Assert.assertEquals(26, metricsFilter.getMetricsSnapshot().getResponseCount());
+
+        metricsFilter.resetMetrics();
+        Assert.assertEquals(0, metricsFilter.getMetricsSnapshot().getResponseCount());
+        Assert.assertTrue(metricsFilter.getMetricsSnapshot().getResponseMetrics().isEmpty());
+        metricsFilter.destroy();
+
+        final FilterConfig invalidFilterConfig = newMockFilterConfig();
+        when(invalidFilterConfig.getInitParameter(MetricsFilter.RESPONSE_HISTORY_SIZE_KEY))
+                .thenReturn(Long.toString(MetricsFilter.MAXIMUM_RESPONSE_HISTORY_SIZE + 1L));
+
+        try {
+
+            new MetricsFilter().init(invalidFilterConfig);
+            Assert.fail("MetricsFilter accepted a response history size greater than the maximum.");
+        } catch (ServletException e) {
+            // Expected.
+        }
+    }
+
+    @Test
+    public final void testMetricsFilterExcludedPaths() throws ServletException, IOException {
+
+        final Filter metricsFilter = new MetricsFilter();
+        final FilterConfig filterConfig = newMockFilterConfig();
+        when(filterConfig.getInitParameter(MetricsFilter.EXCLUDE_PATHS_KEY)).thenReturn("*.css, /static/*");
+        metricsFilter.init(filterConfig);
+
+        for (String servletPath : new String[] { "/main.css", "/static/logo.png", "/page1.jsp" }) {
+
+            final HttpServletRequest request = mock(HttpServletRequest.class);
+            when(request.getServletPath()).thenReturn(servletPath);
+
+            final HttpServletResponse response = mock(HttpServletResponse.class);
+            final FilterChain filterChain = mock(FilterChain.class);
+            metricsFilter.doFilter(request, response, filterChain);
+
+            if (servletPath.equals("/page1.jsp")) {
+                verify(filterChain).doFilter(eq(request), argThat((filteredResponse) -> {
+                    return filteredResponse != response;
+                }));
+            } else {
+                verify(filterChain).doFilter(request, response);
+                verify(response, never()).addHeader(eq(MetricsFilter.UNIQUE_RESPONSE_ID), any(String.class));
+            }
+        }
+
+        final HttpServletRequest request = newMockHttpServletRequestWithMutableAttributes();
+        requestMetricsPage(request, metricsFilter);
+        Assert.assertEquals("Excluded responses were recorded in the response metrics.", 1,
+                ((Map) request.getAttribute(MetricsFilter.RESPONSE_METRICS)).size());
+        Assert.assertEquals("Excluded responses were not counted.", 2L,
+                request.getAttribute(MetricsFilter.EXCLUDED_RESPONSE_COUNT));
+
+        metricsFilter.destroy();
+    }
+
+    @Test
+    public final void testMetricsFilterNestedDispatches() throws ServletException, IOException {
+
+        final MetricsFilter metricsFilter = new MetricsFilter();
+        final FilterConfig filterConfig = newMockFilterConfig();
+        when(filterConfig.getInitParameter(MetricsFilter.RECORD_DISPATCH_SEGMENTS_KEY)).thenReturn("true");
+        metricsFilter.init(filterConfig);
+
+        final HttpServletRequest request = newMockHttpServletRequestWithMutableAttributes();
+        final AtomicReference<DispatcherType> dispatcherType = new AtomicReference<>(DispatcherType.REQUEST);
+        when(request.getDispatcherType()).thenAnswer((invocation) -> dispatcherType.get());
+        when(request.getServletPath()).thenReturn("/page1.jsp");
+
+        final HttpServletResponse response = mock(HttpServletResponse.class);
+        final List<ServletResponse> nestedResponses = new ArrayList<>();
+        final FilterChain innerFilterChain = mock(FilterChain.class);
+
+        doAnswer((invocation) -> {
+            nestedResponses.add(invocation.getArgument(1, ServletResponse.class));
+            return null;
+        }).when(innerFilterChain).doFilter(any(ServletRequest.class), any(ServletResponse.class));
+
+        final FilterChain outerFilterChain = mock(FilterChain.class);
+
+        doAnswer((invocation) -> {
+
+            final ServletResponse wrappedResponse = invocation.getArgument(1, ServletResponse.class);
+
+            // Simulate a forward and an include from the servlet which are also mapped to the filter.
+            dispatcherType.set(DispatcherType.FORWARD);
+            metricsFilter.doFilter(request, wrappedResponse, innerFilterChain);
+            dispatcherType.set(DispatcherType.INCLUDE);
+            metricsFilter.doFilter(request, wrappedResponse, innerFilterChain);
+            dispatcherType.set(DispatcherType.REQUEST);
+            nestedResponses.add(0, wrappedResponse);
+            return null;
+        }).when(outerFilterChain).doFilter(any(ServletRequest.class), any(ServletResponse.class));
+
+        metricsFilter.doFilter(request, response, outerFilterChain);
+
+        Assert.assertEquals(3, nestedResponses.size());
+        Assert.assertSame("Nested dispatch response was wrapped again.", nestedResponses.get(0),
+                nestedResponses.get(1));
+        Assert.assertSame("Nested dispatch response was wrapped again.", nestedResponses.get(0),
+                nestedResponses.get(2));
+        verify(response, times(1)).addHeader(eq(MetricsFilter.UNIQUE_RESPONSE_ID), any(String.class));
+
+        final Map<String, SpecificResponseMetrics> responseMetrics =
+                metricsFilter.getMetricsSnapshot().getResponseMetrics();
+        Assert.assertEquals("Nested dispatches were recorded as separate responses.", 1, responseMetrics.size());
+
+        final List<SpecificResponseMetrics.DispatchSegment> dispatchSegments =
+                responseMetrics.values().iterator().next().getDispatchSegments();
+        Assert.assertEquals(2, dispatchSegments.size());
+        Assert.assertEquals(DispatcherType.FORWARD, dispatchSegments.get(0).getDispatcherType());
+        Assert.assertEquals(DispatcherType.INCLUDE, dispatchSegments.get(1).getDispatcherType());
+
+        for (SpecificResponseMetrics.DispatchSegment dispatchSegment : dispatchSegments) {
+            Assert.assertEquals(1, dispatchSegment.getDepth());
+            Assert.assertTrue("Dispatch segment was not finished.", dispatchSegment.getElapsedTime() >= 0);
+        }
+
+        // An unmarked dispatch that is not a REQUEST dispatch (for example an ERROR dispatch of an unmeasured request)
+        // is passed through unwrapped.
+        final HttpServletRequest errorRequest = mock(HttpServletRequest.class);
+        when(errorRequest.getDispatcherType()).thenReturn(DispatcherType.ERROR);
+        final FilterChain errorFilterChain = mock(FilterChain.class);
+        metricsFilter.doFilter(errorRequest, response, errorFilterChain);
+        verify(errorFilterChain).doFilter(errorRequest, response);
+
+        metricsFilter.destroy();
+    }
+
+    @Test
+    public final void testMetricsFilterAsyncResponseRecordedOnComplete() throws ServletException, IOException {
+
+        final MetricsFilter metricsFilter = new MetricsFilter();
+        metricsFilter.init(newMockFilterConfig());
+
+        final HttpServletRequest request = newMockHttpServletRequestWithMutableAttributes();
+        final AsyncContext asyncContext = mock(AsyncContext.class);
+        when(request.isAsyncStarted()).thenReturn(true);
+        when(request.getAsyncContext()).thenReturn(asyncContext);
+
+        final List<AsyncEvent> asyncEvents = new ArrayList<>();
+
+        doAnswer((invocation) -> {
+            asyncEvents.add(new AsyncEvent(asyncContext, invocation.getArgument(1, ServletRequest.class),
+                    invocation.getArgument(2, ServletResponse.class)));
+            return null;
+        }).when(asyncContext).addListener(any(AsyncListener.class), any(ServletRequest.class),
+                any(ServletResponse.class));
+
+        final ArgumentCaptor<AsyncListener> asyncListener = ArgumentCaptor.forClass(AsyncListener.class);
+        metricsFilter.doFilter(request, mock(HttpServletResponse.class), mock(FilterChain.class));
+        verify(asyncContext).addListener(asyncListener.capture(), any(ServletRequest.class),
+                any(ServletResponse.class));
+
+        Assert.assertTrue("Asynchronous response was recorded before it completed.",
+                metricsFilter.getMetricsSnapshot().getResponseMetrics().isEmpty());
+
+        asyncListener.getValue().onComplete(asyncEvents.get(0));
+
+        final MetricsSnapshot metricsSnapshot = metricsFilter.getMetricsSnapshot();
+        Assert.assertEquals("Asynchronous response was not recorded when it completed.", 1,
+                metricsSnapshot.getResponseMetrics().size());
+        Assert.assertEquals(1, metricsSnapshot.getHistogram(SpecificResponseMetrics.Metric.RESPONSE_TIME).getCount());
+
+        metricsFilter.destroy();
+    }
+
+    @Test
+    public final void testMetricsFilterAdaptiveConcurrencyLimit() throws ServletException, IOException {
+
+        final MetricsFilter metricsFilter = new MetricsFilter();
+        final FilterConfig filterConfig = newMockFilterConfig();
+        when(filterConfig.getInitParameter(MetricsFilter.ADAPTIVE_CONCURRENCY_LIMIT_KEY)).thenReturn("true");
+        when(filterConfig.getInitParameter(MetricsFilter.INITIAL_CONCURRENCY_LIMIT_KEY)).thenReturn("1");
+        when(filterConfig.getInitParameter(MetricsFilter.MAXIMUM_CONCURRENCY_LIMIT_KEY)).thenReturn("1");
+        when(filterConfig.getInitParameter(MetricsFilter.RETRY_AFTER_SECONDS_KEY)).thenReturn("5");
+        metricsFilter.init(filterConfig);
+
+        final HttpServletRequest rejectedRequest = mock(HttpServletRequest.class);
+        when(rejectedRequest.getServletPath()).thenReturn("/page2.jsp");
+
+        final HttpServletResponse rejectedResponse = mock(HttpServletResponse.class);
+        final FilterChain rejectedFilterChain = mock(FilterChain.class);
+        final HttpServletRequest request = newMockHttpServletRequestWithMutableAttributes();
+        when(request.getServletPath()).thenReturn("/page1.jsp");
+
+        final FilterChain filterChain = mock(FilterChain.class);
+
+        // Send a second request while the only permit is held by the first.
+        doAnswer((invocation) -> {
+            metricsFilter.doFilter(rejectedRequest, rejectedResponse, rejectedFilterChain);
+            return null;
+        }).when(filterChain).doFilter(any(ServletRequest.class), any(ServletResponse.class));
+
+        metricsFilter.doFilter(request, mock(HttpServletResponse.class), filterChain);
+
+        verify(rejectedFilterChain, never()).doFilter(any(ServletRequest.class), any(ServletResponse.class));
+        verify(rejectedResponse).setStatus(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+        verify(rejectedResponse).setHeader("Retry-After", "5");
+        verify(rejectedResponse, never()).addHeader(eq(MetricsFilter.UNIQUE_RESPONSE_ID), any(String.class));
+
+        final HttpServletRequest metricsPageRequest = newMockHttpServletRequestWithMutableAttributes();
+        requestMetricsPage(metricsPageRequest, metricsFilter);
+        Assert.assertEquals(1, metricsPageRequest.getAttribute(MetricsFilter.CONCURRENCY_LIMIT));
+        Assert.assertEquals("The permit was not released after the response completed.", 0,
+                metricsPageRequest.getAttribute(MetricsFilter.IN_FLIGHT_REQUEST_COUNT));
+        Assert.assertEquals(1L, metricsPageRequest.getAttribute(MetricsFilter.REJECTED_RESPONSE_COUNT));
+        Assert.assertEquals("The rejected response was recorded in the response metrics.", 1,
+                ((Map) metricsPageRequest.getAttribute(MetricsFilter.RESPONSE_METRICS)).size());
+
+        metricsFilter.destroy();
+    }
+
+    @Test
+    public final void testMetricsFilterReleasesPermitWhenMeasuringFails() throws ServletException, IOException {
+
+        final MetricsFilter metricsFilter = new MetricsFilter();
+        final FilterConfig filterConfig = newMockFilterConfig();
+        when(filterConfig.getInitParameter(MetricsFilter.ADAPTIVE_CONCURRENCY_LIMIT_KEY)).thenReturn("true");
+        when(filterConfig.getInitParameter(MetricsFilter.INITIAL_CONCURRENCY_LIMIT_KEY)).thenReturn("1");
+        when(filterConfig.getInitParameter(MetricsFilter.MAXIMUM_CONCURRENCY_LIMIT_KEY)).thenReturn("1");
+        when(filterConfig.getInitParameter(MetricsFilter.REQUEST_START_HEADER_KEY)).thenReturn("X-Request-Start");
+        metricsFilter.init(filterConfig);
+
+        // The request fails after the permit is acquired but before the filter chain is invoked.
+        final HttpServletRequest failingRequest = mock(HttpServletRequest.class);
+        when(failingRequest.getHeader("X-Request-Start")).thenThrow(new IllegalStateException("test"));
+        final HttpServletResponse failingResponse = mock(HttpServletResponse.class);
+
+        try {
+            metricsFilter.doFilter(failingRequest, failingResponse, mock(FilterChain.class));
+            Assert.fail("The failure was not propagated.");
+        } catch (IllegalStateException e) {
+            // Expected.
+        }
+
+        final HttpServletRequest metricsPageRequest = newMockHttpServletRequestWithMutableAttributes();
+        requestMetricsPage(metricsPageRequest, metricsFilter);
+        Assert.assertEquals("The permit was not released after the request failed.", 0,
+                metricsPageRequest.getAttribute(MetricsFilter.IN_FLIGHT_REQUEST_COUNT));
+        Assert.assertEquals(0L, metricsPageRequest.getAttribute(MetricsFilter.REJECTED_RESPONSE_COUNT));
+        Assert.assertTrue("The unique id of the failed response was not released.",
+                ((Map) metricsPageRequest.getAttribute(MetricsFilter.RESPONSE_METRICS)).isEmpty());
+
+        metricsFilter.destroy();
+    }
+
+    @Test
+    public final void testMetricsSnapshotVersion() throws ServletException, IOException {
+
+        final MetricsFilter metricsFilter = new MetricsFilter();
+        final FilterConfig filterConfig = newMockFilterConfig();
+        when(filterConfig.getInitParameter(MetricsFilter.ADAPTIVE_CONCURRENCY_LIMIT_KEY)).thenReturn("true");
+        when(filterConfig.getInitParameter(MetricsFilter.INITIAL_CONCURRENCY_LIMIT_KEY)).thenReturn("1");
+        when(filterConfig.getInitParameter(MetricsFilter.MAXIMUM_CONCURRENCY_LIMIT_KEY)).thenReturn("1");
+        when(filterConfig.getInitParameter(MetricsFilter.TRACK_DISTINCT_COUNTS_KEY)).thenReturn("true");
+        metricsFilter.init(filterConfig);
+
+        final MetricsSnapshot initialMetricsSnapshot = metricsFilter.getMetricsSnapshot();
+        final MetricsSnapshot unchangedMetricsSnapshot = metricsFilter.getMetricsSnapshot();
+        Assert.assertTrue(initialMetricsSnapshot.getSequence() < unchangedMetricsSnapshot.getSequence());
+        Assert.assertEquals("The snapshot version changed although nothing was recorded.",
+                initialMetricsSnapshot.getVersion(), unchangedMetricsSnapshot.getVersion());
+
+        final HttpServletRequest rejectedRequest = mock(HttpServletRequest.class);
+        when(rejectedRequest.getRemoteAddr()).thenReturn("192.0.2.2");
+        when(rejectedRequest.getRequestURI()).thenReturn("/page2.jsp");
+
+        final HttpServletRequest request = mock(HttpServletRequest.class);
+        when(request.getRemoteAddr()).thenReturn("192.0.2.1");
+        when(request.getRequestURI()).thenReturn("/page1.jsp");
+
+        final MetricsSnapshot[] metricsSnapshots = new MetricsSnapshot[2];
+        final FilterChain filterChain = mock(FilterChain.class);
+
+        // Reject a request (which is not recorded in the response metrics) while the only permit is held.
+        doAnswer((invocation) -> {
+            metricsSnapshots[0] = metricsFilter.getMetricsSnapshot();
+            metricsFilter.doFilter(rejectedRequest, mock(HttpServletResponse.class), mock(FilterChain.class));
+            metricsSnapshots[1] = metricsFilter.getMetricsSnapshot();
+            return null;
+        }).when(filterChain).doFilter(any(ServletRequest.class), any(ServletResponse.class));
+
+        metricsFilter.doFilter(request, mock(HttpServletResponse.class), filterChain);
+
+        Assert.assertNotEquals("The snapshot version did not change after a request was rejected.",
+                metricsSnapshots[0].getVersion(), metricsSnapshots[1].getVersion());
+        Assert.assertEquals(0, metricsSnapshots[0].getConcurrencyLimiter().getRejectedCount());
+        Assert.assertEquals(1, metricsSnapshots[1].getConcurrencyLimiter().getRejectedCount());
+        Assert.assertEquals(1, metricsSnapshots[0].getDistinctCounts().getDistinctCount(
+                DistinctCounts.Dimension.CLIENTS).getEstimate());
+        Assert.assertEquals("The distinct counts were not summarized again after a request was rejected.", 2,
+                metricsSnapshots[1].getDistinctCounts().getDistinctCount(
+                        DistinctCounts.Dimension.CLIENTS).getEstimate());
+        Assert.assertEquals(metricsSnapshots[0].getSequence() + 1, metricsSnapshots[1].getSequence());
+
+        metricsFilter.destroy();
+    }
+
+    @Test
+    public final void testMetricsFilterResponseCache() throws ServletException, IOException {
+
+        final MetricsFilter metricsFilter = new MetricsFilter();
+        final FilterConfig filterConfig = newMockFilterConfig();
+        when(filterConfig.getInitParameter(MetricsFilter.CACHE_PATHS_KEY)).thenReturn("/page1.jsp");
+        metricsFilter.init(filterConfig);
+
+        final FilterChain filterChain = mock(FilterChain.class);
+        doAnswer((invocation) -> {
+            invocation.getArgument(1, ServletResponse.class).getWriter().print("<html>page1</html>");
+            return null;
+        }).when(filterChain).doFilter(any(ServletRequest.class), any(ServletResponse.class));
+
+        final StringWriter cachedBody = new StringWriter();
+
+        for (int i = 0; i < 3; i++) {
+
+            final HttpServletRequest request = mock(HttpServletRequest.class);
+            when(request.getServletPath()).thenReturn("/page1.jsp");
+            when(request.getMethod()).thenReturn("GET");
+
+            final HttpServletResponse response = mock(HttpServletResponse.class);
+            when(response.getStatus()).thenReturn(HttpServletResponse.SC_OK);
+            when(response.getOutputStream()).thenReturn(new ServletOutputStream() {
+                @Override
+                public boolean isReady() {
+                    return true;
+                }
+
+                @Override
+                public void setWriteListener(WriteListener writeListener) {
+                    throw new UnsupportedOperationException();
+                }
+
+                @Override
+                public void write(int b) throws IOException {
+                    cachedBody.write(b);
+                }
+
+                @Override
+                public void write(byte[] b) throws IOException {
+
+                    for (byte c : b) {
+                        write(c);
+                    }
+                }
+            });
+            metricsFilter.doFilter(request, response, filterChain);
+        }
+
+        verify(filterChain, times(1)).doFilter(any(ServletRequest.class), any(ServletResponse.class));
+        Assert.assertEquals("<html>page1</html><html>page1</html><html>page1</html>", cachedBody.toString());
+
+        final HttpServletRequest request = newMockHttpServletRequestWithMutableAttributes();
+        requestMetricsPage(request, metricsFilter);
+        Assert.assertEquals("Cache hits were recorded in the response metrics.", 1,
+                ((Map) request.getAttribute(MetricsFilter.RESPONSE_METRICS)).size());
+        Assert.assertEquals(2L, request.getAttribute(MetricsFilter.CACHE_HIT_COUNT));
+        Assert.assertEquals(1L, request.getAttribute(MetricsFilter.CACHE_MISS_COUNT));
+        Assert.assertEquals(1, request.getAttribute(MetricsFilter.CACHED_RESPONSE_COUNT));
+
+        metricsFilter.destroy();
+    }
+
+    @Test
+    public final void testMetricsFilterInvalidConcurrencyLimit() {
+
+        final FilterConfig filterConfig = newMockFilterConfig();
+        when(filterConfig.getInitParameter(MetricsFilter.ADAPTIVE_CONCURRENCY_LIMIT_KEY)).thenReturn("true");
+        when(filterConfig.getInitParameter(MetricsFilter.MINIMUM_CONCURRENCY_LIMIT_KEY)).thenReturn("50");
+        when(filterConfig.getInitParameter(MetricsFilter.MAXIMUM_CONCURRENCY_LIMIT_KEY)).thenReturn("10");
+
+        try {
+            new MetricsFilter().init(filterConfig);
+            Assert.fail("MetricsFilter failed to throw ServletException for a minimum concurrency limit greater " +
+                    "than the maximum.");
+        } catch (ServletException e) {
+            // Test passed.
+        }
+    }
+
+    @Test
+    public final void testMetricsFilterInvalidExportDestination() {
+
+        final FilterConfig filterConfig = newMockFilterConfig();
+        when(filterConfig.getInitParameter(MetricsFilter.EXPORT_DESTINATION_KEY)).thenReturn("tcp://localhost:8125");
+
+        try {
+            new MetricsFilter().init(filterConfig);
+            Assert.fail("MetricsFilter failed to throw ServletException for an invalid export destination.");
+        } catch (ServletException e) {
+            // Test passed.
+        }
+    }
+
+    @Test
+    public final void testMetricsFilterInvalidSnapshotRefreshInterval() {
+
+        final FilterConfig filterConfig = mock(FilterConfig.class);
+        when(filterConfig.getInitParameter(MetricsFilter.SNAPSHOT_REFRESH_INTERVAL_MILLIS_KEY)).thenReturn("-1");
+
+        try {
+            new MetricsFilter().init(filterConfig);
+            Assert.fail("MetricsFilter failed to throw ServletException for a negative snapshot refresh interval.");
+        } catch (ServletException e) {
+            // Test passed.
+        }
+    }
+
+    @Test
+    public final void testMetricsFilterRollups() throws ServletException, IOException {
+
+        final FilterConfig invalidFilterConfig = newMockFilterConfig();
+        when(invalidFilterConfig.getInitParameter(MetricsFilter.RECORD_ROLLUPS_KEY)).thenReturn("true");
+        when(invalidFilterConfig.getInitParameter(MetricsFilter.ROLLUP_MINUTE_COUNT_KEY))
+                .thenReturn(Long.toString(MetricsFilter.MAXIMUM_ROLLUP_COUNT + 1));
+
+        try {
+            new MetricsFilter().init(invalidFilterConfig);
+            Assert.fail("MetricsFilter failed to throw ServletException for a rollup count above the maximum.");
+        } catch (ServletException e) {
+            // Test passed.
+        }
+
+        final MetricsFilter metricsFilter = new MetricsFilter();
+        final FilterConfig filterConfig = newMockFilterConfig();
+        when(filterConfig.getInitParameter(MetricsFilter.RECORD_ROLLUPS_KEY)).thenReturn("true");
+        metricsFilter.init(filterConfig);
+
+        final HttpServletRequest request = newMockHttpServletRequestWithMutableAttributes();
+        requestMetricsPage(request, metricsFilter);
+
+        // Nothing has been rolled up yet (see TestMetricsRollups).
+        Assert.assertEquals(0, ((List<?>) request.getAttribute(MetricsFilter.ROLLUP_CHARTS)).size());
+
+        metricsFilter.destroy();
+    }
+
+    @Test
+    public final void testMetricsFilterMetricsPageRenderer() throws ServletException, IOException {
+
+        final MetricsFilter metricsFilter = new MetricsFilter();
+        final FilterConfig filterConfig = newMockFilterConfig();
+        when(filterConfig.getInitParameter(MetricsFilter.TRACK_HEAVY_HITTERS_KEY)).thenReturn("true");
+        when(filterConfig.getInitParameter(MetricsFilter.HEAVY_HITTERS_CLIENT_HEADER_KEY)).thenReturn("X-Client");
+        when(filterConfig.getInitParameter(MetricsFilter.COMPRESS_RESPONSES_KEY)).thenReturn("true");
+        metricsFilter.init(filterConfig);
+
+        final List<String> responseIds = new ArrayList<>();
+
+        for (int i = 1; i <= 3; i++) {
+
+            final int responseSize = i * 1000;
+            final HttpServletRequest servletRequest = mock(HttpServletRequest.class);
+            when(servletRequest.getHeader("X-Client")).thenReturn("<b>client & é</b>");
+            when(servletRequest.getServletPath()).thenReturn("/page&");
+
+            final HttpServletResponse servletResponse = mock(HttpServletResponse.class);
+            when(servletResponse.getOutputStream()).thenReturn(mock(ServletOutputStream.class));
+            doAnswer((invocation) -> {
+                responseIds.add(invocation.getArgument(1, String.class));
+                return null;
+            }).when(servletResponse).addHeader(eq(MetricsFilter.UNIQUE_RESPONSE_ID), any(String.class));
+
+            final FilterChain filterChain = mock(FilterChain.class);
+            doAnswer((invocation) -> {
+                invocation.getArgument(1, ServletResponse.class).getOutputStream().write(new byte[responseSize]);
+                return null;
+            }).when(filterChain).doFilter(any(ServletRequest.class), any(ServletResponse.class));
+
+            metricsFilter.doFilter(servletRequest, servletResponse, filterChain);
+        }
+
+        final HttpServletRequest request = newMockHttpServletRequestWithMutableAttributes();
+        final String html = requestMetricsPage(request, metricsFilter);
+
+        for (SpecificResponseMetrics.Metric metric : new SpecificResponseMetrics.Metric[] {
+            SpecificResponseMetrics.Metric.RESPONSE_SIZE, SpecificResponseMetrics.Metric.RESPONSE_TIME }) {
+
+            Assert.assertTrue(html, html.contains("<span id=\"" + metric.getMinId() + "\">" +
+                    request.getAttribute(metric.getMinId()) + "</span>"));
+            Assert.assertTrue(html, html.contains("<span id=\"" + metric.getAverageId() + "\">" +
+                    request.getAttribute(metric.getAverageId()) + "</span>"));
+            Assert.assertTrue(html, html.contains("<span id=\"" + metric.getPercentileId(99) + "\">" +
+                    request.getAttribute(metric.getPercentileId(99)) + "</span>"));
+        }
+
+        Assert.assertTrue(html, html.contains("<th scope=\"row\">&lt;b&gt;client &amp; é&lt;/b&gt;</th>\n" +
+                "<td align=\"right\">3</td>"));
+        Assert.assertFalse(html, html.contains("id=\"" + SpecificResponseMetrics.Metric.CPU_TIME.getMinId() + "\""));
+
+        // The responses were not compressed since the requests did not accept a compressed encoding.
+        Assert.assertTrue(html, html.contains("<th scope=\"row\">/page&amp;</th>\n<td align=\"right\">6000</td>\n" +
+                "<td align=\"right\">6000</td>\n<td align=\"right\">1.0</td>"));
+
+        for (int i = 0; i < responseIds.size(); i++) {
+            Assert.assertTrue(html, html.matches("(?s).*<tr>\\s*<td[^>]*>" + responseIds.get(i) +
+                    "</td>\\s*<td[^>]*>[0-9]+</td>\\s*<td[^>]*>" + ((i + 1) * 1000) + "</td>.*"));
+        }
+
+        metricsFilter.destroy();
+
+        // The metrics page request is passed down the filter chain to the JSP when the JSP is used instead.
+        final MetricsFilter jspMetricsFilter = new MetricsFilter();
+        final FilterConfig jspFilterConfig = newMockFilterConfig();
+        when(jspFilterConfig.getInitParameter(MetricsFilter.USE_METRICS_JSP_KEY)).thenReturn("true");
+        jspMetricsFilter.init(jspFilterConfig);
+
+        final HttpServletRequest jspRequest = newMockHttpServletRequestWithMutableAttributes();
+        when(jspRequest.getServletPath()).thenReturn(MetricsFilter.METRICS_JSP_PAGE);
+
+        final HttpServletResponse jspResponse = mock(HttpServletResponse.class);
+        final FilterChain filterChain = mock(FilterChain.class);
+        jspMetricsFilter.doFilter(jspRequest, jspResponse, filterChain);
+        verify(filterChain, times(1)).doFilter(any(ServletRequest.class), any(ServletResponse.class));
+        verify(jspResponse, never()).getOutputStream();
+        Assert.assertNotNull(jspRequest.getAttribute(MetricsFilter.RESPONSE_METRICS));
+
+        jspMetricsFilter.destroy();
+    }
+
+    @Test
+    public final void testMetricsFilterResponseHistoryIndex() throws ServletException, IOException {
+
+        final MetricsFilter metricsFilter = new MetricsFilter();
+        final FilterConfig filterConfig = newMockFilterConfig();
+        when(filterConfig.getInitParameter(MetricsFilter.INDEX_RESPONSE_HISTORY_KEY)).thenReturn("true");
+        metricsFilter.init(filterConfig);
+
+        final List<String> responseIds = new ArrayList<>();
+
+        for (int i = 0; i < 3; i++) {
+
+            final HttpServletRequest servletRequest = mock(HttpServletRequest.class);
+            when(servletRequest.getServletPath()).thenReturn("/page" + (i % 2));
+            when(servletRequest.getPathInfo()).thenReturn("/\"quoted\"");
+
+            final HttpServletResponse servletResponse = mock(HttpServletResponse.class);
+            doAnswer((invocation) -> {
+                responseIds.add(invocation.getArgument(1, String.class));
+                return null;
+            }).when(servletResponse).addHeader(eq(MetricsFilter.UNIQUE_RESPONSE_ID), any(String.class));
+
+            metricsFilter.doFilter(servletRequest, servletResponse, mock(FilterChain.class));
+        }
+
+        Assert.assertEquals("{\"responses\":[{\"id\":\"" + responseIds.get(1) + "\",\"sequence\":1," +
+                "\"path\":\"/page1/\\\"quoted\\\"\",", queryResponseHistory(metricsFilter, "id", responseIds.get(1))
+                .replaceFirst("\"timestampMillis\".*", ""));
+
+        final String json = queryResponseHistory(metricsFilter, "path", "/page0/\"quoted\"", "limit", "1");
+        Assert.assertTrue(json, json.startsWith("{\"responses\":[{\"id\":\"" + responseIds.get(2) + "\""));
+        Assert.assertTrue(json, json.endsWith("],\"next\":2}"));
+        Assert.assertTrue(json, json.contains("\"responseTime\":"));
+        Assert.assertTrue(json, json.contains("\"headerSize\":"));
+        Assert.assertEquals("{\"responses\":[],\"next\":null}",
+                queryResponseHistory(metricsFilter, "path", "/page0/\"quoted\"", "before", "0"));
+
+        final HttpServletResponse invalidQueryResponse = mock(HttpServletResponse.class);
+        final HttpServletRequest invalidQueryRequest = mock(HttpServletRequest.class);
+        when(invalidQueryRequest.getServletPath()).thenReturn(MetricsFilter.RESPONSE_HISTORY_JSON_PATH);
+        when(invalidQueryRequest.getParameter("limit")).thenReturn("-1");
+        metricsFilter.doFilter(invalidQueryRequest, invalidQueryResponse, mock(FilterChain.class));
+        verify(invalidQueryResponse, times(1)).sendError(eq(HttpServletResponse.SC_BAD_REQUEST), any(String.class));
+
+        metricsFilter.resetMetrics();
+        Assert.assertEquals("{\"responses\":[],\"next\":null}",
+                queryResponseHistory(metricsFilter, "id", responseIds.get(1)));
+
+        metricsFilter.destroy();
+
+        // The query path is passed down the filter chain when the response history is not indexed.
+        final MetricsFilter unindexedMetricsFilter = new MetricsFilter();
+        unindexedMetricsFilter.init(newMockFilterConfig());
+
+        final HttpServletRequest unindexedRequest = mock(HttpServletRequest.class);
+        when(unindexedRequest.getServletPath()).thenReturn(MetricsFilter.RESPONSE_HISTORY_JSON_PATH);
+
+        final FilterChain filterChain = mock(FilterChain.class);
+        unindexedMetricsFilter.doFilter(unindexedRequest, mock(HttpServletResponse.class), filterChain);
+        verify(filterChain, times(1)).doFilter(any(ServletRequest.class), any(ServletResponse.class));
+
+        unindexedMetricsFilter.destroy();
+    }
+
+    @Test
+    public final void testMetricsFilterMetricsEventStream() throws ServletException, IOException {
+
+        final MetricsFilter metricsFilter = new MetricsFilter();
+        final FilterConfig filterConfig = newMockFilterConfig();
+        when(filterConfig.getInitParameter(MetricsFilter.STREAM_METRICS_KEY)).thenReturn("true");
+        metricsFilter.init(filterConfig);
+        Assert.assertTrue(requestMetricsPage(newMockHttpServletRequestWithMutableAttributes(), metricsFilter)
+                .contains("new EventSource(\"com_github_stiemannkj1_servlet_filter_example_Metrics.events\")"));
+
+        // Requests which don't support asynchronous processing receive the most recent event.
+        final HttpServletRequest eventsRequest = mock(HttpServletRequest.class);
+        when(eventsRequest.getServletPath()).thenReturn(MetricsFilter.METRICS_EVENTS_PATH);
+
+        final HttpServletResponse eventsResponse = mock(HttpServletResponse.class);
+        final ServletOutputStream eventsOutputStream = mock(ServletOutputStream.class);
+        when(eventsResponse.getOutputStream()).thenReturn(eventsOutputStream);
+
+        final FilterChain filterChain = mock(FilterChain.class);
+        metricsFilter.doFilter(eventsRequest, eventsResponse, filterChain);
+        verify(filterChain, never()).doFilter(any(ServletRequest.class), any(ServletResponse.class));
+        verify(eventsResponse, times(1)).setContentType("text/event-stream");
+        verify(eventsOutputStream, times(2)).write(any(byte[].class));
+        metricsFilter.destroy();
+
+        // The events path is passed down the filter chain and the page has no live view when streaming is disabled.
+        final MetricsFilter unstreamedMetricsFilter = new MetricsFilter();
+        unstreamedMetricsFilter.init(newMockFilterConfig());
+        Assert.assertFalse(requestMetricsPage(newMockHttpServletRequestWithMutableAttributes(), unstreamedMetricsFilter)
+                .contains("liveMetrics"));
+
+        final HttpServletRequest unstreamedRequest = mock(HttpServletRequest.class);
+        when(unstreamedRequest.getServletPath()).thenReturn(MetricsFilter.METRICS_EVENTS_PATH);
+        unstreamedMetricsFilter.doFilter(unstreamedRequest, mock(HttpServletResponse.class), filterChain);
+        verify(filterChain, times(1)).doFilter(any(ServletRequest.class), any(ServletResponse.class));
+
+        unstreamedMetricsFilter.destroy();
+
+        final FilterConfig invalidFilterConfig = newMockFilterConfig();
+        when(invalidFilterConfig.getInitParameter(MetricsFilter.STREAM_METRICS_KEY)).thenReturn("true");
+        when(invalidFilterConfig.getInitParameter(MetricsFilter.METRICS_EVENT_INTERVAL_MILLIS_KEY)).thenReturn("0");
+
+        try {
+            new MetricsFilter().init(invalidFilterConfig);
+            Assert.fail("A zero event interval should be rejected.");
+        } catch (ServletException e) {
+            Assert.assertTrue(e.getMessage(), e.getMessage().contains(MetricsFilter.METRICS_EVENT_INTERVAL_MILLIS_KEY));
+        }
+    }
+
+    /**
+     * @param parameters alternating names and values of the query parameters.
+     * @return the JSON written by the response history query.
+     */
+    private String queryResponseHistory(Filter metricsFilter, String... parameters)
+            throws ServletException, IOException {
+
+        final HttpServletRequest request = mock(HttpServletRequest.class);
+        when(request.getServletPath()).thenReturn(MetricsFilter.RESPONSE_HISTORY_JSON_PATH);
+
+        for (int i = 0; i < parameters.length; i += 2) {
+            when(request.getParameter(parameters[i])).thenReturn(parameters[i + 1]);
+        }
+
+        final HttpServletResponse response = mock(HttpServletResponse.class);
+        final StringWriter stringWriter = new StringWriter();
+        final PrintWriter printWriter = new PrintWriter(stringWriter);
+        when(response.getWriter()).thenReturn(printWriter);
+
+        final FilterChain filterChain = mock(FilterChain.class);
+        metricsFilter.doFilter(request, response, filterChain);
+        verify(filterChain, never()).doFilter(any(ServletRequest.class), any(ServletResponse.class));
+        printWriter.flush();
+
+        return stringWriter.toString();
+    }
+
+    /**
+     * @return a mock {@link FilterConfig} that disables background snapshot publishing so that metrics are visible to
+     * the metrics page immediately after each request.
+     */
+    private FilterConfig newMockFilterConfig() {
+
+        final FilterConfig filterConfig = mock(FilterConfig.class);
+        when(filterConfig.getInitParameter(MetricsFilter.SNAPSHOT_REFRESH_INTERVAL_MILLIS_KEY)).thenReturn("0");
+
+        return filterConfig;
+    }
+
     private HttpServletRequest newMockHttpServletRequestWithMutableAttributes() throws IOException {
 
         final HttpServletRequest request = mock(HttpServletRequest.class);
@@ -122,13 +1347,41 @@ public final class TestMetricsFilter {
         return request;
     }
 
-    private void requestMetricsPage(HttpServletRequest mockHttpServletRequest, Filter metricsServletFilter)
+    /**
+     * @return the metrics page written by the filter's built-in renderer.
+     */
+    private String requestMetricsPage(HttpServletRequest mockHttpServletRequest, Filter metricsServletFilter)
             throws ServletException, IOException {
 
         when(mockHttpServletRequest.getServletPath()).thenReturn(MetricsFilter.METRICS_JSP_PAGE);
 
+        final ByteArrayOutputStream metricsPage = new ByteArrayOutputStream();
+        final HttpServletResponse response = mock(HttpServletResponse.class);
+        when(response.getOutputStream()).thenReturn(new ServletOutputStream() {
+            @Override
+            public boolean isReady() {
+                return true;
+            }
+
+            @Override
+            public void setWriteListener(WriteListener writeListener) {
+                throw new UnsupportedOperationException();
+            }
+
+            @Override
+            public void write(int b) throws IOException {
+                metricsPage.write(b);
+            }
+        });
+
         final FilterChain filterChain = mock(FilterChain.class);
-        metricsServletFilter.doFilter(mockHttpServletRequest, mock(HttpServletResponse.class), filterChain);
+        metricsServletFilter.doFilter(mockHttpServletRequest, response, filterChain);
+        verify(filterChain, never()).doFilter(any(ServletRequest.class), any(ServletResponse.class));
+
+        final String html = new String(metricsPage.toByteArray(), StandardCharsets.UTF_8);
+        Assert.assertTrue(html, html.endsWith("</html>\n"));
+
+        return html;
     }
 
     private void testMetricsFilterResponseSize(Filter metricsFilter) throws ServletException, IOException {
@@ -147,6 +1400,11 @@ public final class TestMetricsFilter {
             stringWriter.write(invocation.getArgument(0, Integer.class));
             return null;
         }).when(servletOutputStream).write(any(Integer.class));
+        doAnswer((invocation) -> {
+            stringWriter.write(new String(invocation.getArgument(0, byte[].class), invocation.getArgument(1,
+                    Integer.class), invocation.getArgument(2, Integer.class), StandardCharsets.ISO_8859_1));
+            return null;
+        }).when(servletOutputStream).write(any(byte[].class), any(Integer.class), any(Integer.class));
 
         when(servletResponse.getOutputStream()).thenReturn(servletOutputStream);
 
@@ -200,13 +1458,15 @@ public final class TestMetricsFilter {
                 (Double) request.getAttribute(SpecificResponseMetrics.Metric.RESPONSE_SIZE.getAverageId()), 0.1);
     }
 
-    private void testMetricsFilterUniqueId(boolean testUseUUIDUniqueResponseId) throws ServletException,
-            IOException {
+    private void testMetricsFilterUniqueId(boolean testUseUUIDUniqueResponseId, boolean testUsePerThreadRecorders)
+            throws ServletException, IOException {
 
         final Filter metricsFilter = new MetricsFilter();
-        final FilterConfig filterConfig = mock(FilterConfig.class);
+        final FilterConfig filterConfig = newMockFilterConfig();
         when(filterConfig.getInitParameter(MetricsFilter.USE_UUID_UNIQUE_RESPONSE_ID_KEY))
                 .thenReturn(Boolean.toString(testUseUUIDUniqueResponseId));
+        when(filterConfig.getInitParameter(MetricsFilter.USE_PER_THREAD_RECORDERS_KEY))
+                .thenReturn(Boolean.toString(testUsePerThreadRecorders));
         metricsFilter.init(filterConfig);
 
         final HttpServletRequest servletRequest = mock(HttpServletRequest.class);
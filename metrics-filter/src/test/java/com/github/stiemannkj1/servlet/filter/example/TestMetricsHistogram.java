@@ -0,0 +1,195 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2019 Kyle Stiemann.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.github.stiemannkj1.servlet.filter.example;
+
+import java.util.stream.LongStream;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * @author Kyle Stiemann
+ */
+public final class TestMetricsHistogram {
+
+    @Test
+    public final void testEmptyHistogram() {
+        final MetricsHistogram metricsHistogram = new MetricsHistogram();
+        Assert.assertEquals(0, metricsHistogram.getCount());
+        Assert.assertEquals(0, metricsHistogram.getMinimum());
+        Assert.assertEquals(0, metricsHistogram.getMaximum());
+        Assert.assertEquals(0.0, metricsHistogram.getAverage(), 0.0);
+        Assert.assertEquals(0, metricsHistogram.getValueAtPercentile(99));
+    }
+
+    @Test
+    public final void testBucketIndexRoundTrip() {
+        LongStream.concat(LongStream.rangeClosed(0, 10000),
+                LongStream.of(Integer.MAX_VALUE, Long.MAX_VALUE / 3, Long.MAX_VALUE)).forEach((value) -> {
+                    final int bucketIndex = MetricsHistogram.getBucketIndex(value);
+                    Assert.assertTrue("Value " + value + " is less than the lowest value of its bucket.",
+                            MetricsHistogram.getLowestEquivalentValue(bucketIndex) <= value);
+                    Assert.assertTrue("Value " + value + " is greater than the highest value of its bucket.",
+                            value <= MetricsHistogram.getHighestEquivalentValue(bucketIndex));
+                });
+    }
+
+    @Test
+    public final void testAggregatesAreExact() {
+        final MetricsHistogram metricsHistogram = new MetricsHistogram();
+        LongStream.rangeClosed(1, 1000).parallel().forEach(metricsHistogram::record);
+        Assert.assertEquals(1000, metricsHistogram.getCount());
+        Assert.assertEquals(1, metricsHistogram.getMinimum());
+        Assert.assertEquals(1000, metricsHistogram.getMaximum());
+        Assert.assertEquals(500.5, metricsHistogram.getAverage(), 0.0);
+    }
+
+    @Test
+    public final void testPercentilesWithinRelativeError() {
+        final MetricsHistogram metricsHistogram = new MetricsHistogram();
+        LongStream.rangeClosed(1, 1000000).forEach((value) -> {
+            metricsHistogram.record(value * 1000);
+        });
+
+        for (int percentile : MetricsFilter.PERCENTILES) {
+            final double expectedValue = percentile * 10000000.0;
+            Assert.assertEquals("Value at percentile " + percentile + " is outside of the expected relative error.",
+                    expectedValue, metricsHistogram.getValueAtPercentile(percentile), expectedValue / 32);
+        }
+
+        Assert.assertEquals(1000000000L, metricsHistogram.getValueAtPercentile(100));
+        Assert.assertEquals(1000L, metricsHistogram.getValueAtPercentile(0));
+    }
+
+    @Test
+    public final void testCopyAndReset() {
+        final MetricsHistogram metricsHistogram = new MetricsHistogram();
+        metricsHistogram.record(5);
+        metricsHistogram.record(500);
+
+        final MetricsHistogram copy = metricsHistogram.copy();
+        metricsHistogram.reset();
+        Assert.assertEquals(0, metricsHistogram.getCount());
+        Assert.assertEquals(0, metricsHistogram.getValueAtPercentile(50));
+        Assert.assertEquals(2, copy.getCount());
+        Assert.assertEquals(5, copy.getMinimum());
+        Assert.assertEquals(500, copy.getMaximum());
+        Assert.assertEquals(505, copy.getSum());
+    }
+
+    @Test
+    public final void testIntervalSince() {
+        final MetricsHistogram metricsHistogram = new MetricsHistogram();
+        metricsHistogram.record(5);
+        metricsHistogram.record(500);
+
+        final MetricsHistogram previous = metricsHistogram.copy();
+        metricsHistogram.record(20);
+        metricsHistogram.record(30);
+
+        final MetricsHistogram interval = metricsHistogram.getIntervalSince(previous);
+        Assert.assertEquals(2, interval.getCount());
+        Assert.assertEquals(50, interval.getSum());
+        Assert.assertEquals(20, interval.getMinimum());
+        Assert.assertEquals(30, interval.getMaximum());
+
+        final MetricsHistogram emptyInterval = metricsHistogram.getIntervalSince(metricsHistogram.copy());
+        Assert.assertEquals(0, emptyInterval.getCount());
+        Assert.assertEquals(0, emptyInterval.getMinimum());
+
+        // After a reset the whole histogram is the interval.
+        metricsHistogram.reset();
+        metricsHistogram.record(7);
+        Assert.assertEquals(1, metricsHistogram.getIntervalSince(previous).getCount());
+        Assert.assertEquals(7, metricsHistogram.getIntervalSince(previous).getSum());
+    }
+
+    @Test
+    public final void testRecordWithExpectedInterval() {
+
+        final long[][] valuesAndIntervals = { { 100, 0 }, { 100, 100 }, { 100, 150 }, { 1000, 7 }, { 1000, 1 },
+                { 123456789, 1000 }, { 5_000_000_000L, 1_000_000 } };
+
+        for (long[] valueAndInterval : valuesAndIntervals) {
+
+            final long value = valueAndInterval[0];
+            final long expectedInterval = valueAndInterval[1];
+            final MetricsHistogram correctedHistogram = new MetricsHistogram();
+            correctedHistogram.recordWithExpectedInterval(value, expectedInterval);
+
+            // The back-filled values must be the same as if each missing sample had been recorded separately.
+            final MetricsHistogram expectedHistogram = new MetricsHistogram();
+            expectedHistogram.record(value);
+
+            if (expectedInterval > 0) {
+
+                long missingValue = value - expectedInterval;
+
+                for (long i = 0; missingValue >= expectedInterval &&
+                        i < MetricsHistogram.MAXIMUM_BACK_FILLED_VALUE_COUNT; missingValue -= expectedInterval, i++) {
+                    expectedHistogram.record(missingValue);
+                }
+            }
+
+            final String message = "value " + value + ", expected interval " + expectedInterval;
+            Assert.assertEquals(message, expectedHistogram.getCount(), correctedHistogram.getCount());
+            Assert.assertEquals(message, expectedHistogram.getSum(), correctedHistogram.getSum());
+            Assert.assertEquals(message, expectedHistogram.getMinimum(), correctedHistogram.getMinimum());
+            Assert.assertEquals(message, expectedHistogram.getMaximum(), correctedHistogram.getMaximum());
+
+            for (int percentile = 0; percentile <= 100; percentile++) {
+                Assert.assertEquals(message + ", percentile " + percentile,
+                        expectedHistogram.getValueAtPercentile(percentile),
+                        correctedHistogram.getValueAtPercentile(percentile));
+            }
+        }
+    }
+
+    @Test
+    public final void testRecordWithExpectedIntervalIsBounded() {
+
+        // Only the largest missing values are back-filled for a very slow value.
+        final MetricsHistogram cappedHistogram = new MetricsHistogram();
+        final long value = 1_000_000_000L;
+        cappedHistogram.recordWithExpectedInterval(value, 1);
+        Assert.assertEquals(MetricsHistogram.MAXIMUM_BACK_FILLED_VALUE_COUNT + 1, cappedHistogram.getCount());
+        Assert.assertEquals(value - MetricsHistogram.MAXIMUM_BACK_FILLED_VALUE_COUNT, cappedHistogram.getMinimum());
+        Assert.assertEquals(value, cappedHistogram.getMaximum());
+
+        long expectedSum = value;
+
+        for (long i = 1; i <= MetricsHistogram.MAXIMUM_BACK_FILLED_VALUE_COUNT; i++) {
+            expectedSum += value - i;
+        }
+
+        Assert.assertEquals(expectedSum, cappedHistogram.getSum());
+
+        // A back-fill that would overflow the sum is dropped.
+        final MetricsHistogram overflowingHistogram = new MetricsHistogram();
+        final long hugeValue = Long.MAX_VALUE / 2;
+        overflowingHistogram.recordWithExpectedInterval(hugeValue, 1_000_000);
+        Assert.assertEquals(1, overflowingHistogram.getCount());
+        Assert.assertEquals(hugeValue, overflowingHistogram.getSum());
+        Assert.assertEquals(hugeValue, overflowingHistogram.getValueAtPercentile(50), hugeValue / 32);
+    }
+}
@@ -0,0 +1,171 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2019 Kyle Stiemann.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.github.stiemannkj1.servlet.filter.example;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * @author Kyle Stiemann
+ */
+public final class TestMetricsIntervals {
+
+    private static final int THREADS = 4;
+
+    @Test
+    public final void testMetricsIntervals() {
+
+        final MetricsIntervals metricsIntervals = new MetricsIntervals(0);
+        metricsIntervals.record(newMetrics(100));
+
+        // A consumer's first interval is empty, and only later responses are counted.
+        final MetricsIntervals.Interval firstInterval = metricsIntervals.takeInterval("first", 1000);
+        Assert.assertEquals(0, firstInterval.getSequence());
+        Assert.assertEquals(1000, firstInterval.getStartMillis());
+        Assert.assertEquals(1000, firstInterval.getEndMillis());
+        Assert.assertEquals(0, firstInterval.getResponseCount());
+
+        metricsIntervals.record(newMetrics(200));
+        metricsIntervals.recordExcludedResponse();
+        Assert.assertEquals(0, metricsIntervals.takeInterval("second", 2000).getResponseCount());
+        metricsIntervals.record(newMetrics(300));
+
+        final MetricsIntervals.Interval secondInterval = metricsIntervals.takeInterval("first", 3000);
+        Assert.assertEquals(1, secondInterval.getSequence());
+        Assert.assertEquals(1000, secondInterval.getStartMillis());
+        Assert.assertEquals(3000, secondInterval.getEndMillis());
+        Assert.assertEquals(2, secondInterval.getResponseCount());
+        Assert.assertEquals(1, secondInterval.getExcludedResponseCount());
+        Assert.assertEquals(500, secondInterval.getHistogram(SpecificResponseMetrics.Metric.RESPONSE_SIZE).getSum());
+
+        // Each consumer retires its own interval, so taking one does not affect the other.
+        final MetricsIntervals.Interval otherInterval = metricsIntervals.takeInterval("second", 4000);
+        Assert.assertEquals(2000, otherInterval.getStartMillis());
+        Assert.assertEquals(1, otherInterval.getResponseCount());
+        Assert.assertEquals(0, otherInterval.getExcludedResponseCount());
+        Assert.assertEquals(300, otherInterval.getHistogram(SpecificResponseMetrics.Metric.RESPONSE_SIZE).getSum());
+        Assert.assertEquals(0, metricsIntervals.takeInterval("first", 5000).getResponseCount());
+
+        metricsIntervals.closeCursor("second");
+        Assert.assertEquals(1, metricsIntervals.getConsumerCount());
+        metricsIntervals.record(newMetrics(400));
+        Assert.assertEquals(0, metricsIntervals.takeInterval("second", 6000).getResponseCount());
+        Assert.assertEquals(1, metricsIntervals.takeInterval("first", 6000).getResponseCount());
+    }
+
+    @Test
+    public final void testMaximumConsumers() {
+
+        final MetricsIntervals metricsIntervals = new MetricsIntervals(0);
+
+        for (int i = 0; i < MetricsIntervals.MAXIMUM_CONSUMERS; i++) {
+            metricsIntervals.takeInterval("consumer" + i, 0);
+        }
+
+        try {
+
+            metricsIntervals.takeInterval("consumer" + MetricsIntervals.MAXIMUM_CONSUMERS, 0);
+            Assert.fail("An interval cursor was opened for more than " + MetricsIntervals.MAXIMUM_CONSUMERS +
+                    " consumers.");
+        } catch (IllegalStateException e) {
+            // Expected.
+        }
+
+        metricsIntervals.closeCursor("consumer0");
+        metricsIntervals.takeInterval("consumer" + MetricsIntervals.MAXIMUM_CONSUMERS, 0);
+        Assert.assertEquals(MetricsIntervals.MAXIMUM_CONSUMERS, metricsIntervals.getConsumerCount());
+    }
+
+    @Test
+    public final void testConcurrentRecordingAndIntervals() throws Exception {
+
+        final MetricsIntervals metricsIntervals = new MetricsIntervals(0);
+        metricsIntervals.takeInterval("first", 0);
+        metricsIntervals.takeInterval("second", 0);
+
+        final int responsesPerThread = 100_000;
+        final CountDownLatch requestThreadsFinished = new CountDownLatch(THREADS);
+        final ExecutorService executorService = Executors.newFixedThreadPool(THREADS);
+        final List<Future<?>> futures = new ArrayList<>();
+
+        try {
+
+            for (int i = 0; i < THREADS; i++) {
+                futures.add(executorService.submit(() -> {
+
+                    try {
+
+                        for (int j = 0; j < responsesPerThread; j++) {
+                            metricsIntervals.record(newMetrics(1));
+                        }
+                    } finally {
+                        requestThreadsFinished.countDown();
+                    }
+                }));
+            }
+
+            // Every response is counted exactly once by each consumer no matter when the intervals are taken.
+            long firstResponseCount = 0;
+            long secondResponseCount = 0;
+            long intervals = 0;
+
+            do {
+
+                firstResponseCount += metricsIntervals.takeInterval("first", ++intervals).getResponseCount();
+
+                if (intervals % 3 == 0) {
+                    secondResponseCount += metricsIntervals.takeInterval("second", intervals).getResponseCount();
+                }
+            } while (!requestThreadsFinished.await(1, TimeUnit.MILLISECONDS));
+
+            for (Future<?> future : futures) {
+                future.get();
+            }
+
+            firstResponseCount += metricsIntervals.takeInterval("first", ++intervals).getResponseCount();
+            secondResponseCount += metricsIntervals.takeInterval("second", intervals).getResponseCount();
+            Assert.assertEquals(THREADS * responsesPerThread, firstResponseCount);
+            Assert.assertEquals(THREADS * responsesPerThread, secondResponseCount);
+        } finally {
+            executorService.shutdownNow();
+        }
+    }
+
+    private static List<Long> newMetrics(long responseSize) {
+
+        final Long[] metrics = new Long[SpecificResponseMetrics.Metric.values().length];
+        Arrays.fill(metrics, 0L);
+        metrics[SpecificResponseMetrics.Metric.RESPONSE_TIME.getIndex()] = TimeUnit.MILLISECONDS.toNanos(1);
+        metrics[SpecificResponseMetrics.Metric.RESPONSE_SIZE.getIndex()] = responseSize;
+        return Arrays.asList(metrics);
+    }
+}
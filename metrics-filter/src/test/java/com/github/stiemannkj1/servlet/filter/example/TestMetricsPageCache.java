@@ -0,0 +1,163 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2019 Kyle Stiemann.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.github.stiemannkj1.servlet.filter.example;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.stream.IntStream;
+import javax.servlet.ServletException;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import org.junit.Assert;
+import org.junit.Test;
+import static org.mockito.Mockito.*;
+
+/**
+ * @author Kyle Stiemann
+ */
+public final class TestMetricsPageCache {
+
+    private static final String TEST_PAGE = "<html>metrics</html>";
+
+    @Test
+    public final void testConcurrentRequestsShareSingleRender() {
+
+        final MetricsPageCache metricsPageCache = new MetricsPageCache(60000);
+        final AtomicInteger renderCount = new AtomicInteger();
+
+        IntStream.range(0, 32).parallel().forEach((i) -> {
+            try {
+                final ByteArrayOutputStream body = new ByteArrayOutputStream();
+                metricsPageCache.serve(newMockHttpServletRequest(null), newMockHttpServletResponse(body, null), 1,
+                        (response) -> {
+                            renderCount.incrementAndGet();
+
+                            try {
+                                Thread.sleep(100);
+                            } catch (InterruptedException e) {
+                                throw new AssertionError(e);
+                            }
+
+                            response.setContentType("text/html");
+                            response.getWriter().write(TEST_PAGE);
+                            return 1;
+                        });
+                Assert.assertEquals(TEST_PAGE, new String(body.toByteArray(), StandardCharsets.UTF_8));
+            } catch (IOException | ServletException e) {
+                throw new RuntimeException(e);
+            }
+        });
+
+        Assert.assertEquals("Concurrent requests for the metrics page did not share a single render.", 1,
+                renderCount.get());
+    }
+
+    @Test
+    public final void testNotModified() throws IOException, ServletException {
+
+        final MetricsPageCache metricsPageCache = new MetricsPageCache(60000);
+        final AtomicReference<String> eTag = new AtomicReference<>();
+        metricsPageCache.serve(newMockHttpServletRequest(null),
+                newMockHttpServletResponse(new ByteArrayOutputStream(), eTag), 1, newRenderer(new AtomicInteger(), 1));
+        Assert.assertNotNull("No ETag was set for the cached metrics page.", eTag.get());
+
+        final HttpServletResponse notModifiedResponse = newMockHttpServletResponse(new ByteArrayOutputStream(), null);
+        metricsPageCache.serve(newMockHttpServletRequest(eTag.get()), notModifiedResponse, 1,
+                newRenderer(new AtomicInteger(), 1));
+        verify(notModifiedResponse).setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+        verify(notModifiedResponse, never()).getOutputStream();
+    }
+
+    @Test
+    public final void testExpiration() throws IOException, ServletException, InterruptedException {
+
+        final MetricsPageCache metricsPageCache = new MetricsPageCache(1);
+        final AtomicInteger renderCount = new AtomicInteger();
+        final MetricsPageCache.Renderer renderer = newRenderer(renderCount, 7);
+
+        metricsPageCache.serve(newMockHttpServletRequest(null),
+                newMockHttpServletResponse(new ByteArrayOutputStream(), null), 7, renderer);
+        Thread.sleep(10);
+        metricsPageCache.serve(newMockHttpServletRequest(null),
+                newMockHttpServletResponse(new ByteArrayOutputStream(), null), 7, renderer);
+        Assert.assertEquals("Page rendered from the current snapshot was re-rendered after it expired.", 1,
+                renderCount.get());
+
+        metricsPageCache.serve(newMockHttpServletRequest(null),
+                newMockHttpServletResponse(new ByteArrayOutputStream(), null), 8, renderer);
+        Assert.assertEquals("Expired page was not re-rendered after a new snapshot was published.", 2,
+                renderCount.get());
+    }
+
+    @Test
+    public final void testMatchesIfNoneMatch() {
+        Assert.assertTrue(MetricsPageCache.matchesIfNoneMatch("\"a\", \"b\"", "\"b\""));
+        Assert.assertTrue(MetricsPageCache.matchesIfNoneMatch("W/\"b\"", "\"b\""));
+        Assert.assertTrue(MetricsPageCache.matchesIfNoneMatch("*", "\"b\""));
+        Assert.assertFalse(MetricsPageCache.matchesIfNoneMatch("\"a\"", "\"b\""));
+        Assert.assertFalse(MetricsPageCache.matchesIfNoneMatch(null, "\"b\""));
+    }
+
+    private MetricsPageCache.Renderer newRenderer(AtomicInteger renderCount, long snapshotSequence) {
+        return (response) -> {
+            renderCount.incrementAndGet();
+            response.getOutputStream().print(TEST_PAGE);
+            return snapshotSequence;
+        };
+    }
+
+    private HttpServletRequest newMockHttpServletRequest(String ifNoneMatch) {
+        final HttpServletRequest request = mock(HttpServletRequest.class);
+        when(request.getServletPath()).thenReturn(MetricsFilter.METRICS_JSP_PAGE);
+        when(request.getHeader("If-None-Match")).thenReturn(ifNoneMatch);
+        return request;
+    }
+
+    private HttpServletResponse newMockHttpServletResponse(ByteArrayOutputStream body, AtomicReference<String> eTag)
+            throws IOException {
+
+        final HttpServletResponse response = mock(HttpServletResponse.class);
+        final ServletOutputStream servletOutputStream = mock(ServletOutputStream.class);
+
+        doAnswer((invocation) -> {
+            body.write(invocation.getArgument(0, byte[].class));
+            return null;
+        }).when(servletOutputStream).write(any(byte[].class));
+
+        when(response.getOutputStream()).thenReturn(servletOutputStream);
+
+        if (eTag != null) {
+            doAnswer((invocation) -> {
+                eTag.set(invocation.getArgument(1, String.class));
+                return null;
+            }).when(response).setHeader(eq("ETag"), any(String.class));
+        }
+
+        return response;
+    }
+}
@@ -0,0 +1,190 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2019 Kyle Stiemann.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.github.stiemannkj1.servlet.filter.example;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * @author Kyle Stiemann
+ */
+public final class TestMetricsRollups {
+
+    private static final long START_MILLIS = TimeUnit.HOURS.toMillis(24 * 365 * 50);
+    private static final long ONE_MILLISECOND = TimeUnit.MILLISECONDS.toNanos(1);
+
+    @Test
+    public final void testMetricsRollups() {
+
+        final MetricsHistogram[] histograms = ResponseMetricsRecorder.newHistograms();
+        final AtomicReference<MetricsSnapshot> metricsSnapshot =
+                new AtomicReference<>(newMetricsSnapshot(histograms, START_MILLIS));
+        final MetricsRollups metricsRollups = new MetricsRollups(new int[] { 10, 90, 5 }, metricsSnapshot::get);
+
+        // Two hours and two minutes of one response per second. The response times of each minute are 0 to 59 ms.
+        final int seconds = (int) TimeUnit.MINUTES.toSeconds(122);
+
+        for (int i = 1; i <= seconds; i++) {
+
+            histograms[SpecificResponseMetrics.Metric.RESPONSE_TIME.getIndex()].record(i % 60 * ONE_MILLISECOND);
+            histograms[SpecificResponseMetrics.Metric.RESPONSE_SIZE.getIndex()].record(100);
+            metricsRollups.roll(newMetricsSnapshot(histograms, START_MILLIS + TimeUnit.SECONDS.toMillis(i)));
+        }
+
+        final List<MetricsRollups.Rollup> secondRollups = metricsRollups.getRollups(MetricsRollups.Tier.SECONDS);
+        Assert.assertEquals(10, secondRollups.size());
+
+        for (int i = 0; i < secondRollups.size(); i++) {
+
+            final MetricsRollups.Rollup rollup = secondRollups.get(i);
+            Assert.assertEquals(START_MILLIS + TimeUnit.SECONDS.toMillis(seconds - 10 + i), rollup.getStartMillis());
+            Assert.assertEquals(1, rollup.get(SpecificResponseMetrics.Metric.RESPONSE_SIZE,
+                    MetricsRollups.Statistic.COUNT));
+            Assert.assertEquals(100.0, rollup.getAverage(SpecificResponseMetrics.Metric.RESPONSE_SIZE), 0.0);
+        }
+
+        // The last minute is still in progress, so only 121 minutes were rolled up and the ring keeps the newest 90.
+        final List<MetricsRollups.Rollup> minuteRollups = metricsRollups.getRollups(MetricsRollups.Tier.MINUTES);
+        Assert.assertEquals(90, minuteRollups.size());
+        Assert.assertEquals(START_MILLIS + TimeUnit.MINUTES.toMillis(31), minuteRollups.get(0).getStartMillis());
+
+        for (MetricsRollups.Rollup rollup : minuteRollups) {
+
+            Assert.assertEquals(TimeUnit.MINUTES.toMillis(1), rollup.getDurationMillis());
+            Assert.assertEquals(60, rollup.get(SpecificResponseMetrics.Metric.RESPONSE_TIME,
+                    MetricsRollups.Statistic.COUNT));
+            assertResponseTimeStatistics(rollup);
+        }
+
+        // An hour is rolled up once its last minute is. The percentiles of each hour are calculated from all of its
+        // response times.
+        final List<MetricsRollups.Rollup> hourRollups = metricsRollups.getRollups(MetricsRollups.Tier.HOURS);
+        Assert.assertEquals(2, hourRollups.size());
+        Assert.assertEquals(START_MILLIS, hourRollups.get(0).getStartMillis());
+        Assert.assertEquals(START_MILLIS + TimeUnit.HOURS.toMillis(1), hourRollups.get(1).getStartMillis());
+
+        for (MetricsRollups.Rollup rollup : hourRollups) {
+
+            Assert.assertEquals(3600, rollup.get(SpecificResponseMetrics.Metric.RESPONSE_SIZE,
+                    MetricsRollups.Statistic.COUNT));
+            Assert.assertEquals(360_000, rollup.get(SpecificResponseMetrics.Metric.RESPONSE_SIZE,
+                    MetricsRollups.Statistic.SUM));
+            assertResponseTimeStatistics(rollup);
+        }
+    }
+
+    @Test
+    public final void testMetricsRollupsResetAndStaleSnapshots() {
+
+        final MetricsHistogram[] histograms = ResponseMetricsRecorder.newHistograms();
+        final MetricsHistogram responseSizes = histograms[SpecificResponseMetrics.Metric.RESPONSE_SIZE.getIndex()];
+        final MetricsRollups metricsRollups = new MetricsRollups(new int[] { 10, 10, 10 },
+                () -> newMetricsSnapshot(histograms, START_MILLIS));
+
+        responseSizes.record(1);
+        responseSizes.record(1);
+        final MetricsSnapshot metricsSnapshot = newMetricsSnapshot(histograms, START_MILLIS + 1000);
+        metricsRollups.roll(metricsSnapshot);
+
+        // Snapshots that are not newer than the previous snapshot are ignored.
+        metricsRollups.roll(metricsSnapshot);
+        Assert.assertEquals(1, metricsRollups.getRollups(MetricsRollups.Tier.SECONDS).size());
+
+        // Values recorded after a reset are rolled up rather than a negative interval.
+        responseSizes.reset();
+        responseSizes.record(1);
+        metricsRollups.roll(newMetricsSnapshot(histograms, START_MILLIS + 2000));
+
+        final List<MetricsRollups.Rollup> rollups = metricsRollups.getRollups(MetricsRollups.Tier.SECONDS);
+        Assert.assertEquals(2, rollups.size());
+        Assert.assertEquals(2, rollups.get(0).get(SpecificResponseMetrics.Metric.RESPONSE_SIZE,
+                MetricsRollups.Statistic.COUNT));
+        Assert.assertEquals(1, rollups.get(1).get(SpecificResponseMetrics.Metric.RESPONSE_SIZE,
+                MetricsRollups.Statistic.COUNT));
+
+        // A tier without capacity keeps no rollups.
+        final MetricsRollups noSecondsRollups = new MetricsRollups(new int[] { 0, 10, 10 },
+                () -> newMetricsSnapshot(histograms, START_MILLIS));
+        noSecondsRollups.roll(newMetricsSnapshot(histograms, START_MILLIS + 1000));
+        Assert.assertTrue(noSecondsRollups.getRollups(MetricsRollups.Tier.SECONDS).isEmpty());
+    }
+
+    @Test
+    public final void testRollupCharts() {
+
+        final MetricsHistogram[] histograms = ResponseMetricsRecorder.newHistograms();
+        final MetricsRollups metricsRollups = new MetricsRollups(new int[] { 5, 5, 5 },
+                () -> newMetricsSnapshot(histograms, START_MILLIS));
+        Assert.assertTrue(RollupCharts.build(metricsRollups.summarize()).isEmpty());
+
+        for (int i = 1; i <= 3; i++) {
+
+            for (int j = 0; j < i; j++) {
+                histograms[SpecificResponseMetrics.Metric.RESPONSE_SIZE.getIndex()].record(1);
+                histograms[SpecificResponseMetrics.Metric.RESPONSE_TIME.getIndex()].record(i * ONE_MILLISECOND);
+            }
+
+            metricsRollups.roll(newMetricsSnapshot(histograms, START_MILLIS + (i * 1000)));
+        }
+
+        final List<Map<String, Object>> charts = RollupCharts.build(metricsRollups.summarize());
+        Assert.assertEquals(2, charts.size());
+
+        final Map<String, Object> responseRateChart = charts.get(0);
+        Assert.assertEquals("secondsResponseRate", responseRateChart.get("id"));
+        Assert.assertEquals("3.000", responseRateChart.get("maximum"));
+
+        // The newest of the three rollups is at the right edge of a ring of five.
+        @SuppressWarnings("unchecked")
+        final List<Map<String, Object>> series = (List<Map<String, Object>>) responseRateChart.get("series");
+        Assert.assertEquals("300.0,66.7 450.0,33.3 600.0,0.0", series.get(0).get("points"));
+
+        Assert.assertEquals("secondsResponseTime", charts.get(1).get("id"));
+        Assert.assertEquals(2, ((List<?>) charts.get(1).get("series")).size());
+    }
+
+    private static void assertResponseTimeStatistics(MetricsRollups.Rollup rollup) {
+
+        final SpecificResponseMetrics.Metric responseTime = SpecificResponseMetrics.Metric.RESPONSE_TIME;
+
+        // Histogram values are within 1/32 of the recorded value.
+        Assert.assertEquals(0, rollup.get(responseTime, MetricsRollups.Statistic.MINIMUM));
+        Assert.assertEquals(59 * ONE_MILLISECOND, rollup.get(responseTime, MetricsRollups.Statistic.MAXIMUM),
+                59 * ONE_MILLISECOND / 32.0);
+        Assert.assertEquals(29 * ONE_MILLISECOND, rollup.get(responseTime, MetricsRollups.Statistic.PERCENTILE_50),
+                29 * ONE_MILLISECOND / 32.0);
+        Assert.assertEquals(59 * ONE_MILLISECOND, rollup.get(responseTime, MetricsRollups.Statistic.PERCENTILE_99),
+                59 * ONE_MILLISECOND / 32.0);
+    }
+
+    private static MetricsSnapshot newMetricsSnapshot(MetricsHistogram[] histograms, long timestampMillis) {
+        return new MetricsSnapshot(0, 0, timestampMillis, ResponseMetricsRecorder.copyOf(histograms),
+                Collections.emptyMap(), 0, null, null, null, null, null, null, null);
+    }
+}
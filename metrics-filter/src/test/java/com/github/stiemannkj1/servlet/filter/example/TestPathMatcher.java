@@ -0,0 +1,104 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2019 Kyle Stiemann.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.github.stiemannkj1.servlet.filter.example;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * @author Kyle Stiemann
+ */
+public final class TestPathMatcher {
+
+    @Test
+    public final void testNoPatterns() {
+        Assert.assertNull(PathMatcher.compile(null));
+        Assert.assertNull(PathMatcher.compile(" , "));
+    }
+
+    @Test
+    public final void testExactPaths() {
+        final PathMatcher pathMatcher = PathMatcher.compile("/favicon.ico, /robots.txt");
+        Assert.assertTrue(pathMatcher.matches("/favicon.ico"));
+        Assert.assertTrue(pathMatcher.matches("/robots.txt"));
+        Assert.assertFalse(pathMatcher.matches("/favicon.ico.bak"));
+        Assert.assertFalse(pathMatcher.matches("/"));
+    }
+
+    @Test
+    public final void testPrefixes() {
+        final PathMatcher pathMatcher = PathMatcher.compile("/static/* /assets/** /s/*");
+        Assert.assertTrue(pathMatcher.matches("/static/"));
+        Assert.assertTrue(pathMatcher.matches("/static/css/main.css"));
+        Assert.assertTrue(pathMatcher.matches("/assets/app.js"));
+        Assert.assertTrue(pathMatcher.matches("/s/x"));
+        Assert.assertFalse(pathMatcher.matches("/static"));
+        Assert.assertFalse(pathMatcher.matches("/page1.jsp"));
+        Assert.assertTrue(PathMatcher.compile("/*").matches("/page1.jsp"));
+    }
+
+    @Test
+    public final void testSuffixes() {
+        final PathMatcher pathMatcher = PathMatcher.compile("*.css,*.js,*.min.map");
+        Assert.assertTrue(pathMatcher.matches("/main.css"));
+        Assert.assertTrue(pathMatcher.matches("/deep/path/app.js"));
+        Assert.assertTrue(pathMatcher.matches("/app.min.map"));
+        Assert.assertFalse(pathMatcher.matches("/app.map"));
+        Assert.assertFalse(pathMatcher.matches("/page1.jsp"));
+    }
+
+    @Test
+    public final void testGlobs() {
+        final PathMatcher pathMatcher = PathMatcher.compile("/images/*.png, /page?.html");
+        Assert.assertTrue(pathMatcher.matches("/images/logo.png"));
+        Assert.assertTrue(pathMatcher.matches("/images/nested/logo.png"));
+        Assert.assertTrue(pathMatcher.matches("/page4.html"));
+        Assert.assertFalse(pathMatcher.matches("/page44.html"));
+        Assert.assertFalse(pathMatcher.matches("/images/logo.jpg"));
+        Assert.assertTrue(PathMatcher.matchesGlob("a*b*c".toCharArray(), "aXXbYYbZc"));
+        Assert.assertFalse(PathMatcher.matchesGlob("a*b*c".toCharArray(), "aXXbYYbZ"));
+    }
+
+    @Test
+    public final void testServletPathAndPathInfo() {
+
+        final PathMatcher pathMatcher =
+                PathMatcher.compile("/api/health, /static/*, *.css, /images/*.png, /files/?/*.txt");
+        Assert.assertTrue(pathMatcher.matches("/api", "/health"));
+        Assert.assertTrue(pathMatcher.matches("/api/health", null));
+        Assert.assertTrue(pathMatcher.matches(null, "/api/health"));
+        Assert.assertFalse(pathMatcher.matches("/api", "/health/"));
+        Assert.assertFalse(pathMatcher.matches("/api", null));
+        Assert.assertTrue(pathMatcher.matches("/sta", "tic/app.js"));
+        Assert.assertTrue(pathMatcher.matches("/static", "/"));
+        Assert.assertFalse(pathMatcher.matches("/static", null));
+        Assert.assertTrue(pathMatcher.matches("/theme", "/main.css"));
+        Assert.assertTrue(pathMatcher.matches("/theme/main.c", "ss"));
+        Assert.assertFalse(pathMatcher.matches("/main.css", "/index.html"));
+        Assert.assertTrue(pathMatcher.matches("/images", "/logo.png"));
+        Assert.assertTrue(pathMatcher.matches("/files/a", "/b/notes.txt"));
+        Assert.assertFalse(pathMatcher.matches("/files", "/ab/notes.txt"));
+        Assert.assertFalse(pathMatcher.matches(null, null));
+    }
+}
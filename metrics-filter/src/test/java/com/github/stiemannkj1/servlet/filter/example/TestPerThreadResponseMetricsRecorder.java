@@ -0,0 +1,131 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2019 Kyle Stiemann.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.github.stiemannkj1.servlet.filter.example;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.stream.Collectors;
+import java.util.stream.LongStream;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * @author Kyle Stiemann
+ */
+public final class TestPerThreadResponseMetricsRecorder {
+
+    private static final int THREADS = 8;
+    private static final long RECORDS_PER_THREAD = 20000;
+
+    @Test
+    public final void testStripeCount() {
+        Assert.assertEquals("Stripe count is not a power of two.", 0,
+                PerThreadResponseMetricsRecorder.STRIPE_COUNT & (PerThreadResponseMetricsRecorder.STRIPE_COUNT - 1));
+        Assert.assertTrue("Stripe count is less than the number of available processors.",
+                Math.min(256, Runtime.getRuntime().availableProcessors()) <=
+                PerThreadResponseMetricsRecorder.STRIPE_COUNT);
+    }
+
+    @Test
+    public final void testNoValuesLostWhileMergingConcurrently() throws Exception {
+
+        final ResponseMetricsRecorder responseMetricsRecorder = new PerThreadResponseMetricsRecorder();
+        final ExecutorService executorService = Executors.newFixedThreadPool(THREADS);
+        final CountDownLatch startLatch = new CountDownLatch(1);
+        final AtomicBoolean recording = new AtomicBoolean(true);
+        final List<Long> metrics = LongStream.rangeClosed(1, SpecificResponseMetrics.Metric.values().length).boxed()
+                .collect(Collectors.toList());
+        final Future<?>[] futures = new Future<?>[THREADS];
+
+        try {
+
+            for (int i = 0; i < THREADS; i++) {
+                futures[i] = executorService.submit(() -> {
+
+                    startLatch.await();
+
+                    for (long j = 0; j < RECORDS_PER_THREAD; j++) {
+                        responseMetricsRecorder.record(metrics);
+                    }
+
+                    return null;
+                });
+            }
+
+            startLatch.countDown();
+
+            // Merge repeatedly while the recording threads are running. Each merge must be a consistent superset of
+            // the previous one.
+            long previousCount = 0;
+
+            while (recording.get()) {
+
+                final MetricsHistogram[] histograms = responseMetricsRecorder.copyHistograms();
+                final long count = histograms[0].getCount();
+                Assert.assertTrue("Merged count decreased.", previousCount <= count);
+                Assert.assertEquals("Merged histograms are inconsistent with each other.", count * 2,
+                        histograms[1].getSum());
+                previousCount = count;
+                recording.set(!Arrays.stream(futures).allMatch(Future::isDone));
+            }
+
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } finally {
+            executorService.shutdown();
+            Assert.assertTrue(executorService.awaitTermination(10, TimeUnit.SECONDS));
+        }
+
+        final MetricsHistogram[] histograms = responseMetricsRecorder.copyHistograms();
+
+        for (SpecificResponseMetrics.Metric metric : SpecificResponseMetrics.Metric.values()) {
+            final MetricsHistogram histogram = histograms[metric.getIndex()];
+            Assert.assertEquals("Recorded values were lost.", THREADS * RECORDS_PER_THREAD, histogram.getCount());
+            Assert.assertEquals("Recorded values were lost.", THREADS * RECORDS_PER_THREAD * (metric.getIndex() + 1),
+                    histogram.getSum());
+        }
+
+        responseMetricsRecorder.reset();
+        Assert.assertEquals("Reset did not remove recorded values.", 0,
+                responseMetricsRecorder.copyHistograms()[0].getCount());
+    }
+
+    @Test
+    public final void testWriterReaderPhaserRequiresReaderLock() {
+
+        try {
+            new WriterReaderPhaser().flipPhase();
+            Assert.fail("WriterReaderPhaser.flipPhase() did not require the reader lock.");
+        } catch (IllegalStateException e) {
+            // Test passed.
+        }
+    }
+}
@@ -0,0 +1,412 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2019 Kyle Stiemann.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.github.stiemannkj1.servlet.filter.example;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import javax.servlet.ServletException;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import org.junit.Assert;
+import org.junit.Test;
+import static org.mockito.Mockito.*;
+
+/**
+ * @author Kyle Stiemann
+ */
+public final class TestResponseCache {
+
+    private static final String TEST_PATH = "/page1.jsp";
+    private static final String TEST_BODY = "<html>cached</html>";
+
+    @Test
+    public final void testIsCacheable() {
+
+        final ResponseCache responseCache = newResponseCache(1024 * 1024, 60000);
+
+        Assert.assertTrue(responseCache.isCacheable(newMockHttpServletRequest("GET", null, null), TEST_PATH));
+        Assert.assertFalse("A POST request was cacheable.",
+                responseCache.isCacheable(newMockHttpServletRequest("POST", null, null), TEST_PATH));
+        Assert.assertFalse("An uncached path was cacheable.",
+                responseCache.isCacheable(newMockHttpServletRequest("GET", null, null), "/other.jsp"));
+        Assert.assertFalse("A no-cache request was cacheable.", responseCache.isCacheable(
+                newMockHttpServletRequest("GET", "max-age=0, no-cache", null), TEST_PATH));
+        Assert.assertFalse("A no-store request was cacheable.",
+                responseCache.isCacheable(newMockHttpServletRequest("GET", "no-store", null), TEST_PATH));
+
+        final HttpServletRequest authorizedRequest = newMockHttpServletRequest("GET", null, null);
+        when(authorizedRequest.getHeader("Authorization")).thenReturn("Basic dXNlcjpwYXNz");
+        Assert.assertFalse("An authorized request was cacheable.",
+                responseCache.isCacheable(authorizedRequest, TEST_PATH));
+    }
+
+    @Test
+    public final void testResponseServedFromCache() throws ServletException, IOException {
+
+        final ResponseCache responseCache = newResponseCache(1024 * 1024, 60000);
+        populate(responseCache, "/page1.jsp", TEST_BODY, "max-age=60", "\"v1\"");
+
+        final ByteArrayOutputStream body = new ByteArrayOutputStream();
+        final HttpServletResponse response = newMockHttpServletResponse(body);
+        Assert.assertNull("The cached response was not served.",
+                responseCache.serve(newMockHttpServletRequest("GET", null, null), response, TEST_PATH));
+        Assert.assertEquals(TEST_BODY, new String(body.toByteArray(), StandardCharsets.UTF_8));
+        verify(response).setContentType("text/html");
+        verify(response).setContentLength(TEST_BODY.length());
+        verify(response).addHeader("Cache-Control", "max-age=60");
+        verify(response).setHeader(eq("Age"), any(String.class));
+        verify(response, never()).addHeader(eq(MetricsFilter.UNIQUE_RESPONSE_ID), any(String.class));
+
+        final HttpServletResponse notModifiedResponse = newMockHttpServletResponse(new ByteArrayOutputStream());
+        Assert.assertNull(responseCache.serve(newMockHttpServletRequest("GET", null, "\"v1\""), notModifiedResponse,
+                TEST_PATH));
+        verify(notModifiedResponse).setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+        verify(notModifiedResponse, never()).getOutputStream();
+
+        Assert.assertEquals(2, responseCache.getHitCount());
+        Assert.assertEquals(1, responseCache.getMissCount());
+        Assert.assertEquals("Cache hits were not recorded in the hit time histogram.", 2,
+                responseCache.getHitTimes().getCount());
+        Assert.assertEquals(1, responseCache.getCachedResponseCount());
+    }
+
+    @Test
+    public final void testUncacheableResponsesNotCached() throws ServletException, IOException {
+
+        final ResponseCache responseCache = newResponseCache(1024 * 1024, 60000);
+
+        for (String cacheControl : new String[] { "no-store", "private, max-age=60", "no-cache", "max-age=0" }) {
+
+            populate(responseCache, TEST_PATH, TEST_BODY, cacheControl, null);
+
+            final ResponseCache.ResponseCapture responseCapture = responseCache.serve(
+                    newMockHttpServletRequest("GET", null, null),
+                    newMockHttpServletResponse(new ByteArrayOutputStream()), TEST_PATH);
+            Assert.assertNotNull("A response with Cache-Control: " + cacheControl + " was cached.", responseCapture);
+            responseCapture.abandon();
+        }
+
+        Assert.assertEquals(0, responseCache.getCachedResponseCount());
+        Assert.assertEquals(0, responseCache.getHitCount());
+    }
+
+    @Test
+    public final void testConcurrentMissesShareSinglePopulation() throws Exception {
+
+        final ResponseCache responseCache = newResponseCache(1024 * 1024, 60000);
+        final ResponseCache.ResponseCapture responseCapture = responseCache.serve(
+                newMockHttpServletRequest("GET", null, null), newMockHttpServletResponse(new ByteArrayOutputStream()),
+                TEST_PATH);
+        Assert.assertNotNull(responseCapture);
+
+        final int threads = 8;
+        final ExecutorService executorService = Executors.newFixedThreadPool(threads);
+        final Future<?>[] futures = new Future<?>[threads];
+        final ByteArrayOutputStream[] bodies = new ByteArrayOutputStream[threads];
+
+        try {
+
+            for (int i = 0; i < threads; i++) {
+
+                final ByteArrayOutputStream body = new ByteArrayOutputStream();
+                bodies[i] = body;
+                futures[i] = executorService.submit(() -> {
+                    return responseCache.serve(newMockHttpServletRequest("GET", null, null),
+                            newMockHttpServletResponse(body), TEST_PATH);
+                });
+            }
+
+            // Concurrent misses wait for the populating request.
+            Thread.sleep(50);
+
+            for (Future<?> future : futures) {
+                Assert.assertFalse("A concurrent miss did not wait for the populating request.", future.isDone());
+            }
+
+            writeAndComplete(responseCapture, TEST_BODY, "max-age=60", null);
+
+            for (int i = 0; i < threads; i++) {
+                Assert.assertNull("A concurrent miss ran the filter chain.", futures[i].get(10, TimeUnit.SECONDS));
+                Assert.assertEquals(TEST_BODY, new String(bodies[i].toByteArray(), StandardCharsets.UTF_8));
+            }
+        } finally {
+            executorService.shutdownNow();
+        }
+
+        Assert.assertEquals(1, responseCache.getMissCount());
+        Assert.assertEquals(threads, responseCache.getHitCount());
+    }
+
+    @Test
+    public final void testAbandonedPopulationReleasesWaiters() throws Exception {
+
+        final ResponseCache responseCache = newResponseCache(1024 * 1024, 60000);
+        final ResponseCache.ResponseCapture responseCapture = responseCache.serve(
+                newMockHttpServletRequest("GET", null, null), newMockHttpServletResponse(new ByteArrayOutputStream()),
+                TEST_PATH);
+        final ExecutorService executorService = Executors.newSingleThreadExecutor();
+
+        try {
+
+            final Future<ResponseCache.ResponseCapture> future = executorService.submit(() -> {
+                return responseCache.serve(newMockHttpServletRequest("GET", null, null),
+                        newMockHttpServletResponse(new ByteArrayOutputStream()), TEST_PATH);
+            });
+
+            // Let the request start waiting for the populating request.
+            Thread.sleep(50);
+            responseCapture.abandon();
+
+            final ResponseCache.ResponseCapture waitingResponseCapture = future.get(10, TimeUnit.SECONDS);
+            Assert.assertNotNull("A waiting request was not allowed to run the filter chain after the population " +
+                    "was abandoned.", waitingResponseCapture);
+            waitingResponseCapture.abandon();
+        } finally {
+            executorService.shutdownNow();
+        }
+
+        Assert.assertNotNull("An abandoned population was not retried.", responseCache.serve(
+                newMockHttpServletRequest("GET", null, null), newMockHttpServletResponse(new ByteArrayOutputStream()),
+                TEST_PATH));
+    }
+
+    @Test
+    public final void testLeastRecentlyUsedResponsesEvicted() throws ServletException, IOException {
+
+        // Each response weighs its body plus its key, so eight responses fit. Responses larger than 1/8th of the
+        // maximum size are not cached.
+        final ResponseCache responseCache = newResponseCache(1400, 60000);
+        final char[] bodyChars = new char[150];
+        Arrays.fill(bodyChars, 'x');
+
+        final String body = new String(bodyChars);
+
+        for (int i = 0; i < 8; i++) {
+            populate(responseCache, "/page" + i + ".jsp", body, null, null);
+        }
+
+        Assert.assertEquals(0, responseCache.getEvictionCount());
+
+        // Use the first page so that the second page is the least recently used.
+        Assert.assertNull(responseCache.serve(newMockHttpServletRequest("GET", null, null),
+                newMockHttpServletResponse(new ByteArrayOutputStream()), "/page0.jsp"));
+
+        populate(responseCache, "/page8.jsp", body, null, null);
+        Assert.assertEquals(1, responseCache.getEvictionCount());
+        Assert.assertTrue(responseCache.getSize() <= 1400);
+        Assert.assertNull("The recently used response was evicted.", responseCache.serve(
+                newMockHttpServletRequest("GET", null, null), newMockHttpServletResponse(new ByteArrayOutputStream()),
+                "/page0.jsp"));
+        Assert.assertNotNull("The least recently used response was not evicted.", responseCache.serve(
+                newMockHttpServletRequest("GET", null, null), newMockHttpServletResponse(new ByteArrayOutputStream()),
+                "/page1.jsp"));
+
+        final char[] largeBodyChars = new char[250];
+        Arrays.fill(largeBodyChars, 'x');
+        populate(responseCache, "/large.jsp", new String(largeBodyChars), null, null);
+        Assert.assertNotNull("A response larger than the maximum entry size was cached.", responseCache.serve(
+                newMockHttpServletRequest("GET", null, null), newMockHttpServletResponse(new ByteArrayOutputStream()),
+                "/large.jsp"));
+    }
+
+    @Test
+    public final void testResponseLargerThanOneChunkServedFromCache() throws ServletException, IOException {
+
+        // The body is written in bulk, so the capture copies it across several chunks at once.
+        final StringBuilder largeBody = new StringBuilder();
+
+        for (int i = 0; largeBody.length() < 10_000; i++) {
+            largeBody.append(i).append(' ');
+        }
+
+        final ResponseCache responseCache = newResponseCache(1024 * 1024, 60000);
+        populate(responseCache, "/large.jsp", largeBody.toString(), null, null);
+
+        final ByteArrayOutputStream body = new ByteArrayOutputStream();
+        Assert.assertNull("The cached response was not served.", responseCache.serve(
+                newMockHttpServletRequest("GET", null, null), newMockHttpServletResponse(body), "/large.jsp"));
+        Assert.assertEquals(largeBody.toString(), new String(body.toByteArray(), StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public final void testPopulationCompletesBeforeNetworkWrite() throws Exception {
+
+        final ResponseCache responseCache = newResponseCache(1024 * 1024, 60000);
+        final ResponseCache.ResponseCapture responseCapture = responseCache.serve(
+                newMockHttpServletRequest("GET", null, null), newMockHttpServletResponse(new ByteArrayOutputStream()),
+                TEST_PATH);
+        final HttpServletResponse response = newMockHttpServletResponse(new ByteArrayOutputStream());
+        when(response.getStatus()).thenReturn(HttpServletResponse.SC_OK);
+
+        // The held back body blocks when it is written to the client.
+        final ServletOutputStream servletOutputStream = response.getOutputStream();
+        final CountDownLatch networkWriteStarted = new CountDownLatch(1);
+        final CountDownLatch networkWriteUnblocked = new CountDownLatch(1);
+        doAnswer((invocation) -> {
+            networkWriteStarted.countDown();
+            networkWriteUnblocked.await();
+            return null;
+        }).when(servletOutputStream).write(any(byte[].class), anyInt(), anyInt());
+
+        final ResponseSizeHttpServletResponseWrapper responseWrapper =
+                new ResponseSizeHttpServletResponseWrapper(response);
+        responseWrapper.captureResponseBody(responseCapture);
+        responseWrapper.enableETag(null);
+        responseWrapper.getOutputStream().write(TEST_BODY.getBytes(StandardCharsets.UTF_8));
+
+        final ExecutorService executorService = Executors.newSingleThreadExecutor();
+
+        try {
+
+            final Future<?> future = executorService.submit(() -> {
+                responseWrapper.finishResponse();
+                return null;
+            });
+            Assert.assertTrue(networkWriteStarted.await(10, TimeUnit.SECONDS));
+
+            final ByteArrayOutputStream body = new ByteArrayOutputStream();
+            Assert.assertNull("A concurrent miss waited for the network write of the populating request.",
+                    responseCache.serve(newMockHttpServletRequest("GET", null, null),
+                            newMockHttpServletResponse(body), TEST_PATH));
+            Assert.assertEquals(TEST_BODY, new String(body.toByteArray(), StandardCharsets.UTF_8));
+
+            networkWriteUnblocked.countDown();
+            future.get(10, TimeUnit.SECONDS);
+        } finally {
+            networkWriteUnblocked.countDown();
+            executorService.shutdownNow();
+        }
+    }
+
+    @Test
+    public final void testWaitForPopulationIsBounded() throws Exception {
+
+        final ResponseCache responseCache = new ResponseCache(PathMatcher.compile(TEST_PATH), 1024 * 1024, 60000, 10);
+        final ResponseCache.ResponseCapture responseCapture = responseCache.serve(
+                newMockHttpServletRequest("GET", null, null), newMockHttpServletResponse(new ByteArrayOutputStream()),
+                TEST_PATH);
+        Assert.assertNotNull(responseCapture);
+
+        // The populating request never completes, so the waiting request runs the filter chain itself.
+        final ResponseCache.ResponseCapture waitingResponseCapture = responseCache.serve(
+                newMockHttpServletRequest("GET", null, null), newMockHttpServletResponse(new ByteArrayOutputStream()),
+                TEST_PATH);
+        Assert.assertNotNull("A request waited indefinitely for the populating request.", waitingResponseCapture);
+        waitingResponseCapture.abandon();
+        Assert.assertEquals(2, responseCache.getMissCount());
+        Assert.assertEquals(0, responseCache.getHitCount());
+
+        // The populating request can still cache the response.
+        writeAndComplete(responseCapture, TEST_BODY, null, null);
+        Assert.assertNull("The response was not cached after the wait timed out.", responseCache.serve(
+                newMockHttpServletRequest("GET", null, null), newMockHttpServletResponse(new ByteArrayOutputStream()),
+                TEST_PATH));
+    }
+
+    @Test
+    public final void testExpiredResponseNotServed() throws Exception {
+
+        final ResponseCache responseCache = newResponseCache(1024 * 1024, 1);
+        populate(responseCache, TEST_PATH, TEST_BODY, null, null);
+        Thread.sleep(10);
+
+        Assert.assertNotNull("An expired response was served.", responseCache.serve(
+                newMockHttpServletRequest("GET", null, null), newMockHttpServletResponse(new ByteArrayOutputStream()),
+                TEST_PATH));
+        Assert.assertEquals(0, responseCache.getCachedResponseCount());
+    }
+
+    private static ResponseCache newResponseCache(long maximumSize, long defaultTimeToLiveMillis) {
+        return new ResponseCache(PathMatcher.compile("/page*.jsp /large.jsp"), maximumSize, defaultTimeToLiveMillis,
+                10000);
+    }
+
+    private static void populate(ResponseCache responseCache, String path, String body, String cacheControl,
+            String eTag) throws ServletException, IOException {
+
+        final ResponseCache.ResponseCapture responseCapture = responseCache.serve(
+                newMockHttpServletRequest("GET", null, null), newMockHttpServletResponse(new ByteArrayOutputStream()),
+                path);
+        Assert.assertNotNull("The response was already cached.", responseCapture);
+        writeAndComplete(responseCapture, body, cacheControl, eTag);
+    }
+
+    private static void writeAndComplete(ResponseCache.ResponseCapture responseCapture, String body,
+            String cacheControl, String eTag) throws IOException {
+
+        final HttpServletResponse response = newMockHttpServletResponse(new ByteArrayOutputStream());
+        when(response.getStatus()).thenReturn(HttpServletResponse.SC_OK);
+        when(response.getContentType()).thenReturn("text/html");
+        when(response.getHeader("Cache-Control")).thenReturn(cacheControl);
+        when(response.getHeader("ETag")).thenReturn(eTag);
+
+        if (cacheControl != null) {
+            when(response.getHeaderNames()).thenReturn(Arrays.asList("Cache-Control",
+                    MetricsFilter.UNIQUE_RESPONSE_ID));
+            when(response.getHeaders("Cache-Control")).thenReturn(Collections.singletonList(cacheControl));
+            when(response.getHeaders(MetricsFilter.UNIQUE_RESPONSE_ID)).thenReturn(Collections.singletonList("1"));
+        }
+
+        final ResponseSizeHttpServletResponseWrapper responseWrapper =
+                new ResponseSizeHttpServletResponseWrapper(response);
+        responseWrapper.captureResponseBody(responseCapture);
+        responseWrapper.getWriter().print(body);
+        responseWrapper.finishResponse();
+    }
+
+    private static HttpServletRequest newMockHttpServletRequest(String method, String cacheControl,
+            String ifNoneMatch) {
+
+        final HttpServletRequest request = mock(HttpServletRequest.class);
+        when(request.getMethod()).thenReturn(method);
+        when(request.getHeader("Cache-Control")).thenReturn(cacheControl);
+        when(request.getHeader("If-None-Match")).thenReturn(ifNoneMatch);
+
+        return request;
+    }
+
+    private static HttpServletResponse newMockHttpServletResponse(ByteArrayOutputStream body) throws IOException {
+
+        final HttpServletResponse response = mock(HttpServletResponse.class);
+        final ServletOutputStream servletOutputStream = mock(ServletOutputStream.class);
+
+        doAnswer((invocation) -> {
+            body.write(invocation.getArgument(0, byte[].class));
+            return null;
+        }).when(servletOutputStream).write(any(byte[].class));
+
+        when(response.getOutputStream()).thenReturn(servletOutputStream);
+
+        return response;
+    }
+}
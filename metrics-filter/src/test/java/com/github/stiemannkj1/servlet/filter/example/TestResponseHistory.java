@@ -0,0 +1,123 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2019 Kyle Stiemann.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.github.stiemannkj1.servlet.filter.example;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * @author Kyle Stiemann
+ */
+public final class TestResponseHistory {
+
+    @Test
+    public final void testResponseHistory() {
+
+        final ResponseHistory responseHistory = new ResponseHistory(3);
+        Assert.assertTrue(responseHistory.copy().isEmpty());
+
+        for (int i = 1; i <= 3; i++) {
+            Assert.assertNull(responseHistory.add(Integer.toString(i), newSpecificResponseMetrics(i)));
+        }
+
+        Assert.assertEquals(Arrays.asList("1", "2", "3"), new ArrayList<>(responseHistory.copy().keySet()));
+
+        // The oldest responses are replaced once the ring is full.
+        final Map.Entry<String, SpecificResponseMetrics> evictedEntry =
+                responseHistory.add("4", newSpecificResponseMetrics(4));
+        Assert.assertEquals("1", evictedEntry.getKey());
+        Assert.assertEquals("2", responseHistory.add("5", newSpecificResponseMetrics(5)).getKey());
+
+        final Map<String, SpecificResponseMetrics> responseMetrics = responseHistory.copy();
+        Assert.assertEquals(Arrays.asList("3", "4", "5"), new ArrayList<>(responseMetrics.keySet()));
+        Assert.assertEquals(Long.valueOf(5), responseMetrics.get("5").getMetrics()
+                .get(SpecificResponseMetrics.Metric.RESPONSE_SIZE.getIndex()));
+
+        responseHistory.clear();
+        Assert.assertTrue(responseHistory.copy().isEmpty());
+        Assert.assertNull(responseHistory.add("6", newSpecificResponseMetrics(6)));
+        Assert.assertEquals(Collections.singleton("6"), responseHistory.copy().keySet());
+    }
+
+    @Test
+    public final void testStripedResponseHistory() throws InterruptedException {
+
+        // Each stripe keeps its share of the capacity.
+        final ResponseHistory responseHistory = new ResponseHistory(4, 2);
+        Assert.assertEquals(4, responseHistory.getCapacity());
+        Assert.assertNull(responseHistory.add("1", newSpecificResponseMetrics(1)));
+        Assert.assertNull(responseHistory.add("2", newSpecificResponseMetrics(2)));
+        Assert.assertEquals("1", responseHistory.add("3", newSpecificResponseMetrics(3)).getKey());
+
+        Assert.assertEquals(Arrays.asList("2", "3"), new ArrayList<>(responseHistory.copy().keySet()));
+        responseHistory.clear();
+        Assert.assertTrue(responseHistory.copy().isEmpty());
+
+        // Responses added by other threads (which may use other stripes) are copied in the order they were added.
+        final ResponseHistory sharedResponseHistory = new ResponseHistory(8, 2);
+        sharedResponseHistory.add("1", newSpecificResponseMetrics(1));
+        sharedResponseHistory.add("2", newSpecificResponseMetrics(2));
+
+        final Thread thread = new Thread(() -> {
+            sharedResponseHistory.add("3", newSpecificResponseMetrics(3));
+        });
+        thread.start();
+        thread.join();
+        sharedResponseHistory.add("4", newSpecificResponseMetrics(4));
+        Assert.assertEquals(Arrays.asList("1", "2", "3", "4"),
+                new ArrayList<>(sharedResponseHistory.copy().keySet()));
+
+        // The ring is never split into more stripes than its capacity.
+        final ResponseHistory smallResponseHistory = new ResponseHistory(1, 8);
+        Assert.assertNull(smallResponseHistory.add("1", newSpecificResponseMetrics(1)));
+        Assert.assertEquals("1", smallResponseHistory.add("2", newSpecificResponseMetrics(2)).getKey());
+        Assert.assertEquals(Collections.singleton("2"), smallResponseHistory.copy().keySet());
+    }
+
+    @Test
+    public final void testEmptyResponseHistory() {
+
+        final ResponseHistory responseHistory = new ResponseHistory(0);
+        Assert.assertEquals("1", responseHistory.add("1", newSpecificResponseMetrics(1)).getKey());
+        Assert.assertTrue(responseHistory.copy().isEmpty());
+        Assert.assertEquals(0, responseHistory.getCapacity());
+    }
+
+    private static SpecificResponseMetrics newSpecificResponseMetrics(long responseSize) {
+
+        final SpecificResponseMetrics specificResponseMetrics = new SpecificResponseMetrics();
+        final long[] metrics = new long[SpecificResponseMetrics.METRIC_COUNT];
+        metrics[SpecificResponseMetrics.Metric.RESPONSE_TIME.getIndex()] = 1000;
+        metrics[SpecificResponseMetrics.Metric.RESPONSE_SIZE.getIndex()] = responseSize;
+        metrics[SpecificResponseMetrics.Metric.TRANSFERRED_RESPONSE_SIZE.getIndex()] = responseSize;
+        metrics[SpecificResponseMetrics.Metric.HEADER_SIZE.getIndex()] = 100;
+        specificResponseMetrics.setMetrics(metrics);
+
+        return specificResponseMetrics;
+    }
+}
@@ -0,0 +1,247 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2019 Kyle Stiemann.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.github.stiemannkj1.servlet.filter.example;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.IntStream;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * @author Kyle Stiemann
+ */
+public final class TestResponseHistoryIndex {
+
+    private static final int ENTRY_COUNT = ResponseHistoryIndex.CHUNK_SIZE * 3 + 7;
+
+    @Test
+    public final void testResponseHistoryIndexTimeRange() throws IOException {
+
+        final ResponseHistoryIndex responseHistoryIndex = newResponseHistoryIndex();
+
+        // Entries are visited from newest to oldest and the next sequence continues with the next older page.
+        final List<Long> sequences = new ArrayList<>();
+        long nextSequence = responseHistoryIndex.find(new ResponseHistoryIndex.Query(1000, 2000, 0, 0, null,
+                Long.MAX_VALUE, 100), (entry) -> {
+            sequences.add(entry.getSequence());
+        });
+        Assert.assertEquals(100, sequences.size());
+        Assert.assertEquals(1999, (long) sequences.get(0));
+        Assert.assertEquals(1900, (long) sequences.get(99));
+        Assert.assertEquals(1900, nextSequence);
+
+        sequences.clear();
+        nextSequence = responseHistoryIndex.find(new ResponseHistoryIndex.Query(1000, 2000, 0, 0, null, nextSequence,
+                1000), (entry) -> {
+            sequences.add(entry.getSequence());
+        });
+        Assert.assertEquals(900, sequences.size());
+        Assert.assertEquals(1899, (long) sequences.get(0));
+        Assert.assertEquals(1000, (long) sequences.get(899));
+        Assert.assertEquals(-1, nextSequence);
+
+        sequences.clear();
+        nextSequence = responseHistoryIndex.find(new ResponseHistoryIndex.Query(ENTRY_COUNT, Long.MAX_VALUE, 0, 0,
+                null, Long.MAX_VALUE, 10), (entry) -> {
+            sequences.add(entry.getSequence());
+        });
+        Assert.assertTrue(sequences.isEmpty());
+        Assert.assertEquals(-1, nextSequence);
+    }
+
+    @Test
+    public final void testResponseHistoryIndexFilters() throws IOException {
+
+        final ResponseHistoryIndex responseHistoryIndex = newResponseHistoryIndex();
+        final Random random = new Random(0);
+
+        // Compare the indexed results to a brute force filter of the same entries.
+        for (int i = 0; i < 200; i++) {
+
+            final long fromMillis = random.nextInt(ENTRY_COUNT);
+            final long toMillis = fromMillis + random.nextInt(ENTRY_COUNT);
+            final long minimumResponseTime = random.nextBoolean() ? 0 : random.nextInt(ENTRY_COUNT);
+            final long minimumResponseSize = random.nextBoolean() ? 0 : random.nextInt(10);
+            final String path = random.nextBoolean() ? null : getPath(random.nextInt(4));
+            final int limit = 1 + random.nextInt(50);
+            final List<Long> expectedSequences = new ArrayList<>();
+
+            for (int sequence = ENTRY_COUNT - 1; sequence >= 0; sequence--) {
+
+                if (sequence >= fromMillis && sequence < toMillis && getResponseTime(sequence) >= minimumResponseTime &&
+                        getResponseSize(sequence) >= minimumResponseSize &&
+                        (path == null || path.equals(getPath(sequence)))) {
+                    expectedSequences.add((long) sequence);
+                }
+            }
+
+            final List<Long> sequences = new ArrayList<>();
+            final long nextSequence = responseHistoryIndex.find(new ResponseHistoryIndex.Query(fromMillis, toMillis,
+                    minimumResponseTime, minimumResponseSize, path, Long.MAX_VALUE, limit), (entry) -> {
+                Assert.assertEquals(Long.toString(entry.getSequence()), entry.getUniqueResponseId());
+                sequences.add(entry.getSequence());
+            });
+
+            Assert.assertEquals(expectedSequences.subList(0, Math.min(limit, expectedSequences.size())), sequences);
+            Assert.assertEquals((expectedSequences.size() > limit) ? expectedSequences.get(limit - 1) : -1,
+                    nextSequence);
+        }
+    }
+
+    @Test
+    public final void testResponseHistoryIndexGetAndReset() {
+
+        final ResponseHistoryIndex responseHistoryIndex =
+                new ResponseHistoryIndex(ResponseHistoryIndex.DEFAULT_CAPACITY);
+        responseHistoryIndex.add("first", "/first", newSpecificResponseMetrics(1, 1), 2000);
+        responseHistoryIndex.add("second", "/second", newSpecificResponseMetrics(2, 2), 1000);
+
+        final ResponseHistoryIndex.Entry entry = responseHistoryIndex.get("second");
+        Assert.assertEquals("/second", entry.getPath());
+        Assert.assertEquals(1, entry.getSequence());
+        Assert.assertEquals(2L, (long) entry.getMetrics().get(SpecificResponseMetrics.Metric.RESPONSE_TIME.getIndex()));
+
+        // Timestamps never go backwards so that they can be binary searched.
+        Assert.assertEquals(2000, entry.getTimestampMillis());
+        Assert.assertNull(responseHistoryIndex.get("third"));
+
+        try {
+            responseHistoryIndex.add("third", "/third", new SpecificResponseMetrics(), 3000);
+            Assert.fail("ResponseHistoryIndex failed to throw IllegalArgumentException for an incomplete response.");
+        } catch (IllegalArgumentException e) {
+            // Test passed.
+        }
+
+        responseHistoryIndex.reset();
+        Assert.assertEquals(0, responseHistoryIndex.size());
+        Assert.assertNull(responseHistoryIndex.get("first"));
+    }
+
+    @Test
+    public final void testResponseHistoryIndexRetiresOldestChunk() throws IOException {
+
+        final int capacity = ResponseHistoryIndex.CHUNK_SIZE * 2;
+        final ResponseHistoryIndex responseHistoryIndex = new ResponseHistoryIndex(capacity);
+        final int entryCount = ResponseHistoryIndex.CHUNK_SIZE * 5 + 3;
+
+        // A path that only occurs in the first chunk is removed along with it.
+        responseHistoryIndex.add("retired", "/retired", newSpecificResponseMetrics(0, 0), 0);
+
+        for (int i = 1; i < entryCount; i++) {
+            responseHistoryIndex.add(Integer.toString(i), getPath(i), newSpecificResponseMetrics(i, i), i);
+        }
+
+        // The oldest chunks are retired whole, so at least the capacity is kept.
+        final int size = responseHistoryIndex.size();
+        Assert.assertTrue(Integer.toString(size), size >= capacity);
+        Assert.assertTrue(Integer.toString(size), size <= capacity + ResponseHistoryIndex.CHUNK_SIZE);
+
+        final int firstSequence = entryCount - size;
+        Assert.assertNull(responseHistoryIndex.get("retired"));
+        Assert.assertNull(responseHistoryIndex.get(Integer.toString(firstSequence - 1)));
+        Assert.assertEquals(firstSequence,
+                responseHistoryIndex.get(Integer.toString(firstSequence)).getSequence());
+
+        final List<Long> sequences = new ArrayList<>();
+        final ResponseHistoryIndex.EntryVisitor entryVisitor = (entry) -> {
+            sequences.add(entry.getSequence());
+        };
+        Assert.assertEquals(-1, responseHistoryIndex.find(new ResponseHistoryIndex.Query(Long.MIN_VALUE,
+                Long.MAX_VALUE, 0, 0, "/retired", Long.MAX_VALUE, 10), entryVisitor));
+        Assert.assertTrue(sequences.isEmpty());
+
+        // Queries stop at the oldest entry that has not been retired.
+        Assert.assertEquals(-1, responseHistoryIndex.find(new ResponseHistoryIndex.Query(Long.MIN_VALUE,
+                Long.MAX_VALUE, 0, 0, null, Long.MAX_VALUE, entryCount), entryVisitor));
+        Assert.assertEquals(size, sequences.size());
+        Assert.assertEquals(firstSequence, (long) sequences.get(size - 1));
+
+        sequences.clear();
+        Assert.assertEquals(-1, responseHistoryIndex.find(new ResponseHistoryIndex.Query(Long.MIN_VALUE,
+                Long.MAX_VALUE, 0, 0, getPath(1), Long.MAX_VALUE, entryCount), entryVisitor));
+        Assert.assertEquals(size / 4, sequences.size(), 1);
+        Assert.assertTrue(sequences.get(sequences.size() - 1) >= firstSequence);
+    }
+
+    @Test
+    public final void testResponseHistoryIndexConcurrentAdd() {
+
+        final int entryCount = 50_000;
+        final ResponseHistoryIndex responseHistoryIndex =
+                new ResponseHistoryIndex(ResponseHistoryIndex.DEFAULT_CAPACITY);
+        IntStream.range(0, entryCount).parallel().forEach((i) -> {
+            responseHistoryIndex.add(Integer.toString(i), getPath(i), newSpecificResponseMetrics(i, i), i);
+        });
+
+        Assert.assertEquals(entryCount, responseHistoryIndex.size());
+
+        for (int i = 0; i < entryCount; i++) {
+            Assert.assertEquals(getPath(i), responseHistoryIndex.get(Integer.toString(i)).getPath());
+        }
+    }
+
+    private static ResponseHistoryIndex newResponseHistoryIndex() {
+
+        final ResponseHistoryIndex responseHistoryIndex =
+                new ResponseHistoryIndex(ResponseHistoryIndex.DEFAULT_CAPACITY);
+
+        for (int i = 0; i < ENTRY_COUNT; i++) {
+            responseHistoryIndex.add(Integer.toString(i), getPath(i),
+                    newSpecificResponseMetrics(getResponseTime(i), getResponseSize(i)), i);
+        }
+
+        return responseHistoryIndex;
+    }
+
+    private static SpecificResponseMetrics newSpecificResponseMetrics(long responseTime, long responseSize) {
+
+        final SpecificResponseMetrics specificResponseMetrics = new SpecificResponseMetrics();
+        final long[] metrics = new long[SpecificResponseMetrics.METRIC_COUNT];
+        metrics[SpecificResponseMetrics.Metric.RESPONSE_TIME.getIndex()] = responseTime;
+        metrics[SpecificResponseMetrics.Metric.RESPONSE_SIZE.getIndex()] = responseSize;
+        metrics[SpecificResponseMetrics.Metric.TRANSFERRED_RESPONSE_SIZE.getIndex()] = responseSize;
+        specificResponseMetrics.setMetrics(metrics);
+
+        return specificResponseMetrics;
+    }
+
+    private static String getPath(int i) {
+        return "/page" + (i % 4);
+    }
+
+    /**
+     * @return response times that only exceed the size of a chunk in the second chunk, so the other chunks are skipped
+     * by queries for slow responses.
+     */
+    private static long getResponseTime(int i) {
+        return (i / ResponseHistoryIndex.CHUNK_SIZE == 1) ? (i * 2) : (i % ResponseHistoryIndex.CHUNK_SIZE);
+    }
+
+    private static long getResponseSize(int i) {
+        return i % 10;
+    }
+}
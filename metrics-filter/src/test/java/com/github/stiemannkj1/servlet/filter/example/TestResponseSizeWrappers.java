@@ -23,10 +23,21 @@
  */
 package com.github.stiemannkj1.servlet.filter.example;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.PrintWriter;
 import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
 import javax.servlet.ServletOutputStream;
+import javax.servlet.http.Cookie;
 import javax.servlet.http.HttpServletResponse;
 import org.junit.Assert;
 import org.junit.Test;
@@ -58,6 +69,84 @@ public final class TestResponseSizeWrappers {
                 testString.length(), responseSizeServletOutputStreamWrapper.getResponseSize());
     }
 
+    @Test
+    public final void testNetworkBlockedTime() throws IOException, InterruptedException {
+
+        final ByteArrayOutputStream body = new ByteArrayOutputStream();
+        final ServletOutputStream servletOutputStream = mock(ServletOutputStream.class);
+        doAnswer((invocation) -> {
+            body.write(invocation.getArgument(0, Integer.class));
+            return null;
+        }).when(servletOutputStream).write(any(Integer.class));
+
+        // Simulate a slow client which blocks every write and flush that reaches the socket.
+        doAnswer((invocation) -> {
+            Thread.sleep(20);
+            body.write(invocation.getArgument(0, byte[].class), invocation.getArgument(1, Integer.class),
+                    invocation.getArgument(2, Integer.class));
+            return null;
+        }).when(servletOutputStream).write(any(byte[].class), any(Integer.class), any(Integer.class));
+        doAnswer((invocation) -> {
+            Thread.sleep(10);
+            return null;
+        }).when(servletOutputStream).flush();
+
+        final NetworkTimingServletOutputStream timedWrapper =
+                new NetworkTimingServletOutputStream(servletOutputStream, 1024);
+        Assert.assertFalse(timedWrapper.isNetworkBlockingTimed());
+        Assert.assertEquals(0, timedWrapper.getClientThroughput());
+        timedWrapper.write(new byte[100], 0, 100);
+        Assert.assertEquals("A write smaller than the minimum timed write size was timed.", 0,
+                timedWrapper.getNetworkBlockedTime());
+
+        final byte[] bulk = new byte[4096];
+        bulk[0] = 1;
+        bulk[4095] = 2;
+        timedWrapper.write(bulk, 0, 4096);
+        Assert.assertTrue(timedWrapper.getNetworkBlockedTime() >= TimeUnit.MILLISECONDS.toNanos(20));
+
+        // A flush sends the bytes of the untimed write.
+        timedWrapper.flush();
+
+        final long networkBlockedTime = timedWrapper.getNetworkBlockedTime();
+        Assert.assertTrue(networkBlockedTime >= TimeUnit.MILLISECONDS.toNanos(30));
+        Assert.assertEquals((long) (4196 * 1_000_000_000.0 / networkBlockedTime), timedWrapper.getClientThroughput());
+
+        final byte[] written = body.toByteArray();
+        Assert.assertEquals(4196, written.length);
+        Assert.assertEquals(1, written[100]);
+        Assert.assertEquals(2, written[written.length - 1]);
+
+        // The response wrapper only times the body if network blocking is measured.
+        final HttpServletResponse httpServletResponse = mock(HttpServletResponse.class);
+        when(httpServletResponse.getOutputStream()).thenReturn(servletOutputStream);
+
+        final ResponseSizeHttpServletResponseWrapper measuredResponseWrapper =
+                new ResponseSizeHttpServletResponseWrapper(httpServletResponse);
+        Assert.assertEquals(0, measuredResponseWrapper.getNetworkBlockedTime());
+        measuredResponseWrapper.measureNetworkBlocking(0);
+        measuredResponseWrapper.getWriter().print("test");
+        measuredResponseWrapper.finishResponse();
+        Assert.assertTrue(measuredResponseWrapper.getNetworkBlockedTime() >= TimeUnit.MILLISECONDS.toNanos(20));
+        Assert.assertTrue(measuredResponseWrapper.getClientThroughput() > 0);
+
+        // The body held back for the ETag is only sent (and timed) when the response is finished.
+        final HttpServletResponse eTagHttpServletResponse = mock(HttpServletResponse.class);
+        when(eTagHttpServletResponse.getOutputStream()).thenReturn(servletOutputStream);
+        when(eTagHttpServletResponse.getStatus()).thenReturn(HttpServletResponse.SC_OK);
+
+        final ResponseSizeHttpServletResponseWrapper eTagResponseWrapper =
+                new ResponseSizeHttpServletResponseWrapper(eTagHttpServletResponse);
+        eTagResponseWrapper.measureNetworkBlocking(0);
+        eTagResponseWrapper.enableETag(null);
+        eTagResponseWrapper.getWriter().print("test");
+        Assert.assertEquals("A write that was held back for the ETag was timed.", 0,
+                eTagResponseWrapper.getNetworkBlockedTime());
+        eTagResponseWrapper.finishResponse();
+        Assert.assertTrue(eTagResponseWrapper.isNetworkBlockingTimed());
+        Assert.assertTrue(eTagResponseWrapper.getNetworkBlockedTime() >= TimeUnit.MILLISECONDS.toNanos(20));
+    }
+
     @Test
     public final void testResponseSizeHttpServletResponseWrapperSpecCompliance() throws IOException {
         final HttpServletResponse httpServletResponse = newMockHttpServletResponse();
@@ -120,6 +209,408 @@ public final class TestResponseSizeWrappers {
         testResponseSizeHttpServletResponseWrapper(WriteResponseWith.WRITER, Flush.WRITER);
     }
 
+    @Test
+    public final void testCompressedResponseSizes() throws IOException {
+        testCompressedResponse(ResponseCompression.GZIP, WriteResponseWith.OUTPUT_STREAM);
+        testCompressedResponse(ResponseCompression.GZIP, WriteResponseWith.WRITER);
+        testCompressedResponse(ResponseCompression.DEFLATE, WriteResponseWith.OUTPUT_STREAM);
+        testCompressedResponse(ResponseCompression.DEFLATE, WriteResponseWith.WRITER);
+    }
+
+    @Test
+    public final void testResponseBelowCompressionMinimumSizeIsNotCompressed() throws IOException {
+
+        final ByteArrayOutputStream body = new ByteArrayOutputStream();
+        final Map<String, String> headers = new HashMap<>();
+        final HttpServletResponse httpServletResponse = newMockCompressibleHttpServletResponse(body, headers);
+        final ResponseCompression responseCompression =
+                new ResponseCompression(1024, ResponseCompression.DEFAULT_COMPRESSIBLE_CONTENT_TYPES);
+        final ResponseSizeHttpServletResponseWrapper testResponseWrapper =
+                new ResponseSizeHttpServletResponseWrapper(httpServletResponse, responseCompression,
+                        ResponseCompression.GZIP);
+        final String testResponse = "test";
+        testResponseWrapper.setContentLength(testResponse.length());
+        verify(httpServletResponse, never()).setContentLength(anyInt());
+        testResponseWrapper.getOutputStream().print(testResponse);
+        testResponseWrapper.finishResponse();
+
+        // Deflaters are only borrowed by responses that are compressed.
+        Assert.assertEquals(0, responseCompression.getPooledDeflaterCount());
+
+        Assert.assertEquals(testResponse, new String(body.toByteArray(), StandardCharsets.UTF_8));
+        Assert.assertNull("Response below the minimum size was compressed.", headers.get("Content-Encoding"));
+        verify(httpServletResponse).setContentLength(testResponse.length());
+        Assert.assertEquals(testResponse.length(), testResponseWrapper.getResponseSize());
+        Assert.assertEquals(testResponse.length(), testResponseWrapper.getTransferredResponseSize());
+    }
+
+    @Test
+    public final void testIncompressibleContentTypeIsNotCompressed() throws IOException {
+
+        final ByteArrayOutputStream body = new ByteArrayOutputStream();
+        final Map<String, String> headers = new HashMap<>();
+        final HttpServletResponse httpServletResponse = newMockCompressibleHttpServletResponse(body, headers);
+        when(httpServletResponse.getContentType()).thenReturn("image/png");
+
+        final ResponseSizeHttpServletResponseWrapper testResponseWrapper =
+                new ResponseSizeHttpServletResponseWrapper(httpServletResponse,
+                        new ResponseCompression(0, ResponseCompression.DEFAULT_COMPRESSIBLE_CONTENT_TYPES),
+                        ResponseCompression.GZIP);
+        final byte[] testResponse = newCompressibleResponse().getBytes(StandardCharsets.UTF_8);
+        testResponseWrapper.getOutputStream().write(testResponse);
+        testResponseWrapper.finishResponse();
+
+        Assert.assertArrayEquals(testResponse, body.toByteArray());
+        Assert.assertNull("Incompressible response was compressed.", headers.get("Content-Encoding"));
+        Assert.assertEquals(testResponse.length, testResponseWrapper.getTransferredResponseSize());
+    }
+
+    @Test
+    public final void testAutomaticETag() throws IOException {
+
+        final String testResponse = "<html>page1</html>";
+        final ByteArrayOutputStream body = new ByteArrayOutputStream();
+        final Map<String, String> headers = new HashMap<>();
+        final ResponseSizeHttpServletResponseWrapper testResponseWrapper =
+                new ResponseSizeHttpServletResponseWrapper(newMockCompressibleHttpServletResponse(body, headers));
+        testResponseWrapper.enableETag(null);
+        testResponseWrapper.getWriter().print(testResponse);
+        testResponseWrapper.finishResponse();
+
+        final String eTag = headers.get("ETag");
+        Assert.assertNotNull("ETag header was not set.", eTag);
+        Assert.assertTrue("ETag is not a strong ETag.", eTag.startsWith("\""));
+        Assert.assertEquals(testResponse, new String(body.toByteArray(), StandardCharsets.UTF_8));
+
+        // An identical body results in the same ETag, so a matching If-None-Match results in a 304 without a body.
+        final ByteArrayOutputStream notModifiedBody = new ByteArrayOutputStream();
+        final Map<String, String> notModifiedHeaders = new HashMap<>();
+        final HttpServletResponse notModifiedResponse =
+                newMockCompressibleHttpServletResponse(notModifiedBody, notModifiedHeaders);
+        final ResponseSizeHttpServletResponseWrapper notModifiedResponseWrapper =
+                new ResponseSizeHttpServletResponseWrapper(notModifiedResponse);
+        notModifiedResponseWrapper.enableETag("\"other\", " + eTag);
+        notModifiedResponseWrapper.getOutputStream().print(testResponse);
+        notModifiedResponseWrapper.finishResponse();
+
+        verify(notModifiedResponse).setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+        Assert.assertEquals(eTag, notModifiedHeaders.get("ETag"));
+        Assert.assertEquals("A body was written for a 304 response.", 0, notModifiedBody.size());
+        Assert.assertTrue(notModifiedResponseWrapper.isNotModified());
+        Assert.assertEquals(testResponse.length(), notModifiedResponseWrapper.getResponseSize());
+        Assert.assertEquals(0, notModifiedResponseWrapper.getTransferredResponseSize());
+
+        // A different body does not match.
+        final ByteArrayOutputStream modifiedBody = new ByteArrayOutputStream();
+        final Map<String, String> modifiedHeaders = new HashMap<>();
+        final HttpServletResponse modifiedResponse = newMockCompressibleHttpServletResponse(modifiedBody,
+                modifiedHeaders);
+        final ResponseSizeHttpServletResponseWrapper modifiedResponseWrapper =
+                new ResponseSizeHttpServletResponseWrapper(modifiedResponse);
+        modifiedResponseWrapper.enableETag(eTag);
+        modifiedResponseWrapper.getOutputStream().print("<html>page2</html>");
+        modifiedResponseWrapper.finishResponse();
+
+        verify(modifiedResponse, never()).setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+        Assert.assertNotEquals(eTag, modifiedHeaders.get("ETag"));
+        Assert.assertEquals("<html>page2</html>", new String(modifiedBody.toByteArray(), StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public final void testAutomaticETagSkippedForCommittedResponses() throws IOException {
+
+        for (boolean flush : new boolean[] { false, true }) {
+
+            final ByteArrayOutputStream body = new ByteArrayOutputStream();
+            final Map<String, String> headers = new HashMap<>();
+            final HttpServletResponse httpServletResponse = newMockCompressibleHttpServletResponse(body, headers);
+            when(httpServletResponse.getBufferSize()).thenReturn(16);
+
+            final ResponseSizeHttpServletResponseWrapper testResponseWrapper =
+                    new ResponseSizeHttpServletResponseWrapper(httpServletResponse);
+            testResponseWrapper.enableETag(null);
+
+            final String testResponse = flush ? "small" : "larger than the response buffer";
+            testResponseWrapper.getOutputStream().print(testResponse);
+
+            if (flush) {
+                testResponseWrapper.flushBuffer();
+            }
+
+            testResponseWrapper.finishResponse();
+
+            Assert.assertNull("ETag header was set after the response was committed.", headers.get("ETag"));
+            Assert.assertEquals(testResponse, new String(body.toByteArray(), StandardCharsets.UTF_8));
+        }
+    }
+
+    @Test
+    public final void testAutomaticETagIsWeakForCompressedResponses() throws IOException {
+
+        final ByteArrayOutputStream body = new ByteArrayOutputStream();
+        final Map<String, String> headers = new HashMap<>();
+        final ResponseSizeHttpServletResponseWrapper testResponseWrapper =
+                new ResponseSizeHttpServletResponseWrapper(newMockCompressibleHttpServletResponse(body, headers),
+                        new ResponseCompression(16, ResponseCompression.DEFAULT_COMPRESSIBLE_CONTENT_TYPES),
+                        ResponseCompression.GZIP);
+        testResponseWrapper.enableETag(null);
+        testResponseWrapper.getWriter().print("<p>Hello World!</p><p>Hello World!</p><p>Hello World!</p>");
+        testResponseWrapper.finishResponse();
+
+        Assert.assertEquals(ResponseCompression.GZIP, headers.get("Content-Encoding"));
+        Assert.assertTrue("ETag of a compressed response is not weak.", headers.get("ETag").startsWith("W/\""));
+    }
+
+    @Test
+    public final void testHeaderSize() throws IOException {
+
+        final HttpServletResponse httpServletResponse = newMockHttpServletResponse();
+        final ResponseSizeHttpServletResponseWrapper testResponseWrapper =
+                new ResponseSizeHttpServletResponseWrapper(httpServletResponse);
+        final String statusLine = "HTTP/1.1 200 \r\n";
+        Assert.assertEquals((statusLine + "\r\n").length(), testResponseWrapper.getHeaderSize());
+
+        // Setting a header replaces all previous values of the header (regardless of case).
+        testResponseWrapper.addHeader("X-Test", "first");
+        testResponseWrapper.addHeader("X-Test", "second");
+        testResponseWrapper.setHeader("x-test", "value");
+        testResponseWrapper.addIntHeader("X-Count", 42);
+        testResponseWrapper.setDateHeader("Expires", 0);
+        testResponseWrapper.setContentLength(1234);
+
+        when(httpServletResponse.getContentType()).thenReturn("text/html;charset=UTF-8");
+        testResponseWrapper.setContentType("text/html");
+        testResponseWrapper.setCharacterEncoding("UTF-8");
+
+        final Cookie cookie = new Cookie("id", "42");
+        cookie.setPath("/");
+        cookie.setHttpOnly(true);
+        testResponseWrapper.addCookie(cookie);
+        testResponseWrapper.addCookie(new Cookie("theme", "dark"));
+
+        Assert.assertEquals((statusLine + "x-test: value\r\n" + "X-Count: 42\r\n" +
+                "Expires: Thu, 01 Jan 1970 00:00:00 GMT\r\n" + "Content-Length: 1234\r\n" +
+                "Content-Type: text/html;charset=UTF-8\r\n" + "Set-Cookie: id=42; Path=/; HttpOnly\r\n" +
+                "Set-Cookie: theme=dark\r\n" + "\r\n").length(), testResponseWrapper.getHeaderSize());
+
+        // Removing a header removes its size.
+        testResponseWrapper.setHeader("X-Test", null);
+        Assert.assertEquals((statusLine + "X-Count: 42\r\n" + "Expires: Thu, 01 Jan 1970 00:00:00 GMT\r\n" +
+                "Content-Length: 1234\r\n" + "Content-Type: text/html;charset=UTF-8\r\n" +
+                "Set-Cookie: id=42; Path=/; HttpOnly\r\n" + "Set-Cookie: theme=dark\r\n" + "\r\n").length(),
+                testResponseWrapper.getHeaderSize());
+
+        testResponseWrapper.reset();
+        Assert.assertEquals((statusLine + "\r\n").length(), testResponseWrapper.getHeaderSize());
+
+        // Headers set after the response is committed are ignored by the container.
+        when(httpServletResponse.isCommitted()).thenReturn(true);
+        testResponseWrapper.setHeader("X-Test", "value");
+        Assert.assertEquals((statusLine + "\r\n").length(), testResponseWrapper.getHeaderSize());
+    }
+
+    @Test
+    public final void testDeferredContentLengthHeaderSize() throws IOException {
+
+        final ByteArrayOutputStream body = new ByteArrayOutputStream();
+        final Map<String, String> headers = new HashMap<>();
+        final ResponseSizeHttpServletResponseWrapper testResponseWrapper =
+                new ResponseSizeHttpServletResponseWrapper(newMockCompressibleHttpServletResponse(body, headers),
+                        new ResponseCompression(1024, ResponseCompression.DEFAULT_COMPRESSIBLE_CONTENT_TYPES),
+                        ResponseCompression.GZIP);
+        final long emptyHeaderSize = testResponseWrapper.getHeaderSize();
+
+        // A held back content length is only counted once it is actually set.
+        testResponseWrapper.setContentLength(4);
+        Assert.assertEquals(emptyHeaderSize, testResponseWrapper.getHeaderSize());
+        testResponseWrapper.getOutputStream().print("test");
+        testResponseWrapper.finishResponse();
+        Assert.assertEquals(emptyHeaderSize + "Content-Length: 4\r\n".length(), testResponseWrapper.getHeaderSize());
+    }
+
+    @Test
+    public final void testMalformedDeferredContentLengthPassedThrough() throws IOException {
+
+        final ByteArrayOutputStream body = new ByteArrayOutputStream();
+        final Map<String, String> headers = new HashMap<>();
+        final HttpServletResponse httpServletResponse = newMockCompressibleHttpServletResponse(body, headers);
+        final ResponseSizeHttpServletResponseWrapper testResponseWrapper =
+                new ResponseSizeHttpServletResponseWrapper(httpServletResponse,
+                        new ResponseCompression(1024, ResponseCompression.DEFAULT_COMPRESSIBLE_CONTENT_TYPES),
+                        ResponseCompression.GZIP);
+        final long emptyHeaderSize = testResponseWrapper.getHeaderSize();
+
+        testResponseWrapper.setHeader("Content-Length", "4");
+        testResponseWrapper.setHeader("Content-Length", "four");
+        Assert.assertEquals("four", headers.get("Content-Length"));
+        Assert.assertEquals(emptyHeaderSize + "Content-Length: four\r\n".length(),
+                testResponseWrapper.getHeaderSize());
+
+        // The malformed value replaced the held back content length.
+        testResponseWrapper.getOutputStream().print("test");
+        testResponseWrapper.finishResponse();
+        verify(httpServletResponse, never()).setContentLength(anyInt());
+        Assert.assertEquals("test", new String(body.toByteArray(), StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public final void testClosedResponseCompressionFreesDeflaters() throws IOException {
+
+        final ResponseCompression responseCompression =
+                new ResponseCompression(16, ResponseCompression.DEFAULT_COMPRESSIBLE_CONTENT_TYPES);
+        final ResponseSizeHttpServletResponseWrapper inProgressResponseWrapper =
+                new ResponseSizeHttpServletResponseWrapper(
+                        newMockCompressibleHttpServletResponse(new ByteArrayOutputStream(), new HashMap<>()),
+                        responseCompression, ResponseCompression.GZIP);
+        inProgressResponseWrapper.getOutputStream().print(newCompressibleResponse());
+        final ResponseSizeHttpServletResponseWrapper completedResponseWrapper =
+                new ResponseSizeHttpServletResponseWrapper(
+                        newMockCompressibleHttpServletResponse(new ByteArrayOutputStream(), new HashMap<>()),
+                        responseCompression, ResponseCompression.DEFLATE);
+        completedResponseWrapper.getOutputStream().print(newCompressibleResponse());
+        completedResponseWrapper.finishResponse();
+        Assert.assertEquals(1, responseCompression.getPooledDeflaterCount());
+
+        responseCompression.close();
+        Assert.assertEquals(0, responseCompression.getPooledDeflaterCount());
+
+        // Responses that complete after the pools are closed free their Deflaters instead of pooling them.
+        inProgressResponseWrapper.finishResponse();
+        Assert.assertEquals(0, responseCompression.getPooledDeflaterCount());
+    }
+
+    @Test
+    public final void testCompressionByPath() {
+
+        final ResponseCompression responseCompression =
+                new ResponseCompression(16, ResponseCompression.DEFAULT_COMPRESSIBLE_CONTENT_TYPES);
+        responseCompression.record("/small", 100, 100);
+        responseCompression.record("/large", 3000, 1000);
+        responseCompression.record("/large", 1000, 500);
+        responseCompression.record("/empty", 0, 0);
+
+        final List<MetricsFilterMXBean.PathCompression> compressionByPath = responseCompression.summarize();
+        Assert.assertEquals(3, compressionByPath.size());
+        Assert.assertEquals("/large", compressionByPath.get(0).getPath());
+        Assert.assertEquals(4000, compressionByPath.get(0).getResponseSize());
+        Assert.assertEquals(1500, compressionByPath.get(0).getTransferredResponseSize());
+        Assert.assertEquals(4000.0 / 1500, compressionByPath.get(0).getCompressionRatio(), 0.0);
+        Assert.assertEquals("/small", compressionByPath.get(1).getPath());
+        Assert.assertEquals(1.0, compressionByPath.get(1).getCompressionRatio(), 0.0);
+        Assert.assertEquals("/empty", compressionByPath.get(2).getPath());
+        Assert.assertEquals(1.0, compressionByPath.get(2).getCompressionRatio(), 0.0);
+
+        for (int i = 0; i < ResponseCompression.MAXIMUM_TRACKED_PATHS; i++) {
+            responseCompression.record("/path" + i, 1, 1);
+        }
+
+        Assert.assertEquals(ResponseCompression.MAXIMUM_TRACKED_PATHS, responseCompression.summarize().size());
+
+        responseCompression.reset();
+        Assert.assertTrue(responseCompression.summarize().isEmpty());
+    }
+
+    @Test
+    public final void testSelectEncoding() {
+        Assert.assertNull(ResponseCompression.selectEncoding(null));
+        Assert.assertNull(ResponseCompression.selectEncoding("identity"));
+        Assert.assertNull(ResponseCompression.selectEncoding("gzip;q=0, deflate;q=0"));
+        Assert.assertEquals(ResponseCompression.GZIP, ResponseCompression.selectEncoding("gzip, deflate, br"));
+        Assert.assertEquals(ResponseCompression.GZIP, ResponseCompression.selectEncoding("*"));
+        Assert.assertEquals(ResponseCompression.DEFLATE, ResponseCompression.selectEncoding("gzip;q=0.5, deflate"));
+        Assert.assertEquals(ResponseCompression.DEFLATE, ResponseCompression.selectEncoding("deflate"));
+    }
+
+    private void testCompressedResponse(String contentEncoding, WriteResponseWith writeResponseWith)
+            throws IOException {
+
+        final ByteArrayOutputStream body = new ByteArrayOutputStream();
+        final Map<String, String> headers = new HashMap<>();
+        final HttpServletResponse httpServletResponse = newMockCompressibleHttpServletResponse(body, headers);
+        final ResponseSizeHttpServletResponseWrapper testResponseWrapper =
+                new ResponseSizeHttpServletResponseWrapper(httpServletResponse,
+                        new ResponseCompression(16, ResponseCompression.DEFAULT_COMPRESSIBLE_CONTENT_TYPES),
+                        contentEncoding);
+        final String testResponse = newCompressibleResponse();
+        testResponseWrapper.setContentLength(testResponse.length());
+
+        if (writeResponseWith.equals(WriteResponseWith.WRITER)) {
+            testResponseWrapper.getWriter().print(testResponse);
+        } else {
+            testResponseWrapper.getOutputStream().print(testResponse);
+        }
+
+        testResponseWrapper.flushBuffer();
+        testResponseWrapper.finishResponse();
+
+        Assert.assertEquals("Content-Encoding header was not set for compressed response.", contentEncoding,
+                headers.get("Content-Encoding"));
+        verify(httpServletResponse, never()).setContentLength(anyInt());
+
+        final InputStream compressedBody = new ByteArrayInputStream(body.toByteArray());
+        final InputStream decompressedBody = ResponseCompression.GZIP.equals(contentEncoding)
+                ? new GZIPInputStream(compressedBody) : new InflaterInputStream(compressedBody);
+        final ByteArrayOutputStream decompressed = new ByteArrayOutputStream();
+        final byte[] buffer = new byte[1024];
+        int read;
+
+        while ((read = decompressedBody.read(buffer)) >= 0) {
+            decompressed.write(buffer, 0, read);
+        }
+
+        Assert.assertEquals("Decompressed response differs from the written response.", testResponse,
+                new String(decompressed.toByteArray(), StandardCharsets.UTF_8));
+        Assert.assertEquals("Response size is not the uncompressed size.", testResponse.length(),
+                testResponseWrapper.getResponseSize());
+        Assert.assertEquals("Transferred response size is not the compressed size.", body.size(),
+                testResponseWrapper.getTransferredResponseSize());
+        Assert.assertTrue("Compressed response is not smaller than the uncompressed response.",
+                testResponseWrapper.getTransferredResponseSize() < testResponseWrapper.getResponseSize());
+    }
+
+    private String newCompressibleResponse() {
+
+        final StringBuilder stringBuilder = new StringBuilder();
+
+        for (int i = 0; i < 5000; i++) {
+            stringBuilder.append("<p>Hello World! ").append(i % 10).append("</p>\n");
+        }
+
+        return stringBuilder.toString();
+    }
+
+    private HttpServletResponse newMockCompressibleHttpServletResponse(ByteArrayOutputStream body,
+            Map<String, String> headers) throws IOException {
+
+        final HttpServletResponse httpServletResponse = mock(HttpServletResponse.class);
+        final ServletOutputStream servletOutputStream = mock(ServletOutputStream.class);
+
+        doAnswer((invocation) -> {
+            body.write(invocation.getArgument(0, Integer.class));
+            return null;
+        }).when(servletOutputStream).write(anyInt());
+
+        doAnswer((invocation) -> {
+            body.write(invocation.getArgument(0, byte[].class), invocation.getArgument(1, Integer.class),
+                    invocation.getArgument(2, Integer.class));
+            return null;
+        }).when(servletOutputStream).write(any(byte[].class), anyInt(), anyInt());
+
+        when(httpServletResponse.getOutputStream()).thenReturn(servletOutputStream);
+        when(httpServletResponse.getContentType()).thenReturn("text/html;charset=UTF-8");
+        when(httpServletResponse.getStatus()).thenReturn(HttpServletResponse.SC_OK);
+        when(httpServletResponse.getHeader(any(String.class))).thenAnswer((invocation) -> {
+            return headers.get(invocation.getArgument(0, String.class));
+        });
+
+        doAnswer((invocation) -> {
+            headers.put(invocation.getArgument(0, String.class), invocation.getArgument(1, String.class));
+            return null;
+        }).when(httpServletResponse).setHeader(any(String.class), any(String.class));
+
+        return httpServletResponse;
+    }
+
     private void testResponseSizeHttpServletResponseWrapper(WriteResponseWith writeResponseWith, Flush flush)
             throws IOException {
 
@@ -23,8 +23,6 @@
  */
 package com.github.stiemannkj1.servlet.filter.example;
 
-import java.lang.reflect.Method;
-import java.util.Arrays;
 import java.util.List;
 import org.junit.Assert;
 import org.junit.Test;
@@ -39,18 +37,45 @@ public final class TestSpecificResponseMetrics {
         final SpecificResponseMetrics specificResponseMetrics = new SpecificResponseMetrics();
         final long responseTime = Long.MAX_VALUE;
         final long responseSize = Long.MIN_VALUE;
-        specificResponseMetrics.setMetrics(responseTime, responseSize);
+        final long transferredResponseSize = 42;
+        final long cpuTime = 7;
+        final long allocatedBytes = 1024;
+        final long headerSize = 128;
+        final long networkBlockedTime = 3_000_000;
+        final long clientThroughput = 65_536;
+        final long[] metrics = new long[SpecificResponseMetrics.METRIC_COUNT];
+        metrics[SpecificResponseMetrics.Metric.RESPONSE_TIME.getIndex()] = responseTime;
+        metrics[SpecificResponseMetrics.Metric.RESPONSE_SIZE.getIndex()] = responseSize;
+        metrics[SpecificResponseMetrics.Metric.TRANSFERRED_RESPONSE_SIZE.getIndex()] = transferredResponseSize;
+        metrics[SpecificResponseMetrics.Metric.CPU_TIME.getIndex()] = cpuTime;
+        metrics[SpecificResponseMetrics.Metric.ALLOCATED_BYTES.getIndex()] = allocatedBytes;
+        metrics[SpecificResponseMetrics.Metric.HEADER_SIZE.getIndex()] = headerSize;
+        metrics[SpecificResponseMetrics.Metric.NETWORK_BLOCKED_TIME.getIndex()] = networkBlockedTime;
+        metrics[SpecificResponseMetrics.Metric.CLIENT_THROUGHPUT.getIndex()] = clientThroughput;
+        specificResponseMetrics.setMetrics(metrics);
         Assert.assertEquals((Long) responseTime,
                 specificResponseMetrics.get(SpecificResponseMetrics.Metric.RESPONSE_TIME.getIndex()));
         Assert.assertEquals((Long) responseSize,
                 specificResponseMetrics.get(SpecificResponseMetrics.Metric.RESPONSE_SIZE.getIndex()));
+        Assert.assertEquals((Long) transferredResponseSize,
+                specificResponseMetrics.get(SpecificResponseMetrics.Metric.TRANSFERRED_RESPONSE_SIZE.getIndex()));
+        Assert.assertEquals((Long) cpuTime,
+                specificResponseMetrics.get(SpecificResponseMetrics.Metric.CPU_TIME.getIndex()));
+        Assert.assertEquals((Long) allocatedBytes,
+                specificResponseMetrics.get(SpecificResponseMetrics.Metric.ALLOCATED_BYTES.getIndex()));
+        Assert.assertEquals((Long) headerSize,
+                specificResponseMetrics.get(SpecificResponseMetrics.Metric.HEADER_SIZE.getIndex()));
+        Assert.assertEquals((Long) networkBlockedTime,
+                specificResponseMetrics.get(SpecificResponseMetrics.Metric.NETWORK_BLOCKED_TIME.getIndex()));
+        Assert.assertEquals((Long) clientThroughput,
+                specificResponseMetrics.get(SpecificResponseMetrics.Metric.CLIENT_THROUGHPUT.getIndex()));
     }
 
     @Test
     public final void testImmutableAsList() {
         final SpecificResponseMetrics specificResponseMetrics = new SpecificResponseMetrics();
         testMutatingListOperations(specificResponseMetrics);
-        specificResponseMetrics.setMetrics(0, 0);
+        specificResponseMetrics.setMetrics(new long[SpecificResponseMetrics.METRIC_COUNT]);
         testMutatingListOperations(specificResponseMetrics);
     }
 
@@ -58,11 +83,11 @@ public final class TestSpecificResponseMetrics {
     public final void testMetricsMayBeSetOnce() {
         final SpecificResponseMetrics specificResponseMetrics = new SpecificResponseMetrics();
         Assert.assertNull(specificResponseMetrics.getMetrics());
-        specificResponseMetrics.setMetrics(0, 0);
+        specificResponseMetrics.setMetrics(new long[SpecificResponseMetrics.METRIC_COUNT]);
         Assert.assertNotNull(specificResponseMetrics.getMetrics());
 
         try {
-            specificResponseMetrics.setMetrics(0, 0);
+            specificResponseMetrics.setMetrics(new long[SpecificResponseMetrics.METRIC_COUNT]);
             Assert.fail("SpecificResponseMetrics failed to throw " +
                     UnsupportedOperationException.class.getSimpleName() +
                     " when setMetrics() was called multiple times on a single instance.");
@@ -72,15 +97,23 @@ public final class TestSpecificResponseMetrics {
     }
 
     @Test
-    public final void testSetMetricsParametersLengthEqualsEnumMetricsValuesLength() throws NoSuchMethodException,
-            SecurityException {
-        final Method setMetricsMethod = Arrays.asList(SpecificResponseMetrics.class.getDeclaredMethods()).stream()
-                .filter((method) -> {
-                    return "setMetrics".equals(method.getName());
-                }).findFirst().get();
+    public final void testSetMetricsRequiresOneValuePerMetric() {
+        final SpecificResponseMetrics specificResponseMetrics = new SpecificResponseMetrics();
+
+        for (int length : new int[] { SpecificResponseMetrics.METRIC_COUNT - 1,
+            SpecificResponseMetrics.METRIC_COUNT + 1 }) {
 
-        Assert.assertNotNull(setMetricsMethod);
-        Assert.assertEquals(SpecificResponseMetrics.Metric.values().length, setMetricsMethod.getParameters().length);
+            try {
+                specificResponseMetrics.setMetrics(new long[length]);
+                Assert.fail("SpecificResponseMetrics failed to throw " +
+                        IllegalArgumentException.class.getSimpleName() + " for " + length + " metrics.");
+            } catch (IllegalArgumentException e) {
+                // Test passed.
+            }
+        }
+
+        Assert.assertNull(specificResponseMetrics.getMetrics());
+        Assert.assertEquals(SpecificResponseMetrics.Metric.values().length, SpecificResponseMetrics.METRIC_COUNT);
     }
 
     private void testMutatingListOperation(Runnable performMutatingListOperation) {
@@ -0,0 +1,399 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2019 Kyle Stiemann.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.github.stiemannkj1.test.web.app;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import org.apache.catalina.Context;
+import org.apache.catalina.deploy.FilterDef;
+import org.apache.catalina.deploy.FilterMap;
+import org.apache.catalina.startup.Tomcat;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * <p>
+ * Measures the end-to-end throughput and latency of {@link TestWebAppServlet}'s {@code getWriter()} (page5) and
+ * {@code getOutputStream()} (page6) pages with and without {@code MetricsFilter} in a single JVM. The servlet is
+ * deployed to two contexts of an embedded Tomcat (one of which maps {@code MetricsFilter} to {@code /*}), and a
+ * built-in load generator sends HTTP/1.1 requests over loopback keep-alive connections. The results are written to a
+ * plain text report. This benchmark is not run with the integration tests. Run it with the {@code benchmark}
+ * profile:</p>
+ *
+ * <pre>mvn install -DskipTests &amp;&amp; mvn test -pl test-web-app -P benchmark</pre>
+ *
+ * <p>
+ * The following system properties configure the benchmark (defaults shown):</p>
+ * <ul>
+ * <li>{@code benchmark.connections=8}: the number of concurrent keep-alive connections (one load generator thread
+ * each).</li>
+ * <li>{@code benchmark.warmup.seconds=5}: how long to send requests to each configuration before any configuration is
+ * measured.</li>
+ * <li>{@code benchmark.seconds=10}: how long to measure each configuration.</li>
+ * </ul>
+ *
+ * @author Kyle Stiemann
+ */
+public final class EndToEndBenchmark {
+
+    private static final String METRICS_FILTER_CLASS_NAME =
+            "com.github.stiemannkj1.servlet.filter.example.MetricsFilter";
+    private static final String WITH_FILTER_CONTEXT_PATH = "/with-metrics-filter";
+    private static final String WITHOUT_FILTER_CONTEXT_PATH = "/without-metrics-filter";
+    private static final String[] CONTEXT_PATHS = { WITHOUT_FILTER_CONTEXT_PATH, WITH_FILTER_CONTEXT_PATH };
+    private static final String[] PAGES = { "page5", "page6" };
+    private static final double[] PERCENTILES = { 50, 90, 99, 99.9 };
+
+    @Test
+    public final void benchmarkEndToEnd() throws Exception {
+
+        final int connections = Integer.getInteger("benchmark.connections", 8);
+        final long warmupNanos = TimeUnit.SECONDS.toNanos(Long.getLong("benchmark.warmup.seconds", 5));
+        final long measurementNanos = TimeUnit.SECONDS.toNanos(Long.getLong("benchmark.seconds", 10));
+        final Path baseDir = Files.createTempDirectory("end-to-end-benchmark");
+        final Tomcat tomcat = new Tomcat();
+        tomcat.setBaseDir(baseDir.toString());
+        tomcat.setPort(0);
+
+        // Tomcat closes keep-alive connections after 100 requests by default.
+        tomcat.getConnector().setAttribute("maxKeepAliveRequests", -1);
+        addTestWebAppContext(tomcat, WITHOUT_FILTER_CONTEXT_PATH, baseDir, false);
+        addTestWebAppContext(tomcat, WITH_FILTER_CONTEXT_PATH, baseDir, true);
+        tomcat.start();
+
+        final StringWriter stringWriter = new StringWriter();
+        final PrintWriter report = new PrintWriter(stringWriter);
+
+        try {
+
+            final int port = tomcat.getConnector().getLocalPort();
+            report.println("MetricsFilter end-to-end benchmark");
+            report.println();
+            report.printf(Locale.ENGLISH, "JVM: %s %s, available processors: %d%n",
+                    System.getProperty("java.vm.name"), System.getProperty("java.version"),
+                    Runtime.getRuntime().availableProcessors());
+            report.printf(Locale.ENGLISH, "Keep-alive connections: %d, warmup: %d s, measurement: %d s%n",
+                    connections, TimeUnit.NANOSECONDS.toSeconds(warmupNanos),
+                    TimeUnit.NANOSECONDS.toSeconds(measurementNanos));
+            report.println();
+            report.println("| Page | MetricsFilter | Requests/s | p50 (us) | p90 (us) | p99 (us) | p99.9 (us) |");
+            report.println("| --- | --- | ---: | ---: | ---: | ---: | ---: |");
+
+            // Warm up every configuration before measuring any of them so that the first measured configuration
+            // doesn't pay for the JIT compilation of code shared by all of them.
+            for (String page : PAGES) {
+
+                for (String contextPath : CONTEXT_PATHS) {
+                    runLoad(port, contextPath + "/" + page, connections, warmupNanos);
+                }
+            }
+
+            for (String page : PAGES) {
+
+                for (String contextPath : CONTEXT_PATHS) {
+
+                    final String path = contextPath + "/" + page;
+                    final LoadResult loadResult = runLoad(port, path, connections, measurementNanos);
+                    final long[] latencies = loadResult.getSortedLatencies();
+                    Assert.assertTrue("No requests completed for " + path + ".", latencies.length > 0);
+                    report.printf(Locale.ENGLISH, "| %s | %s | %.0f |", page,
+                            WITH_FILTER_CONTEXT_PATH.equals(contextPath) ? "enabled" : "disabled",
+                            latencies.length / (loadResult.elapsedNanos / 1_000_000_000.0));
+
+                    for (double percentile : PERCENTILES) {
+                        report.printf(Locale.ENGLISH, " %.1f |", getValueAtPercentile(latencies, percentile) /
+                                1_000.0);
+                    }
+
+                    report.println();
+                }
+            }
+        } finally {
+            tomcat.stop();
+            tomcat.destroy();
+        }
+
+        report.flush();
+
+        final String reportText = stringWriter.toString();
+        System.out.println(reportText);
+
+        final String reportPath = System.getProperty("benchmark.report");
+
+        if (reportPath != null) {
+
+            final Path path = Paths.get(reportPath);
+            Files.createDirectories(path.toAbsolutePath().getParent());
+            Files.write(path, reportText.getBytes(StandardCharsets.UTF_8));
+        }
+    }
+
+    private static void addTestWebAppContext(Tomcat tomcat, String contextPath, Path baseDir, boolean metricsFilter)
+            throws IOException {
+
+        final File docBase = Files.createDirectories(baseDir.resolve(contextPath.substring(1))).toFile();
+        final Context context = tomcat.addContext(contextPath, docBase.getAbsolutePath());
+        Tomcat.addServlet(context, "TestWebAppServlet", new TestWebAppServlet());
+
+        for (String page : PAGES) {
+            context.addServletMapping("/" + page, "TestWebAppServlet");
+        }
+
+        if (metricsFilter) {
+
+            final FilterDef filterDef = new FilterDef();
+            filterDef.setFilterName(METRICS_FILTER_CLASS_NAME);
+            filterDef.setFilterClass(METRICS_FILTER_CLASS_NAME);
+            context.addFilterDef(filterDef);
+
+            final FilterMap filterMap = new FilterMap();
+            filterMap.setFilterName(METRICS_FILTER_CLASS_NAME);
+            filterMap.addURLPattern("/*");
+            context.addFilterMap(filterMap);
+        }
+    }
+
+    /**
+     * Sends requests for the path over each connection until the duration elapses.
+     */
+    private static LoadResult runLoad(int port, String path, int connections, long durationNanos)
+            throws Exception {
+
+        final byte[] request = ("GET " + path + " HTTP/1.1\r\nHost: localhost:" + port + "\r\n\r\n")
+                .getBytes(StandardCharsets.US_ASCII);
+        final ExecutorService executorService = Executors.newFixedThreadPool(connections);
+        final CountDownLatch startLatch = new CountDownLatch(1);
+        final List<Future<long[]>> futures = new ArrayList<>();
+
+        try {
+
+            for (int i = 0; i < connections; i++) {
+                futures.add(executorService.submit(new Callable<long[]>() {
+                    @Override
+                    public long[] call() throws Exception {
+
+                        startLatch.await();
+
+                        final long endTime = System.nanoTime() + durationNanos;
+                        long[] latencies = new long[1024];
+                        int count = 0;
+                        Socket socket = null;
+
+                        try {
+
+                            InputStream inputStream = null;
+                            long startTime;
+
+                            while ((startTime = System.nanoTime()) < endTime) {
+
+                                // Reconnect only if the server closed the previous connection.
+                                if (socket == null) {
+
+                                    socket = new Socket(InetAddress.getLoopbackAddress(), port);
+                                    socket.setTcpNoDelay(true);
+                                    inputStream = new BufferedInputStream(socket.getInputStream());
+                                }
+
+                                final OutputStream outputStream = socket.getOutputStream();
+                                outputStream.write(request);
+                                outputStream.flush();
+
+                                if (!readResponse(inputStream)) {
+
+                                    socket.close();
+                                    socket = null;
+                                }
+
+                                if (count == latencies.length) {
+                                    latencies = Arrays.copyOf(latencies, count * 2);
+                                }
+
+                                latencies[count++] = System.nanoTime() - startTime;
+                            }
+                        } finally {
+
+                            if (socket != null) {
+                                socket.close();
+                            }
+                        }
+
+                        return Arrays.copyOf(latencies, count);
+                    }
+                }));
+            }
+
+            final long startTime = System.nanoTime();
+            startLatch.countDown();
+
+            final List<long[]> latencies = new ArrayList<>();
+
+            for (Future<long[]> future : futures) {
+                latencies.add(future.get());
+            }
+
+            return new LoadResult(latencies, System.nanoTime() - startTime);
+        } finally {
+            executorService.shutdownNow();
+        }
+    }
+
+    /**
+     * Reads one HTTP/1.1 response with either a {@code Content-Length} or a chunked body and fails if its status is not
+     * 200.
+     *
+     * @return false if the server closes the connection after the response.
+     */
+    private static boolean readResponse(InputStream inputStream) throws IOException {
+
+        final String statusLine = readLine(inputStream);
+        Assert.assertTrue("Unexpected response: " + statusLine, statusLine.startsWith("HTTP/1.1 200"));
+
+        long contentLength = -1;
+        boolean chunked = false;
+        boolean keepAlive = true;
+        String header;
+
+        while (!(header = readLine(inputStream)).isEmpty()) {
+
+            final int colon = header.indexOf(':');
+            final String name = header.substring(0, colon).trim();
+            final String value = header.substring(colon + 1).trim();
+
+            if ("Content-Length".equalsIgnoreCase(name)) {
+                contentLength = Long.parseLong(value);
+            } else if ("Transfer-Encoding".equalsIgnoreCase(name)) {
+                chunked = "chunked".equalsIgnoreCase(value);
+            } else if ("Connection".equalsIgnoreCase(name)) {
+                keepAlive = !"close".equalsIgnoreCase(value);
+            }
+        }
+
+        if (chunked) {
+
+            long chunkSize;
+
+            while ((chunkSize = Long.parseLong(readLine(inputStream).split(";", 2)[0].trim(), 16)) > 0) {
+                skipFully(inputStream, chunkSize);
+                readLine(inputStream);
+            }
+
+            // Skip the (empty) trailers.
+            while (!readLine(inputStream).isEmpty()) {
+                // Do nothing.
+            }
+        } else if (contentLength >= 0) {
+            skipFully(inputStream, contentLength);
+        } else {
+            Assert.fail("Response without a Content-Length or chunked body can't be used with keep-alive.");
+        }
+
+        return keepAlive;
+    }
+
+    private static String readLine(InputStream inputStream) throws IOException {
+
+        final ByteArrayOutputStream line = new ByteArrayOutputStream(64);
+        int b;
+
+        while ((b = inputStream.read()) != '\n') {
+
+            if (b < 0) {
+                throw new EOFException();
+            }
+
+            if (b != '\r') {
+                line.write(b);
+            }
+        }
+
+        return new String(line.toByteArray(), StandardCharsets.US_ASCII);
+    }
+
+    private static void skipFully(InputStream inputStream, long bytes) throws IOException {
+
+        long remaining = bytes;
+
+        while (remaining > 0) {
+
+            final long skipped = inputStream.skip(remaining);
+
+            if (skipped > 0) {
+                remaining -= skipped;
+            } else if (inputStream.read() < 0) {
+                throw new EOFException();
+            } else {
+                remaining--;
+            }
+        }
+    }
+
+    private static long getValueAtPercentile(long[] sortedValues, double percentile) {
+
+        final int index = (int) Math.ceil((percentile / 100.0) * sortedValues.length) - 1;
+
+        return sortedValues[Math.max(0, Math.min(sortedValues.length - 1, index))];
+    }
+
+    private static final class LoadResult {
+
+        private final List<long[]> latencies;
+        private final long elapsedNanos;
+
+        private LoadResult(List<long[]> latencies, long elapsedNanos) {
+            this.latencies = latencies;
+            this.elapsedNanos = elapsedNanos;
+        }
+
+        private long[] getSortedLatencies() {
+
+            final long[] sortedLatencies = latencies.stream().flatMapToLong(Arrays::stream).toArray();
+            Arrays.sort(sortedLatencies);
+
+            return sortedLatencies;
+        }
+    }
+}
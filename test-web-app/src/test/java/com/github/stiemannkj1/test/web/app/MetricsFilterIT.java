@@ -61,7 +61,7 @@ public final class MetricsFilterIT {
     private static final Pattern GET_MAXIMUM_RESPONSE_TIME = Pattern.compile(getMetricRegex("maximumResponseTime"));
     private static final Pattern GET_AVERAGE_RESPONSE_TIME = Pattern.compile(getMetricRegex("averageResponseTime"));
     private static final Pattern GET_SPECIFIC_RESPONSE_METRICS =
-            Pattern.compile("<td[^>]*>\\s*(\\S+)\\s*</td>\\s*<td[^>]*>\\s*([0-9]+)\\s*</td>\\s*<td[^>]*>\\s*([0-9]+)\\s*</td>");
+            Pattern.compile("<tr>\\s*<td[^>]*>\\s*(\\S+)\\s*</td>\\s*<td[^>]*>\\s*([0-9]+)\\s*</td>\\s*<td[^>]*>\\s*([0-9]+)\\s*</td>");
     private static final String TEST_WEBAPP_BASE_URL =
             "http://localhost:" + System.getProperty("it.test.server.port", "8080") + "/test-web-app";
 